@@ -0,0 +1,34 @@
+#!/bin/sh
+
+# This script benchmarks the bastp tag parser on a desktop JVM.
+# The parser and the benchmark are compiled to build/classes, a synthetic
+# corpus is generated into build/corpus unless it already exists, then the
+# benchmark runs on it and prints its results to stdout.
+#
+# Usage: run.sh [files per case] [BastpBench options]
+# e.g.   run.sh 32 --format csv --iterations 10 > results.csv
+#
+# Requires:
+# - a JDK (javac and java)
+
+set -e
+
+cd `dirname "$0"`
+
+files=${1:-16}
+[ $# -gt 0 ] && shift
+
+rm -rf build/classes
+mkdir -p build/classes
+javac -encoding UTF-8 -nowarn -d build/classes \
+	../../src/ch/blinkenlights/bastp/*.java \
+	src/ch/blinkenlights/bastp/bench/*.java
+
+# the corpus is deterministic: only regenerate it if the size changed
+if [ "`cat build/corpus/.files 2>/dev/null`" != "$files" ]; then
+	rm -rf build/corpus
+	java -cp build/classes ch.blinkenlights.bastp.bench.CorpusGenerator build/corpus "$files"
+	echo "$files" > build/corpus/.files
+fi
+
+java -cp build/classes ch.blinkenlights.bastp.bench.BastpBench "$@" build/corpus
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2017 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.bastp.bench;
+
+import ch.blinkenlights.bastp.Bastp;
+import ch.blinkenlights.bastp.BastpBatch;
+import ch.blinkenlights.bastp.BufferedRandomAccessFile;
+import ch.blinkenlights.bastp.TagSet;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Measures bastp on a desktop JVM
+ *
+ * Every case directory of a corpus written by CorpusGenerator is parsed
+ * on the calling thread: once to warm up, then 'iterations' times while
+ * measuring. For each case this reports the parse rate, the bytes read
+ * and the number of reads which went to the file (one read() syscall
+ * each, as the buffered file answers everything else from memory) and
+ * the bytes allocated per file.
+ * Finally the whole corpus is parsed once more by a BastpBatch, which
+ * reports its own totals through getStats().
+ *
+ * The results are written to stdout as JSON (the default) or CSV, one
+ * case per line in a fixed order, so two runs can be compared with diff.
+ *
+ * Usage: BastpBench [--format json|csv] [--iterations N] [--threads N] <corpus>
+ */
+public class BastpBench {
+	/**
+	 * Results of a single case
+	 */
+	private static class CaseResult {
+		String name;
+		int files;
+		long nanos;
+		long bytes_read;
+		long read_calls;
+		long allocated;
+		int typed;
+		int titled;
+		int timed;
+		int pictures;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String format = "json";
+		int iterations = 5;
+		int threads = 4;
+		String corpus = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--format") && i + 1 < args.length) {
+				format = args[++i];
+			} else if (args[i].equals("--iterations") && i + 1 < args.length) {
+				iterations = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--threads") && i + 1 < args.length) {
+				threads = Integer.parseInt(args[++i]);
+			} else {
+				corpus = args[i];
+			}
+		}
+		if (corpus == null || !(format.equals("json") || format.equals("csv")) || iterations < 1 || threads < 1) {
+			System.err.println("Usage: BastpBench [--format json|csv] [--iterations N] [--threads N] <corpus>");
+			System.exit(1);
+		}
+
+		File[] dirs = new File(corpus).listFiles();
+		if (dirs == null) {
+			System.err.println("Cannot read "+corpus);
+			System.exit(1);
+		}
+		Arrays.sort(dirs);
+
+		ArrayList<CaseResult> results = new ArrayList<>();
+		ArrayList<String> all = new ArrayList<>();
+		for (File dir : dirs) {
+			String[] paths = listFiles(dir);
+			if (paths.length == 0)
+				continue;
+			results.add(runCase(dir.getName(), paths, iterations));
+			all.addAll(Arrays.asList(paths));
+		}
+
+		// the batch run shows what the scanner gets with its thread pool
+		BastpBatch<TagSet> batch = new BastpBatch<TagSet>(threads, 64, false, BastpBatch.TAGS);
+		final AtomicInteger parsed = new AtomicInteger();
+		long start = System.nanoTime();
+		batch.process(all.iterator(), new BastpBatch.Listener<TagSet>() {
+			@Override
+			public void onResult(String path, TagSet value) {
+				parsed.incrementAndGet();
+			}
+		});
+		long batchNanos = System.nanoTime() - start;
+		String batchStats = batch.getStats();
+		batch.shutdown();
+
+		if (format.equals("json")) {
+			printJson(results, threads, parsed.get(), batchNanos, batchStats);
+		} else {
+			printCsv(results, threads, parsed.get(), batchNanos, batchStats);
+		}
+	}
+
+	/**
+	 * Returns the sorted paths of all files in given directory
+	 */
+	private static String[] listFiles(File dir) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return new String[0];
+		Arrays.sort(files);
+		ArrayList<String> paths = new ArrayList<>();
+		for (File file : files) {
+			if (file.isFile())
+				paths.add(file.getPath());
+		}
+		return paths.toArray(new String[paths.size()]);
+	}
+
+	/**
+	 * Parses all files of a case and returns the measurements of the
+	 * last 'iterations' passes
+	 */
+	private static CaseResult runCase(String name, String[] paths, int iterations) {
+		// a window sized instance, just like the ones used by BastpBatch
+		Bastp bastp = new Bastp(BufferedRandomAccessFile.DEFAULT_WINDOW_SIZE);
+		CaseResult result = new CaseResult();
+		result.name = name;
+		result.files = paths.length;
+
+		// the warm up pass also collects what was found in the files
+		for (String path : paths) {
+			TagSet tags = bastp.getTagSet(path);
+			if (tags.type != null)
+				result.typed++;
+			if (tags.has(TagSet.TITLE))
+				result.titled++;
+			if (tags.duration_ms > 0)
+				result.timed++;
+			if (tags.picture_length > 0)
+				result.pictures++;
+		}
+
+		long allocStart = getAllocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			for (String path : paths) {
+				TagSet tags = bastp.getTagSet(path);
+				result.bytes_read += tags.bytes_read;
+				result.read_calls += tags.read_calls;
+			}
+		}
+		result.nanos = System.nanoTime() - start;
+		long allocEnd = getAllocatedBytes();
+		result.allocated = (allocStart < 0 || allocEnd < 0 ? -1 : allocEnd - allocStart);
+
+		// everything is reported per file and single pass
+		long parses = (long)paths.length * iterations;
+		result.nanos /= iterations;
+		result.bytes_read /= parses;
+		result.read_calls /= parses;
+		if (result.allocated >= 0)
+			result.allocated /= parses;
+		return result;
+	}
+
+	/**
+	 * Returns the number of bytes allocated by the calling thread so far,
+	 * -1 if the JVM cannot tell
+	 */
+	private static long getAllocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean)bean;
+		if (!sun.isThreadAllocatedMemorySupported() || !sun.isThreadAllocatedMemoryEnabled())
+			return -1;
+		return sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static double filesPerSec(long files, long nanos) {
+		return (nanos > 0 ? files * 1e9 / nanos : 0);
+	}
+
+	private static void printJson(ArrayList<CaseResult> results, int threads, int parsed, long batchNanos, String batchStats) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n  \"cases\": [\n");
+		for (Iterator<CaseResult> it = results.iterator(); it.hasNext(); ) {
+			CaseResult r = it.next();
+			sb.append(String.format(Locale.ROOT,
+				"    {\"case\": \"%s\", \"files\": %d, \"files_per_sec\": %.1f, \"us_per_file\": %d, \"bytes_per_file\": %d, \"read_calls_per_file\": %d, \"alloc_bytes_per_file\": %d, \"typed\": %d, \"titled\": %d, \"timed\": %d, \"pictures\": %d}",
+				r.name, r.files, filesPerSec(r.files, r.nanos), r.nanos / r.files / 1000, r.bytes_read, r.read_calls, r.allocated,
+				r.typed, r.titled, r.timed, r.pictures));
+			sb.append(it.hasNext() ? ",\n" : "\n");
+		}
+		sb.append("  ],\n");
+		sb.append(String.format(Locale.ROOT, "  \"batch\": {\"threads\": %d, \"files\": %d, \"files_per_sec\": %.1f, \"stats\": {", threads, parsed, filesPerSec(parsed, batchNanos)));
+		String[] pairs = batchStats.split(" ");
+		for (int i = 0; i < pairs.length; i++) {
+			String[] kv = pairs[i].split("=", 2);
+			sb.append(i == 0 ? "" : ", ").append('"').append(kv[0]).append("\": ").append(kv[1]);
+		}
+		sb.append("}}\n}");
+		System.out.println(sb);
+	}
+
+	private static void printCsv(ArrayList<CaseResult> results, int threads, int parsed, long batchNanos, String batchStats) {
+		System.out.println("case,files,files_per_sec,us_per_file,bytes_per_file,read_calls_per_file,alloc_bytes_per_file,typed,titled,timed,pictures");
+		for (CaseResult r : results) {
+			System.out.println(String.format(Locale.ROOT, "%s,%d,%.1f,%d,%d,%d,%d,%d,%d,%d,%d",
+				r.name, r.files, filesPerSec(r.files, r.nanos), r.nanos / r.files / 1000, r.bytes_read, r.read_calls, r.allocated,
+				r.typed, r.titled, r.timed, r.pictures));
+		}
+		// the batch totals as a row of their own, with the per-file values of BastpBatch.getStats()
+		System.out.println(String.format(Locale.ROOT, "batch_%d_threads,%d,%.1f,,%s,%s,,,,,",
+			threads, parsed, filesPerSec(parsed, batchNanos), statOf(batchStats, "bytes_per_file"), statOf(batchStats, "calls_per_file")));
+	}
+
+	/**
+	 * Returns a value of a BastpBatch.getStats() line, an empty string if
+	 * it is missing
+	 */
+	private static String statOf(String stats, String key) {
+		for (String pair : stats.split(" ")) {
+			if (pair.startsWith(key+"="))
+				return pair.substring(key.length() + 1);
+		}
+		return "";
+	}
+}
@@ -0,0 +1,784 @@
+/*
+ * Copyright (C) 2017 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.bastp.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Random;
+
+
+/**
+ * Writes a synthetic corpus of audio files for BastpBench
+ *
+ * The corpus holds one directory per case, each filled with files of a
+ * single container type. Besides one plain file layout per container
+ * there are the pathological cases which used to hurt the scanner: huge
+ * embedded pictures, thousands of vorbis comments, unsynchronised ID3
+ * tags and junk between the ID3 tag and the first MPEG frame.
+ * The audio payload is random data: bastp never decodes it.
+ *
+ * The output only depends on the arguments, so two runs with the same
+ * seed produce byte-identical corpora.
+ *
+ * Usage: CorpusGenerator <directory> [files per case] [seed]
+ */
+public class CorpusGenerator {
+	/**
+	 * Size of the audio payload of each file
+	 */
+	private static final int AUDIO_SIZE = 512 * 1024;
+	/**
+	 * Size of the pictures of the huge picture cases
+	 */
+	private static final int HUGE_PICTURE_SIZE = 8 * 1024 * 1024;
+	/**
+	 * Size of pictures in normal files
+	 */
+	private static final int PICTURE_SIZE = 48 * 1024;
+	/**
+	 * Number of comments of the many comments cases
+	 */
+	private static final int MANY_COMMENTS = 5000;
+	/**
+	 * Bytes of junk between the ID3 tag and the first frame of the padding case
+	 */
+	private static final int JUNK_SIZE = 64 * 1024;
+	/**
+	 * The cases of the corpus, the directory names are also the case
+	 * names used by BastpBench
+	 */
+	static final String[] CASES = {
+		"aiff",
+		"flac",
+		"flac_huge_picture",
+		"flac_many_comments",
+		"midi",
+		"mp3_id3v23",
+		"mp3_id3v23_unsync",
+		"mp3_id3v24_huge_apic",
+		"mp3_id3v24_junk",
+		"mp3_lame",
+		"mp4",
+		"mp4_huge_covr",
+		"ogg_many_comments",
+		"ogg_vorbis",
+		"opus",
+		"wav",
+	};
+
+	/**
+	 * The random source of the file being written
+	 */
+	private Random mRandom;
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: CorpusGenerator <directory> [files per case] [seed]");
+			System.exit(1);
+		}
+		File dir = new File(args[0]);
+		int files = (args.length > 1 ? Integer.parseInt(args[1]) : 8);
+		long seed = (args.length > 2 ? Long.parseLong(args[2]) : 1);
+
+		CorpusGenerator generator = new CorpusGenerator();
+		for (int c = 0; c < CASES.length; c++) {
+			String name = CASES[c];
+			File caseDir = new File(dir, name);
+			if (!caseDir.isDirectory() && !caseDir.mkdirs())
+				throw new IOException("Cannot create "+caseDir);
+
+			// huge pictures take a lot of space: a few of them are enough
+			int count = (name.contains("huge") ? Math.max(1, files / 4) : files);
+			for (int i = 0; i < count; i++) {
+				generator.mRandom = new Random(seed * 1000003L + c * 1009L + i);
+				byte[] data = generator.generate(name, i);
+				File file = new File(caseDir, String.format("%04d.%s", i, extensionOf(name)));
+				FileOutputStream out = new FileOutputStream(file);
+				out.write(data);
+				out.close();
+			}
+			System.err.println("Wrote "+count+" files to "+caseDir);
+		}
+	}
+
+	/**
+	 * Returns the file extension of a case
+	 */
+	private static String extensionOf(String name) {
+		String type = name.split("_")[0];
+		if (type.equals("midi"))
+			return "mid";
+		if (type.equals("mp4"))
+			return "m4a";
+		return type;
+	}
+
+	/**
+	 * Returns the contents of file 'index' of given case
+	 */
+	byte[] generate(String name, int index) throws IOException {
+		String title = "Title "+index;
+		switch (name) {
+			case "aiff":
+				return aiff(title);
+			case "flac":
+				return flac(title, 20, PICTURE_SIZE);
+			case "flac_huge_picture":
+				return flac(title, 20, HUGE_PICTURE_SIZE);
+			case "flac_many_comments":
+				return flac(title, MANY_COMMENTS, 0);
+			case "midi":
+				return midi();
+			case "mp3_id3v23":
+				return mp3(id3v2(3, title, PICTURE_SIZE, false), 0, true);
+			case "mp3_id3v23_unsync":
+				return mp3(id3v2(3, title, PICTURE_SIZE, true), 0, true);
+			case "mp3_id3v24_huge_apic":
+				return mp3(id3v2(4, title, HUGE_PICTURE_SIZE, false), 0, false);
+			case "mp3_id3v24_junk":
+				return mp3(id3v2(4, title, 0, false), JUNK_SIZE, false);
+			case "mp3_lame":
+				return mp3(new byte[0], 0, true);
+			case "mp4":
+				return mp4(title, PICTURE_SIZE);
+			case "mp4_huge_covr":
+				return mp4(title, HUGE_PICTURE_SIZE);
+			case "ogg_many_comments":
+				return ogg(false, title, MANY_COMMENTS);
+			case "ogg_vorbis":
+				return ogg(false, title, 20);
+			case "opus":
+				return ogg(true, title, 20);
+			case "wav":
+				return wav(title);
+			default:
+				throw new IllegalArgumentException(name);
+		}
+	}
+
+	/**
+	 * MPEG 1 layer 3 frames (128 kbit/s, 44.1 kHz, joint stereo) preceded by
+	 * a Xing/LAME header and the given ID3v2 tag, followed by APEv2 and
+	 * ID3v1 tags if 'tail' is true
+	 *
+	 * @param id3 the ID3v2 tag to put at the start of the file
+	 * @param junk number of zero bytes between the tag and the first frame
+	 * @param tail true to append tail tags
+	 */
+	private byte[] mp3(byte[] id3, int junk, boolean tail) throws IOException {
+		final int frameSize = 417;
+		int frames = AUDIO_SIZE / frameSize;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(id3);
+		out.write(new byte[junk]);
+
+		// the first frame holds the Info header: side information of a stereo frame is 32 bytes
+		byte[] frame = new byte[frameSize];
+		putFrameHeader(frame);
+		int xing = 4 + 32;
+		putAscii(frame, xing, "Info");
+		putBE32(frame, xing + 4, 0x0F); // frames, bytes, toc and quality are present
+		putBE32(frame, xing + 8, frames);
+		putBE32(frame, xing + 12, frames * frameSize);
+		putAscii(frame, xing + 120, "LAME3.100");
+		out.write(frame);
+
+		for (int i = 1; i < frames; i++) {
+			mRandom.nextBytes(frame);
+			putFrameHeader(frame);
+			out.write(frame);
+		}
+
+		if (tail) {
+			out.write(apeTag());
+			out.write(id3v1());
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Writes the header of a 128 kbit/s MPEG 1 layer 3 frame
+	 */
+	private static void putFrameHeader(byte[] frame) {
+		frame[0] = (byte)0xFF;
+		frame[1] = (byte)0xFB;
+		frame[2] = (byte)0x90;
+		frame[3] = (byte)0x40;
+	}
+
+	/**
+	 * An ID3v2 tag with the usual text frames and an optional APIC frame
+	 *
+	 * @param version the minor version, 3 or 4
+	 * @param title the title of the song
+	 * @param picture size of the picture, 0 for none
+	 * @param unsync true to unsynchronise the whole tag, as done by some old taggers
+	 */
+	private byte[] id3v2(int version, String title, int picture, boolean unsync) throws IOException {
+		ByteArrayOutputStream frames = new ByteArrayOutputStream();
+		// UTF-16 with BOM: the BOM contains 0xFF, which is what unsynchronisation is about
+		frames.write(id3Frame(version, "TIT2", concat(new byte[]{ 1 }, utf16(title))));
+		frames.write(id3Frame(version, "TPE1", latin1Text("Synthetic Artist")));
+		frames.write(id3Frame(version, "TALB", latin1Text("Synthetic Album")));
+		frames.write(id3Frame(version, "TRCK", latin1Text("3/12")));
+		frames.write(id3Frame(version, "TCON", latin1Text("(17)")));
+		frames.write(id3Frame(version, version >= 4 ? "TDRC" : "TYER", latin1Text("2017")));
+		frames.write(id3Frame(version, "TXXX", latin1Text("REPLAYGAIN_TRACK_GAIN\0-6.50 dB")));
+		frames.write(id3Frame(version, "COMM", latin1Text("eng\0generated by CorpusGenerator")));
+		if (picture > 0) {
+			ByteArrayOutputStream apic = new ByteArrayOutputStream();
+			apic.write(0); // latin1
+			apic.write(ascii("image/jpeg\0"));
+			apic.write(3); // front cover
+			apic.write(ascii("cover\0"));
+			apic.write(jpeg(picture));
+			frames.write(id3Frame(version, "APIC", apic.toByteArray()));
+		}
+		frames.write(new byte[256]); // padding
+
+		byte[] body = frames.toByteArray();
+		if (unsync)
+			body = unsynchronise(body);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(ascii("ID3"));
+		out.write(version);
+		out.write(0);
+		out.write(unsync ? 0x80 : 0);
+		out.write(syncsafe(body.length));
+		out.write(body);
+		return out.toByteArray();
+	}
+
+	/**
+	 * A single ID3v2 frame, ID3v2.4 frame sizes are syncsafe
+	 */
+	private static byte[] id3Frame(int version, String id, byte[] payload) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(ascii(id));
+		out.write(version >= 4 ? syncsafe(payload.length) : be32(payload.length));
+		out.write(0);
+		out.write(0);
+		out.write(payload);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Inserts a zero byte after every 0xFF which is followed by a byte
+	 * that could be mistaken for a frame sync, or by a zero byte
+	 */
+	private static byte[] unsynchronise(byte[] in) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i = 0; i < in.length; i++) {
+			out.write(in[i]);
+			if (in[i] == (byte)0xFF && (i + 1 == in.length || (in[i+1] & 0xE0) == 0xE0 || in[i+1] == 0))
+				out.write(0);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * An APEv2 tag with header and footer
+	 */
+	private static byte[] apeTag() throws IOException {
+		ByteArrayOutputStream items = new ByteArrayOutputStream();
+		items.write(apeItem("Title", "APE Title"));
+		items.write(apeItem("Album Artist", "APE Album Artist"));
+		items.write(apeItem("Track", "3"));
+		items.write(apeItem("REPLAYGAIN_ALBUM_GAIN", "-7.00 dB"));
+		byte[] body = items.toByteArray();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(apeHeader(body.length, 4, true));
+		out.write(body);
+		out.write(apeHeader(body.length, 4, false));
+		return out.toByteArray();
+	}
+
+	/**
+	 * The header or footer of an APEv2 tag
+	 */
+	private static byte[] apeHeader(int itemsSize, int items, boolean isHeader) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(ascii("APETAGEX"));
+		out.write(le32(2000));
+		out.write(le32(itemsSize + 32)); // items and footer
+		out.write(le32(items));
+		out.write(le32(0x80000000 | (isHeader ? 0x20000000 : 0)));
+		out.write(new byte[8]);
+		return out.toByteArray();
+	}
+
+	/**
+	 * A text item of an APEv2 tag
+	 */
+	private static byte[] apeItem(String key, String value) throws IOException {
+		byte[] v = value.getBytes("UTF-8");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(le32(v.length));
+		out.write(le32(0));
+		out.write(ascii(key+"\0"));
+		out.write(v);
+		return out.toByteArray();
+	}
+
+	/**
+	 * An ID3v1.1 tag
+	 */
+	private static byte[] id3v1() throws IOException {
+		byte[] tag = new byte[128];
+		putAscii(tag, 0, "TAG");
+		putAscii(tag, 3, "ID3v1 Title");
+		putAscii(tag, 33, "ID3v1 Artist");
+		putAscii(tag, 63, "ID3v1 Album");
+		putAscii(tag, 93, "2017");
+		tag[126] = 3;
+		tag[127] = 17;
+		return tag;
+	}
+
+	/**
+	 * A FLAC file with STREAMINFO, VORBIS_COMMENT, an optional PICTURE and
+	 * a PADDING block, followed by the audio frames
+	 *
+	 * @param title the title of the song
+	 * @param comments the number of vorbis comments
+	 * @param picture size of the picture, 0 for none
+	 */
+	private byte[] flac(String title, int comments, int picture) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(ascii("fLaC"));
+
+		// STREAMINFO: block and frame sizes, then rate (20 bits), channels-1 (3), bits-1 (5) and samples (36)
+		long samples = 44100L * 180;
+		byte[] info = new byte[34];
+		putBE32(info, 0, (4096 << 16) | 4096);
+		long packed = (44100L << 44) | (1L << 41) | (15L << 36) | samples;
+		putBE32(info, 10, (int)(packed >>> 32));
+		putBE32(info, 14, (int)packed);
+		out.write(flacBlock(0, false, info));
+
+		out.write(flacBlock(4, false, vorbisComments(title, comments)));
+
+		if (picture > 0) {
+			ByteArrayOutputStream pic = new ByteArrayOutputStream();
+			pic.write(be32(3)); // front cover
+			pic.write(be32(10));
+			pic.write(ascii("image/jpeg"));
+			pic.write(be32(5));
+			pic.write(ascii("cover"));
+			pic.write(be32(500));
+			pic.write(be32(500));
+			pic.write(be32(24));
+			pic.write(be32(0));
+			pic.write(be32(picture));
+			pic.write(jpeg(picture));
+			out.write(flacBlock(6, false, pic.toByteArray()));
+		}
+		out.write(flacBlock(1, true, new byte[4096]));
+
+		out.write(random(AUDIO_SIZE));
+		return out.toByteArray();
+	}
+
+	/**
+	 * A FLAC metadata block
+	 */
+	private static byte[] flacBlock(int type, boolean last, byte[] payload) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(be32(((last ? 0x80 : 0) | type) << 24 | payload.length));
+		out.write(payload);
+		return out.toByteArray();
+	}
+
+	/**
+	 * A vorbis comment block without any framing: the vendor string, the
+	 * usual tags and enough numbered comments to reach 'comments' entries
+	 */
+	private static byte[] vorbisComments(String title, int comments) throws IOException {
+		String[] base = {
+			"TITLE="+title,
+			"ARTIST=Synthetic Artist",
+			"ALBUM=Synthetic Album",
+			"ALBUMARTIST=Various Artists",
+			"TRACKNUMBER=3",
+			"DISCNUMBER=1",
+			"DATE=2017",
+			"GENRE=Electronic",
+			"REPLAYGAIN_TRACK_GAIN=-6.50 dB",
+			"REPLAYGAIN_ALBUM_GAIN=-7.00 dB",
+		};
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] vendor = ascii("CorpusGenerator");
+		out.write(le32(vendor.length));
+		out.write(vendor);
+		out.write(le32(Math.max(comments, base.length)));
+		for (int i = 0; i < Math.max(comments, base.length); i++) {
+			String comment = (i < base.length ? base[i] : String.format("COMMENT%05d=value of comment number %d", i, i));
+			byte[] c = comment.getBytes("UTF-8");
+			out.write(le32(c.length));
+			out.write(c);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * An Ogg Vorbis or Ogg Opus stream: the header packets are followed
+	 * by pages of random audio data with increasing granule positions
+	 *
+	 * @param opus true for Opus, false for Vorbis
+	 * @param title the title of the song
+	 * @param comments the number of comments
+	 */
+	private byte[] ogg(boolean opus, String title, int comments) throws IOException {
+		OggWriter ogg = new OggWriter(0x1234 + mRandom.nextInt(1000));
+
+		if (opus) {
+			byte[] head = new byte[19];
+			putAscii(head, 0, "OpusHead");
+			head[8] = 1;
+			head[9] = 2;
+			head[10] = (byte)312; // pre-skip, little endian
+			head[11] = (byte)(312 >> 8);
+			putLE32(head, 12, 44100);
+			ogg.writePacket(head, 0);
+			ogg.writePacket(concat(ascii("OpusTags"), vorbisComments(title, comments)), 0);
+		} else {
+			byte[] id = new byte[30];
+			putAscii(id, 0, "\1vorbis");
+			id[11] = 2;
+			putLE32(id, 12, 44100);
+			putLE32(id, 20, 160000);
+			id[28] = (byte)0xB8;
+			id[29] = 1;
+			ogg.writePacket(id, 0);
+			ogg.writePacket(concat(concat(ascii("\3vorbis"), vorbisComments(title, comments)), new byte[]{ 1 }), 0);
+			ogg.writePacket(concat(ascii("\5vorbis"), random(3000)), 0);
+		}
+
+		// audio: the granule position counts samples at 48 kHz for opus
+		long rate = (opus ? 48000 : 44100);
+		int pages = AUDIO_SIZE / 4096;
+		for (int i = 1; i <= pages; i++) {
+			ogg.writePacket(random(4096), rate * 180 * i / pages);
+		}
+		return ogg.toByteArray();
+	}
+
+	/**
+	 * Splits packets into Ogg pages
+	 */
+	private static class OggWriter {
+		private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+		private final int mSerial;
+		private int mSequence = 0;
+
+		OggWriter(int serial) {
+			mSerial = serial;
+		}
+
+		/**
+		 * Writes a packet, starting a new page. Packets which do not fit
+		 * into a single page continue on the following pages, which is
+		 * where large comment packets end up.
+		 *
+		 * @param packet the packet to write
+		 * @param granule the granule position of the page ending the packet
+		 */
+		void writePacket(byte[] packet, long granule) throws IOException {
+			int pos = 0;
+			boolean continued = false;
+			do {
+				// lacing values: 255 for every full segment, the last one of a packet is shorter
+				int segments = 0;
+				byte[] lacing = new byte[255];
+				int len = 0;
+				boolean complete = false;
+				while (segments < 255) {
+					int seg = Math.min(255, packet.length - pos - len);
+					lacing[segments++] = (byte)seg;
+					len += seg;
+					if (seg < 255) {
+						complete = true;
+						break;
+					}
+				}
+
+				byte[] header = new byte[27];
+				putAscii(header, 0, "OggS");
+				header[5] = (byte)((continued ? 0x01 : 0) | (mSequence == 0 ? 0x02 : 0));
+				long g = (complete ? granule : -1);
+				putLE32(header, 6, (int)g);
+				putLE32(header, 10, (int)(g >> 32));
+				putLE32(header, 14, mSerial);
+				putLE32(header, 18, mSequence++);
+				header[26] = (byte)segments;
+
+				byte[] page = concat(concat(header, java.util.Arrays.copyOf(lacing, segments)), java.util.Arrays.copyOfRange(packet, pos, pos + len));
+				putLE32(page, 22, crc(page));
+				mOut.write(page);
+
+				pos += len;
+				continued = true;
+				if (complete)
+					break;
+			} while (true);
+		}
+
+		byte[] toByteArray() {
+			return mOut.toByteArray();
+		}
+
+		/**
+		 * The CRC of an Ogg page, which is computed with a zero checksum field
+		 */
+		private static int crc(byte[] page) {
+			int crc = 0;
+			for (byte b : page) {
+				crc ^= (b & 0xFF) << 24;
+				for (int i = 0; i < 8; i++)
+					crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04C11DB7 : crc << 1;
+			}
+			return crc;
+		}
+	}
+
+	/**
+	 * An MP4 audio file with [moov] after [mdat], as written by most
+	 * encoders which do not optimize for streaming. [moov] ends with an
+	 * 8 byte [free] atom.
+	 *
+	 * @param title the title of the song
+	 * @param cover size of the cover art
+	 */
+	private byte[] mp4(String title, int cover) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(atom("ftyp", concat(ascii("M4A "), concat(be32(0), ascii("M4A mp42isom")))));
+		out.write(atom("mdat", random(AUDIO_SIZE)));
+
+		byte[] mvhd = new byte[100];
+		putBE32(mvhd, 12, 1000);
+		putBE32(mvhd, 16, 180000);
+
+		byte[] mdhd = new byte[24];
+		putBE32(mdhd, 12, 44100);
+		putBE32(mdhd, 16, 44100 * 180);
+
+		byte[] hdlr = new byte[25];
+		putAscii(hdlr, 8, "soun");
+
+		// [mp4a] sample entry with an [esds] child carrying the bitrate
+		byte[] entry = new byte[28];
+		entry[7] = 1; // data reference index
+		entry[17] = 2; // channels
+		entry[19] = 16; // sample size
+		putBE32(entry, 24, 44100 << 16);
+		byte[] esds = new byte[] {
+			0, 0, 0, 0,
+			0x03, 25, 0, 1, 0,
+			0x04, 17, 0x40, 0x15, 0, 0, 0, 0, 2, (byte)0x71, 0, 0, 1, (byte)0xF4, 0, 0x05, 2, 0x12, 0x10,
+			0x06, 1, 2,
+		};
+		byte[] mp4a = atom("mp4a", concat(entry, atom("esds", esds)));
+		byte[] stsd = atom("stsd", concat(new byte[]{ 0, 0, 0, 0, 0, 0, 0, 1 }, mp4a));
+		byte[] minf = atom("minf", atom("stbl", stsd));
+		byte[] trak = atom("trak", atom("mdia", concat(concat(atom("mdhd", mdhd), atom("hdlr", hdlr)), minf)));
+
+		ByteArrayOutputStream ilst = new ByteArrayOutputStream();
+		ilst.write(mp4Tag("©nam", 1, title.getBytes("UTF-8")));
+		ilst.write(mp4Tag("©ART", 1, ascii("Synthetic Artist")));
+		ilst.write(mp4Tag("©alb", 1, ascii("Synthetic Album")));
+		ilst.write(mp4Tag("©day", 1, ascii("2017")));
+		ilst.write(mp4Tag("trkn", 0, new byte[]{ 0, 0, 0, 3, 0, 12, 0, 0 }));
+		ilst.write(mp4Tag("covr", 13, jpeg(cover)));
+		byte[] metaHdlr = new byte[25];
+		putAscii(metaHdlr, 8, "mdir");
+		byte[] meta = atom("meta", concat(concat(new byte[4], atom("hdlr", metaHdlr)), atom("ilst", ilst.toByteArray())));
+
+		ByteArrayOutputStream moov = new ByteArrayOutputStream();
+		moov.write(atom("mvhd", mvhd));
+		moov.write(trak);
+		moov.write(atom("udta", meta));
+		moov.write(atom("free", new byte[0]));
+		out.write(atom("moov", moov.toByteArray()));
+		return out.toByteArray();
+	}
+
+	/**
+	 * A tag atom of an [ilst] with a single [data] child
+	 */
+	private static byte[] mp4Tag(String name, int type, byte[] value) throws IOException {
+		return atom(name, atom("data", concat(concat(be32(type), be32(0)), value)));
+	}
+
+	/**
+	 * An MP4 atom, names are ISO-8859-1 to get the copyright sign right
+	 */
+	private static byte[] atom(String name, byte[] payload) throws IOException {
+		return concat(concat(be32(8 + payload.length), name.getBytes("ISO-8859-1")), payload);
+	}
+
+	/**
+	 * A PCM WAVE file with a LIST INFO chunk
+	 */
+	private byte[] wav(String title) throws IOException {
+		byte[] fmt = new byte[16];
+		fmt[0] = 1; // PCM
+		fmt[2] = 2;
+		putLE32(fmt, 4, 44100);
+		putLE32(fmt, 8, 44100 * 4);
+		fmt[12] = 4;
+		fmt[14] = 16;
+
+		ByteArrayOutputStream info = new ByteArrayOutputStream();
+		info.write(ascii("INFO"));
+		info.write(riffChunk("INAM", ascii(title+"\0"), false));
+		info.write(riffChunk("IART", ascii("Synthetic Artist\0"), false));
+		info.write(riffChunk("IPRD", ascii("Synthetic Album\0"), false));
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		body.write(ascii("WAVE"));
+		body.write(riffChunk("fmt ", fmt, false));
+		body.write(riffChunk("LIST", info.toByteArray(), false));
+		body.write(riffChunk("data", random(AUDIO_SIZE), false));
+		return riffChunk("RIFF", body.toByteArray(), false);
+	}
+
+	/**
+	 * A 16 bit stereo AIFF file with a NAME chunk
+	 */
+	private byte[] aiff(String title) throws IOException {
+		byte[] comm = new byte[18];
+		comm[1] = 2;
+		putBE32(comm, 2, AUDIO_SIZE / 4);
+		comm[7] = 16;
+		// 44100 as 80 bit extended float: exponent 16383+15, mantissa 0xAC44 << 48
+		comm[8] = 0x40;
+		comm[9] = 0x0E;
+		comm[10] = (byte)0xAC;
+		comm[11] = 0x44;
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		body.write(ascii("AIFF"));
+		body.write(riffChunk("COMM", comm, true));
+		body.write(riffChunk("NAME", ascii(title), true));
+		body.write(riffChunk("SSND", concat(new byte[8], random(AUDIO_SIZE)), true));
+		return riffChunk("FORM", body.toByteArray(), true);
+	}
+
+	/**
+	 * A RIFF (little endian) or IFF (big endian) chunk, padded to an even size
+	 */
+	private static byte[] riffChunk(String id, byte[] payload, boolean bigEndian) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(ascii(id));
+		out.write(bigEndian ? be32(payload.length) : le32(payload.length));
+		out.write(payload);
+		if ((payload.length & 1) != 0)
+			out.write(0);
+		return out.toByteArray();
+	}
+
+	/**
+	 * A standard MIDI file with a single empty track
+	 */
+	private static byte[] midi() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(ascii("MThd"));
+		out.write(be32(6));
+		out.write(new byte[]{ 0, 0, 0, 1, 0, 96 });
+		out.write(ascii("MTrk"));
+		out.write(be32(4));
+		out.write(new byte[]{ 0, (byte)0xFF, 0x2F, 0 });
+		return out.toByteArray();
+	}
+
+	/**
+	 * Random bytes starting with a JPEG marker
+	 */
+	private byte[] jpeg(int size) {
+		byte[] data = random(size);
+		data[0] = (byte)0xFF;
+		data[1] = (byte)0xD8;
+		data[2] = (byte)0xFF;
+		data[3] = (byte)0xE0;
+		return data;
+	}
+
+	private byte[] random(int size) {
+		byte[] data = new byte[size];
+		mRandom.nextBytes(data);
+		return data;
+	}
+
+	private static byte[] latin1Text(String text) throws UnsupportedEncodingException {
+		return concat(new byte[]{ 0 }, text.getBytes("ISO-8859-1"));
+	}
+
+	private static byte[] utf16(String text) throws UnsupportedEncodingException {
+		return concat(new byte[]{ (byte)0xFF, (byte)0xFE }, text.getBytes("UTF-16LE"));
+	}
+
+	private static byte[] ascii(String text) throws UnsupportedEncodingException {
+		return text.getBytes("ISO-8859-1");
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] r = java.util.Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, r, a.length, b.length);
+		return r;
+	}
+
+	private static byte[] be32(int v) {
+		byte[] b = new byte[4];
+		putBE32(b, 0, v);
+		return b;
+	}
+
+	private static byte[] le32(int v) {
+		byte[] b = new byte[4];
+		putLE32(b, 0, v);
+		return b;
+	}
+
+	private static byte[] syncsafe(int v) {
+		return new byte[]{ (byte)((v >> 21) & 0x7F), (byte)((v >> 14) & 0x7F), (byte)((v >> 7) & 0x7F), (byte)(v & 0x7F) };
+	}
+
+	private static void putBE32(byte[] b, int off, int v) {
+		b[off] = (byte)(v >> 24);
+		b[off+1] = (byte)(v >> 16);
+		b[off+2] = (byte)(v >> 8);
+		b[off+3] = (byte)v;
+	}
+
+	private static void putLE32(byte[] b, int off, int v) {
+		b[off] = (byte)v;
+		b[off+1] = (byte)(v >> 8);
+		b[off+2] = (byte)(v >> 16);
+		b[off+3] = (byte)(v >> 24);
+	}
+
+	private static void putAscii(byte[] b, int off, String text) {
+		for (int i = 0; i < text.length(); i++)
+			b[off+i] = (byte)text.charAt(i);
+	}
+}
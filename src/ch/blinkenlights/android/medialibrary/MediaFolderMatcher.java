@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2017 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.medialibrary;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides which paths belong to the media folders
+ *
+ * The media and blacklisted folders are compiled into a trie of path
+ * components. A path is matched by walking its components down the
+ * trie: the deepest folder on the way decides if it is included, a
+ * path which is in no media folder at all is excluded. If a folder is
+ * both, a media folder and blacklisted, it is included.
+ *
+ * Matching does not allocate, so this is cheap enough to run for every
+ * file. Instances are immutable and may be shared between threads.
+ */
+class MediaFolderMatcher {
+	/**
+	 * A component of a media or blacklisted folder
+	 */
+	private static class Node {
+		/**
+		 * The name of this path component
+		 */
+		final String name;
+		/**
+		 * The child components, null if there are none
+		 */
+		ArrayList<Node> children;
+		/**
+		 * True if this is a media folder
+		 */
+		boolean included;
+		/**
+		 * True if this is a blacklisted folder
+		 */
+		boolean excluded;
+		/**
+		 * True if a media folder exists below this node
+		 */
+		boolean includesBelow;
+
+		Node(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Returns the child matching the path component at path[start..end], null if there is none
+		 */
+		Node find(String path, int start, int end) {
+			if (children != null) {
+				int len = end - start;
+				for (Node child : children) {
+					if (child.name.length() == len && path.regionMatches(start, child.name, 0, len))
+						return child;
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * The root of the trie, matching "/"
+	 */
+	private final Node mRoot = new Node("");
+
+	/**
+	 * Compiles the given folders
+	 *
+	 * @param mediaFolders the folders to include
+	 * @param blacklistedFolders the folders to exclude
+	 */
+	MediaFolderMatcher(List<String> mediaFolders, List<String> blacklistedFolders) {
+		for (String path : mediaFolders) {
+			add(path).included = true;
+		}
+		for (String path : blacklistedFolders) {
+			add(path).excluded = true;
+		}
+		markIncludesBelow(mRoot);
+	}
+
+	/**
+	 * Returns true if a file with given path is not in any media
+	 * folder or in a blacklisted folder
+	 *
+	 * @param path the path to check
+	 */
+	boolean isExcluded(String path) {
+		return match(path, false);
+	}
+
+	/**
+	 * Returns true if a directory and everything below it is excluded,
+	 * so that it does not need to be read at all
+	 *
+	 * @param path the path of the directory
+	 */
+	boolean isPrunable(String path) {
+		return match(path, true);
+	}
+
+	/**
+	 * Walks the components of a path down the trie
+	 *
+	 * @param path the path to match
+	 * @param subtree true to only return true if nothing below path is included
+	 * @return true if path is excluded
+	 */
+	private boolean match(String path, boolean subtree) {
+		boolean excluded = !mRoot.included;
+		Node node = mRoot;
+		int len = path.length();
+		int start = 0;
+		while (node != null && start < len) {
+			int end = path.indexOf('/', start);
+			if (end < 0)
+				end = len;
+			if (end > start) {
+				node = node.find(path, start, end);
+				if (node != null && (node.included || node.excluded))
+					excluded = !node.included;
+			}
+			start = end + 1;
+		}
+		// all components matched: there may be media folders below path
+		if (subtree && node != null && node.includesBelow)
+			return false;
+		return excluded;
+	}
+
+	/**
+	 * Adds the components of a path to the trie
+	 *
+	 * @param path the path to add
+	 * @return the node of the last component
+	 */
+	private Node add(String path) {
+		Node node = mRoot;
+		for (String name : path.split("/")) {
+			if (name.length() == 0)
+				continue;
+			Node child = node.find(name, 0, name.length());
+			if (child == null) {
+				child = new Node(name);
+				if (node.children == null)
+					node.children = new ArrayList<>();
+				node.children.add(child);
+			}
+			node = child;
+		}
+		return node;
+	}
+
+	/**
+	 * Sets includesBelow on given node and all of its children
+	 *
+	 * @param node the root of the subtree
+	 * @return true if the subtree contains a media folder
+	 */
+	private static boolean markIncludesBelow(Node node) {
+		boolean below = false;
+		if (node.children != null) {
+			for (Node child : node.children) {
+				below |= markIncludesBelow(child);
+			}
+		}
+		node.includesBelow = below;
+		return below || node.included;
+	}
+}
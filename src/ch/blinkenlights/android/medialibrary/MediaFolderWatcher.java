@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2017 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.medialibrary;
+
+import android.os.FileObserver;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * Watches the media folders for changes
+ *
+ * FileObserver only watches a single directory, so we keep one observer
+ * per directory below the media folders. Events are collected until the
+ * scanner picks them up using takeChanges(), which coalesces multiple
+ * events for the same file into a single update.
+ *
+ * The number of observers is capped, as every observer uses an inotify
+ * watch and the number of watches per user is limited by the kernel.
+ *
+ * Events dropped by the kernel once its queue overflowed are not
+ * reported: FileObserver dispatches events by their watch, and the
+ * overflow event belongs to none. The scanner catches up with such
+ * changes by running a normal scan every now and then.
+ */
+class MediaFolderWatcher {
+	/**
+	 * Receives notifications about collected events
+	 */
+	interface Listener {
+		/**
+		 * Called on the observer thread for every recorded event
+		 */
+		void onChange();
+	}
+
+	/**
+	 * The changes collected since the last call to takeChanges()
+	 */
+	static class Changes {
+		/**
+		 * Files which were written, created, moved or deleted
+		 */
+		final ArrayList<File> files = new ArrayList<>();
+		/**
+		 * Directories which were created or moved into a watched directory
+		 */
+		final ArrayList<File> directories = new ArrayList<>();
+		/**
+		 * True if directories were removed: the whole library
+		 * must be verified to catch up with the changes
+		 */
+		boolean mustVerify;
+	}
+
+	/**
+	 * Set in the event mask if the subject of an event is a directory
+	 */
+	private static final int IN_ISDIR = 0x40000000;
+	/**
+	 * The events we are interested in
+	 */
+	private static final int WATCH_MASK = FileObserver.CLOSE_WRITE | FileObserver.CREATE | FileObserver.DELETE
+	                                    | FileObserver.MOVED_FROM | FileObserver.MOVED_TO
+	                                    | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+	/**
+	 * The listener to notify
+	 */
+	private final Listener mListener;
+	/**
+	 * Maximal number of directories we are going to watch
+	 */
+	private final int mMaxWatches;
+	/**
+	 * All active observers, keyed by the path of their directory.
+	 * Guarded by `this'.
+	 */
+	private final HashMap<String, DirectoryObserver> mObservers = new HashMap<>();
+	/**
+	 * Decides which directories must not be watched
+	 */
+	private MediaFolderMatcher mMatcher;
+	/**
+	 * The pending changes, null if nothing changed. Guarded by `this'.
+	 */
+	private Changes mChanges;
+	/**
+	 * Pending files, used to drop duplicate events. Guarded by `this'.
+	 */
+	private final LinkedHashSet<File> mChangedFiles = new LinkedHashSet<>();
+
+	/**
+	 * Creates a new, idle watcher
+	 *
+	 * @param listener the listener to notify about changes
+	 * @param maxWatches the maximal number of directories to watch
+	 */
+	MediaFolderWatcher(Listener listener, int maxWatches) {
+		mListener = listener;
+		mMaxWatches = maxWatches;
+	}
+
+	/**
+	 * Starts watching all given folders and their subdirectories,
+	 * stops watching all previously watched directories
+	 *
+	 * @param folders the folders to watch
+	 * @param matcher the matcher deciding which directories must not be watched
+	 * @return false if there were too many directories to watch, the watcher is idle in this case
+	 */
+	boolean start(ArrayList<String> folders, MediaFolderMatcher matcher) {
+		stop();
+		mMatcher = matcher;
+		for (String path : folders) {
+			if (!watchTree(new File(path)))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Stops watching all directories and drops all pending changes
+	 */
+	synchronized void stop() {
+		for (DirectoryObserver observer : mObservers.values()) {
+			observer.stopWatching();
+		}
+		mObservers.clear();
+		mChangedFiles.clear();
+		mChanges = null;
+	}
+
+	/**
+	 * Returns true if we are watching at least one directory
+	 */
+	synchronized boolean isWatching() {
+		return mObservers.size() != 0;
+	}
+
+	/**
+	 * Starts watching given directory and all of its subdirectories
+	 *
+	 * @param dir the directory to watch
+	 * @return false if there were too many directories to watch, the watcher is idle in this case
+	 */
+	boolean watchTree(File dir) {
+		if (!dir.isDirectory() || isBlacklisted(dir) || new File(dir, ".nomedia").exists())
+			return true;
+
+		synchronized (this) {
+			String path = dir.getPath();
+			if (!mObservers.containsKey(path)) {
+				if (mObservers.size() >= mMaxWatches) {
+					stop();
+					return false;
+				}
+				DirectoryObserver observer = new DirectoryObserver(dir);
+				mObservers.put(path, observer);
+				observer.startWatching();
+			}
+		}
+
+		File[] dirents = dir.listFiles();
+		if (dirents != null) {
+			for (File file : dirents) {
+				if (file.isDirectory() && !watchTree(file))
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Stops watching given directory and all of its subdirectories.
+	 * The directory may be gone already, so the observers are found by
+	 * the paths they were created with.
+	 * Must be called while holding `this'.
+	 *
+	 * @param path the path of the directory
+	 */
+	private void unwatchTree(String path) {
+		String prefix = path + "/";
+		Iterator<Map.Entry<String, DirectoryObserver>> it = mObservers.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, DirectoryObserver> entry = it.next();
+			if (entry.getKey().equals(path) || entry.getKey().startsWith(prefix)) {
+				entry.getValue().stopWatching();
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Returns all changes collected since the last call
+	 *
+	 * @return the changes, null if nothing changed
+	 */
+	synchronized Changes takeChanges() {
+		Changes changes = mChanges;
+		if (changes != null)
+			changes.files.addAll(mChangedFiles);
+		mChangedFiles.clear();
+		mChanges = null;
+		return changes;
+	}
+
+	/**
+	 * Returns true if neither the directory nor any of its
+	 * subdirectories contain media files to scan
+	 */
+	private boolean isBlacklisted(File dir) {
+		return mMatcher.isPrunable(dir.getPath());
+	}
+
+	/**
+	 * Records an event of an observer, called on the observer thread
+	 *
+	 * @param observer the observer which received the event
+	 * @param event the raw event mask
+	 * @param name the name of the affected entry, may be null
+	 */
+	private void onEvent(DirectoryObserver observer, int event, String name) {
+		synchronized (this) {
+			if (mObservers.get(observer.dir.getPath()) != observer)
+				return; // stale event of a removed observer
+
+			if (mChanges == null)
+				mChanges = new Changes();
+
+			if ((event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0) {
+				// the parent reports this as a removed directory, a new
+				// location is watched once its parent reports it
+				unwatchTree(observer.dir.getPath());
+			} else if (name != null) {
+				File file = new File(observer.dir, name);
+				if ((event & IN_ISDIR) == 0) {
+					// files are reported once they were written, not when created
+					if ((event & FileObserver.CREATE) == 0)
+						mChangedFiles.add(file);
+				} else if ((event & (FileObserver.CREATE | FileObserver.MOVED_TO)) != 0) {
+					mChanges.directories.add(file);
+				} else if ((event & (FileObserver.DELETE | FileObserver.MOVED_FROM)) != 0) {
+					unwatchTree(file.getPath());
+					mChanges.mustVerify = true;
+				}
+			}
+		}
+
+		mListener.onChange();
+	}
+
+	/**
+	 * Observes a single directory
+	 */
+	private class DirectoryObserver extends FileObserver {
+		final File dir;
+
+		DirectoryObserver(File dir) {
+			super(dir.getPath(), WATCH_MASK);
+			this.dir = dir;
+		}
+
+		@Override
+		public void onEvent(int event, String name) {
+			MediaFolderWatcher.this.onEvent(this, event, name);
+		}
+	}
+}
@@ -26,7 +26,10 @@ import android.os.Build;
 import android.os.Environment;
 import android.util.Log;
 
+import java.text.Normalizer;
 import java.util.ArrayList;
+import java.util.Locale;
+import java.util.regex.Pattern;
 
 import java.io.ObjectOutputStream;
 import java.io.ObjectInputStream;
@@ -44,6 +47,10 @@ public class MediaLibrary  {
 	public static final String TABLE_GENRES_SONGS             = "genres_songs";
 	public static final String TABLE_PLAYLISTS                = "playlists";
 	public static final String TABLE_PLAYLISTS_SONGS          = "playlists_songs";
+	public static final String TABLE_DIRECTORIES              = "directories";
+	public static final String TABLE_SCAN_PLAN                = "scan_plan";
+	public static final String TABLE_SONGS_SEARCH             = "songs_search";
+	public static final String TABLE_SONGS_FLAT               = "songs_flat";
 	public static final String VIEW_ARTISTS                   = "_artists";
 	public static final String VIEW_ALBUMARTISTS              = "_albumartists";
 	public static final String VIEW_COMPOSERS                 = "_composers";
@@ -62,12 +69,16 @@ public class MediaLibrary  {
 	 * Options used by the MediaScanner class
 	 */
 	public static class Preferences implements Serializable {
+		// the value implicitly used by older versions, so that their preferences can still be read
+		private static final long serialVersionUID = -5334488210707433859L;
 		public boolean forceBastp;
 		public boolean groupAlbumsByFolder;
+		public boolean watchFolders;
 		public ArrayList<String> mediaFolders;
 		public ArrayList<String> blacklistedFolders;
 		int _nativeLibraryCount;
 		int _nativeLastMtime;
+		String _lastScanReport;
 	}
 
 	/**
@@ -80,6 +91,11 @@ public class MediaLibrary  {
 		public int seen;
 		public int changed;
 		public int total;
+		/**
+		 * The report of the running scan, the one of the last scan if
+		 * none is running, null if there was none
+		 */
+		public MediaScanReport report;
 	}
 
 	/**
@@ -98,6 +114,10 @@ public class MediaLibrary  {
 	 * The observer to call-back during database changes
 	 */
 	private static ContentObserver sContentObserver;
+	/**
+	 * Tells the scanner about the playback, null if nothing is playing
+	 */
+	private volatile static PlaybackMonitor sPlaybackMonitor;
 	/**
 	 * The lock we are using during object creation
 	 */
@@ -217,6 +237,8 @@ public class MediaLibrary  {
 		}
 
 		sPreferences = prefs;
+		sScanner.updateFolderMatcher();
+		sScanner.updateFolderWatcher();
 	}
 
 	/**
@@ -239,6 +261,16 @@ public class MediaLibrary  {
 		}
 	}
 
+	/**
+	 * Continues a full scan which was deferred until the device is charging or idle
+	 *
+	 * @param context the context to use
+	 */
+	static void startDeferredScan(Context context) {
+		MediaLibraryBackend backend = getBackend(context); // also initialized sScanner
+		sScanner.startDeferredScan();
+	}
+
 	/**
 	 * Stops any running scan
 	 *
@@ -274,6 +306,22 @@ public class MediaLibrary  {
 		}
 	}
 
+	/**
+	 * Sets the playback monitor, which the scanner uses to step back while playing
+	 *
+	 * @param monitor the monitor to use, null if nothing can be playing
+	 */
+	public static void setPlaybackMonitor(PlaybackMonitor monitor) {
+		sPlaybackMonitor = monitor;
+	}
+
+	/**
+	 * Returns the playback monitor, null if there is none
+	 */
+	static PlaybackMonitor getPlaybackMonitor() {
+		return sPlaybackMonitor;
+	}
+
 	/**
 	 * Broadcasts a change to the observer, which will queue and dispatch
 	 * the event to any registered observer
@@ -324,6 +372,8 @@ public class MediaLibrary  {
 		final String column = played ? MediaLibrary.SongColumns.PLAYCOUNT : MediaLibrary.SongColumns.SKIPCOUNT;
 		String selection = MediaLibrary.SongColumns._ID+"="+id;
 		getBackend(context).execSQL("UPDATE "+MediaLibrary.TABLE_SONGS+" SET "+column+"="+column+"+1 WHERE "+selection);
+		getBackend(context).execSQL("UPDATE "+MediaLibrary.TABLE_SONGS_FLAT+" SET "+column+"="+column+"+1 WHERE "+selection);
+		sScanner.updateSongPlayCounts(id, played); // the scanner may be holding a copy of the old counts
 	}
 
 	/**
@@ -508,6 +558,65 @@ public class MediaLibrary  {
 		return MediaStore.Audio.keyFor(name);
 	}
 
+	/**
+	 * Combining marks, dropped from decomposed search text
+	 */
+	private static final Pattern sCombiningMarks = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+	/**
+	 * Characters splitting words in the search table, which uses the
+	 * 'simple' fts tokenizer: every ASCII character which is not a
+	 * letter or digit separates words
+	 */
+	private static final Pattern sSearchSeparators = Pattern.compile("[\\x00-\\x2f\\x3a-\\x40\\x5b-\\x60\\x7b-\\x7f]+");
+
+	/**
+	 * Returns the text stored in TABLE_SONGS_SEARCH for given string.
+	 * Accents are dropped and letters are turned into lower case, so that
+	 * searching for 'beyonce' also finds 'Beyoncé'.
+	 *
+	 * @param text the string to convert, may be null
+	 * @return the searchable text of given string, null if text was null
+	 */
+	public static String searchTextFor(String text) {
+		if (text == null)
+			return null;
+		String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+		return sCombiningMarks.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Splits a search string into the words to look up in TABLE_SONGS_SEARCH
+	 *
+	 * @param constraint the string typed by the user
+	 * @return the words of constraint, which never contain fts query syntax
+	 */
+	public static String[] searchTermsFor(String constraint) {
+		ArrayList<String> terms = new ArrayList<>();
+		for (String term : sSearchSeparators.split(searchTextFor(constraint))) {
+			if (term.length() != 0)
+				terms.add(term);
+		}
+		return terms.toArray(new String[terms.size()]);
+	}
+
+	/**
+	 * Returns an fts MATCH expression finding all songs where any of the
+	 * given columns contains a word starting with term
+	 *
+	 * @param columns the SearchColumns to look at
+	 * @param term a word returned by searchTermsFor()
+	 * @return the expression to bind to `MATCH ?'
+	 */
+	public static String searchMatchFor(String[] columns, String term) {
+		StringBuilder match = new StringBuilder();
+		for (String column : columns) {
+			if (match.length() != 0)
+				match.append(" OR ");
+			match.append(column).append(':').append(term).append('*');
+		}
+		return match.toString();
+	}
+
 	/**
 	 * Simple 63 bit hash function for strings
 	 *
@@ -576,6 +685,11 @@ public class MediaLibrary  {
 		 * The mtime of this item
 		 */
 		String MTIME = "mtime";
+		/**
+		 * Hash of the size, mtime and content of the music file, used to detect moved files.
+		 * 0 if the file could not be read, NULL if the hash was not computed yet.
+		 */
+		String FINGERPRINT = "fingerprint";
 	}
 
 	// Columns of Album entries
@@ -742,6 +856,109 @@ public class MediaLibrary  {
 		String POSITION = "position";
 	}
 
+	// Directories seen by the scanner
+	public interface DirectoryColumns {
+		/**
+		 * The id of this directory, the hash63() of its path
+		 */
+		String _ID = SongColumns._ID;
+		/**
+		 * The path of this directory
+		 */
+		String PATH = "path";
+		/**
+		 * The mtime of this directory in ms, as returned by File.lastModified()
+		 */
+		String MTIME = "mtime";
+		/**
+		 * The number of entries in this directory
+		 */
+		String CHILD_COUNT = "child_count";
+		/**
+		 * Unixtime of the last scan which inspected all files of this directory
+		 */
+		String VERIFIED = "verified";
+	}
+
+	/**
+	 * The state of the playback, as seen by the scanner
+	 */
+	public interface PlaybackMonitor {
+		/**
+		 * Returns true if music is playing
+		 */
+		boolean isPlaying();
+		/**
+		 * Returns the number of milliseconds decoded ahead of the
+		 * playback position, -1 if this is unknown
+		 */
+		int getBufferedAheadMs();
+	}
+
+	// Checkpoint of an interrupted scan
+	public interface ScanPlanColumns {
+		/**
+		 * The order of this step, the running step has the lowest id
+		 */
+		String _ID = SongColumns._ID;
+		/**
+		 * The rpc to run
+		 */
+		String RPC = "rpc";
+		/**
+		 * The mode of this step, one of MediaScanPlan.Step.MODE_*
+		 */
+		String MODE = "mode";
+		/**
+		 * The argument of the rpc, the path of the directory to read, may be null
+		 */
+		String ARG = "arg";
+		/**
+		 * Where the source of the running step left off, null for steps which did not start yet
+		 */
+		String POSITION = "position";
+		/**
+		 * Number of files the running step has seen so far
+		 */
+		String SEEN = "seen";
+		/**
+		 * Number of files the running step has changed so far
+		 */
+		String CHANGED = "changed";
+	}
+
+	// Full text index of songs, see searchTextFor()
+	public interface SearchColumns {
+		/**
+		 * The id of the indexed song
+		 */
+		String DOCID = "docid";
+		/**
+		 * The title of the song
+		 */
+		String TITLE = "title";
+		/**
+		 * The album of the song
+		 */
+		String ALBUM = "album";
+		/**
+		 * The artist of the song
+		 */
+		String ARTIST = "artist";
+		/**
+		 * The album artist of the song, may be null
+		 */
+		String ALBUMARTIST = "albumartist";
+		/**
+		 * The composer of the song, may be null
+		 */
+		String COMPOSER = "composer";
+		/**
+		 * All genres of the song, separated by newlines, may be null
+		 */
+		String GENRE = "genre";
+	}
+
 	// Preference keys
 	public interface PreferenceColumns {
 		/**
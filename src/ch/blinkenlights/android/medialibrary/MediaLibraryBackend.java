@@ -35,7 +35,7 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 	/**
 	 * The database version we are using
 	 */
-	private static final int DATABASE_VERSION = 20170619;
+	private static final int DATABASE_VERSION = 20170717;
 	/**
 	 * on-disk file to store the database
 	 */
@@ -69,6 +69,9 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 	*/
 	MediaLibraryBackend(Context context) {
 		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+		// The scanner keeps write transactions open for a while: use
+		// WAL, so that readers do not need to wait for them to finish.
+		setWriteAheadLoggingEnabled(true);
 	}
 
 	/**
@@ -172,6 +175,7 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 	void setPendingDeletion() {
 		SQLiteDatabase dbh = getWritableDatabase();
 		dbh.execSQL("UPDATE "+MediaLibrary.TABLE_SONGS+" SET "+MediaLibrary.SongColumns.MTIME+"="+PENDING_DELETION_MTIME);
+		dbh.execSQL("UPDATE "+MediaLibrary.TABLE_SONGS_FLAT+" SET "+MediaLibrary.SongColumns.MTIME+"="+PENDING_DELETION_MTIME);
 	}
 
 	/**
@@ -194,6 +198,8 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 		dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_GENRES+" WHERE "+MediaLibrary.GenreColumns._ID+" NOT IN (SELECT "+MediaLibrary.GenreSongColumns._GENRE_ID+" FROM "+MediaLibrary.TABLE_GENRES_SONGS+");");
 		dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS+" WHERE "+MediaLibrary.ContributorSongColumns.SONG_ID+" NOT IN (SELECT "+MediaLibrary.SongColumns._ID+" FROM "+MediaLibrary.TABLE_SONGS+");");
 		dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_CONTRIBUTORS+" WHERE "+MediaLibrary.ContributorColumns._ID+" NOT IN (SELECT "+MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID+" FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS+");");
+		dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_SONGS_FLAT+" WHERE "+MediaLibrary.SongColumns._ID+" NOT IN (SELECT "+MediaLibrary.SongColumns._ID+" FROM "+MediaLibrary.TABLE_SONGS+");");
+		dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_SONGS_SEARCH+" WHERE "+MediaLibrary.SearchColumns.DOCID+" NOT IN (SELECT "+MediaLibrary.SongColumns._ID+" FROM "+MediaLibrary.TABLE_SONGS+");");
 	}
 
 	/**
@@ -228,29 +234,40 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 		return count;
 	}
 
+	/**
+	 * Wrapper for SQLiteDatabase.replace() function working in one transaction
+	 *
+	 * @param table the table to insert data to
+	 * @param valuesList an array list of ContentValues to insert or replace
+	 * @param truncate removes all existing rows first if true
+	 */
+	void bulkReplace(String table, ArrayList<ContentValues> valuesList, boolean truncate) {
+		SQLiteDatabase dbh = getWritableDatabase();
+
+		dbh.beginTransactionNonExclusive();
+		try {
+			if (truncate)
+				dbh.delete(table, null, null);
+			for(ContentValues values : valuesList) {
+				dbh.replace(table, null, values);
+			}
+			dbh.setTransactionSuccessful();
+		} finally {
+			dbh.endTransaction();
+		}
+	}
+
 	/**
 	 * Wrappr for SQLiteDatabase.query() function
 	 */
 	Cursor query (boolean distinct, String table, String[] columns, String selection, String[] selectionArgs, String groupBy, String having, String orderBy, String limit) {
 
-		if (MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS_HUGE.equals(table)) {
-			Log.v("VanillaMusic", "+++ warning : using HUGE table in genquery!");
+		if (MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS.equals(table) || MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS_HUGE.equals(table)) {
+			// the flat songs table has all columns of both views: no need for any joins
+			table = MediaLibrary.TABLE_SONGS_FLAT;
 		}
 
 		if (selection != null) {
-			if (MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS.equals(table)) {
-				// artist matches in the song-view are costy: try to give sqlite a hint
-				String[] contributorMatch = extractVirtualColumn(selection);
-				if (contributorMatch != null) {
-					selection = contributorMatch[0];
-					final String contributorId = contributorMatch[1];
-					final String contributorRole = contributorMatch[2];
-
-					selection += MediaLibrary.SongColumns._ID+" IN (SELECT "+MediaLibrary.ContributorSongColumns.SONG_ID+" FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS+" WHERE "
-					          + MediaLibrary.ContributorSongColumns.ROLE+"="+contributorRole+" AND "+MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID+"="+contributorId+")";
-				}
-			}
-
 			if (MediaLibrary.VIEW_ALBUMS_ARTISTS.equals(table)) {
 				// looking up artists by albums will magically return every album where this
 				// artist has at least one item (while still using the primary_artist_id as the artist key)
@@ -273,31 +290,28 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 				final String genreId = genreMatch.group(2); // and extract the searched genre id
 				final String songsQuery = buildSongIdFromGenreSelect(genreId);
 
-				if(table.equals(MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS)      ||
-				   table.equals(MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS_HUGE) ) {
+				if (table.equals(MediaLibrary.TABLE_SONGS_FLAT)) {
 					selection += MediaLibrary.SongColumns._ID+" IN ("+songsQuery+") ";
 				}
 
 				if (table.equals(MediaLibrary.VIEW_ALBUMS_ARTISTS)) {
 					selection += MediaLibrary.AlbumColumns._ID+" IN ("+
-						buildSongIdFromGenreSelect(MediaLibrary.SongColumns.ALBUM_ID, MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS, songsQuery)+") ";
+						buildSongIdFromGenreSelect(MediaLibrary.SongColumns.ALBUM_ID, MediaLibrary.TABLE_SONGS_FLAT, songsQuery)+") ";
 				}
 
 				if (table.equals(MediaLibrary.VIEW_ARTISTS)) {
 					selection += MediaLibrary.ContributorColumns.ARTIST_ID+" IN ("+
-						buildSongIdFromGenreSelect(MediaLibrary.ContributorColumns.ARTIST_ID, MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS, songsQuery)+") ";
+						buildSongIdFromGenreSelect(MediaLibrary.ContributorColumns.ARTIST_ID, MediaLibrary.TABLE_SONGS_FLAT, songsQuery)+") ";
 				}
 
 				if (table.equals(MediaLibrary.VIEW_ALBUMARTISTS)) {
 					selection += MediaLibrary.ContributorColumns.ALBUMARTIST_ID+" IN ("+
-						buildSongIdFromGenreSelect(MediaLibrary.ContributorColumns.ALBUMARTIST_ID, MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS_HUGE, songsQuery)+") ";
-					Log.v("VanillaMusic", "+++ warning: huge genrequery for albumartist!");
+						buildSongIdFromGenreSelect(MediaLibrary.ContributorColumns.ALBUMARTIST_ID, MediaLibrary.TABLE_SONGS_FLAT, songsQuery)+") ";
 				}
 
 				if (table.equals(MediaLibrary.VIEW_COMPOSERS)) {
 					selection += MediaLibrary.ContributorColumns.COMPOSER_ID+" IN ("+
-						buildSongIdFromGenreSelect(MediaLibrary.ContributorColumns.COMPOSER_ID, MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS_HUGE, songsQuery)+") ";
-					Log.v("VanillaMusic", "+++ warning: huge genrequery composer!");
+						buildSongIdFromGenreSelect(MediaLibrary.ContributorColumns.COMPOSER_ID, MediaLibrary.TABLE_SONGS_FLAT, songsQuery)+") ";
 				}
 
 			}
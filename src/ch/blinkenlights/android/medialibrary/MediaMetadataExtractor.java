@@ -18,6 +18,7 @@
 package ch.blinkenlights.android.medialibrary;
 
 import ch.blinkenlights.bastp.Bastp;
+import ch.blinkenlights.bastp.TagSet;
 import android.media.MediaMetadataRetriever;
 
 import java.util.ArrayList;
@@ -213,6 +214,20 @@ public class MediaMetadataExtractor extends HashMap<String, ArrayList<String>> {
 		// 148 goes here, Winamp 5.6 would have 148 -> 191 these ¯\_(ツ)_/¯
 	};
 
+	/**
+	 * Mime types of files which we can read using bastp only
+	 */
+	private static final HashMap<String, String> BASTP_MIME_TYPES = new HashMap<>();
+	static {
+		BASTP_MIME_TYPES.put("FLAC", "audio/flac");
+		BASTP_MIME_TYPES.put("OGG", "application/ogg");
+		BASTP_MIME_TYPES.put("OPUS", "audio/opus");
+		BASTP_MIME_TYPES.put("MP3/ID3v2", "audio/mpeg");
+		BASTP_MIME_TYPES.put("MP3/Lame", "audio/mpeg");
+		BASTP_MIME_TYPES.put("WAV", "audio/x-wav");
+		BASTP_MIME_TYPES.put("MP4", "audio/mp4");
+	}
+
 	/**
 	 * True if we consider the file to be a good media item
 	 */
@@ -221,6 +236,19 @@ public class MediaMetadataExtractor extends HashMap<String, ArrayList<String>> {
 	 * True if we should try bastp for 'experimental' formats
 	 */
 	private boolean mForceBastp = false;
+	/**
+	 * Time spent in bastp and the metadata retriever, in ns
+	 */
+	private long mBastpNanos;
+	private long mRetrieverNanos;
+	/**
+	 * Number of bytes bastp read from the file
+	 */
+	private long mBytesRead;
+	/**
+	 * The format of the file as detected by bastp, its mime type if bastp did not know it
+	 */
+	private String mFormat;
 
 	/**
 	 * Constructor for MediaMetadataExtractor
@@ -238,8 +266,19 @@ public class MediaMetadataExtractor extends HashMap<String, ArrayList<String>> {
 	 * @param forceBastp always prefer bastp if possible
 	 */
 	public MediaMetadataExtractor(String path, boolean forceBastp) {
+		this(path, forceBastp, new Bastp());
+	}
+
+	/**
+	 * Constructor for MediaMetadataExtractor
+	 *
+	 * @param path the path to scan
+	 * @param forceBastp always prefer bastp if possible
+	 * @param bastp the parser to read the tags with, which must not be in use by another thread
+	 */
+	MediaMetadataExtractor(String path, boolean forceBastp, Bastp bastp) {
 		mForceBastp = forceBastp;
-		extractMetadata(path);
+		extractMetadata(path, bastp);
 	}
 
 	/**
@@ -263,18 +302,68 @@ public class MediaMetadataExtractor extends HashMap<String, ArrayList<String>> {
 		return mIsMediaFile;
 	}
 
+	/**
+	 * Returns the time spent in bastp to extract the tags in ns
+	 */
+	long getBastpNanos() {
+		return mBastpNanos;
+	}
+
+	/**
+	 * Returns the time spent in the metadata retriever to extract the tags in ns,
+	 * 0 if the retriever was not used
+	 */
+	long getRetrieverNanos() {
+		return mRetrieverNanos;
+	}
+
+	/**
+	 * Returns the number of bytes read by bastp
+	 */
+	long getBytesRead() {
+		return mBytesRead;
+	}
+
+	/**
+	 * Returns the format of the file, null if it is unknown
+	 */
+	String getFormat() {
+		return mFormat;
+	}
+
 	/**
 	 * Attempts to populate this instance with tags found in given path
 	 *
 	 * @param path the path to parse
+	 * @param bastp the parser to use
 	 */
-	private void extractMetadata(String path) {
+	private void extractMetadata(String path, Bastp bastp) {
 		if (!isEmpty())
 			throw new IllegalStateException("Expected to be called on a clean HashMap");
 
 		Log.v("VanillaMusic", "Extracting tags from "+path);
 
-		HashMap bastpTags = (new Bastp()).getTags(path);
+		long startTime = System.nanoTime();
+		TagSet bastpTags = bastp.getTagSet(path);
+		String bastpType = (bastpTags.type != null ? bastpTags.type : "");
+		mBastpNanos = System.nanoTime() - startTime;
+		mBytesRead = bastpTags.bytes_read;
+		mFormat = (bastpType.equals("") ? null : bastpType);
+
+		// Bastp might know everything we need to know about this file:
+		// There is no need to call the (slow) native metadata retriever in this case.
+		if (isBastpOnlyFile(bastpType, bastpTags)) {
+			addSingle(DURATION, Long.toString(bastpTags.duration_ms));
+			if (bastpTags.bitrate > 0)
+				addSingle(BITRATE, Integer.toString(bastpTags.bitrate));
+			addSingle(MIME_TYPE, BASTP_MIME_TYPES.get(bastpType));
+			populateSelf(bastpTags);
+			convertNumericGenre();
+			mIsMediaFile = true;
+			return;
+		}
+
+		startTime = System.nanoTime();
 		MediaMetadataRetriever mediaTags = new MediaMetadataRetriever();
 		boolean nativelyReadable = false;
 
@@ -298,30 +387,24 @@ public class MediaMetadataExtractor extends HashMap<String, ArrayList<String>> {
 		    mediaTags.extractMetadata(MediaMetadataRetriever.METADATA_KEY_HAS_VIDEO) != null ||
 		    mediaTags.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION) == null) {
 		    mediaTags.release();
+			mRetrieverNanos = System.nanoTime() - startTime;
 			return;
 		}
 
-		// Bastp can not read the duration and bitrates, so we always get it from the system
-		ArrayList<String> duration = new ArrayList<>(1);
-		duration.add(mediaTags.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION));
-		this.put(DURATION, duration);
-
-		ArrayList<String> bitrate = new ArrayList<>(1);
-		bitrate.add(mediaTags.extractMetadata(MediaMetadataRetriever.METADATA_KEY_BITRATE));
-		this.put(BITRATE, bitrate);
+		// Bastp was unable to read the duration and bitrates, so we get it from the system
+		addSingle(DURATION, mediaTags.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION));
+		addSingle(BITRATE, mediaTags.extractMetadata(MediaMetadataRetriever.METADATA_KEY_BITRATE));
+		addSingle(MIME_TYPE, mediaTags.extractMetadata(MediaMetadataRetriever.METADATA_KEY_MIMETYPE));
 
-		ArrayList<String> mime = new ArrayList<>(1);
-		mime.add(mediaTags.extractMetadata(MediaMetadataRetriever.METADATA_KEY_MIMETYPE));
-		this.put(MIME_TYPE, mime);
 
-
-		// ...but we are using bastp for FLAC, OGG and OPUS as it handles them well
-		// Everything else goes to the framework (such as pcm, m4a and mp3)
-		String bastpType = (bastpTags.containsKey("type") ? (String)bastpTags.get("type") : "");
+		// ...but we are using bastp for FLAC, OGG, OPUS and WAV/AIFF as it handles them well
+		// Everything else goes to the framework (such as m4a and mp3)
 		switch (bastpType) {
 			case "FLAC":
 			case "OGG":
 			case "OPUS":
+			case "WAV":
+			case "AIFF":
 				populateSelf(bastpTags);
 				break;
 			case "MP3/ID3v2":
@@ -341,38 +424,87 @@ public class MediaMetadataExtractor extends HashMap<String, ArrayList<String>> {
 		// We consider this a media file if it has some common tags OR
 		// if bastp was able to parse it (which is stricter than Androids own parser)
 		mIsMediaFile = (containsKey(TITLE) || containsKey(ALBUM) || containsKey(ARTIST) || !bastpType.equals(""));
+		if (mFormat == null)
+			mFormat = getFirst(MIME_TYPE);
 
 		mediaTags.release();
+		mRetrieverNanos = System.nanoTime() - startTime;
+	}
+
+	/**
+	 * Returns true if the tags returned by bastp are complete enough
+	 * to skip the native metadata retriever
+	 *
+	 * @param bastpType the type of the file as detected by bastp
+	 * @param bastp the tag set returned by bastp
+	 * @return true if bastp fully understood this file
+	 */
+	private boolean isBastpOnlyFile(String bastpType, TagSet bastp) {
+		if (bastp.duration_ms <= 0)
+			return false;
+
+		switch (bastpType) {
+			case "FLAC":
+			case "OGG":
+			case "OPUS":
+				return true;
+			case "WAV":
+				// bastp only reports the duration of PCM-like formats, which android can play
+				return true;
+			case "MP3/ID3v2":
+			case "MP3/Lame":
+				// same rules as for the tags: only trust bastp if forced to
+				return mForceBastp;
+			case "MP4":
+				// ...and only if there is no video track
+				return mForceBastp && !bastp.has_video;
+			default:
+				// android may not be able to play AIFF at all
+				return false;
+		}
+	}
+
+	/**
+	 * Adds a single value as `key'
+	 *
+	 * @param key the key to use
+	 * @param value the value to add
+	 */
+	private void addSingle(String key, String value) {
+		ArrayList<String> list = new ArrayList<>(1);
+		list.add(value);
+		put(key, list);
 	}
 
 	/**
 	 * Populates `this' with tags read from bastp
 	 *
-	 * @param bastp A hashmap as returned by bastp
+	 * @param bastp the tag set returned by bastp
 	 */
-	private void populateSelf(HashMap bastp) {
-		// mapping between vorbiscomment -> constant
-		String[] map = new String[]{ "TITLE", TITLE, "ARTIST", ARTIST, "ALBUM", ALBUM, "ALBUMARTIST", ALBUMARTIST, "COMPOSER", COMPOSER, "GENRE", GENRE,
-		                             "TRACKNUMBER", TRACK_NUMBER, "TRACKTOTAL", TRACK_COUNT, "DISCNUMBER", DISC_NUMBER, "DISCTOTAL", DISC_COUNT,
-		                             "YEAR", YEAR };
+	private void populateSelf(TagSet bastp) {
+		// mapping between vorbiscomment slot -> constant, only these values are ever decoded
+		int[] slots = new int[]{ TagSet.TITLE, TagSet.ARTIST, TagSet.ALBUM, TagSet.ALBUMARTIST, TagSet.COMPOSER, TagSet.GENRE,
+		                         TagSet.TRACKNUMBER, TagSet.TRACKTOTAL, TagSet.DISCNUMBER, TagSet.DISCTOTAL, TagSet.YEAR };
+		String[] keys = new String[]{ TITLE, ARTIST, ALBUM, ALBUMARTIST, COMPOSER, GENRE,
+		                              TRACK_NUMBER, TRACK_COUNT, DISC_NUMBER, DISC_COUNT, YEAR };
 		// switch to integer filter if i >= x
-		int filterByIntAt = 12;
+		int filterByIntAt = 6;
 		// the filter we are normally using
 		Pattern filter = sFilterAny;
 
-		for (int i=0; i<map.length; i+=2) {
+		for (int i=0; i<slots.length; i++) {
 			if (i >= filterByIntAt)
 				filter = sFilterLeftInt;
 
-			if (bastp.containsKey(map[i])) {
-				addFiltered(filter, map[i+1], (ArrayList<String>)bastp.get(map[i]));
+			if (bastp.has(slots[i])) {
+				addFiltered(filter, keys[i], bastp.getAll(slots[i]));
 			}
 		}
 
 		// Try to guess YEAR from date field if only DATE was specified
 		// We expect it to match \d{4}
-		if (!containsKey(YEAR) && bastp.containsKey("DATE")) {
-			addFiltered(sFilterYear, YEAR, (ArrayList<String>)bastp.get("DATE"));
+		if (!containsKey(YEAR) && bastp.has(TagSet.DATE)) {
+			addFiltered(sFilterYear, YEAR, bastp.getAll(TagSet.DATE));
 		}
 
 	}
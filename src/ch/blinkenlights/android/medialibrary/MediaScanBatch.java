@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2017 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.medialibrary;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Groups the writes of the media scanner into transactions
+ *
+ * The first write opens a transaction which stays open until commit()
+ * is called, so that many inspected files share a single journal commit.
+ * Inserts and updates are executed using compiled statements which are
+ * cached by their SQL, so every shape of insert is compiled only once.
+ *
+ * Songs removed by deleteSong() may leave albums, contributors and genres
+ * without any song behind. Their ids are remembered and the orphaned ones
+ * are removed right before the transaction commits.
+ *
+ * The writes of a single file can be grouped using beginFile() and
+ * endFile(), which undoes them if the file could not be written
+ * completely, so that no half written song gets committed.
+ *
+ * Transactions are bound to the calling thread: all methods must be
+ * called from the same thread, which is the writer of the scan pipeline.
+ */
+class MediaScanBatch {
+	/**
+	 * Name of the savepoint guarding the writes of a single file
+	 */
+	private static final String FILE_SAVEPOINT = "scan_file";
+	/**
+	 * The backend we are writing to
+	 */
+	private final MediaLibraryBackend mBackend;
+	/**
+	 * Compiled statements, keyed by their SQL
+	 */
+	private final HashMap<String, SQLiteStatement> mStatements = new HashMap<>();
+	/**
+	 * The database handle of the open transaction, null if there is none
+	 */
+	private SQLiteDatabase mDbh;
+	/**
+	 * True between beginFile() and endFile()
+	 */
+	private boolean mInFile;
+	/**
+	 * True if the savepoint of the current file was set in the open transaction
+	 */
+	private boolean mHasSavepoint;
+	/**
+	 * Albums which may have lost their last song in this batch
+	 */
+	private final HashSet<Long> mAlbumCandidates = new HashSet<>();
+	/**
+	 * Contributors which may have lost their last song in this batch
+	 */
+	private final HashSet<Long> mContributorCandidates = new HashSet<>();
+	/**
+	 * Genres which may have lost their last song in this batch
+	 */
+	private final HashSet<Long> mGenreCandidates = new HashSet<>();
+	/**
+	 * Receives the time spent committing and removing orphans
+	 */
+	private final MediaScanReport mReport;
+
+	MediaScanBatch(MediaLibraryBackend backend, MediaScanReport report) {
+		mBackend = backend;
+		mReport = report;
+	}
+
+	/**
+	 * Inserts a row, joining the open transaction or starting a new one
+	 *
+	 * @param table the table to insert data to
+	 * @param values the values to insert
+	 * @return the row id of the new row, -1 if the insert failed
+	 */
+	long insert(String table, ContentValues values) {
+		StringBuilder sql = new StringBuilder("INSERT INTO ");
+		StringBuilder params = new StringBuilder();
+		sql.append(table).append(" (");
+		for (String column : values.keySet()) {
+			if (params.length() != 0) {
+				sql.append(',');
+				params.append(',');
+			}
+			sql.append(column);
+			params.append('?');
+		}
+		sql.append(") VALUES (").append(params).append(')');
+
+		SQLiteStatement stmt = bind(sql.toString(), values, null);
+		long result = -1;
+		try {
+			result = stmt.executeInsert();
+		} catch (SQLiteException e) {
+			// the row most likely exists: callers check the result, avoid logspam
+		}
+		return result;
+	}
+
+	/**
+	 * Updates rows, joining the open transaction or starting a new one
+	 *
+	 * @param table the table to update
+	 * @param values the data to set
+	 * @param whereClause the selection
+	 * @param whereArgs arguments to selection
+	 * @return the number of affected rows
+	 */
+	int update(String table, ContentValues values, String whereClause, String[] whereArgs) {
+		StringBuilder sql = new StringBuilder("UPDATE ");
+		sql.append(table).append(" SET ");
+		boolean first = true;
+		for (String column : values.keySet()) {
+			if (!first)
+				sql.append(',');
+			sql.append(column).append("=?");
+			first = false;
+		}
+		sql.append(" WHERE ").append(whereClause);
+
+		return bind(sql.toString(), values, whereArgs).executeUpdateDelete();
+	}
+
+	/**
+	 * Deletes rows, joining the open transaction or starting a new one
+	 *
+	 * @param table the table to delete data from
+	 * @param whereClause the selection
+	 * @param whereArgs arguments to selection
+	 * @return the number of affected rows
+	 */
+	int delete(String table, String whereClause, String[] whereArgs) {
+		String sql = "DELETE FROM "+table+" WHERE "+whereClause;
+		return bind(sql, null, whereArgs).executeUpdateDelete();
+	}
+
+	/**
+	 * Deletes a song, its contributor and genre mappings, its search entry and
+	 * its row in the flat songs table, but keeps
+	 * playlist entries pointing to it. Albums, contributors and genres
+	 * referenced by the song become candidates for removal on commit().
+	 *
+	 * @param songId the id of the song to delete
+	 */
+	void deleteSong(long songId) {
+		final String[] args = { Long.toString(songId) };
+		begin(); // the queries must see the writes of this batch
+
+		collectIds(MediaLibrary.TABLE_SONGS, MediaLibrary.SongColumns.ALBUM_ID,
+		           MediaLibrary.SongColumns._ID, args, mAlbumCandidates);
+		collectIds(MediaLibrary.TABLE_CONTRIBUTORS_SONGS, MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID,
+		           MediaLibrary.ContributorSongColumns.SONG_ID, args, mContributorCandidates);
+		collectIds(MediaLibrary.TABLE_GENRES_SONGS, MediaLibrary.GenreSongColumns._GENRE_ID,
+		           MediaLibrary.GenreSongColumns.SONG_ID, args, mGenreCandidates);
+
+		delete(MediaLibrary.TABLE_SONGS, MediaLibrary.SongColumns._ID+"=?", args);
+		delete(MediaLibrary.TABLE_CONTRIBUTORS_SONGS, MediaLibrary.ContributorSongColumns.SONG_ID+"=?", args);
+		delete(MediaLibrary.TABLE_GENRES_SONGS, MediaLibrary.GenreSongColumns.SONG_ID+"=?", args);
+		delete(MediaLibrary.TABLE_SONGS_SEARCH, MediaLibrary.SearchColumns.DOCID+"=?", args);
+		delete(MediaLibrary.TABLE_SONGS_FLAT, MediaLibrary.SongColumns._ID+"=?", args);
+	}
+
+	/**
+	 * Starts the writes of a single file, which must be finished using endFile().
+	 * The savepoint is only set by the first write of the file.
+	 */
+	void beginFile() {
+		mInFile = true;
+	}
+
+	/**
+	 * Finishes the writes of a single file
+	 *
+	 * @param keep true to keep the writes done since beginFile(), false to undo them
+	 */
+	void endFile(boolean keep) {
+		mInFile = false;
+		if (!mHasSavepoint)
+			return;
+
+		mHasSavepoint = false;
+		if (!keep) {
+			// the leading ';' keeps android from mistaking this for a ROLLBACK of the whole transaction
+			mDbh.execSQL(";ROLLBACK TO "+FILE_SAVEPOINT);
+		}
+		mDbh.execSQL("RELEASE "+FILE_SAVEPOINT);
+	}
+
+	/**
+	 * Commits the open transaction, does nothing if no write happened since the last commit
+	 */
+	void commit() {
+		if (mDbh == null)
+			return;
+
+		SQLiteDatabase dbh = mDbh;
+		mDbh = null;
+		mHasSavepoint = false; // released by the commit
+		long startTime = System.nanoTime();
+		try {
+			removeOrphans(dbh, MediaLibrary.TABLE_ALBUMS, MediaLibrary.AlbumColumns._ID, mAlbumCandidates,
+			              MediaLibrary.TABLE_SONGS, MediaLibrary.SongColumns.ALBUM_ID);
+			removeOrphans(dbh, MediaLibrary.TABLE_CONTRIBUTORS, MediaLibrary.ContributorColumns._ID, mContributorCandidates,
+			              MediaLibrary.TABLE_CONTRIBUTORS_SONGS, MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID);
+			removeOrphans(dbh, MediaLibrary.TABLE_GENRES, MediaLibrary.GenreColumns._ID, mGenreCandidates,
+			              MediaLibrary.TABLE_GENRES_SONGS, MediaLibrary.GenreSongColumns._GENRE_ID);
+			long commitTime = System.nanoTime();
+			mReport.addPhase(MediaScanReport.PHASE_ORPHANS, commitTime - startTime);
+			startTime = commitTime;
+			dbh.setTransactionSuccessful();
+		} finally {
+			dbh.endTransaction();
+			mReport.addPhase(MediaScanReport.PHASE_DB_WRITE, System.nanoTime() - startTime);
+		}
+	}
+
+	/**
+	 * Commits the open transaction and closes all compiled statements,
+	 * further writes compile them again
+	 */
+	void close() {
+		commit();
+		for (SQLiteStatement stmt : mStatements.values()) {
+			stmt.close();
+		}
+		mStatements.clear();
+	}
+
+	/**
+	 * Adds the values of a column of all rows matching a song to given set
+	 *
+	 * @param table the table to query
+	 * @param column the column holding the ids to collect
+	 * @param songColumn the column holding the song id
+	 * @param args the song id
+	 * @param ids the set to add the ids to
+	 */
+	private void collectIds(String table, String column, String songColumn, String[] args, HashSet<Long> ids) {
+		Cursor cursor = mDbh.query(table, new String[]{ column }, songColumn+"=?", args, null, null, null);
+		while (cursor.moveToNext()) {
+			ids.add(cursor.getLong(0));
+		}
+		cursor.close();
+	}
+
+	/**
+	 * Removes all candidates which are no longer referenced, this needs
+	 * a single scan of the referencing table per batch
+	 *
+	 * @param dbh the database handle of the open transaction
+	 * @param table the table to clean up
+	 * @param idColumn the id column of table
+	 * @param candidates the ids to check, cleared by this call
+	 * @param refTable the table referencing table
+	 * @param refColumn the column of refTable holding the references
+	 */
+	private static void removeOrphans(SQLiteDatabase dbh, String table, String idColumn, HashSet<Long> candidates, String refTable, String refColumn) {
+		if (candidates.size() == 0)
+			return;
+
+		StringBuilder ids = new StringBuilder();
+		for (Long id : candidates) {
+			if (ids.length() != 0)
+				ids.append(',');
+			ids.append(id);
+		}
+		candidates.clear();
+		dbh.execSQL("DELETE FROM "+table+" WHERE "+idColumn+" IN ("+ids+") AND "
+		            +idColumn+" NOT IN (SELECT "+refColumn+" FROM "+refTable+")");
+	}
+
+	/**
+	 * Starts a new transaction if none is open, sets the savepoint
+	 * of the current file if there is one
+	 *
+	 * @return the database handle of the open transaction
+	 */
+	private SQLiteDatabase begin() {
+		if (mDbh == null) {
+			SQLiteDatabase dbh = mBackend.getWritableDatabase();
+			dbh.beginTransactionNonExclusive();
+			mDbh = dbh;
+		}
+		if (mInFile && !mHasSavepoint) {
+			mDbh.execSQL("SAVEPOINT "+FILE_SAVEPOINT);
+			mHasSavepoint = true;
+		}
+		return mDbh;
+	}
+
+	/**
+	 * Returns the compiled statement for given SQL with all arguments bound,
+	 * starts a new transaction if none is open
+	 *
+	 * @param sql the statement to compile
+	 * @param values values to bind first, may be null
+	 * @param args string arguments to bind after values, may be null
+	 * @return the statement ready for execution
+	 */
+	private SQLiteStatement bind(String sql, ContentValues values, String[] args) {
+		SQLiteDatabase dbh = begin();
+		SQLiteStatement stmt = mStatements.get(sql);
+		if (stmt == null) {
+			stmt = dbh.compileStatement(sql);
+			mStatements.put(sql, stmt);
+		}
+
+		stmt.clearBindings();
+		int index = 1;
+		if (values != null) {
+			// valueSet() iterates in the same order as keySet() did while building the SQL
+			for (Map.Entry<String, Object> entry : values.valueSet()) {
+				DatabaseUtils.bindObjectToProgram(stmt, index++, entry.getValue());
+			}
+		}
+		if (args != null) {
+			for (String arg : args) {
+				stmt.bindString(index++, arg);
+			}
+		}
+		return stmt;
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2017 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.medialibrary;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+
+/**
+ * Continues a deferred full scan once the device is charging or idle
+ *
+ * One job is scheduled for each of both conditions, as the constraints
+ * of a single job must all be met. Whichever runs first starts the
+ * scan, which cancels the other job.
+ */
+public class MediaScanJobService extends JobService {
+	/**
+	 * Job waiting for the device to be plugged in
+	 */
+	private static final int JOB_ID_CHARGING = 56163;
+	/**
+	 * Job waiting for the device to be idle
+	 */
+	private static final int JOB_ID_IDLE = 56164;
+
+	@Override
+	public boolean onStartJob(JobParameters params) {
+		// the scanner holds its own wake lock: nothing left to do for us
+		MediaLibrary.startDeferredScan(this);
+		return false;
+	}
+
+	@Override
+	public boolean onStopJob(JobParameters params) {
+		return false;
+	}
+
+	/**
+	 * Schedules the jobs to continue a deferred scan, replaces already scheduled jobs
+	 *
+	 * @param context the context to use
+	 */
+	static void schedule(Context context) {
+		ComponentName service = new ComponentName(context, MediaScanJobService.class);
+		JobScheduler scheduler = (JobScheduler)context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+		scheduler.schedule(new JobInfo.Builder(JOB_ID_CHARGING, service).setRequiresCharging(true).build());
+		scheduler.schedule(new JobInfo.Builder(JOB_ID_IDLE, service).setRequiresDeviceIdle(true).build());
+	}
+
+	/**
+	 * Cancels all scheduled jobs
+	 *
+	 * @param context the context to use
+	 */
+	static void cancel(Context context) {
+		JobScheduler scheduler = (JobScheduler)context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+		scheduler.cancel(JOB_ID_CHARGING);
+		scheduler.cancel(JOB_ID_IDLE);
+	}
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2017 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.medialibrary;
+
+import ch.blinkenlights.bastp.Bastp;
+import ch.blinkenlights.bastp.BastpBatch;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * The tag extraction and database stages of the media scanner
+ *
+ * Files are handed to submit() by the thread walking directories or cursors.
+ * The worker threads of a BastpBatch read their tags while a single writer
+ * thread stores the results in the database, so that writes never race
+ * each other. submit() blocks once QUEUE_SIZE files were submitted but not
+ * yet picked up by the writer, so the walk cannot run ahead of either stage.
+ * Each volume holding media folders has its own limit of concurrently
+ * inspected files, so that slow SD cards do not get flooded with reads.
+ * The writer groups its writes into batches which are committed once
+ * they grow too large or too old, or as soon as the writer runs idle.
+ */
+class MediaScanPipeline<T> {
+	/**
+	 * The work done by the individual stages
+	 */
+	interface Stages<T> {
+		/**
+		 * Reads the tags of a file, called on an extraction thread
+		 *
+		 * @param file the file to inspect
+		 * @param bastp the parser of the calling thread
+		 * @return the extracted information
+		 */
+		T extract(File file, Bastp bastp);
+		/**
+		 * Stores the result of extract(), called on the writer thread.
+		 * Must not leave any of its writes behind if it throws.
+		 *
+		 * @param file the inspected file
+		 * @param result the value returned by extract(), null if extraction failed
+		 */
+		void write(File file, T result);
+		/**
+		 * Makes all writes done since the last call durable, called on the writer thread.
+		 * If it throws, these writes were undone.
+		 */
+		void commit();
+		/**
+		 * Frees the resources kept for the next write, called on the writer
+		 * thread once all submitted files were written
+		 */
+		void release();
+	}
+
+	/**
+	 * Upper limit of extraction threads, the scan is mostly IO bound
+	 */
+	private static final int MAX_EXTRACTORS = 4;
+	/**
+	 * Concurrently inspected files on internal storage, which copes well with parallel reads
+	 */
+	private static final int INTERNAL_VOLUME_LIMIT = MAX_EXTRACTORS;
+	/**
+	 * Concurrently inspected files on removable storage: SD cards are slow on random reads
+	 */
+	private static final int REMOVABLE_VOLUME_LIMIT = 2;
+	/**
+	 * Number of files which may be submitted but not yet picked up by the writer
+	 */
+	private static final int QUEUE_SIZE = 32;
+	/**
+	 * Maximal number of written files per commit
+	 */
+	private static final int BATCH_SIZE = 200;
+	/**
+	 * Maximal age of a batch in milliseconds before we commit it
+	 */
+	private static final long BATCH_MILLIS = 2000;
+	/**
+	 * The stages we are running
+	 */
+	private final Stages<T> mStages;
+	/**
+	 * Extracts the tags of submitted files, returning them as they complete
+	 */
+	private final BastpBatch<T> mExtractors;
+	/**
+	 * Number of files which were submitted but not yet written, guarded by `this'
+	 */
+	private int mPending;
+
+	MediaScanPipeline(Stages<T> stages) {
+		mStages = stages;
+
+		int extractors = Math.max(1, Math.min(MAX_EXTRACTORS, Runtime.getRuntime().availableProcessors() - 1));
+		mExtractors = new BastpBatch<>(extractors, QUEUE_SIZE, false, new BastpBatch.Parser<T>() {
+			@Override
+			public T parse(Bastp bastp, String path) {
+				return extract(new File(path), bastp);
+			}
+		});
+		startThread("MediaScannerWriter", new Runnable() {
+			@Override
+			public void run() {
+				runWriter();
+			}
+		});
+	}
+
+	/**
+	 * Queues a file for inspection, blocks while the pipeline is full
+	 *
+	 * @param file the file to inspect
+	 */
+	void submit(File file) {
+		synchronized (this) {
+			mPending++;
+		}
+		boolean queued = false;
+		while (!queued) {
+			try {
+				mExtractors.submit(file.getPath());
+				queued = true;
+			} catch (InterruptedException e) {
+				// nobody interrupts us on purpose: just try again
+			}
+		}
+	}
+
+	/**
+	 * Sets the volumes holding the media folders, replacing the old ones.
+	 * Files outside of these volumes are not limited.
+	 *
+	 * @param volumes maps the mount point of each volume to true if it is removable
+	 */
+	void setVolumes(Map<String, Boolean> volumes) {
+		mExtractors.clearVolumeLimits();
+		for (Map.Entry<String, Boolean> entry : volumes.entrySet()) {
+			mExtractors.setVolumeLimit(entry.getKey(), entry.getValue() ? REMOVABLE_VOLUME_LIMIT : INTERNAL_VOLUME_LIMIT);
+		}
+	}
+
+	/**
+	 * Returns the I/O statistics of all files inspected so far, see BastpBatch.getStats()
+	 */
+	String getStats() {
+		return mExtractors.getStats();
+	}
+
+	/**
+	 * Blocks until all submitted files were written to the database
+	 * and their batch was committed
+	 */
+	synchronized void drain() {
+		while (mPending > 0) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				// keep waiting
+			}
+		}
+	}
+
+	/**
+	 * Drops all files which did not reach an extraction thread yet.
+	 * Files which are already being inspected are not interrupted:
+	 * the writer stores them once their extraction finished.
+	 */
+	void abort() {
+		// the writer skips the dropped files when they come out of the batch
+		mExtractors.cancel();
+	}
+
+	/**
+	 * Extracts the tags of a file, called on a worker thread of the batch
+	 *
+	 * @return the extracted information, null if extraction failed
+	 */
+	private T extract(File file, Bastp bastp) {
+		try {
+			return mStages.extract(file, bastp);
+		} catch (RuntimeException e) {
+			Log.e("VanillaMusic", "Failed to extract tags of "+file+": "+e);
+			return null;
+		}
+	}
+
+	/**
+	 * Main loop of the writer thread
+	 */
+	private void runWriter() {
+		int batched = 0;
+		long batchStart = 0;
+		for (;;) {
+			BastpBatch.Result<T> result = poll();
+			if (result == null) {
+				// nothing to do right now: do not keep finished files waiting for a commit
+				batched = commit(batched);
+				if (isDrained())
+					release();
+				result = take();
+			}
+			if (result.cancelled) {
+				// dropped by abort()
+				finished(1);
+				continue;
+			}
+			if (batched == 0)
+				batchStart = SystemClock.uptimeMillis();
+
+			File file = new File(result.path);
+			try {
+				mStages.write(file, result.value);
+			} catch (RuntimeException e) {
+				Log.e("VanillaMusic", "Failed to write tags of "+file+": "+e);
+			}
+			batched++;
+
+			if (batched >= BATCH_SIZE || SystemClock.uptimeMillis() - batchStart >= BATCH_MILLIS)
+				batched = commit(batched);
+		}
+	}
+
+	/**
+	 * Commits the current batch and marks its files as done
+	 *
+	 * @param batched the number of files in the batch
+	 * @return the new size of the batch, which is always 0
+	 */
+	private int commit(int batched) {
+		if (batched > 0) {
+			try {
+				mStages.commit();
+			} catch (RuntimeException e) {
+				Log.e("VanillaMusic", "Failed to commit "+batched+" files: "+e);
+			} finally {
+				finished(batched);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Frees the resources of the stages once all submitted files were written
+	 */
+	private void release() {
+		try {
+			mStages.release();
+		} catch (RuntimeException e) {
+			Log.e("VanillaMusic", "Failed to release the writer: "+e);
+		}
+	}
+
+	/**
+	 * Returns true if all submitted files were written
+	 */
+	private synchronized boolean isDrained() {
+		return mPending == 0;
+	}
+
+	/**
+	 * Marks `count' files as done and wakes up drain()
+	 */
+	private synchronized void finished(int count) {
+		mPending -= count;
+		if (mPending == 0)
+			notifyAll();
+	}
+
+	/**
+	 * Returns the next extracted file, null if there is none right now
+	 */
+	private BastpBatch.Result<T> poll() {
+		for (;;) {
+			try {
+				return mExtractors.poll();
+			} catch (InterruptedException e) {
+				// try again
+			}
+		}
+	}
+
+	/**
+	 * Returns the next extracted file, waiting for it if needed
+	 */
+	private BastpBatch.Result<T> take() {
+		for (;;) {
+			try {
+				return mExtractors.take();
+			} catch (InterruptedException e) {
+				// try again
+			}
+		}
+	}
+
+	/**
+	 * Starts a background thread running at the same priority as the scanner
+	 */
+	private static void startThread(String name, final Runnable runnable) {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+				runnable.run();
+			}
+		}, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+}
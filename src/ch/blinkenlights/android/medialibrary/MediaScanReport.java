@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2017 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.medialibrary;
+
+import android.os.SystemClock;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Performance figures of a media scan
+ *
+ * The scanner records the time spent in each phase of a scan, so that
+ * slow scans can be told apart: listing directories and checking mtimes
+ * is IO bound, tag extraction is parser bound and writing is bound by
+ * sqlite. Every phase keeps a histogram of its call durations, as a few
+ * slow files hide well in a total.
+ *
+ * All recording methods are thread safe, as the phases run on the
+ * scanner thread, the extraction threads and the writer thread.
+ */
+public class MediaScanReport {
+	/**
+	 * Listing directories
+	 */
+	public static final int PHASE_READDIR = 0;
+	/**
+	 * Checking files for changes
+	 */
+	public static final int PHASE_STAT = 1;
+	/**
+	 * Fingerprinting files and looking up moved songs
+	 */
+	public static final int PHASE_FINGERPRINT = 2;
+	/**
+	 * Reading tags using bastp
+	 */
+	public static final int PHASE_BASTP = 3;
+	/**
+	 * Reading tags using the MediaMetadataRetriever of the framework
+	 */
+	public static final int PHASE_RETRIEVER = 4;
+	/**
+	 * Writing songs to the database, including commits
+	 */
+	public static final int PHASE_DB_WRITE = 5;
+	/**
+	 * Removing albums, contributors and genres without songs
+	 */
+	public static final int PHASE_ORPHANS = 6;
+	/**
+	 * Number of phases
+	 */
+	public static final int PHASE_COUNT = 7;
+	/**
+	 * Names of all phases, as used in the JSON representation
+	 */
+	private static final String[] PHASE_NAMES = { "readdir", "stat", "fingerprint", "bastp", "retriever", "db_write", "orphans" };
+	/**
+	 * Upper limits of the histogram buckets in microseconds, the last bucket has no limit
+	 */
+	private static final long[] BUCKET_LIMITS = { 100, 1000, 10000, 100000, 1000000 };
+	/**
+	 * Wall clock time of the scan start in ms
+	 */
+	private long mStartTime;
+	/**
+	 * Uptime of the scan start, used to get the duration of a running scan
+	 */
+	private long mStartUptime;
+	/**
+	 * Duration of the scan in ms, -1 while it is running
+	 */
+	private long mDuration;
+	/**
+	 * Number of files seen by the scan
+	 */
+	private int mFilesSeen;
+	/**
+	 * Number of files whose tags were read
+	 */
+	private int mFilesInspected;
+	/**
+	 * Number of files which caused a database change
+	 */
+	private int mFilesChanged;
+	/**
+	 * Number of bytes read from inspected files
+	 */
+	private long mBytesRead;
+	/**
+	 * Total time spent in each phase, in ns
+	 */
+	private final long[] mPhaseNanos = new long[PHASE_COUNT];
+	/**
+	 * Number of calls of each phase
+	 */
+	private final int[] mPhaseCalls = new int[PHASE_COUNT];
+	/**
+	 * Histograms of the call durations of each phase
+	 */
+	private final int[][] mHistograms = new int[PHASE_COUNT][BUCKET_LIMITS.length + 1];
+	/**
+	 * Number of inspected files per format
+	 */
+	private final TreeMap<String, Integer> mFormats = new TreeMap<>();
+
+	MediaScanReport() {
+	}
+
+	/**
+	 * Returns a copy of given report
+	 */
+	private MediaScanReport(MediaScanReport other) {
+		synchronized (other) {
+			mStartTime = other.mStartTime;
+			mStartUptime = other.mStartUptime;
+			mDuration = other.mDuration;
+			mFilesSeen = other.mFilesSeen;
+			mFilesInspected = other.mFilesInspected;
+			mFilesChanged = other.mFilesChanged;
+			mBytesRead = other.mBytesRead;
+			System.arraycopy(other.mPhaseNanos, 0, mPhaseNanos, 0, PHASE_COUNT);
+			System.arraycopy(other.mPhaseCalls, 0, mPhaseCalls, 0, PHASE_COUNT);
+			for (int i = 0; i < PHASE_COUNT; i++) {
+				System.arraycopy(other.mHistograms[i], 0, mHistograms[i], 0, mHistograms[i].length);
+			}
+			mFormats.putAll(other.mFormats);
+		}
+	}
+
+	/**
+	 * Returns a snapshot of this report, which does not change anymore
+	 */
+	MediaScanReport copy() {
+		return new MediaScanReport(this);
+	}
+
+	/**
+	 * Drops all figures and marks the start of a new scan
+	 */
+	synchronized void start() {
+		mStartTime = System.currentTimeMillis();
+		mStartUptime = SystemClock.uptimeMillis();
+		mDuration = -1;
+		mFilesSeen = 0;
+		mFilesInspected = 0;
+		mFilesChanged = 0;
+		mBytesRead = 0;
+		for (int i = 0; i < PHASE_COUNT; i++) {
+			mPhaseNanos[i] = 0;
+			mPhaseCalls[i] = 0;
+			for (int j = 0; j < mHistograms[i].length; j++)
+				mHistograms[i][j] = 0;
+		}
+		mFormats.clear();
+	}
+
+	/**
+	 * Marks the end of the scan
+	 */
+	synchronized void finish() {
+		mDuration = SystemClock.uptimeMillis() - mStartUptime;
+	}
+
+	/**
+	 * Records a single call of a phase
+	 *
+	 * @param phase the phase, one of PHASE_*
+	 * @param nanos the duration of the call in ns
+	 */
+	synchronized void addPhase(int phase, long nanos) {
+		mPhaseNanos[phase] += nanos;
+		mPhaseCalls[phase]++;
+
+		long micros = nanos / 1000;
+		int bucket = 0;
+		while (bucket < BUCKET_LIMITS.length && micros >= BUCKET_LIMITS[bucket])
+			bucket++;
+		mHistograms[phase][bucket]++;
+	}
+
+	/**
+	 * Records a file seen by the scan
+	 *
+	 * @param changed true if the file caused a database change
+	 */
+	synchronized void addFile(boolean changed) {
+		mFilesSeen++;
+		if (changed)
+			mFilesChanged++;
+	}
+
+	/**
+	 * Records a file whose tags were read
+	 *
+	 * @param format the format of the file, null if unknown
+	 * @param bytesRead the number of bytes read to get its tags
+	 */
+	synchronized void addInspection(String format, long bytesRead) {
+		if (format == null || format.length() == 0)
+			format = "unknown";
+		Integer count = mFormats.get(format);
+		mFormats.put(format, count == null ? 1 : count + 1);
+		mFilesInspected++;
+		mBytesRead += bytesRead;
+	}
+
+	/**
+	 * Records bytes read outside of tag extraction
+	 *
+	 * @param bytes the number of bytes read
+	 */
+	synchronized void addBytesRead(long bytes) {
+		mBytesRead += bytes;
+	}
+
+	/**
+	 * Returns the number of files seen by the scan
+	 */
+	public synchronized int getFilesSeen() {
+		return mFilesSeen;
+	}
+
+	/**
+	 * Returns the duration of the scan in ms, up to now if it is still running
+	 */
+	public synchronized long getDuration() {
+		return (mDuration < 0 ? SystemClock.uptimeMillis() - mStartUptime : mDuration);
+	}
+
+	/**
+	 * Returns the total time spent in a phase in ms
+	 *
+	 * @param phase the phase, one of PHASE_*
+	 */
+	public synchronized long getPhaseMillis(int phase) {
+		return mPhaseNanos[phase] / 1000000;
+	}
+
+	/**
+	 * Returns the figures of this report as JSON, to be
+	 * compared across devices and builds
+	 */
+	public synchronized String toJson() {
+		try {
+			JSONObject phases = new JSONObject();
+			for (int i = 0; i < PHASE_COUNT; i++) {
+				JSONArray histogram = new JSONArray();
+				for (int count : mHistograms[i])
+					histogram.put(count);
+				phases.put(PHASE_NAMES[i], new JSONObject()
+					.put("calls", mPhaseCalls[i])
+					.put("nanos", mPhaseNanos[i])
+					.put("histogram", histogram));
+			}
+
+			JSONArray limits = new JSONArray();
+			for (long limit : BUCKET_LIMITS)
+				limits.put(limit);
+
+			return new JSONObject()
+				.put("start_time", mStartTime)
+				.put("duration_ms", getDuration())
+				.put("files_seen", mFilesSeen)
+				.put("files_inspected", mFilesInspected)
+				.put("files_changed", mFilesChanged)
+				.put("bytes_read", mBytesRead)
+				.put("bucket_limits_us", limits)
+				.put("phases", phases)
+				.put("formats", new JSONObject(mFormats))
+				.toString();
+		} catch (JSONException e) {
+			// only thrown for non-finite numbers, which we do not have
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Parses a report returned by toJson()
+	 *
+	 * @param json the JSON representation of the report
+	 * @return the report, null if json could not be parsed
+	 */
+	static MediaScanReport fromJson(String json) {
+		MediaScanReport report = new MediaScanReport();
+		try {
+			JSONObject root = new JSONObject(json);
+			report.mStartTime = root.getLong("start_time");
+			report.mDuration = root.getLong("duration_ms");
+			report.mFilesSeen = root.getInt("files_seen");
+			report.mFilesInspected = root.getInt("files_inspected");
+			report.mFilesChanged = root.getInt("files_changed");
+			report.mBytesRead = root.getLong("bytes_read");
+
+			JSONObject phases = root.getJSONObject("phases");
+			for (int i = 0; i < PHASE_COUNT; i++) {
+				JSONObject phase = phases.optJSONObject(PHASE_NAMES[i]);
+				if (phase == null)
+					continue; // written by a version which did not know this phase
+				report.mPhaseCalls[i] = phase.getInt("calls");
+				report.mPhaseNanos[i] = phase.getLong("nanos");
+				JSONArray histogram = phase.getJSONArray("histogram");
+				for (int j = 0; j < histogram.length() && j < report.mHistograms[i].length; j++)
+					report.mHistograms[i][j] = histogram.getInt(j);
+			}
+
+			JSONObject formats = root.getJSONObject("formats");
+			Iterator<String> keys = formats.keys();
+			while (keys.hasNext()) {
+				String key = keys.next();
+				report.mFormats.put(key, formats.getInt(key));
+			}
+		} catch (JSONException e) {
+			return null;
+		}
+		return report;
+	}
+
+	/**
+	 * Returns a human readable summary of this report
+	 */
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.US, "%.1fs, %d files seen, %d inspected, %d changed, %.1f MiB read\n",
+		                        getDuration() / 1000f, mFilesSeen, mFilesInspected, mFilesChanged, mBytesRead / 1048576f));
+		for (int i = 0; i < PHASE_COUNT; i++) {
+			if (mPhaseCalls[i] == 0)
+				continue;
+			sb.append(String.format(Locale.US, "%s: %d ms in %d calls, max %s\n", PHASE_NAMES[i],
+			                        mPhaseNanos[i] / 1000000, mPhaseCalls[i], describeSlowestBucket(i)));
+		}
+		String separator = "";
+		for (Map.Entry<String, Integer> entry : mFormats.entrySet()) {
+			sb.append(separator).append(entry.getKey()).append(": ").append(entry.getValue());
+			separator = ", ";
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns a description of the slowest non-empty histogram bucket of a phase
+	 */
+	private String describeSlowestBucket(int phase) {
+		int[] histogram = mHistograms[phase];
+		int bucket = histogram.length - 1;
+		while (bucket > 0 && histogram[bucket] == 0)
+			bucket--;
+		if (bucket == BUCKET_LIMITS.length)
+			return ">"+formatMicros(BUCKET_LIMITS[bucket - 1]);
+		return "<"+formatMicros(BUCKET_LIMITS[bucket]);
+	}
+
+	private static String formatMicros(long micros) {
+		return (micros < 1000 ? micros+"µs" : micros < 1000000 ? (micros / 1000)+"ms" : (micros / 1000000)+"s");
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2017 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.medialibrary;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.SystemClock;
+
+/**
+ * Decides how fast the media scanner may run
+ *
+ * The scanner hands out files in batches: smaller batches and a pause
+ * between them leave more IO to the decoder, which stutters on slow
+ * devices if it has to wait for the disk while its buffer runs dry.
+ * The playback state is checked for every batch, the battery state
+ * is re-read every BATTERY_UPDATE_INTERVAL milliseconds.
+ *
+ * There is no thermal status before API 29, so the battery temperature
+ * is used to detect devices which are getting hot.
+ */
+class MediaScanThrottle {
+	/**
+	 * Milliseconds after which we read the battery state again
+	 */
+	private static final long BATTERY_UPDATE_INTERVAL = 5000;
+	/**
+	 * The decoder is about to starve if it has less than this many ms buffered ahead
+	 */
+	private static final int LOW_BUFFER_MS = 2000;
+	/**
+	 * Battery level in percent below which we slow down if not charging
+	 */
+	private static final int LOW_BATTERY_PERCENT = 15;
+	/**
+	 * Battery temperature in tenths of a degree celsius above which we slow down
+	 */
+	private static final int HOT_BATTERY_TEMPERATURE = 420;
+	/**
+	 * The context used to read the battery state
+	 */
+	private final Context mContext;
+	/**
+	 * Batch size to use if nothing holds us back
+	 */
+	private final int mMaxBatchSize;
+	/**
+	 * Uptime of the last battery update, -1 if we never read it
+	 */
+	private long mLastBatteryUpdate = -1;
+	/**
+	 * True if the device is plugged in
+	 */
+	private boolean mCharging;
+	/**
+	 * True if the battery is low and not charging
+	 */
+	private boolean mBatteryLow;
+	/**
+	 * True if the battery is too hot
+	 */
+	private boolean mHot;
+	/**
+	 * True if music was playing during the last update
+	 */
+	private boolean mPlaying;
+	/**
+	 * The current batch size
+	 */
+	private int mBatchSize;
+	/**
+	 * The current delay between two batches in milliseconds
+	 */
+	private long mDelay;
+
+	/**
+	 * @param context the context to use
+	 * @param maxBatchSize the batch size to use if nothing holds us back
+	 */
+	MediaScanThrottle(Context context, int maxBatchSize) {
+		mContext = context.getApplicationContext();
+		mMaxBatchSize = maxBatchSize;
+		mBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * Re-reads all inputs and adapts the batch size and delay
+	 */
+	void update() {
+		long now = SystemClock.uptimeMillis();
+		if (mLastBatteryUpdate < 0 || now - mLastBatteryUpdate >= BATTERY_UPDATE_INTERVAL) {
+			mLastBatteryUpdate = now;
+			readBatteryState();
+		}
+
+		MediaLibrary.PlaybackMonitor monitor = MediaLibrary.getPlaybackMonitor();
+		mPlaying = (monitor != null && monitor.isPlaying());
+		int bufferedAhead = (mPlaying ? monitor.getBufferedAheadMs() : -1);
+
+		int batchSize = mMaxBatchSize;
+		long delay = 0;
+		if (mPlaying) {
+			if (bufferedAhead >= 0 && bufferedAhead < LOW_BUFFER_MS) {
+				// the decoder is falling behind: give it the disk
+				batchSize = mMaxBatchSize / 8;
+				delay = 500;
+			} else {
+				batchSize = mMaxBatchSize / 4;
+				delay = 100;
+			}
+		}
+		if (mHot) {
+			batchSize = Math.min(batchSize, mMaxBatchSize / 4);
+			delay = Math.max(delay, 1000);
+		} else if (mBatteryLow) {
+			delay = Math.max(delay, 250);
+		}
+
+		mBatchSize = Math.max(1, batchSize);
+		mDelay = delay;
+	}
+
+	/**
+	 * Returns the number of files the scanner may inspect at once
+	 */
+	int getBatchSize() {
+		return mBatchSize;
+	}
+
+	/**
+	 * Returns the number of milliseconds to wait between two batches
+	 */
+	long getDelay() {
+		return mDelay;
+	}
+
+	/**
+	 * Returns true if heavy scans should wait for the device to be
+	 * plugged in or idle, as of the last update
+	 */
+	boolean shouldDeferHeavyScan() {
+		return !mCharging && (mPlaying || mBatteryLow || mHot);
+	}
+
+	/**
+	 * Reads the charging state, level and temperature of the battery
+	 */
+	private void readBatteryState() {
+		// this is a sticky broadcast: no receiver needed to get the last state
+		Intent battery = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+		if (battery == null)
+			return;
+
+		int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+		int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+		int temperature = battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0);
+		mCharging = (battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0);
+		mBatteryLow = (!mCharging && level >= 0 && scale > 0 && level * 100 / scale < LOW_BATTERY_PERCENT);
+		mHot = (temperature >= HOT_BATTERY_TEMPERATURE);
+	}
+}
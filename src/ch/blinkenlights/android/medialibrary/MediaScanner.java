@@ -18,6 +18,7 @@
 package ch.blinkenlights.android.medialibrary;
 
 import ch.blinkenlights.android.vanilla.R;
+import ch.blinkenlights.bastp.Bastp;
 
 import android.app.Notification;
 import android.app.NotificationManager;
@@ -27,9 +28,11 @@ import android.content.ContentValues;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.ContentObserver;
+import android.net.Uri;
 import android.util.Log;
 import android.provider.MediaStore;
 import android.os.Handler;
+import android.os.Environment;
 import android.os.HandlerThread;
 import android.os.Message;
 import android.os.PowerManager;
@@ -37,18 +40,109 @@ import android.os.Process;
 import android.os.SystemClock;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.regex.Pattern;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
 
-public class MediaScanner implements Handler.Callback {
+public class MediaScanner implements Handler.Callback, MediaScanPipeline.Stages<MediaScanner.Inspection>, MediaFolderWatcher.Listener {
 	/**
 	 * Our scan plan
 	 */
 	private MediaScanPlan mScanPlan;
 	/**
-	 * Our message handler
+	 * Our message handler, which walks directories and cursors
 	 */
 	private Handler mHandler;
+	/**
+	 * Extracts tags and writes them to the database on behalf of the handler
+	 */
+	private MediaScanPipeline<Inspection> mPipeline;
+	/**
+	 * Batches the database writes of the pipeline, only used on its writer thread
+	 */
+	private MediaScanBatch mBatch;
+	/**
+	 * The mtimes and counts of all songs, only loaded while a scan is running
+	 */
+	private volatile MediaSongIndex mSongIndex;
+	/**
+	 * The stored state of all directories, keyed by their id.
+	 * Only loaded while a scan is reading directories.
+	 */
+	private HashMap<Long, long[]> mDirectoryIndex;
+	/**
+	 * The state of all directories read by the running scan
+	 */
+	private final ArrayList<ContentValues> mSeenDirectories = new ArrayList<>();
+	/**
+	 * True if the running scan was aborted, so that it did not see every directory.
+	 * Cleared by RPC_ABORTED once the files dropped by the abort left the pipeline.
+	 */
+	private volatile boolean mScanAborted;
+	/**
+	 * True if the running scan reads all media folders
+	 */
+	private volatile boolean mScanAllFolders;
+	/**
+	 * True if the running scan continues a checkpoint, so that
+	 * it did not see the directories read before it got killed
+	 */
+	private volatile boolean mScanResumed;
+	/**
+	 * True if the scan plan table holds a checkpoint of the running scan
+	 */
+	private volatile boolean mHasCheckpoint;
+	/**
+	 * Uptime of the last checkpoint of the running step
+	 */
+	private long mLastCheckpoint;
+	/**
+	 * The mtime mark of the android library which may be stored once
+	 * the pipeline was drained, -1 if the mark did not move
+	 */
+	private volatile int mPendingNativeMtime = -1;
+	/**
+	 * Adapts the pace of the scan to playback and battery
+	 */
+	private MediaScanThrottle mThrottle;
+	/**
+	 * True if a deferred full scan may run now, regardless of the throttle
+	 */
+	private volatile boolean mForceResume;
+	/**
+	 * True if the scan plan table holds a deferred scan, which other scans must not overwrite
+	 */
+	private volatile boolean mDeferredCheckpoint;
+	/**
+	 * Performance figures of the running scan
+	 */
+	private final MediaScanReport mReport = new MediaScanReport();
+	/**
+	 * The report of the last finished scan, null if not loaded yet
+	 */
+	private volatile MediaScanReport mLastReport;
+	/**
+	 * The compiled media and blacklisted folders
+	 */
+	private volatile MediaFolderMatcher mFolderMatcher;
+	/**
+	 * The folders mFolderMatcher was compiled from, guarded by `this'
+	 */
+	private ArrayList<String> mMatcherMediaFolders;
+	private ArrayList<String> mMatcherBlacklistedFolders;
+	/**
+	 * Watches the media folders if enabled in the preferences
+	 */
+	private MediaFolderWatcher mWatcher;
+	/**
+	 * The preferences used to set up mWatcher, null if we are not watching
+	 */
+	private String mWatcherConfig;
 	/**
 	 * The context to use for native library queries
 	 */
@@ -69,11 +163,49 @@ public class MediaScanner implements Handler.Callback {
 	/**
 	 * True if we must do a full cleanup of orphaned entries after the scan finished.
 	 */
-	private boolean mPendingCleanup;
+	private volatile boolean mPendingCleanup;
 	/**
 	 * Timestamp in half-seconds since last notification
 	 */
 	private int mLastNotification;
+	/**
+	 * Number of seconds after which all files of a directory are inspected,
+	 * even if its mtime did not change: not all filesystems update it reliably
+	 */
+	private static final long DIRECTORY_VERIFY_INTERVAL = 7 * 24 * 3600;
+	/**
+	 * Maximal number of directories to watch, the kernel allows 8192 watches per user by default
+	 */
+	private static final int MAX_WATCHED_DIRECTORIES = 4096;
+	/**
+	 * Milliseconds without any filesystem event to wait for before we inspect the changes
+	 */
+	private static final int WATCH_EVENT_DELAY = 2000;
+	/**
+	 * Interval of periodic scans in milliseconds, used if we failed to watch all directories
+	 */
+	private static final int WATCH_FALLBACK_INTERVAL = 30 * 60 * 1000;
+	/**
+	 * Interval of periodic scans in milliseconds while all directories are watched:
+	 * they catch up with events which the kernel dropped once its queue overflowed
+	 */
+	private static final int WATCH_RECOVERY_INTERVAL = 4 * 3600 * 1000;
+	/**
+	 * Number of bytes hashed at the start and the end of a file to get its fingerprint
+	 */
+	private static final int FINGERPRINT_CHUNK = 64 * 1024;
+	/**
+	 * Maximal number of files handed to the pipeline per RPC_DRAIN message
+	 */
+	private static final int DRAIN_BATCH = 64;
+	/**
+	 * Number of rows read at once by sources querying a database
+	 */
+	private static final int SOURCE_PAGE_SIZE = 500;
+	/**
+	 * Milliseconds between two checkpoints of a running scan step
+	 */
+	private static final long CHECKPOINT_INTERVAL = 10000;
 	/**
 	 * The id we are using for the scan notification
 	 */
@@ -82,10 +214,14 @@ public class MediaScanner implements Handler.Callback {
 	MediaScanner(Context context, MediaLibraryBackend backend) {
 		mContext = context;
 		mBackend = backend;
+		mBatch = new MediaScanBatch(backend, mReport);
 		mScanPlan = new MediaScanPlan();
 		HandlerThread handlerThread = new HandlerThread("MediaScannerThread", Process.THREAD_PRIORITY_LOWEST);
 		handlerThread.start();
 		mHandler = new Handler(handlerThread.getLooper(), this);
+		mPipeline = new MediaScanPipeline<>(this);
+		mThrottle = new MediaScanThrottle(context, DRAIN_BATCH);
+		mWatcher = new MediaFolderWatcher(this, MAX_WATCHED_DIRECTORIES);
 		mWakeLock = ((PowerManager)context.getSystemService(Context.POWER_SERVICE)).newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "VanillaMusicIndexerLock");
 
 		// the content observer to use
@@ -96,22 +232,38 @@ public class MediaScanner implements Handler.Callback {
 			}
 		};
 		context.getContentResolver().registerContentObserver(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, false, mObserver);
+		updateFolderMatcher();
+		updateFolderWatcher();
 	}
 
 	/**
 	 * Performs a 'fast' scan by checking the native and our own
-	 * library for new and changed files
+	 * library for new and changed files. The media folders are
+	 * walked as well, but only the files of directories which
+	 * changed since the last scan are inspected.
 	 */
 	public void startNormalScan() {
+		MediaLibrary.Preferences prefs = MediaLibrary.getPreferences(mContext);
+		for (String path : prefs.mediaFolders) {
+			mScanPlan.addNextStep(RPC_WALK_DIR, new File(path));
+		}
 		mScanPlan.addNextStep(RPC_NATIVE_VRFY, null)
 			.addNextStep(RPC_LIBRARY_VRFY, null);
 		mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, RPC_KICKSTART, 0));
 	}
 
 	/**
-	 * Performs a 'slow' scan by inspecting all files on the device
+	 * Performs a 'slow' scan by inspecting all files on the device,
+	 * including the files of directories which seem to be unchanged.
+	 * This replaces the checkpoint of any interrupted scan.
 	 */
 	public void startFullScan() {
+		// the new scan does everything the checkpoint would have done
+		mBackend.delete(MediaLibrary.TABLE_SCAN_PLAN, null, null);
+		MediaScanJobService.cancel(mContext);
+		mHasCheckpoint = false;
+		mDeferredCheckpoint = false;
+
 		MediaLibrary.Preferences prefs = MediaLibrary.getPreferences(mContext);
 		for (String path : prefs.mediaFolders) {
 			mScanPlan.addNextStep(RPC_READ_DIR, new File(path));
@@ -121,6 +273,15 @@ public class MediaScanner implements Handler.Callback {
 		mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, RPC_KICKSTART, 0));
 	}
 
+	/**
+	 * Continues an interrupted full scan which was deferred
+	 * as the device was busy playing or running on a low battery
+	 */
+	public void startDeferredScan() {
+		mForceResume = true;
+		mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, RPC_KICKSTART, 0));
+	}
+
 	/**
 	 * Called by the content observer if a change in the media library
 	 * has been detected
@@ -133,13 +294,101 @@ public class MediaScanner implements Handler.Callback {
 		}
 	}
 
+	/**
+	 * Compiles the media and blacklisted folders of the preferences,
+	 * does nothing if they did not change since the last call
+	 */
+	public synchronized void updateFolderMatcher() {
+		MediaLibrary.Preferences prefs = MediaLibrary.getPreferences(mContext);
+		if (prefs.mediaFolders.equals(mMatcherMediaFolders) && prefs.blacklistedFolders.equals(mMatcherBlacklistedFolders))
+			return;
+
+		mMatcherMediaFolders = new ArrayList<>(prefs.mediaFolders);
+		mMatcherBlacklistedFolders = new ArrayList<>(prefs.blacklistedFolders);
+		mFolderMatcher = new MediaFolderMatcher(mMatcherMediaFolders, mMatcherBlacklistedFolders);
+		updateVolumeLimits(mMatcherMediaFolders);
+	}
+
+	/**
+	 * Tells the pipeline on which volumes the media folders are, so that
+	 * files on SD cards get a lower concurrency limit than internal storage
+	 *
+	 * @param mediaFolders the configured media folders
+	 */
+	private void updateVolumeLimits(ArrayList<String> mediaFolders) {
+		ArrayList<String> roots = new ArrayList<>();
+		for (File file : mContext.getExternalMediaDirs()) {
+			// null if the volume is not mounted
+			if (file == null)
+				continue;
+
+			String path = file.getAbsolutePath();
+			int match = path.indexOf("/Android/media/");
+			if (match >= 0)
+				roots.add(path.substring(0, match));
+		}
+
+		HashMap<String, Boolean> volumes = new HashMap<>();
+		for (String folder : mediaFolders) {
+			// folders outside of all known volumes are treated as a volume of their own
+			String volume = folder;
+			for (String root : roots) {
+				if (folder.equals(root) || folder.startsWith(root+"/"))
+					volume = root;
+			}
+
+			boolean removable = false;
+			try {
+				removable = Environment.isExternalStorageRemovable(new File(volume));
+			} catch (IllegalArgumentException e) {
+				// not a storage volume
+			}
+			volumes.put(volume, removable);
+		}
+		mPipeline.setVolumes(volumes);
+	}
+
+	/**
+	 * Starts or stops watching the media folders, depending on the preferences
+	 */
+	public void updateFolderWatcher() {
+		mHandler.sendEmptyMessage(MSG_UPDATE_WATCHER);
+	}
+
+	/**
+	 * Called by the folder watcher for every event it received,
+	 * the changes are inspected once no event arrived for WATCH_EVENT_DELAY ms
+	 */
+	@Override
+	public void onChange() {
+		mHandler.removeMessages(MSG_WATCH_EVENTS);
+		mHandler.sendEmptyMessageDelayed(MSG_WATCH_EVENTS, WATCH_EVENT_DELAY);
+	}
+
 	/**
 	 * Stops a running scan
 	 */
 	public void abortScan() {
+		// set first: files dropped by the pipeline must not end up behind a checkpoint
+		mScanAborted = true;
 		mHandler.removeMessages(MSG_SCAN_RPC);
+		mPipeline.abort();
 		mScanPlan.clear();
-		mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, RPC_KICKSTART, 0));
+		mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, RPC_ABORTED, 0));
+	}
+
+	/**
+	 * Tells a running scan that the play or skip count of a song was
+	 * incremented in the database, so that re-inserting the song does
+	 * not write back the counts it saw when the scan started.
+	 *
+	 * @param id the song id
+	 * @param played true if the play count was incremented, false for the skip count
+	 */
+	public void updateSongPlayCounts(long id, boolean played) {
+		MediaSongIndex index = mSongIndex;
+		if (index != null)
+			index.incrementCount(id, played);
 	}
 
 	/**
@@ -147,8 +396,17 @@ public class MediaScanner implements Handler.Callback {
 	 */
 	public void flushDatabase() {
 		mBackend.setPendingDeletion();
+		mBackend.delete(MediaLibrary.TABLE_DIRECTORIES, null, null);
+		mBackend.delete(MediaLibrary.TABLE_SCAN_PLAN, null, null);
+		MediaScanJobService.cancel(mContext);
+		mDeferredCheckpoint = false;
+		mPendingNativeMtime = -1;
 		mPendingCleanup = true;
 
+		MediaSongIndex index = mSongIndex;
+		if (index != null)
+			index.reload(mBackend);
+
 		MediaLibrary.Preferences prefs = MediaLibrary.getPreferences(mContext);
 		prefs._nativeLastMtime = 0;
 		MediaLibrary.setPreferences(mContext, prefs);
@@ -169,6 +427,7 @@ public class MediaScanner implements Handler.Callback {
 		progress.seen = stats.seen;
 		progress.changed = stats.changed;
 		progress.total = prefs._nativeLibraryCount;
+		progress.report = (progress.isRunning ? mReport.copy() : getLastReport());
 
 		return progress;
 	}
@@ -177,16 +436,28 @@ public class MediaScanner implements Handler.Callback {
 	private static final int MSG_SCAN_FINISHED    = 1;
 	private static final int MSG_NOTIFY_CHANGE    = 2;
 	private static final int MSG_GUESS_QUICKSCAN  = 3;
+	private static final int MSG_UPDATE_WATCHER   = 4;
+	private static final int MSG_WATCH_EVENTS     = 5;
+	private static final int MSG_PERIODIC_SCAN    = 6;
 	private static final int RPC_KICKSTART        = 100;
 	private static final int RPC_READ_DIR         = 101;
 	private static final int RPC_INSPECT_FILE     = 102;
 	private static final int RPC_LIBRARY_VRFY     = 103;
 	private static final int RPC_NATIVE_VRFY      = 104;
+	private static final int RPC_DRAIN            = 105;
+	private static final int RPC_WALK_DIR         = 106;
+	private static final int RPC_ABORTED          = 107;
 
 	@Override
 	public boolean handleMessage(Message message) {
 		int rpc = (message.what == MSG_SCAN_RPC ? message.arg1 : message.what);
 
+		if (message.what == MSG_SCAN_RPC && mSongIndex == null) {
+			// a new scan starts: read the state of all songs once
+			mReport.start();
+			mSongIndex = new MediaSongIndex(mBackend);
+		}
+
 		switch (rpc) {
 			case MSG_NOTIFY_CHANGE: {
 				MediaLibrary.notifyObserver();
@@ -199,8 +470,19 @@ public class MediaScanner implements Handler.Callback {
 				}
 				if (mPendingCleanup) {
 					mPendingCleanup = false;
+					long startTime = System.nanoTime();
 					mBackend.cleanOrphanedEntries(true);
+					mReport.addPhase(MediaScanReport.PHASE_ORPHANS, System.nanoTime() - startTime);
 				}
+				finishReport();
+				// all files were written: the index will be re-read by the next scan
+				mSongIndex = null;
+				if (mHasCheckpoint && !mScanAborted) {
+					// an aborted scan keeps its checkpoint and resumes with the next scan
+					mBackend.delete(MediaLibrary.TABLE_SCAN_PLAN, null, null);
+				}
+				mHasCheckpoint = false;
+				finishDirectoryScan();
 				// make sure to notify about changes which cleanOrphanedEntries
 				// might have caused
 				mHandler.sendEmptyMessage(MSG_NOTIFY_CHANGE);
@@ -211,33 +493,54 @@ public class MediaScanner implements Handler.Callback {
 				guessQuickScanPlan();
 				break;
 			}
+			case MSG_UPDATE_WATCHER: {
+				setupFolderWatcher();
+				break;
+			}
+			case MSG_WATCH_EVENTS: {
+				inspectWatchedChanges();
+				break;
+			}
+			case MSG_PERIODIC_SCAN: {
+				startNormalScan();
+				mHandler.sendEmptyMessageDelayed(MSG_PERIODIC_SCAN, mWatcher.isWatching() ? WATCH_RECOVERY_INTERVAL : WATCH_FALLBACK_INTERVAL);
+				break;
+			}
 			case RPC_KICKSTART: {
 				// a new scan was triggered: check if this is a 'initial / from scratch' scan
 				if (!mIsInitialScan && MediaLibrary.getPreferences(mContext)._nativeLastMtime == 0) {
 					mIsInitialScan = true;
 				}
+				if (!mScanAborted && !mScanPlan.isRunning()) {
+					resumeScan();
+				}
 				break;
 			}
-			case RPC_INSPECT_FILE: {
-				final File file = (File)message.obj;
-				boolean changed = rpcInspectFile(file);
-				mScanPlan.registerProgress(file.toString(), changed);
-				if (changed && !mHandler.hasMessages(MSG_NOTIFY_CHANGE)) {
-					mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_NOTIFY_CHANGE), 500);
-				}
-				updateNotification(true);
+			case RPC_ABORTED: {
+				// the files dropped by abortScan() must be gone before the next step starts
+				mPipeline.drain();
+				finishAbortedScan();
 				break;
 			}
-			case RPC_READ_DIR: {
-				rpcReadDirectory((File)message.obj);
+			case RPC_INSPECT_FILE: {
+				inspectFile((File)message.obj);
 				break;
 			}
-			case RPC_LIBRARY_VRFY: {
-				rpcLibraryVerify((Cursor)message.obj);
+			case RPC_READ_DIR:
+			case RPC_WALK_DIR: {
+				// if the scan walks all media folders, directories it did not see are gone
+				if (isMediaFolder((File)message.obj))
+					mScanAllFolders = true;
+				startSource(createSource(rpc, message.obj, null));
 				break;
 			}
+			case RPC_LIBRARY_VRFY:
 			case RPC_NATIVE_VRFY: {
-				rpcNativeVerify((Cursor)message.obj, message.arg2);
+				startSource(createSource(rpc, message.obj, null));
+				break;
+			}
+			case RPC_DRAIN: {
+				rpcDrainSource();
 				break;
 			}
 			default: {
@@ -245,216 +548,1224 @@ public class MediaScanner implements Handler.Callback {
 			}
 		}
 
-		if (message.what == MSG_SCAN_RPC && !mHandler.hasMessages(MSG_SCAN_RPC)) {
-			MediaScanPlan.Step step = mScanPlan.getNextStep();
-			if (step == null) {
-				mHandler.sendEmptyMessage(MSG_SCAN_FINISHED);
+		if (message.what == MSG_SCAN_RPC && !mHandler.hasMessages(MSG_SCAN_RPC)) {
+			// the next step may depend on the changes done by this one
+			mPipeline.drain();
+			MediaScanPlan.Step step = mScanPlan.getNextStep();
+			if (step == null) {
+				mHandler.sendEmptyMessage(MSG_SCAN_FINISHED);
+			} else {
+				Log.v("VanillaMusic", "xxx --- starting scan of type "+step.msg);
+				mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, step.msg, 0, step.arg));
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Starts watching the media folders if enabled, stops watching otherwise.
+	 * Falls back to periodic scans if there are too many directories to watch.
+	 * While watching, periodic scans still run now and then, as events lost
+	 * by the kernel are never reported to us.
+	 */
+	private void setupFolderWatcher() {
+		MediaLibrary.Preferences prefs = MediaLibrary.getPreferences(mContext);
+		String config = (prefs.watchFolders ? prefs.mediaFolders+"\n"+prefs.blacklistedFolders : null);
+		if (config == null ? mWatcherConfig == null : config.equals(mWatcherConfig))
+			return; // nothing changed
+
+		mWatcherConfig = config;
+		mWatcher.stop();
+		mHandler.removeMessages(MSG_WATCH_EVENTS);
+		mHandler.removeMessages(MSG_PERIODIC_SCAN);
+
+		if (config == null)
+			return;
+
+		if (mWatcher.start(prefs.mediaFolders, mFolderMatcher)) {
+			mHandler.sendEmptyMessageDelayed(MSG_PERIODIC_SCAN, WATCH_RECOVERY_INTERVAL);
+		} else {
+			Log.w("VanillaMusic", "Too many directories to watch, falling back to periodic scans");
+			mHandler.sendEmptyMessageDelayed(MSG_PERIODIC_SCAN, WATCH_FALLBACK_INTERVAL);
+		}
+	}
+
+	/**
+	 * Inspects all files reported by the folder watcher
+	 */
+	private void inspectWatchedChanges() {
+		MediaFolderWatcher.Changes changes = mWatcher.takeChanges();
+		if (changes == null)
+			return;
+
+		for (File dir : changes.directories) {
+			// watch the new directory before reading it, so that we do not miss any file
+			if (!mWatcher.watchTree(dir)) {
+				Log.w("VanillaMusic", "Too many directories to watch, falling back to periodic scans");
+				mHandler.removeMessages(MSG_PERIODIC_SCAN);
+				mHandler.sendEmptyMessageDelayed(MSG_PERIODIC_SCAN, WATCH_FALLBACK_INTERVAL);
+				changes.mustVerify = true;
+				break;
+			}
+			mScanPlan.addNextStep(RPC_READ_DIR, dir);
+		}
+
+		// new files first: a moved file is only detected while its old entry still exists
+		for (File file : changes.files) {
+			if (file.exists())
+				mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, RPC_INSPECT_FILE, 0, file));
+		}
+		for (File file : changes.files) {
+			if (!file.exists())
+				mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, RPC_INSPECT_FILE, 0, file));
+		}
+
+		if (changes.mustVerify) {
+			// files were lost without telling us which: check all songs we know about
+			mScanPlan.addNextStep(RPC_LIBRARY_VRFY, null);
+		}
+		mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, RPC_KICKSTART, 0));
+	}
+
+	/**
+	 * Triggers an update to the scan progress notification
+	 *
+	 * @param visible if true, the notification is visible (and will get updated)
+	 */
+	private void updateNotification(boolean visible) {
+		NotificationManager manager = (NotificationManager) mContext.getSystemService(mContext.NOTIFICATION_SERVICE);
+
+		if (visible) {
+			int nowTime = (int)(SystemClock.uptimeMillis() / 500);
+			if (nowTime != mLastNotification) {
+				mLastNotification = nowTime;
+				// only build the progress (which copies the report) if we are going to show it
+				MediaLibrary.ScanProgress progress = describeScanProgress();
+				int icon = R.drawable.status_scan_0 + (mLastNotification % 5);
+				String title = mContext.getResources().getString(R.string.media_library_scan_running);
+				String content = progress.lastFile;
+
+				Notification notification = new Notification.Builder(mContext)
+					.setProgress(progress.total, progress.seen, false)
+					.setContentTitle(title)
+					.setContentText(content)
+					.setSmallIcon(icon)
+					.setOngoing(true)
+					.getNotification(); // build() is API 16 :-/
+				manager.notify(NOTIFICATION_ID, notification);
+			}
+
+			if (!mWakeLock.isHeld())
+				mWakeLock.acquire();
+		} else {
+			manager.cancel(NOTIFICATION_ID);
+
+			if (mWakeLock.isHeld())
+				mWakeLock.release();
+		}
+	}
+
+	/**
+	 * Checks the state of the native media db to deceide if we are going to
+	 * check for deleted or new/modified items
+	 */
+	private void guessQuickScanPlan() {
+		int lastSeenDbSize = MediaLibrary.getPreferences(mContext)._nativeLibraryCount;
+		String selection = MediaStore.Audio.Media.IS_MUSIC + "!= 0";
+		String[] projection = { "COUNT(*)" };
+		Cursor cursor = null;
+		try {
+			cursor = mContext.getContentResolver().query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, projection, selection, null, null);
+		} catch (SecurityException e) {
+			Log.e("VanillaMusic", "rpcObserveRemoval query failed: "+e);
+		}
+
+		if (cursor == null)
+			return;
+
+		cursor.moveToFirst();
+		int currentDbSize = cursor.getInt(0);
+		cursor.close();
+
+		// Store new db size
+		MediaLibrary.Preferences prefs = MediaLibrary.getPreferences(mContext);
+		prefs._nativeLibraryCount = currentDbSize;
+		MediaLibrary.setPreferences(mContext, prefs);
+
+		if (currentDbSize < lastSeenDbSize) {
+			// db is smaller! check for deleted files
+			mScanPlan.addNextStep(RPC_LIBRARY_VRFY, null);
+		} else {
+			// same size or more entries -> check only for modifications
+			mScanPlan.addNextStep(RPC_NATIVE_VRFY, null);
+		}
+
+		mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, RPC_KICKSTART, 0));
+	}
+
+	/**
+	 * Hands out a batch of files of the current step to the pipeline
+	 * and re-posts itself until the source of the step is exhausted.
+	 * The batch size and the delay between two batches are set by the throttle.
+	 */
+	private void rpcDrainSource() {
+		mThrottle.update();
+		int batchSize = mThrottle.getBatchSize();
+		for (int i = 0; i < batchSize; i++) {
+			File file = mScanPlan.nextFile();
+			if (file == null) {
+				commitNativeMtime();
+				return;
+			}
+			inspectFile(file);
+		}
+		commitNativeMtime();
+		if (SystemClock.uptimeMillis() - mLastCheckpoint >= CHECKPOINT_INTERVAL) {
+			// the checkpoint must not skip files which did not reach the database yet
+			mPipeline.drain();
+			saveCheckpoint();
+		}
+		mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_SCAN_RPC, RPC_DRAIN, 0), mThrottle.getDelay());
+	}
+
+	/**
+	 * Stores the pending mtime mark of the android library, so that the
+	 * next native scan does not return the same files again.
+	 * Waits for all files returned so far to reach the database first.
+	 */
+	private void commitNativeMtime() {
+		int mtime = mPendingNativeMtime;
+		if (mtime < 0)
+			return;
+
+		mPipeline.drain();
+		mPendingNativeMtime = -1;
+		if (mScanAborted)
+			return; // abortScan() may have dropped files below the mark
+
+		MediaLibrary.Preferences prefs = MediaLibrary.getPreferences(mContext);
+		if (mtime > prefs._nativeLastMtime) {
+			prefs._nativeLastMtime = mtime;
+			MediaLibrary.setPreferences(mContext, prefs);
+			Log.v("VanillaMusic", "NativeLibraryScanner: mtime mark is now at "+mtime);
+		}
+	}
+
+	/**
+	 * Moves the pending mtime mark of the android library forward
+	 *
+	 * @param mtime the new mark, all files up to this mtime were returned
+	 */
+	private void advanceNativeMtime(int mtime) {
+		if (!mScanAborted && mtime > mPendingNativeMtime)
+			mPendingNativeMtime = mtime;
+	}
+
+	/**
+	 * Makes the source the current source of the scan plan and starts draining it
+	 *
+	 * @param source the source to use
+	 */
+	private void startSource(ScanSource source) {
+		mScanPlan.setSource(source);
+		if (mHasCheckpoint) {
+			// the previous step is done: the pipeline was drained before this step started
+			saveCheckpoint();
+		}
+		mLastCheckpoint = SystemClock.uptimeMillis();
+		mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, RPC_DRAIN, 0));
+	}
+
+	/**
+	 * Returns a new source for a scan step
+	 *
+	 * @param rpc the rpc of the step
+	 * @param arg the argument of the step
+	 * @param position the position to continue at, as returned by ScanSource.getPosition(), null to start from scratch
+	 * @return the new source
+	 */
+	private ScanSource createSource(int rpc, Object arg, String position) {
+		switch (rpc) {
+			case RPC_READ_DIR:
+				return new DirectorySource((File)arg, position, true);
+			case RPC_WALK_DIR:
+				return new DirectorySource((File)arg, position, false);
+			case RPC_LIBRARY_VRFY:
+				return new LibrarySource(position);
+			case RPC_NATIVE_VRFY:
+				return new NativeSource(position);
+			default:
+				throw new IllegalArgumentException();
+		}
+	}
+
+	/**
+	 * Stores the remaining work of the scan plan, so that a scan which
+	 * gets killed or aborted can continue from here.
+	 * All files returned by the current source so far must have been
+	 * written to the database.
+	 */
+	private void saveCheckpoint() {
+		mLastCheckpoint = SystemClock.uptimeMillis();
+		if (mScanAborted)
+			return; // abortScan() may have dropped files of the running step
+		if (mDeferredCheckpoint)
+			return; // the stored scan is more important than this one
+
+		ArrayList<ContentValues> rows = mScanPlan.getCheckpoint();
+		if (rows.size() == 0)
+			return; // the plan was cleared by abortScan()
+
+		mBackend.bulkReplace(MediaLibrary.TABLE_SCAN_PLAN, rows, true);
+		mHasCheckpoint = true;
+	}
+
+	/**
+	 * Continues the scan of a stored checkpoint, its steps
+	 * run before all steps which are already planned.
+	 * Full scans are deferred to a JobScheduler job if the
+	 * device is busy and not charging.
+	 */
+	private void resumeScan() {
+		final String[] projection = { MediaLibrary.ScanPlanColumns.RPC, MediaLibrary.ScanPlanColumns.MODE,
+		                              MediaLibrary.ScanPlanColumns.ARG, MediaLibrary.ScanPlanColumns.POSITION,
+		                              MediaLibrary.ScanPlanColumns.SEEN, MediaLibrary.ScanPlanColumns.CHANGED };
+		Cursor cursor = mBackend.query(false, MediaLibrary.TABLE_SCAN_PLAN, projection, null, null, null, null,
+		                               MediaLibrary.ScanPlanColumns._ID, null);
+		boolean isFullScan = false;
+		boolean readsMediaFolders = false;
+		while (cursor.moveToNext()) {
+			int rpc = cursor.getInt(0);
+			if (rpc == RPC_READ_DIR || rpc == RPC_WALK_DIR) {
+				// only full scans inspect every file of a directory
+				isFullScan |= (rpc == RPC_READ_DIR);
+				// the folder watcher only reads directories below the media folders
+				readsMediaFolders |= isMediaFolder(new File(cursor.getString(2)));
+			}
+		}
+		cursor.moveToPosition(-1);
+
+		mThrottle.update();
+		if (isFullScan && !mForceResume && mThrottle.shouldDeferHeavyScan()) {
+			Log.v("VanillaMusic", "Deferring interrupted full scan until the device is charging or idle");
+			MediaScanJobService.schedule(mContext);
+			mDeferredCheckpoint = true;
+		} else if (cursor.getCount() != 0) {
+			Log.v("VanillaMusic", "Resuming interrupted scan with "+cursor.getCount()+" steps left");
+			if (isFullScan)
+				MediaScanJobService.cancel(mContext);
+			mForceResume = false;
+			mDeferredCheckpoint = false;
+			mHasCheckpoint = true;
+			mScanResumed = true;
+			if (readsMediaFolders)
+				mScanAllFolders = true;
+			if (mScanPlan.restore(cursor)) {
+				mLastCheckpoint = SystemClock.uptimeMillis();
+				mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, RPC_DRAIN, 0));
+			}
+		}
+		cursor.close();
+	}
+
+	/**
+	 * Returns true if given directory is one of the configured media folders
+	 *
+	 * @param dir the directory to check
+	 */
+	private boolean isMediaFolder(File dir) {
+		for (String path : MediaLibrary.getPreferences(mContext).mediaFolders) {
+			// the same normalization as done by the steps of startFullScan() and startNormalScan()
+			if (new File(path).getPath().equals(dir.getPath()))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Forgets the state of an aborted scan once the pipeline dropped its files,
+	 * so that steps planned from now on run as a new scan.
+	 * The stored checkpoint of the aborted scan is resumed by the next scan.
+	 */
+	private void finishAbortedScan() {
+		mSeenDirectories.clear();
+		mDirectoryIndex = null;
+		mScanAllFolders = false;
+		mScanResumed = false;
+		mHasCheckpoint = false;
+		mPendingNativeMtime = -1;
+		mScanAborted = false;
+	}
+
+	/**
+	 * Passes a file to the pipeline if it must be inspected
+	 *
+	 * @param file the file to check
+	 */
+	private void inspectFile(File file) {
+		if (mustInspectFile(file)) {
+			// the pipeline will call registerProgress() once the file was written
+			mPipeline.submit(file);
+		} else {
+			registerProgress(file, false);
+		}
+	}
+
+	/**
+	 * Returns the files of the android library which changed since the last
+	 * scan. The library is queried in pages of SOURCE_PAGE_SIZE files,
+	 * ordered by their mtime and id, so that no cursor stays open.
+	 * The stored mtime mark advances after each page, so that an interrupted
+	 * scan only returns the files of the last page again.
+	 */
+	private class NativeSource implements ScanSource {
+		/**
+		 * Files of the current page
+		 */
+		private final ArrayDeque<File> mFiles = new ArrayDeque<>();
+		/**
+		 * The mtime and id of the last returned row, we start
+		 * with all files newer than the stored mtime mark
+		 */
+		private int mLastMtime;
+		private long mLastId = Long.MAX_VALUE;
+		/**
+		 * The mtime and id of the last row before the current page
+		 */
+		private int mPageMtime;
+		private long mPageId;
+		/**
+		 * True if the last page was read
+		 */
+		private boolean mExhausted;
+		/**
+		 * True if a page was read by this source
+		 */
+		private boolean mHasPage;
+
+		/**
+		 * @param position the position to continue at, null to start at the stored mtime mark
+		 */
+		NativeSource(String position) {
+			if (position == null) {
+				mLastMtime = MediaLibrary.getPreferences(mContext)._nativeLastMtime;
+			} else {
+				String[] mark = position.split("/");
+				mLastMtime = Integer.parseInt(mark[0]);
+				mLastId = Long.parseLong(mark[1]);
+			}
+			mPageMtime = mLastMtime;
+			mPageId = mLastId;
+		}
+
+		@Override
+		public File next() {
+			if (mFiles.isEmpty() && !mExhausted)
+				readPage();
+			return mFiles.poll();
+		}
+
+		@Override
+		public void close() {
+			if (mExhausted && mFiles.isEmpty()) {
+				// rpcDrainSource() stores the mark once the last page was written
+				advanceNativeMtime(mLastMtime);
+			}
+		}
+
+		@Override
+		public String getPosition() {
+			return mPageMtime+"/"+mPageId;
+		}
+
+		private void readPage() {
+			if (mHasPage) {
+				// all files of the previous page were returned, but more files may
+				// share the mtime of its last row: they must be returned again
+				advanceNativeMtime(mLastMtime - 1);
+			}
+			mHasPage = true;
+			mPageMtime = mLastMtime;
+			mPageId = mLastId;
+			String selection = MediaStore.Audio.Media.IS_MUSIC+"!= 0 AND ("+MediaStore.MediaColumns.DATE_MODIFIED+" > "+mLastMtime
+			                 + " OR ("+MediaStore.MediaColumns.DATE_MODIFIED+" = "+mLastMtime+" AND "+MediaStore.MediaColumns._ID+" > "+mLastId+"))";
+			String sort = MediaStore.MediaColumns.DATE_MODIFIED+", "+MediaStore.MediaColumns._ID;
+			String[] projection = { MediaStore.MediaColumns.DATA, MediaStore.MediaColumns.DATE_MODIFIED, MediaStore.MediaColumns._ID };
+			Uri uri = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI.buildUpon()
+				.appendQueryParameter("limit", Integer.toString(SOURCE_PAGE_SIZE)).build();
+
+			Cursor cursor = null;
+			try {
+				cursor = mContext.getContentResolver().query(uri, projection, selection, null, sort);
+			} catch(SecurityException e) {
+				Log.e("VanillaMusic", "rpcNativeVerify failed: "+e);
+			}
+
+			if (cursor == null) {
+				// do not move the mtime mark: we did not see everything
+				mExhausted = true;
+				mFiles.clear();
+				mLastMtime = MediaLibrary.getPreferences(mContext)._nativeLastMtime;
+				return;
+			}
+
+			int rows = 0;
+			while (cursor.moveToNext()) {
+				rows++;
+				String path = cursor.getString(0);
+				mLastMtime = cursor.getInt(1);
+				mLastId = cursor.getLong(2);
+				if (path != null) // this seems to be a thing...
+					mFiles.add(new File(path));
+			}
+			cursor.close();
+			// the provider may ignore the limit, returning everything at once
+			mExhausted = (rows < SOURCE_PAGE_SIZE);
+		}
+	}
+
+	/**
+	 * Returns every file in our own library, which is read in pages
+	 * of SOURCE_PAGE_SIZE songs, ordered by their id
+	 */
+	private class LibrarySource implements ScanSource {
+		/**
+		 * Files of the current page
+		 */
+		private final ArrayDeque<File> mFiles = new ArrayDeque<>();
+		/**
+		 * The id of the last returned song
+		 */
+		private long mLastId = -1;
+		/**
+		 * The id of the last song before the current page
+		 */
+		private long mPageId;
+		/**
+		 * True if the last page was read
+		 */
+		private boolean mExhausted;
+
+		/**
+		 * @param position the position to continue at, null to start with the first song
+		 */
+		LibrarySource(String position) {
+			if (position != null)
+				mLastId = Long.parseLong(position);
+			mPageId = mLastId;
+		}
+
+		@Override
+		public File next() {
+			if (mFiles.isEmpty() && !mExhausted) {
+				mPageId = mLastId;
+				final String[] projection = { MediaLibrary.SongColumns._ID, MediaLibrary.SongColumns.PATH };
+				final String selection = MediaLibrary.SongColumns._ID+" > "+mLastId;
+				Cursor cursor = mBackend.query(false, MediaLibrary.TABLE_SONGS, projection, selection, null, null, null,
+				                               MediaLibrary.SongColumns._ID, Integer.toString(SOURCE_PAGE_SIZE));
+				while (cursor.moveToNext()) {
+					mLastId = cursor.getLong(0);
+					mFiles.add(new File(cursor.getString(1)));
+				}
+				mExhausted = (cursor.getCount() < SOURCE_PAGE_SIZE);
+				cursor.close();
+			}
+			return mFiles.poll();
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public String getPosition() {
+			return Long.toString(mPageId);
+		}
+	}
+
+	/**
+	 * Walks a directory tree, returning all files to inspect.
+	 * Only the pending directories and the files of the last read
+	 * directory are kept in memory.
+	 */
+	private class DirectorySource implements ScanSource {
+		/**
+		 * Directories which were found but not read yet
+		 */
+		private final ArrayDeque<File> mDirectories = new ArrayDeque<>();
+		/**
+		 * Files of the last read directory
+		 */
+		private final ArrayDeque<File> mFiles = new ArrayDeque<>();
+		/**
+		 * The last read directory, null if none was read yet
+		 */
+		private File mCurrent;
+		/**
+		 * True if the files of unchanged directories are returned as well
+		 */
+		private final boolean mVerify;
+
+		/**
+		 * @param root the directory to walk
+		 * @param position the position to continue at, null to start at root
+		 * @param verify true to return the files of unchanged directories as well
+		 */
+		DirectorySource(File root, String position, boolean verify) {
+			mVerify = verify;
+			if (position == null) {
+				mDirectories.push(root);
+				return;
+			}
+
+			String[] paths = position.split("\n", -1);
+			for (int i = paths.length - 1; i > 0; i--) {
+				mDirectories.push(new File(paths[i]));
+			}
+			if (paths[0].length() != 0) {
+				// its subdirectories are already on the stack: only take the files
+				mCurrent = new File(paths[0]);
+				readDirectory(mCurrent, mVerify, new ArrayDeque<File>(), mFiles);
+			}
+		}
+
+		@Override
+		public File next() {
+			while (mFiles.isEmpty() && !mDirectories.isEmpty()) {
+				mCurrent = mDirectories.pop();
+				readDirectory(mCurrent, mVerify, mDirectories, mFiles);
+			}
+			return mFiles.poll();
+		}
+
+		@Override
+		public void close() {
+		}
+
+		/**
+		 * Returns the last read directory, followed by all
+		 * pending directories, separated by newlines
+		 */
+		@Override
+		public String getPosition() {
+			StringBuilder sb = new StringBuilder();
+			if (mCurrent != null)
+				sb.append(mCurrent.getPath());
+			for (File dir : mDirectories) {
+				sb.append('\n').append(dir.getPath());
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Lists given directory, adding its subdirectories and its files to the given queues
+	 * and remembering its state, which is stored once the scan finished
+	 *
+	 * @param dir the directory to read
+	 * @param verify true to add the files of dir even if it did not change, see listDirectory()
+	 * @param directories receives the subdirectories of dir
+	 * @param files receives the files of dir to inspect
+	 */
+	private void readDirectory(File dir, boolean verify, ArrayDeque<File> directories, ArrayDeque<File> files) {
+		long startTime = System.nanoTime();
+		if (mFolderMatcher.isPrunable(dir.getPath()))
+			return; // nothing below dir would pass isBlacklisted()
+
+		if (mDirectoryIndex == null)
+			mDirectoryIndex = loadDirectoryIndex();
+
+		String path = dir.getPath();
+		long dirId = MediaLibrary.hash63(path);
+		long now = System.currentTimeMillis() / 1000;
+		long[] state = listDirectory(dir, mDirectoryIndex.get(dirId), now, verify, directories, files);
+		if (state != null) {
+			ContentValues v = new ContentValues();
+			v.put(MediaLibrary.DirectoryColumns._ID,         dirId);
+			v.put(MediaLibrary.DirectoryColumns.PATH,        path);
+			v.put(MediaLibrary.DirectoryColumns.MTIME,       state[0]);
+			v.put(MediaLibrary.DirectoryColumns.CHILD_COUNT, state[1]);
+			v.put(MediaLibrary.DirectoryColumns.VERIFIED,    state[2]);
+			mSeenDirectories.add(v);
+		}
+		mReport.addPhase(MediaScanReport.PHASE_READDIR, System.nanoTime() - startTime);
+	}
+
+	/**
+	 * Lists given directory, adding its subdirectories and its files to the given queues
+	 *
+	 * Files of directories whose mtime and number of entries did not change
+	 * since the last scan are skipped unless the directory is verified:
+	 * adding, removing or renaming a file updates the mtime of its
+	 * directory, modified files are found by the library and native
+	 * verification steps. Subdirectories are always added.
+	 *
+	 * @param dir the directory to read
+	 * @param known the stored state of dir as { mtime, child count, verified }, null if unknown
+	 * @param now the current time in seconds
+	 * @param verify true to add the files of dir even if it did not change, as done by full scans
+	 * @param directories receives the subdirectories of dir
+	 * @param files receives the files of dir to inspect
+	 * @return the new state of dir as { mtime, child count, verified }, null if it must not be read
+	 */
+	static long[] listDirectory(File dir, long[] known, long now, boolean verify, ArrayDeque<File> directories, ArrayDeque<File> files) {
+		if (!dir.isDirectory())
+			return null;
+
+		if (new File(dir, ".nomedia").exists())
+			return null;
+
+		// read the mtime first: a file added while listing leaves a newer
+		// mtime behind, so the next scan does not skip the directory
+		long mtime = dir.lastModified();
+		File[] dirents = dir.listFiles();
+		if (dirents == null)
+			return null;
+
+		boolean unchanged = canSkipFiles(known, mtime, dirents.length, now, verify);
+		for (File file : dirents) {
+			if (!file.isFile()) {
+				directories.push(file);
+			} else if (!unchanged) {
+				files.add(file);
+			}
+		}
+		return new long[]{ mtime, dirents.length, unchanged ? known[2] : now };
+	}
+
+	/**
+	 * Returns true if the files of a directory do not need to be inspected
+	 *
+	 * @param known the stored state of the directory as { mtime, child count, verified }, null if unknown
+	 * @param mtime the current mtime of the directory
+	 * @param childCount the current number of entries of the directory
+	 * @param now the current time in seconds
+	 * @param verify true if every file of the directory must be inspected, as done by full scans
+	 * @return true if the directory did not change since it was last verified
+	 */
+	static boolean canSkipFiles(long[] known, long mtime, int childCount, long now, boolean verify) {
+		if (verify || known == null || mtime == 0)
+			return false;
+		return known[0] == mtime && known[1] == childCount && now - known[2] < DIRECTORY_VERIFY_INTERVAL;
+	}
+
+	/**
+	 * Returns the stored state of all directories
+	 *
+	 * @return map of directory ids to { mtime, child count, verified }
+	 */
+	private HashMap<Long, long[]> loadDirectoryIndex() {
+		final String[] projection = { MediaLibrary.DirectoryColumns._ID, MediaLibrary.DirectoryColumns.MTIME,
+		                              MediaLibrary.DirectoryColumns.CHILD_COUNT, MediaLibrary.DirectoryColumns.VERIFIED };
+		HashMap<Long, long[]> index = new HashMap<>();
+		Cursor cursor = mBackend.query(false, MediaLibrary.TABLE_DIRECTORIES, projection, null, null, null, null, null, null);
+		while (cursor.moveToNext()) {
+			index.put(cursor.getLong(0), new long[]{ cursor.getLong(1), cursor.getLong(2), cursor.getLong(3) });
+		}
+		cursor.close();
+		return index;
+	}
+
+	/**
+	 * Stores the state of all directories read by the finished scan.
+	 * Nothing is stored if the scan was aborted, as files of the
+	 * directories it read may not have been inspected. The directories
+	 * of an aborted scan are dropped by finishAbortedScan().
+	 */
+	private void finishDirectoryScan() {
+		if (mSeenDirectories.size() != 0 && !mScanAborted) {
+			if (mScanResumed) {
+				// directories read before the scan got killed are not in mSeenDirectories
+				mBackend.bulkReplace(MediaLibrary.TABLE_DIRECTORIES, mSeenDirectories, false);
+				if (mScanAllFolders)
+					removeMissingDirectories();
 			} else {
-				Log.v("VanillaMusic", "xxx --- starting scan of type "+step.msg);
-				mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, step.msg, 0, step.arg));
+				// if the scan walked all media folders, directories it did not see are gone
+				mBackend.bulkReplace(MediaLibrary.TABLE_DIRECTORIES, mSeenDirectories, mScanAllFolders);
 			}
 		}
-
-		return true;
+		mSeenDirectories.clear();
+		mDirectoryIndex = null;
+		mScanAllFolders = false;
+		mScanResumed = false;
 	}
 
 	/**
-	 * Triggers an update to the scan progress notification
-	 *
-	 * @param visible if true, the notification is visible (and will get updated)
+	 * Removes the state of directories below the media folders
+	 * which were not seen by the finished scan and no longer exist
 	 */
-	private void updateNotification(boolean visible) {
-		MediaLibrary.ScanProgress progress = describeScanProgress();
-		NotificationManager manager = (NotificationManager) mContext.getSystemService(mContext.NOTIFICATION_SERVICE);
+	private void removeMissingDirectories() {
+		HashSet<Long> seen = new HashSet<>();
+		for (ContentValues v : mSeenDirectories) {
+			seen.add(v.getAsLong(MediaLibrary.DirectoryColumns._ID));
+		}
 
-		if (visible) {
-			int nowTime = (int)(SystemClock.uptimeMillis() / 500);
-			if (nowTime != mLastNotification) {
-				mLastNotification = nowTime;
-				int icon = R.drawable.status_scan_0 + (mLastNotification % 5);
-				String title = mContext.getResources().getString(R.string.media_library_scan_running);
-				String content = progress.lastFile;
+		ArrayList<String> roots = new ArrayList<>();
+		for (String path : MediaLibrary.getPreferences(mContext).mediaFolders) {
+			String root = new File(path).getPath();
+			roots.add(root.endsWith("/") ? root : root + "/");
+		}
 
-				Notification notification = new Notification.Builder(mContext)
-					.setProgress(progress.total, progress.seen, false)
-					.setContentTitle(title)
-					.setContentText(content)
-					.setSmallIcon(icon)
-					.setOngoing(true)
-					.getNotification(); // build() is API 16 :-/
-				manager.notify(NOTIFICATION_ID, notification);
+		final String[] projection = { MediaLibrary.DirectoryColumns._ID, MediaLibrary.DirectoryColumns.PATH };
+		ArrayList<Long> missing = new ArrayList<>();
+		Cursor cursor = mBackend.query(false, MediaLibrary.TABLE_DIRECTORIES, projection, null, null, null, null, null, null);
+		while (cursor.moveToNext()) {
+			long id = cursor.getLong(0);
+			String path = cursor.getString(1);
+			if (seen.contains(id) || new File(path).isDirectory())
+				continue;
+			for (String root : roots) {
+				if ((path + "/").startsWith(root)) {
+					missing.add(id);
+					break;
+				}
 			}
+		}
+		cursor.close();
 
-			if (!mWakeLock.isHeld())
-				mWakeLock.acquire();
-		} else {
-			manager.cancel(NOTIFICATION_ID);
+		for (long id : missing) {
+			mBackend.delete(MediaLibrary.TABLE_DIRECTORIES, MediaLibrary.DirectoryColumns._ID+"=?", new String[] { Long.toString(id) });
+		}
+	}
 
-			if (mWakeLock.isHeld())
-				mWakeLock.release();
+	/**
+	 * Completes the report of the finished scan, stores and logs it
+	 * unless the scan did not see any files
+	 */
+	private void finishReport() {
+		mReport.finish();
+		if (mReport.getFilesSeen() == 0)
+			return;
+
+		MediaScanReport report = mReport.copy();
+		String json = report.toJson();
+		Log.i("VanillaMusic", "Scan report: "+json);
+		Log.v("VanillaMusic", "Bastp totals: "+mPipeline.getStats());
+
+		MediaLibrary.Preferences prefs = MediaLibrary.getPreferences(mContext);
+		prefs._lastScanReport = json;
+		MediaLibrary.setPreferences(mContext, prefs);
+		mLastReport = report;
+	}
+
+	/**
+	 * Returns the report of the last finished scan
+	 *
+	 * @return the report, null if there is none
+	 */
+	private MediaScanReport getLastReport() {
+		MediaScanReport report = mLastReport;
+		if (report == null) {
+			String json = MediaLibrary.getPreferences(mContext)._lastScanReport;
+			if (json != null) {
+				report = MediaScanReport.fromJson(json);
+				mLastReport = report;
+			}
 		}
+		return report;
 	}
 
 	/**
-	 * Checks the state of the native media db to deceide if we are going to
-	 * check for deleted or new/modified items
+	 * Records the progress of the current scan step, may be called from any thread
+	 *
+	 * @param file the file which was handled
+	 * @param changed true if the database was modified
 	 */
-	private void guessQuickScanPlan() {
-		int lastSeenDbSize = MediaLibrary.getPreferences(mContext)._nativeLibraryCount;
-		String selection = MediaStore.Audio.Media.IS_MUSIC + "!= 0";
-		String[] projection = { "COUNT(*)" };
-		Cursor cursor = null;
-		try {
-			cursor = mContext.getContentResolver().query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, projection, selection, null, null);
-		} catch (SecurityException e) {
-			Log.e("VanillaMusic", "rpcObserveRemoval query failed: "+e);
+	private void registerProgress(File file, boolean changed) {
+		mScanPlan.registerProgress(file.toString(), changed);
+		mReport.addFile(changed);
+		if (changed && !mHandler.hasMessages(MSG_NOTIFY_CHANGE)) {
+			mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_NOTIFY_CHANGE), 500);
 		}
+		updateNotification(true);
+	}
 
-		if (cursor == null)
-			return;
+	/**
+	 * Returns true if the file is not blacklisted and changed since we
+	 * last inspected it, or if its song still lacks a fingerprint
+	 *
+	 * @param file the file to check
+	 * @return true if the file must be passed to the pipeline
+	 */
+	private boolean mustInspectFile(File file) {
+		long startTime = System.nanoTime();
+		boolean inspect = false;
+		if (!isBlacklisted(file)) {
+			long songId = MediaLibrary.hash63(file.getAbsolutePath());
+			long dbEntryMtime = mSongIndex.getMtime(songId) * 1000; // this is in unixtime -> convert to 'ms'
+			long fileMtime = file.lastModified();
+
+			// on-disk mtime is older than db mtime and it still exists -> nothing to do
+			inspect = !(fileMtime > 0 && dbEntryMtime >= fileMtime);
+			// songs of upgraded libraries have no fingerprint: the pipeline only computes it
+			inspect |= (dbEntryMtime != 0 && !mSongIndex.hasFingerprint(songId));
+		}
+		mReport.addPhase(MediaScanReport.PHASE_STAT, System.nanoTime() - startTime);
+		return inspect;
+	}
 
-		cursor.moveToFirst();
-		int currentDbSize = cursor.getInt(0);
-		cursor.close();
+	/**
+	 * The result of inspecting a file on an extraction thread
+	 */
+	static class Inspection {
+		/**
+		 * The fingerprint of the file, 0 if it could not be read
+		 */
+		final long fingerprint;
+		/**
+		 * The id of the song this file was moved from, 0 if it was not moved
+		 */
+		final long movedFrom;
+		/**
+		 * The tags of the file, null if it was moved or is unchanged
+		 */
+		final MediaMetadataExtractor tags;
+		/**
+		 * True if the file did not change and only its fingerprint must be stored
+		 */
+		final boolean unchanged;
 
-		// Store new db size
+		Inspection(long fingerprint, long movedFrom, MediaMetadataExtractor tags, boolean unchanged) {
+			this.fingerprint = fingerprint;
+			this.movedFrom = movedFrom;
+			this.tags = tags;
+			this.unchanged = unchanged;
+		}
+	}
+
+	/**
+	 * Reads the tags of a file, called by the pipeline on an extraction thread.
+	 * Files which were moved from a known location or did not change at all
+	 * are not parsed.
+	 *
+	 * @param file the file to inspect
+	 * @param bastp the parser of the calling thread
+	 * @return the inspection result of this file
+	 */
+	@Override
+	public Inspection extract(File file, Bastp bastp) {
 		MediaLibrary.Preferences prefs = MediaLibrary.getPreferences(mContext);
-		prefs._nativeLibraryCount = currentDbSize;
-		MediaLibrary.setPreferences(mContext, prefs);
+		long startTime = System.nanoTime();
+		long fingerprint = getFingerprint(file);
+		if (fingerprint != 0)
+			mReport.addBytesRead(Math.min(file.length(), 2L * FINGERPRINT_CHUNK));
 
-		if (currentDbSize < lastSeenDbSize) {
-			// db is smaller! check for deleted files
-			mScanPlan.addNextStep(RPC_LIBRARY_VRFY, null);
-		} else {
-			// same size or more entries -> check only for modifications
-			mScanPlan.addNextStep(RPC_NATIVE_VRFY, null);
+		long fileMtime = file.lastModified();
+		long dbEntryMtime = mSongIndex.getMtime(MediaLibrary.hash63(file.getAbsolutePath())) * 1000;
+		if (fileMtime > 0 && dbEntryMtime >= fileMtime) {
+			// submitted by mustInspectFile() to fill in the missing fingerprint
+			mReport.addPhase(MediaScanReport.PHASE_FINGERPRINT, System.nanoTime() - startTime);
+			return new Inspection(fingerprint, 0, null, true);
 		}
 
-		mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, RPC_KICKSTART, 0));
+		long movedFrom = findMovedSong(file, fingerprint, prefs.groupAlbumsByFolder);
+		mReport.addPhase(MediaScanReport.PHASE_FINGERPRINT, System.nanoTime() - startTime);
+
+		MediaMetadataExtractor tags = null;
+		if (movedFrom == 0)
+			tags = extractTags(file, prefs.forceBastp, bastp);
+		return new Inspection(fingerprint, movedFrom, tags, false);
 	}
 
 	/**
-	 * Scans the android library, inspecting every found file
+	 * Writes the tags of a file to the database, called by the pipeline on its writer thread
 	 *
-	 * @param cursor the cursor we are using
-	 * @param mtime the mtime to carry over, ignored if cursor is null
-	 */
-	private void rpcNativeVerify(Cursor cursor, int mtime) {
-		if (cursor == null) {
-			mtime = MediaLibrary.getPreferences(mContext)._nativeLastMtime; // starting a new scan -> read stored mtime from preferences
-			String selection = MediaStore.Audio.Media.IS_MUSIC + "!= 0 AND "+ MediaStore.MediaColumns.DATE_MODIFIED +" > " + mtime;
-			String sort = MediaStore.MediaColumns.DATE_MODIFIED;
-			String[] projection = { MediaStore.MediaColumns.DATA, MediaStore.MediaColumns.DATE_MODIFIED };
-			try {
-				cursor = mContext.getContentResolver().query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, projection, selection, null, sort);
-			} catch(SecurityException e) {
-				Log.e("VanillaMusic", "rpcNativeVerify failed: "+e);
+	 * @param file the inspected file
+	 * @param result the result of extract(), null if that failed
+	 */
+	@Override
+	public void write(File file, Inspection result) {
+		// a write failing halfway must not leave parts of the song in the batch
+		mBatch.beginFile();
+		boolean written = false;
+		try {
+			writeInspection(file, result);
+			written = true;
+		} finally {
+			mBatch.endFile(written);
+			if (!written) {
+				// the index may hold changes of the writes which were just undone
+				reloadSongIndex();
 			}
 		}
+	}
 
-		if (cursor == null)
-			return; // still null.. fixme: handle me better
+	/**
+	 * Does the work of write()
+	 *
+	 * @param file the inspected file
+	 * @param result the result of extract(), null if that failed
+	 */
+	private void writeInspection(File file, Inspection result) {
+		MediaMetadataExtractor tags = (result == null ? null : result.tags);
+		long fingerprint = (result == null ? 0 : result.fingerprint);
+		boolean changed = false;
+
+		if (result != null && result.unchanged) {
+			long startTime = System.nanoTime();
+			rpcStoreFingerprint(file, fingerprint);
+			mReport.addPhase(MediaScanReport.PHASE_DB_WRITE, System.nanoTime() - startTime);
+			registerProgress(file, false);
+			return;
+		}
 
-		if (cursor.moveToNext()) {
-			String path = cursor.getString(0);
-			mtime = cursor.getInt(1);
-			if (path != null) { // this seems to be a thing...
-				File entry = new File(path);
-				mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, RPC_INSPECT_FILE, 0, entry));
-				mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, RPC_NATIVE_VRFY, mtime, cursor));
+		if (result != null && result.movedFrom != 0) {
+			changed = rpcMoveSong(file, result.movedFrom, fingerprint);
+			if (!changed) {
+				// the old entry vanished in the meantime: inspect the file after all
+				MediaLibrary.Preferences prefs = MediaLibrary.getPreferences(mContext);
+				tags = extractTags(file, prefs.forceBastp, new Bastp());
 			}
-		} else {
-			cursor.close();
-			MediaLibrary.Preferences prefs = MediaLibrary.getPreferences(mContext);
-			prefs._nativeLastMtime = mtime;
-			MediaLibrary.setPreferences(mContext, prefs);
-			Log.v("VanillaMusic", "NativeLibraryScanner finished, mtime mark is now at "+mtime);
 		}
+		long startTime = System.nanoTime();
+		if (!changed)
+			changed = rpcInspectFile(file, tags, fingerprint);
+		mReport.addPhase(MediaScanReport.PHASE_DB_WRITE, System.nanoTime() - startTime);
+		registerProgress(file, changed);
 	}
 
 	/**
-	 * Scans every file in our own library and checks for changes
+	 * Reads the tags of a file and records the time this took
 	 *
-	 * @param cursor the cursor we are using
+	 * @param file the file to read
+	 * @param forceBastp passed to the extractor
+	 * @param bastp the parser to use, which must not be in use by another thread
+	 * @return the tags of the file
 	 */
-	private void rpcLibraryVerify(Cursor cursor) {
-		if (cursor == null)
-			cursor = mBackend.query(false, MediaLibrary.TABLE_SONGS, new String[]{MediaLibrary.SongColumns.PATH}, null, null, null, null, null, null);
+	private MediaMetadataExtractor extractTags(File file, boolean forceBastp, Bastp bastp) {
+		MediaMetadataExtractor tags = new MediaMetadataExtractor(file.getAbsolutePath(), forceBastp, bastp);
+		mReport.addPhase(MediaScanReport.PHASE_BASTP, tags.getBastpNanos());
+		if (tags.getRetrieverNanos() != 0)
+			mReport.addPhase(MediaScanReport.PHASE_RETRIEVER, tags.getRetrieverNanos());
+		mReport.addInspection(tags.getFormat(), tags.getBytesRead());
+		return tags;
+	}
 
-		if (cursor.moveToNext()) {
-			File entry = new File(cursor.getString(0));
-			mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, RPC_INSPECT_FILE, 0, entry));
-			mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, RPC_LIBRARY_VRFY, 0, cursor));
-		} else {
-			cursor.close();
+	/**
+	 * Returns a fingerprint of the file, which is a hash of its size,
+	 * mtime and the first and last FINGERPRINT_CHUNK bytes
+	 *
+	 * @param file the file to fingerprint
+	 * @return the fingerprint, 0 if the file could not be read
+	 */
+	private static long getFingerprint(File file) {
+		long size = file.length();
+		long mtime = file.lastModified() / 1000;
+		if (size == 0)
+			return 0;
+
+		long hash = 0xcbf29ce484222325L; // 64 bit FNV-1a
+		hash = (hash ^ size) * 0x100000001b3L;
+		hash = (hash ^ mtime) * 0x100000001b3L;
+
+		byte[] buffer = new byte[FINGERPRINT_CHUNK];
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			int len = (int)Math.min(size, FINGERPRINT_CHUNK);
+			raf.readFully(buffer, 0, len);
+			for (int i = 0; i < len; i++) {
+				hash = (hash ^ (buffer[i] & 0xff)) * 0x100000001b3L;
+			}
+			if (size > FINGERPRINT_CHUNK) {
+				long tail = Math.max(FINGERPRINT_CHUNK, size - FINGERPRINT_CHUNK);
+				len = (int)(size - tail);
+				raf.seek(tail);
+				raf.readFully(buffer, 0, len);
+				for (int i = 0; i < len; i++) {
+					hash = (hash ^ (buffer[i] & 0xff)) * 0x100000001b3L;
+				}
+			}
+		} catch (IOException e) {
+			return 0;
 		}
+
+		hash &= Long.MAX_VALUE;
+		return (hash == 0 ? 1 : hash);
 	}
 
 	/**
-	 * Loops trough given directory and adds all found
-	 * files to the scan queue
+	 * Returns the song this file was moved from: a song with the same
+	 * fingerprint whose file no longer exists
 	 *
-	 * @param dir the directory to scan
+	 * @param file the file to check
+	 * @param fingerprint the fingerprint of file
+	 * @param sameFolder only consider songs of the same folder, as the album id depends on it
+	 * @return the id of the song, 0 if the file was not moved
 	 */
-	private void rpcReadDirectory(File dir) {
-		if (!dir.isDirectory())
-			return;
+	private long findMovedSong(File file, long fingerprint, boolean sameFolder) {
+		if (fingerprint == 0)
+			return 0;
+
+		final String[] projection = { MediaLibrary.SongColumns._ID, MediaLibrary.SongColumns.PATH };
+		final String selection = MediaLibrary.SongColumns.FINGERPRINT+"="+fingerprint;
+		long movedFrom = 0;
+		Cursor cursor = mBackend.query(false, MediaLibrary.TABLE_SONGS, projection, selection, null, null, null, null, null);
+		while (cursor.moveToNext()) {
+			File old = new File(cursor.getString(1));
+			if (old.exists())
+				continue; // a copy, not a move
+			if (sameFolder && !old.getParent().equals(file.getParent()))
+				continue;
+			movedFrom = cursor.getLong(0);
+			break;
+		}
+		cursor.close();
+		return movedFrom;
+	}
 
-		if (new File(dir, ".nomedia").exists())
-			return;
+	/**
+	 * Moves an existing song to a new path, keeping its tags, counters and
+	 * playlist entries
+	 *
+	 * @param file the new location of the song
+	 * @param oldId the id of the song at its old location
+	 * @param fingerprint the fingerprint of file
+	 * @return true if the song was moved, false if the old song does not exist
+	 */
+	private boolean rpcMoveSong(File file, long oldId, long fingerprint) {
+		MediaSongIndex index = mSongIndex;
+		if (index.getMtime(oldId) == 0)
+			return false;
 
-		File[] dirents = dir.listFiles();
-		if (dirents == null)
-			return;
+		String path = file.getAbsolutePath();
+		long songId = MediaLibrary.hash63(path);
+		long playCount = index.getPlayCount(oldId);
+		long skipCount = index.getSkipCount(oldId);
+		long mtime = System.currentTimeMillis() / 1000;
 
-		for (File file : dirents) {
-			int rpc = (file.isFile() ? RPC_INSPECT_FILE : RPC_READ_DIR);
-			mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, rpc, 0, file));
+		if (index.getMtime(songId) != 0) {
+			// something else was stored at this path before
+			mBatch.deleteSong(songId);
+			index.remove(songId);
+		}
+
+		final String[] args = { Long.toString(oldId) };
+		ContentValues v = new ContentValues();
+		v.put(MediaLibrary.SongColumns._ID,         songId);
+		v.put(MediaLibrary.SongColumns.PATH,        path);
+		v.put(MediaLibrary.SongColumns.MTIME,       mtime);
+		v.put(MediaLibrary.SongColumns.FINGERPRINT, fingerprint);
+		mBatch.update(MediaLibrary.TABLE_SONGS, v, MediaLibrary.SongColumns._ID+"=?", args);
+
+		v.clear();
+		v.put(MediaLibrary.ContributorSongColumns.SONG_ID, songId);
+		mBatch.update(MediaLibrary.TABLE_CONTRIBUTORS_SONGS, v, MediaLibrary.ContributorSongColumns.SONG_ID+"=?", args);
+
+		v.clear();
+		v.put(MediaLibrary.GenreSongColumns.SONG_ID, songId);
+		mBatch.update(MediaLibrary.TABLE_GENRES_SONGS, v, MediaLibrary.GenreSongColumns.SONG_ID+"=?", args);
+
+		v.clear();
+		v.put(MediaLibrary.PlaylistSongColumns.SONG_ID, songId);
+		mBatch.update(MediaLibrary.TABLE_PLAYLISTS_SONGS, v, MediaLibrary.PlaylistSongColumns.SONG_ID+"=?", args);
+
+		v.clear();
+		v.put(MediaLibrary.SearchColumns.DOCID, songId);
+		mBatch.update(MediaLibrary.TABLE_SONGS_SEARCH, v, MediaLibrary.SearchColumns.DOCID+"=?", args);
+
+		v.clear();
+		v.put(MediaLibrary.SongColumns._ID,   songId);
+		v.put(MediaLibrary.SongColumns.PATH,  path);
+		v.put(MediaLibrary.SongColumns.MTIME, mtime);
+		mBatch.update(MediaLibrary.TABLE_SONGS_FLAT, v, MediaLibrary.SongColumns._ID+"=?", args);
+
+		index.remove(oldId);
+		index.put(songId, mtime, playCount, skipCount, true);
+		Log.v("VanillaMusic", "MediaScanner: moved "+path);
+		return true;
+	}
+
+	/**
+	 * Commits the writes of rpcInspectFile(), called by the pipeline on its writer thread
+	 */
+	@Override
+	public void commit() {
+		try {
+			mBatch.commit();
+		} catch (RuntimeException e) {
+			reloadSongIndex();
+			throw e;
+		}
+	}
+
+	/**
+	 * Closes the statements of the batch once the pipeline ran dry,
+	 * called by the pipeline on its writer thread
+	 */
+	@Override
+	public void release() {
+		try {
+			mBatch.close();
+		} catch (RuntimeException e) {
+			reloadSongIndex();
+			throw e;
 		}
 	}
 
 	/**
-	 * Inspects a single file and adds it to the database or removes it. maybe.
+	 * Reads the song index from the database again after writes of the
+	 * batch were undone, as the index was updated along with them.
+	 * Otherwise the index would claim that their files are up to date.
+	 */
+	private void reloadSongIndex() {
+		MediaSongIndex index = mSongIndex;
+		if (index != null)
+			index.reload(mBackend);
+	}
+
+	/**
+	 * Stores the fingerprint of an unchanged song which does not have one yet,
+	 * which is the case for all songs of libraries upgraded from a version
+	 * without fingerprints.
+	 *
+	 * @param file the file of the song
+	 * @param fingerprint the fingerprint of file, 0 is stored as well, so that
+	 *        an unreadable file is not handed to the pipeline by every scan
+	 */
+	private void rpcStoreFingerprint(File file, long fingerprint) {
+		long songId = MediaLibrary.hash63(file.getAbsolutePath());
+		ContentValues v = new ContentValues();
+		v.put(MediaLibrary.SongColumns.FINGERPRINT, fingerprint);
+		mBatch.update(MediaLibrary.TABLE_SONGS, v, MediaLibrary.SongColumns._ID+"=? AND "+MediaLibrary.SongColumns.FINGERPRINT+" IS NULL",
+		              new String[]{ Long.toString(songId) });
+		mSongIndex.setFingerprinted(songId);
+	}
+
+	/**
+	 * Adds a single file to the database or removes it. maybe.
 	 *
 	 * @param file the file to add
+	 * @param tags the tags of this file, null if they could not be read
+	 * @param fingerprint the fingerprint of this file, 0 if it could not be read
 	 * @return true if we modified the database
 	 */
-	private boolean rpcInspectFile(File file) {
+	private boolean rpcInspectFile(File file, MediaMetadataExtractor tags, long fingerprint) {
 		MediaLibrary.Preferences prefs = MediaLibrary.getPreferences(mContext);
 		String path  = file.getAbsolutePath();
 		long songId  = MediaLibrary.hash63(path);
-
-		if (isBlacklisted(file))
-			return false;
-
-		long dbEntryMtime = mBackend.getColumnFromSongId(MediaLibrary.SongColumns.MTIME, songId) * 1000; // this is in unixtime -> convert to 'ms'
-		long fileMtime = file.lastModified();
+		MediaSongIndex index = mSongIndex;
+		long dbEntryMtime = index.getMtime(songId);
 		long playCount = 0;
 		long skipCount = 0;
 		boolean hasChanged = false;
 		boolean mustInsert = false;
 
-		if (fileMtime > 0 && dbEntryMtime >= fileMtime) {
-			return false; // on-disk mtime is older than db mtime and it still exists -> nothing to do
-		}
-
 		if (dbEntryMtime != 0) {
 			// DB entry exists but is outdated - drop current entry and maybe re-insert it
 			// this tries to preserve play and skipcounts of the song
-			playCount = mBackend.getColumnFromSongId(MediaLibrary.SongColumns.PLAYCOUNT, songId);
-			skipCount = mBackend.getColumnFromSongId(MediaLibrary.SongColumns.SKIPCOUNT, songId);
+			playCount = index.getPlayCount(songId);
+			skipCount = index.getSkipCount(songId);
 			// Remove the song from the database for now but do not delete any
 			// playlist references to it.
-			mBackend.delete(MediaLibrary.TABLE_SONGS, MediaLibrary.SongColumns._ID+"="+songId, null);
-			mBackend.cleanOrphanedEntries(false);
+			mBatch.deleteSong(songId);
+			index.remove(songId);
 			mPendingCleanup = true; // Ensure that we run a full cleanup after all scans finished, to get rid of orphaned playlist entries.
 			hasChanged = true; // notify caller about change even if we are not going to re-insert this file.
 		}
 
 		// Check if we are willing to insert this file
 		// This is the case if we consider it to be playable on this device.
-		MediaMetadataExtractor tags = new MediaMetadataExtractor(path, prefs.forceBastp);
-		mustInsert = tags.isMediaFile();
+		mustInsert = (tags != null && tags.isMediaFile());
 
 		if (mustInsert) {
 			hasChanged = true;
@@ -496,7 +1807,12 @@ public class MediaScanner implements Handler.Callback {
 			v.put(MediaLibrary.SongColumns.PLAYCOUNT,   playCount);
 			v.put(MediaLibrary.SongColumns.SKIPCOUNT,   skipCount);
 			v.put(MediaLibrary.SongColumns.PATH,        path);
-			mBackend.insert(MediaLibrary.TABLE_SONGS, null, v);
+			// 0 marks a file which could not be fingerprinted, see rpcStoreFingerprint()
+			v.put(MediaLibrary.SongColumns.FINGERPRINT, fingerprint);
+			if (mBatch.insert(MediaLibrary.TABLE_SONGS, v) != -1) {
+				// the mtime column defaults to the current unixtime
+				index.put(songId, System.currentTimeMillis() / 1000, playCount, skipCount, true);
+			}
 
 			v.clear();
 			v.put(MediaLibrary.AlbumColumns._ID,               albumId);
@@ -504,7 +1820,7 @@ public class MediaScanner implements Handler.Callback {
 			v.put(MediaLibrary.AlbumColumns.ALBUM_SORT,        MediaLibrary.keyFor(album));
 			v.put(MediaLibrary.AlbumColumns.PRIMARY_ARTIST_ID, artistId);
 			v.put(MediaLibrary.AlbumColumns.PRIMARY_ALBUM_YEAR,tags.getFirst(MediaMetadataExtractor.YEAR));
-			long albumInsert = mBackend.insert(MediaLibrary.TABLE_ALBUMS, null, v);
+			long albumInsert = mBatch.insert(MediaLibrary.TABLE_ALBUMS, v);
 			if (albumInsert == -1) {
 				// Insert failed, so the column probably already existed.
 				// We need to ensure that the album table is up-to-date as it contains
@@ -514,20 +1830,22 @@ public class MediaScanner implements Handler.Callback {
 				v.clear();
 				v.put(MediaLibrary.AlbumColumns.PRIMARY_ARTIST_ID, artistId);
 				v.put(MediaLibrary.AlbumColumns.PRIMARY_ALBUM_YEAR,tags.getFirst(MediaMetadataExtractor.YEAR));
-				mBackend.update(MediaLibrary.TABLE_ALBUMS, v, MediaLibrary.AlbumColumns._ID+"=?", new String[]{ Long.toString(albumId) });
+				mBatch.update(MediaLibrary.TABLE_ALBUMS, v, MediaLibrary.AlbumColumns._ID+"=?", new String[]{ Long.toString(albumId) });
+				// the other songs of this album hold a copy of these values
+				mBatch.update(MediaLibrary.TABLE_SONGS_FLAT, v, MediaLibrary.SongColumns.ALBUM_ID+"=?", new String[]{ Long.toString(albumId) });
 			}
 
 			v.clear();
 			v.put(MediaLibrary.ContributorColumns._ID,               artistId);
 			v.put(MediaLibrary.ContributorColumns._CONTRIBUTOR,      artist);
 			v.put(MediaLibrary.ContributorColumns._CONTRIBUTOR_SORT, MediaLibrary.keyFor(artist));
-			mBackend.insert(MediaLibrary.TABLE_CONTRIBUTORS, null, v);
+			mBatch.insert(MediaLibrary.TABLE_CONTRIBUTORS, v);
 
 			v.clear();
 			v.put(MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID, artistId);
 			v.put(MediaLibrary.ContributorSongColumns.SONG_ID,         songId);
 			v.put(MediaLibrary.ContributorSongColumns.ROLE,            MediaLibrary.ROLE_ARTIST);
-			mBackend.insert(MediaLibrary.TABLE_CONTRIBUTORS_SONGS, null, v);
+			mBatch.insert(MediaLibrary.TABLE_CONTRIBUTORS_SONGS, v);
 
 			// Composers are optional: only add if we found it
 			String composer = tags.getFirst(MediaMetadataExtractor.COMPOSER);
@@ -537,13 +1855,13 @@ public class MediaScanner implements Handler.Callback {
 				v.put(MediaLibrary.ContributorColumns._ID,               composerId);
 				v.put(MediaLibrary.ContributorColumns._CONTRIBUTOR,      composer);
 				v.put(MediaLibrary.ContributorColumns._CONTRIBUTOR_SORT, MediaLibrary.keyFor(composer));
-				mBackend.insert(MediaLibrary.TABLE_CONTRIBUTORS, null, v);
+				mBatch.insert(MediaLibrary.TABLE_CONTRIBUTORS, v);
 
 				v.clear();
 				v.put(MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID, composerId);
 				v.put(MediaLibrary.ContributorSongColumns.SONG_ID,         songId);
 				v.put(MediaLibrary.ContributorSongColumns.ROLE,            MediaLibrary.ROLE_COMPOSER);
-				mBackend.insert(MediaLibrary.TABLE_CONTRIBUTORS_SONGS, null, v);
+				mBatch.insert(MediaLibrary.TABLE_CONTRIBUTORS_SONGS, v);
 			}
 
 			// Same as with composer: albumartist is an optional tag
@@ -554,39 +1872,89 @@ public class MediaScanner implements Handler.Callback {
 				v.put(MediaLibrary.ContributorColumns._ID,               albumartistId);
 				v.put(MediaLibrary.ContributorColumns._CONTRIBUTOR,      albumartist);
 				v.put(MediaLibrary.ContributorColumns._CONTRIBUTOR_SORT, MediaLibrary.keyFor(albumartist));
-				mBackend.insert(MediaLibrary.TABLE_CONTRIBUTORS, null, v);
+				mBatch.insert(MediaLibrary.TABLE_CONTRIBUTORS, v);
 
 				v.clear();
 				v.put(MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID, albumartistId);
 				v.put(MediaLibrary.ContributorSongColumns.SONG_ID,         songId);
 				v.put(MediaLibrary.ContributorSongColumns.ROLE,            MediaLibrary.ROLE_ALBUMARTIST);
-				mBackend.insert(MediaLibrary.TABLE_CONTRIBUTORS_SONGS, null, v);
+				mBatch.insert(MediaLibrary.TABLE_CONTRIBUTORS_SONGS, v);
 			}
 
 			// A song might be in multiple genres
+			StringBuilder genreText = null;
 			if (tags.containsKey(MediaMetadataExtractor.GENRE)) {
 				ArrayList<String> genres = tags.get(MediaMetadataExtractor.GENRE);
+				genreText = new StringBuilder();
 				for (String genre : genres) {
+					genreText.append(genre).append('\n');
 					long genreId = MediaLibrary.hash63(genre);
 					v.clear();
 					v.put(MediaLibrary.GenreColumns._ID,         genreId);
 					v.put(MediaLibrary.GenreColumns._GENRE,      genre);
 					v.put(MediaLibrary.GenreColumns._GENRE_SORT, MediaLibrary.keyFor(genre));
-					mBackend.insert(MediaLibrary.TABLE_GENRES, null, v);
+					mBatch.insert(MediaLibrary.TABLE_GENRES, v);
 
 					v.clear();
 					v.put(MediaLibrary.GenreSongColumns._GENRE_ID, genreId);
 					v.put(MediaLibrary.GenreSongColumns.SONG_ID, songId);
-					mBackend.insert(MediaLibrary.TABLE_GENRES_SONGS, null, v);
+					mBatch.insert(MediaLibrary.TABLE_GENRES_SONGS, v);
 				}
 			}
+
+			v.clear();
+			v.put(MediaLibrary.SearchColumns.DOCID,       songId);
+			v.put(MediaLibrary.SearchColumns.TITLE,       MediaLibrary.searchTextFor(title));
+			v.put(MediaLibrary.SearchColumns.ALBUM,       MediaLibrary.searchTextFor(album));
+			v.put(MediaLibrary.SearchColumns.ARTIST,      MediaLibrary.searchTextFor(artist));
+			v.put(MediaLibrary.SearchColumns.ALBUMARTIST, MediaLibrary.searchTextFor(albumartist));
+			v.put(MediaLibrary.SearchColumns.COMPOSER,    MediaLibrary.searchTextFor(composer));
+			v.put(MediaLibrary.SearchColumns.GENRE,       genreText == null ? null : MediaLibrary.searchTextFor(genreText.toString()));
+			mBatch.insert(MediaLibrary.TABLE_SONGS_SEARCH, v);
+
+			// The flat copy of the song, read instead of the song views
+			v.clear();
+			v.put(MediaLibrary.SongColumns._ID,                     songId);
+			v.put(MediaLibrary.SongColumns.TITLE,                   title);
+			v.put(MediaLibrary.SongColumns.TITLE_SORT,              MediaLibrary.keyFor(title));
+			v.put(MediaLibrary.SongColumns.ALBUM_ID,                albumId);
+			v.put(MediaLibrary.SongColumns.DURATION,                tags.getFirst(MediaMetadataExtractor.DURATION));
+			v.put(MediaLibrary.SongColumns.SONG_NUMBER,             tags.getFirst(MediaMetadataExtractor.TRACK_NUMBER));
+			v.put(MediaLibrary.SongColumns.DISC_NUMBER,             discNumber);
+			v.put(MediaLibrary.SongColumns.YEAR,                    tags.getFirst(MediaMetadataExtractor.YEAR));
+			v.put(MediaLibrary.SongColumns.PLAYCOUNT,               playCount);
+			v.put(MediaLibrary.SongColumns.SKIPCOUNT,               skipCount);
+			v.put(MediaLibrary.SongColumns.PATH,                    path);
+			v.put(MediaLibrary.AlbumColumns.ALBUM,                  album);
+			v.put(MediaLibrary.AlbumColumns.ALBUM_SORT,             MediaLibrary.keyFor(album));
+			v.put(MediaLibrary.AlbumColumns.PRIMARY_ARTIST_ID,      artistId);
+			v.put(MediaLibrary.AlbumColumns.PRIMARY_ALBUM_YEAR,     tags.getFirst(MediaMetadataExtractor.YEAR));
+			v.put(MediaLibrary.ContributorColumns.ARTIST,           artist);
+			v.put(MediaLibrary.ContributorColumns.ARTIST_SORT,      MediaLibrary.keyFor(artist));
+			v.put(MediaLibrary.ContributorColumns.ARTIST_ID,        artistId);
+			if (albumartist != null) {
+				v.put(MediaLibrary.ContributorColumns.ALBUMARTIST,      albumartist);
+				v.put(MediaLibrary.ContributorColumns.ALBUMARTIST_SORT, MediaLibrary.keyFor(albumartist));
+				v.put(MediaLibrary.ContributorColumns.ALBUMARTIST_ID,   MediaLibrary.hash63(albumartist));
+			}
+			if (composer != null) {
+				v.put(MediaLibrary.ContributorColumns.COMPOSER,         composer);
+				v.put(MediaLibrary.ContributorColumns.COMPOSER_SORT,    MediaLibrary.keyFor(composer));
+				v.put(MediaLibrary.ContributorColumns.COMPOSER_ID,      MediaLibrary.hash63(composer));
+			}
+			mBatch.insert(MediaLibrary.TABLE_SONGS_FLAT, v);
 		} // end if (mustInsert)
 
 		Log.v("VanillaMusic", "MediaScanner: inserted "+path);
 		return hasChanged;
 	}
 
-	private static final Pattern sIgnoredFilenames = Pattern.compile("^([^\\.]+|.+\\.(jpe?g|gif|png|bmp|webm|txt|pdf|avi|mp4|mkv|zip|tgz|xml|tmp|bin))$", Pattern.CASE_INSENSITIVE);
+	/**
+	 * Extensions of files which are never scanned, in lower case
+	 */
+	private static final HashSet<String> sIgnoredExtensions = new HashSet<>(Arrays.asList(
+		"jpg", "jpeg", "gif", "png", "bmp", "webm", "txt", "pdf", "avi", "mp4", "mkv", "zip", "tgz", "xml", "tmp", "bin"));
+
 	/**
 	 * Returns true if the file should not be scanned
 	 *
@@ -594,33 +1962,41 @@ public class MediaScanner implements Handler.Callback {
 	 * @return boolean
 	 */
 	private boolean isBlacklisted(File file) {
-		if (sIgnoredFilenames.matcher(file.getName()).matches())
+		String path = file.getPath();
+		int nameStart = path.lastIndexOf('/') + 1;
+		int dot = path.lastIndexOf('.');
+		if (dot < nameStart)
+			return true; // files without any dot in their name are never media files
+		if (dot > nameStart && sIgnoredExtensions.contains(path.substring(dot + 1).toLowerCase(Locale.ROOT)))
 			return true;
 
-		int wlPoints = -1;
-		int blPoints = -1;
-
-		for (String path : MediaLibrary.getPreferences(mContext).mediaFolders) {
-			if (path.length() > wlPoints &&
-			    file.getPath().startsWith(path)) {
-				wlPoints = path.length();
-			}
-		}
+		return mFolderMatcher.isExcluded(path);
+	}
 
-		for (String path : MediaLibrary.getPreferences(mContext).blacklistedFolders) {
-			if (path.length() > blPoints &&
-			    file.getPath().startsWith(path)) {
-				blPoints = path.length();
-			}
-		}
 
-		// Consider a file to be blacklisted if it is not
-		// present in any whitelisted dir OR if we found
-		// a blacklist entry with a longer prefix.
-		return (wlPoints < 0 || blPoints > wlPoints);
+	/**
+	 * Produces the files of a scan step in small portions
+	 */
+	private interface ScanSource {
+		/**
+		 * Returns the next file to inspect
+		 *
+		 * @return the next file, null if there are no more files
+		 */
+		File next();
+		/**
+		 * Releases all resources, called once the source was exhausted or dropped
+		 */
+		void close();
+		/**
+		 * Returns where a new source of the same step should continue if this
+		 * one gets dropped. The new source may return some files again.
+		 *
+		 * @return the position to pass to createSource()
+		 */
+		String getPosition();
 	}
 
-
 	// MediaScanPlan describes how we are going to perform the media scan
 	class MediaScanPlan {
 		class Step {
@@ -656,6 +2032,14 @@ public class MediaScanner implements Handler.Callback {
 		 * Statistics of the currently running step
 		 */
 		private Statistics mStats;
+		/**
+		 * The source of the currently running step, null if there is none
+		 */
+		private ScanSource mSource;
+		/**
+		 * The currently running step, null if there is none
+		 */
+		private Step mRunning;
 
 		MediaScanPlan() {
 			mSteps = new ArrayList<>();
@@ -672,7 +2056,7 @@ public class MediaScanner implements Handler.Callback {
 		 * @param path the file we scanned
 		 * @param changed true if this triggered a database update
 		 */
-		void registerProgress(String path, boolean changed) {
+		synchronized void registerProgress(String path, boolean changed) {
 			mStats.lastFile = path;
 			mStats.seen++;
 			if (changed) {
@@ -683,9 +2067,41 @@ public class MediaScanner implements Handler.Callback {
 		/**
 		 * Flushes all progress, turning the object into a fresh state
 		 */
-		void clear() {
+		synchronized void clear() {
 			mSteps.clear();
 			mStats.reset();
+			mRunning = null;
+			setSource(null);
+		}
+
+		/**
+		 * Returns true if a step of this plan was started and did not finish yet
+		 */
+		synchronized boolean isRunning() {
+			return mRunning != null;
+		}
+
+		/**
+		 * Replaces the source of the running step, closing the old one
+		 *
+		 * @param source the new source, may be null
+		 */
+		synchronized void setSource(ScanSource source) {
+			if (mSource != null)
+				mSource.close();
+			mSource = source;
+		}
+
+		/**
+		 * Returns the next file of the running step
+		 *
+		 * @return the next file, null if the source of the step is exhausted
+		 */
+		synchronized File nextFile() {
+			File file = (mSource != null ? mSource.next() : null);
+			if (file == null)
+				setSource(null);
+			return file;
 		}
 
 		/**
@@ -695,8 +2111,7 @@ public class MediaScanner implements Handler.Callback {
 		 * @param arg the argument to msg
 		 */
 		MediaScanPlan addNextStep(int msg, Object arg) {
-			mSteps.add(new Step(msg, arg, Step.MODE_NORMAL));
-			return this;
+			return addStep(new Step(msg, arg, Step.MODE_NORMAL));
 		}
 
 		/**
@@ -707,8 +2122,7 @@ public class MediaScanner implements Handler.Callback {
 		 * @param arg the argument to msg
 		 */
 		MediaScanPlan addOptionalStep(int msg, Object arg) {
-			mSteps.add(new Step(msg, arg, Step.MODE_OPTIONAL));
-			return this;
+			return addStep(new Step(msg, arg, Step.MODE_OPTIONAL));
 		}
 
 		/**
@@ -719,16 +2133,79 @@ public class MediaScanner implements Handler.Callback {
 		 * @param arg the argument to msg
 		 */
 		MediaScanPlan addChainedStep(int msg, Object arg) {
-			mSteps.add(new Step(msg, arg, Step.MODE_CHAINED));
+			return addStep(new Step(msg, arg, Step.MODE_CHAINED));
+		}
+
+		private synchronized MediaScanPlan addStep(Step step) {
+			mSteps.add(step);
 			return this;
 		}
 
+		/**
+		 * Describes the remaining work of this plan, to be stored in the scan plan table
+		 *
+		 * @return one row per step, starting with the running step
+		 */
+		synchronized ArrayList<ContentValues> getCheckpoint() {
+			ArrayList<ContentValues> rows = new ArrayList<>();
+			if (mRunning != null && mSource != null) {
+				ContentValues v = toRow(mRunning, rows.size());
+				v.put(MediaLibrary.ScanPlanColumns.POSITION, mSource.getPosition());
+				v.put(MediaLibrary.ScanPlanColumns.SEEN,     mStats.seen);
+				v.put(MediaLibrary.ScanPlanColumns.CHANGED,  mStats.changed);
+				rows.add(v);
+			}
+			for (Step step : mSteps) {
+				rows.add(toRow(step, rows.size()));
+			}
+			return rows;
+		}
+
+		/**
+		 * Puts the steps of a checkpoint in front of all planned steps.
+		 * The running step of the checkpoint gets its source back.
+		 *
+		 * @param cursor rows returned by getCheckpoint(), with the columns
+		 *        rpc, mode, arg, position, seen and changed
+		 * @return true if the running step was restored and its source must be drained
+		 */
+		synchronized boolean restore(Cursor cursor) {
+			ArrayList<Step> steps = new ArrayList<>();
+			boolean running = false;
+			while (cursor.moveToNext()) {
+				String path = cursor.getString(2);
+				Step step = new Step(cursor.getInt(0), path == null ? null : new File(path), cursor.getInt(1));
+				String position = cursor.getString(3);
+				if (position != null && !running) {
+					running = true;
+					mRunning = step;
+					mStats.reset();
+					mStats.seen = cursor.getInt(4);
+					mStats.changed = cursor.getInt(5);
+					setSource(createSource(step.msg, step.arg, position));
+				} else {
+					steps.add(step);
+				}
+			}
+			mSteps.addAll(0, steps);
+			return running;
+		}
+
+		private ContentValues toRow(Step step, int order) {
+			ContentValues v = new ContentValues();
+			v.put(MediaLibrary.ScanPlanColumns._ID,  order);
+			v.put(MediaLibrary.ScanPlanColumns.RPC,  step.msg);
+			v.put(MediaLibrary.ScanPlanColumns.MODE, step.mode);
+			v.put(MediaLibrary.ScanPlanColumns.ARG,  step.arg instanceof File ? ((File)step.arg).getPath() : null);
+			return v;
+		}
+
 		/**
 		 * Returns the next step of our scan plan
 		 *
 		 * @return a new step object, null if we hit the end
 		 */
-		Step getNextStep() {
+		synchronized Step getNextStep() {
 			Step next = (mSteps.size() != 0 ? mSteps.remove(0) : null);
 			if (next != null) {
 				if (next.mode == Step.MODE_OPTIONAL && mStats.changed != 0) {
@@ -741,6 +2218,7 @@ public class MediaScanner implements Handler.Callback {
 				}
 			}
 			mStats.reset();
+			mRunning = next;
 			return next;
 		}
 	}
@@ -17,6 +17,8 @@
 
 package ch.blinkenlights.android.medialibrary;
 
+import android.content.ContentValues;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 
 public class MediaSchema {
@@ -35,9 +37,17 @@ public class MediaSchema {
 	  + MediaLibrary.SongColumns.SKIPCOUNT    +" INTEGER NOT NULL DEFAULT 0, "
 	  + MediaLibrary.SongColumns.MTIME        +" TIMESTAMP DEFAULT (strftime('%s', CURRENT_TIMESTAMP)), "
 	  + MediaLibrary.SongColumns.DURATION     +" INTEGER NOT NULL, "
-	  + MediaLibrary.SongColumns.PATH         +" VARCHAR(4096) NOT NULL "
+	  + MediaLibrary.SongColumns.PATH         +" VARCHAR(4096) NOT NULL, "
+	  + MediaLibrary.SongColumns.FINGERPRINT  +" INTEGER "
 	  + ");";
 
+	/**
+	 * Index to find moved songs by their fingerprint
+	 */
+	private static final String INDEX_IDX_SONGS_FINGERPRINT = "CREATE INDEX idx_songs_fingerprint ON "+MediaLibrary.TABLE_SONGS
+	 +" ("+MediaLibrary.SongColumns.FINGERPRINT+")"
+	 +";";
+
 	/**
 	 * SQL Schema of `albums' table
 	 */
@@ -99,6 +109,13 @@ public class MediaSchema {
 	                  +MediaLibrary.GenreSongColumns.SONG_ID+") "
 	  + ");";
 
+	/**
+	 * Index to find the genres of a song quickly
+	 */
+	private static final String INDEX_IDX_GENRES_SONGS_SONG = "CREATE INDEX idx_genres_songs_song ON "+MediaLibrary.TABLE_GENRES_SONGS
+	 +" ("+MediaLibrary.GenreSongColumns.SONG_ID+")"
+	 +";";
+
 	/**
 	 * SQL Schema for the playlists table
 	 */
@@ -107,6 +124,129 @@ public class MediaSchema {
 	  + MediaLibrary.PlaylistColumns.NAME  +" TEXT NOT NULL "
 	  + ");";
 
+	/**
+	 * SQL Schema of the directories table
+	 */
+	private static final String DATABASE_CREATE_DIRECTORIES = "CREATE TABLE "+ MediaLibrary.TABLE_DIRECTORIES +" ("
+	  + MediaLibrary.DirectoryColumns._ID         +" INTEGER PRIMARY KEY, "
+	  + MediaLibrary.DirectoryColumns.PATH        +" VARCHAR(4096) NOT NULL, "
+	  + MediaLibrary.DirectoryColumns.MTIME       +" INTEGER NOT NULL, "
+	  + MediaLibrary.DirectoryColumns.CHILD_COUNT +" INTEGER NOT NULL, "
+	  + MediaLibrary.DirectoryColumns.VERIFIED    +" INTEGER NOT NULL "
+	  + ");";
+
+	/**
+	 * SQL Schema of the scan checkpoint table
+	 */
+	private static final String DATABASE_CREATE_SCAN_PLAN = "CREATE TABLE "+ MediaLibrary.TABLE_SCAN_PLAN +" ("
+	  + MediaLibrary.ScanPlanColumns._ID      +" INTEGER PRIMARY KEY, "
+	  + MediaLibrary.ScanPlanColumns.RPC      +" INTEGER NOT NULL, "
+	  + MediaLibrary.ScanPlanColumns.MODE     +" INTEGER NOT NULL, "
+	  + MediaLibrary.ScanPlanColumns.ARG      +" VARCHAR(4096), "
+	  + MediaLibrary.ScanPlanColumns.POSITION +" TEXT, "
+	  + MediaLibrary.ScanPlanColumns.SEEN     +" INTEGER NOT NULL DEFAULT 0, "
+	  + MediaLibrary.ScanPlanColumns.CHANGED  +" INTEGER NOT NULL DEFAULT 0 "
+	  + ");";
+
+	/**
+	 * SQL Schema of the full text index of songs, the docid is the id of the song.
+	 * Prefix indexes keep search-as-you-type fast for the first few letters.
+	 */
+	private static final String DATABASE_CREATE_SONGS_SEARCH = "CREATE VIRTUAL TABLE "+ MediaLibrary.TABLE_SONGS_SEARCH +" USING fts4("
+	  + MediaLibrary.SearchColumns.TITLE       +", "
+	  + MediaLibrary.SearchColumns.ALBUM       +", "
+	  + MediaLibrary.SearchColumns.ARTIST      +", "
+	  + MediaLibrary.SearchColumns.ALBUMARTIST +", "
+	  + MediaLibrary.SearchColumns.COMPOSER    +", "
+	  + MediaLibrary.SearchColumns.GENRE       +", "
+	  + "prefix=\"1,2,3\""
+	  + ");";
+
+	/**
+	 * SQL Schema of the flat copy of the songs table, which also holds the album
+	 * and contributor columns of VIEW_SONGS_ALBUMS_ARTISTS_HUGE. It is kept
+	 * current by the scanner and answers all queries on the song views.
+	 */
+	private static final String DATABASE_CREATE_SONGS_FLAT = "CREATE TABLE "+ MediaLibrary.TABLE_SONGS_FLAT + " ("
+	  + MediaLibrary.SongColumns._ID                      +" INTEGER PRIMARY KEY, "
+	  + MediaLibrary.SongColumns.TITLE                    +" TEXT NOT NULL, "
+	  + MediaLibrary.SongColumns.TITLE_SORT               +" VARCHAR(64) NOT NULL, "
+	  + MediaLibrary.SongColumns.SONG_NUMBER              +" INTEGER, "
+	  + MediaLibrary.SongColumns.DISC_NUMBER              +" INTEGER, "
+	  + MediaLibrary.SongColumns.YEAR                     +" INTEGER, "
+	  + MediaLibrary.SongColumns.ALBUM_ID                 +" INTEGER NOT NULL, "
+	  + MediaLibrary.SongColumns.PLAYCOUNT                +" INTEGER NOT NULL DEFAULT 0, "
+	  + MediaLibrary.SongColumns.SKIPCOUNT                +" INTEGER NOT NULL DEFAULT 0, "
+	  + MediaLibrary.SongColumns.MTIME                    +" TIMESTAMP DEFAULT (strftime('%s', CURRENT_TIMESTAMP)), "
+	  + MediaLibrary.SongColumns.DURATION                 +" INTEGER NOT NULL, "
+	  + MediaLibrary.SongColumns.PATH                     +" VARCHAR(4096) NOT NULL, "
+	  + MediaLibrary.AlbumColumns.ALBUM                   +" TEXT, "
+	  + MediaLibrary.AlbumColumns.ALBUM_SORT              +" VARCHAR(64), "
+	  + MediaLibrary.AlbumColumns.PRIMARY_ALBUM_YEAR      +" INTEGER, "
+	  + MediaLibrary.AlbumColumns.PRIMARY_ARTIST_ID       +" INTEGER, "
+	  + MediaLibrary.ContributorColumns.ARTIST            +" TEXT, "
+	  + MediaLibrary.ContributorColumns.ARTIST_SORT       +" TEXT, "
+	  + MediaLibrary.ContributorColumns.ARTIST_ID         +" INTEGER, "
+	  + MediaLibrary.ContributorColumns.ALBUMARTIST       +" TEXT, "
+	  + MediaLibrary.ContributorColumns.ALBUMARTIST_SORT  +" TEXT, "
+	  + MediaLibrary.ContributorColumns.ALBUMARTIST_ID    +" INTEGER, "
+	  + MediaLibrary.ContributorColumns.COMPOSER          +" TEXT, "
+	  + MediaLibrary.ContributorColumns.COMPOSER_SORT     +" TEXT, "
+	  + MediaLibrary.ContributorColumns.COMPOSER_ID       +" INTEGER "
+	  + ");";
+
+	/**
+	 * Indexes to select songs of an album or contributor quickly, and to
+	 * return the songs tab in its default order without sorting
+	 */
+	private static final String INDEX_IDX_SONGS_FLAT_ALBUM = "CREATE INDEX idx_songs_flat_album ON "+MediaLibrary.TABLE_SONGS_FLAT
+	 +" ("+MediaLibrary.SongColumns.ALBUM_ID+")"
+	 +";";
+	private static final String INDEX_IDX_SONGS_FLAT_ARTIST = "CREATE INDEX idx_songs_flat_artist ON "+MediaLibrary.TABLE_SONGS_FLAT
+	 +" ("+MediaLibrary.ContributorColumns.ARTIST_ID+")"
+	 +";";
+	private static final String INDEX_IDX_SONGS_FLAT_ALBUMARTIST = "CREATE INDEX idx_songs_flat_albumartist ON "+MediaLibrary.TABLE_SONGS_FLAT
+	 +" ("+MediaLibrary.ContributorColumns.ALBUMARTIST_ID+")"
+	 +";";
+	private static final String INDEX_IDX_SONGS_FLAT_COMPOSER = "CREATE INDEX idx_songs_flat_composer ON "+MediaLibrary.TABLE_SONGS_FLAT
+	 +" ("+MediaLibrary.ContributorColumns.COMPOSER_ID+")"
+	 +";";
+	private static final String INDEX_IDX_SONGS_FLAT_TITLE = "CREATE INDEX idx_songs_flat_title ON "+MediaLibrary.TABLE_SONGS_FLAT
+	 +" ("+MediaLibrary.SongColumns.TITLE_SORT+")"
+	 +";";
+
+	/**
+	 * Fills the flat songs table from the views it replaces
+	 */
+	private static final String POPULATE_SONGS_FLAT = "INSERT INTO "+MediaLibrary.TABLE_SONGS_FLAT+" SELECT "
+	  + MediaLibrary.SongColumns._ID+", "
+	  + MediaLibrary.SongColumns.TITLE+", "
+	  + MediaLibrary.SongColumns.TITLE_SORT+", "
+	  + MediaLibrary.SongColumns.SONG_NUMBER+", "
+	  + MediaLibrary.SongColumns.DISC_NUMBER+", "
+	  + MediaLibrary.SongColumns.YEAR+", "
+	  + MediaLibrary.SongColumns.ALBUM_ID+", "
+	  + MediaLibrary.SongColumns.PLAYCOUNT+", "
+	  + MediaLibrary.SongColumns.SKIPCOUNT+", "
+	  + MediaLibrary.SongColumns.MTIME+", "
+	  + MediaLibrary.SongColumns.DURATION+", "
+	  + MediaLibrary.SongColumns.PATH+", "
+	  + MediaLibrary.AlbumColumns.ALBUM+", "
+	  + MediaLibrary.AlbumColumns.ALBUM_SORT+", "
+	  + MediaLibrary.AlbumColumns.PRIMARY_ALBUM_YEAR+", "
+	  + MediaLibrary.AlbumColumns.PRIMARY_ARTIST_ID+", "
+	  + MediaLibrary.ContributorColumns.ARTIST+", "
+	  + MediaLibrary.ContributorColumns.ARTIST_SORT+", "
+	  + MediaLibrary.ContributorColumns.ARTIST_ID+", "
+	  + MediaLibrary.ContributorColumns.ALBUMARTIST+", "
+	  + MediaLibrary.ContributorColumns.ALBUMARTIST_SORT+", "
+	  + MediaLibrary.ContributorColumns.ALBUMARTIST_ID+", "
+	  + MediaLibrary.ContributorColumns.COMPOSER+", "
+	  + MediaLibrary.ContributorColumns.COMPOSER_SORT+", "
+	  + MediaLibrary.ContributorColumns.COMPOSER_ID
+	  +" FROM "+MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS_HUGE+" GROUP BY "+MediaLibrary.SongColumns._ID
+	  +";";
+
 	/**
 	 * SQL Schema of 'songs<->playlists' table
 	 */
@@ -222,7 +362,16 @@ public class MediaSchema {
 	  +" ;";
 
 	/**
-	 * View like VIEW_CREATE_ARTISTS but includes playlist information
+	 * View like VIEW_CREATE_ARTISTS but includes playlist information, reading
+	 * the song information from the flat songs table
+	 */
+	private static final String VIEW_CREATE_PLAYLIST_SONGS_FLAT = "CREATE VIEW "+ MediaLibrary.VIEW_PLAYLIST_SONGS+" AS "
+	  + "SELECT * FROM " + MediaLibrary.TABLE_PLAYLISTS_SONGS
+	  +" LEFT JOIN "+MediaLibrary.TABLE_SONGS_FLAT+" ON "+MediaLibrary.TABLE_PLAYLISTS_SONGS+"."+MediaLibrary.PlaylistSongColumns.SONG_ID+"="+MediaLibrary.TABLE_SONGS_FLAT+"."+MediaLibrary.SongColumns._ID
+	  +" ;";
+
+	/**
+	 * Old version of VIEW_CREATE_PLAYLIST_SONGS_FLAT, used by upgrades of databases which predate the flat songs table
 	 */
 	private static final String VIEW_CREATE_PLAYLIST_SONGS = "CREATE VIEW "+ MediaLibrary.VIEW_PLAYLIST_SONGS+" AS "
 	  + "SELECT *, " + VIEW_ARTIST_SELECT + " FROM " + MediaLibrary.TABLE_PLAYLISTS_SONGS
@@ -242,23 +391,34 @@ public class MediaSchema {
 	 */
 	public static void createDatabaseSchema(SQLiteDatabase dbh) {
 		dbh.execSQL(DATABASE_CREATE_SONGS);
+		dbh.execSQL(INDEX_IDX_SONGS_FINGERPRINT);
 		dbh.execSQL(DATABASE_CREATE_ALBUMS);
 		dbh.execSQL(DATABASE_CREATE_CONTRIBUTORS);
 		dbh.execSQL(DATABASE_CREATE_CONTRIBUTORS_SONGS);
 		dbh.execSQL(INDEX_IDX_CONTRIBUTORS_SONGS);
 		dbh.execSQL(DATABASE_CREATE_GENRES);
 		dbh.execSQL(DATABASE_CREATE_GENRES_SONGS);
+		dbh.execSQL(INDEX_IDX_GENRES_SONGS_SONG);
 		dbh.execSQL(DATABASE_CREATE_PLAYLISTS);
 		dbh.execSQL(DATABASE_CREATE_PLAYLISTS_SONGS);
 		dbh.execSQL(INDEX_IDX_PLAYLIST_ID);
 		dbh.execSQL(INDEX_IDX_PLAYLIST_ID_SONG);
+		dbh.execSQL(DATABASE_CREATE_DIRECTORIES);
+		dbh.execSQL(DATABASE_CREATE_SCAN_PLAN);
+		dbh.execSQL(DATABASE_CREATE_SONGS_SEARCH);
+		dbh.execSQL(DATABASE_CREATE_SONGS_FLAT);
+		dbh.execSQL(INDEX_IDX_SONGS_FLAT_ALBUM);
+		dbh.execSQL(INDEX_IDX_SONGS_FLAT_ARTIST);
+		dbh.execSQL(INDEX_IDX_SONGS_FLAT_ALBUMARTIST);
+		dbh.execSQL(INDEX_IDX_SONGS_FLAT_COMPOSER);
+		dbh.execSQL(INDEX_IDX_SONGS_FLAT_TITLE);
 		dbh.execSQL(VIEW_CREATE_SONGS_ALBUMS_ARTISTS);
 		dbh.execSQL(VIEW_CREATE_SONGS_ALBUMS_ARTISTS_HUGE);
 		dbh.execSQL(VIEW_CREATE_ALBUMS_ARTISTS);
 		dbh.execSQL(VIEW_CREATE_ARTISTS);
 		dbh.execSQL(VIEW_CREATE_ALBUMARTISTS);
 		dbh.execSQL(VIEW_CREATE_COMPOSERS);
-		dbh.execSQL(VIEW_CREATE_PLAYLIST_SONGS);
+		dbh.execSQL(VIEW_CREATE_PLAYLIST_SONGS_FLAT);
 	}
 
 	/**
@@ -320,6 +480,87 @@ public class MediaSchema {
 			dbh.execSQL(VIEW_CREATE_PLAYLIST_SONGS);
 		}
 
+		if (oldVersion < 20170701) {
+			dbh.execSQL(DATABASE_CREATE_DIRECTORIES);
+		}
+
+		if (oldVersion < 20170705) {
+			dbh.execSQL(INDEX_IDX_GENRES_SONGS_SONG);
+		}
+
+		if (oldVersion >= 20170101 && oldVersion < 20170710) {
+			// the scanner fills in the fingerprints of existing songs during the next scan
+			dbh.execSQL("ALTER TABLE "+MediaLibrary.TABLE_SONGS+" ADD COLUMN "+MediaLibrary.SongColumns.FINGERPRINT+" INTEGER");
+		}
+
+		if (oldVersion < 20170710) {
+			dbh.execSQL(INDEX_IDX_SONGS_FINGERPRINT);
+		}
+
+		if (oldVersion < 20170715) {
+			dbh.execSQL(DATABASE_CREATE_SCAN_PLAN);
+		}
+
+		if (oldVersion < 20170716) {
+			dbh.execSQL(DATABASE_CREATE_SONGS_SEARCH);
+			populateSongsSearch(dbh);
+		}
+
+		if (oldVersion < 20170717) {
+			dbh.execSQL(DATABASE_CREATE_SONGS_FLAT);
+			dbh.execSQL(POPULATE_SONGS_FLAT);
+			dbh.execSQL(INDEX_IDX_SONGS_FLAT_ALBUM);
+			dbh.execSQL(INDEX_IDX_SONGS_FLAT_ARTIST);
+			dbh.execSQL(INDEX_IDX_SONGS_FLAT_ALBUMARTIST);
+			dbh.execSQL(INDEX_IDX_SONGS_FLAT_COMPOSER);
+			dbh.execSQL(INDEX_IDX_SONGS_FLAT_TITLE);
+			dbh.execSQL("DROP VIEW "+MediaLibrary.VIEW_PLAYLIST_SONGS);
+			dbh.execSQL(VIEW_CREATE_PLAYLIST_SONGS_FLAT);
+		}
+
+	}
+
+	/**
+	 * Adds all existing songs to the full text index
+	 *
+	 * @param dbh the writeable dbh to use
+	 */
+	private static void populateSongsSearch(SQLiteDatabase dbh) {
+		String sql = "SELECT "+MediaLibrary.TABLE_SONGS+"."+MediaLibrary.SongColumns._ID
+		  +", "+MediaLibrary.SongColumns.TITLE
+		  +", "+MediaLibrary.AlbumColumns.ALBUM
+		  +", "+buildContributorSelect(MediaLibrary.ROLE_ARTIST)
+		  +", "+buildContributorSelect(MediaLibrary.ROLE_ALBUMARTIST)
+		  +", "+buildContributorSelect(MediaLibrary.ROLE_COMPOSER)
+		  +", (SELECT group_concat("+MediaLibrary.GenreColumns._GENRE+", '\n') FROM "+MediaLibrary.TABLE_GENRES_SONGS
+		  +" JOIN "+MediaLibrary.TABLE_GENRES+" ON "+MediaLibrary.TABLE_GENRES+"."+MediaLibrary.GenreColumns._ID+"="+MediaLibrary.GenreSongColumns._GENRE_ID
+		  +" WHERE "+MediaLibrary.GenreSongColumns.SONG_ID+"="+MediaLibrary.TABLE_SONGS+"."+MediaLibrary.SongColumns._ID+")"
+		  +" FROM "+MediaLibrary.TABLE_SONGS+" LEFT JOIN "+MediaLibrary.TABLE_ALBUMS
+		  +" ON "+MediaLibrary.TABLE_ALBUMS+"."+MediaLibrary.AlbumColumns._ID+"="+MediaLibrary.SongColumns.ALBUM_ID;
+
+		final String[] columns = { MediaLibrary.SearchColumns.TITLE, MediaLibrary.SearchColumns.ALBUM, MediaLibrary.SearchColumns.ARTIST,
+		                           MediaLibrary.SearchColumns.ALBUMARTIST, MediaLibrary.SearchColumns.COMPOSER, MediaLibrary.SearchColumns.GENRE };
+		ContentValues v = new ContentValues();
+		Cursor cursor = dbh.rawQuery(sql, null);
+		while (cursor.moveToNext()) {
+			v.clear();
+			v.put(MediaLibrary.SearchColumns.DOCID, cursor.getLong(0));
+			for (int i = 0; i < columns.length; i++) {
+				v.put(columns[i], MediaLibrary.searchTextFor(cursor.getString(i + 1)));
+			}
+			dbh.insert(MediaLibrary.TABLE_SONGS_SEARCH, null, v);
+		}
+		cursor.close();
+	}
+
+	/**
+	 * Returns a sub-select of the name of the first contributor of a song with given role
+	 */
+	private static String buildContributorSelect(int role) {
+		return "(SELECT "+MediaLibrary.ContributorColumns._CONTRIBUTOR+" FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS
+		  +" JOIN "+MediaLibrary.TABLE_CONTRIBUTORS+" ON "+MediaLibrary.TABLE_CONTRIBUTORS+"."+MediaLibrary.ContributorColumns._ID+"="+MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID
+		  +" WHERE "+MediaLibrary.ContributorSongColumns.SONG_ID+"="+MediaLibrary.TABLE_SONGS+"."+MediaLibrary.SongColumns._ID
+		  +" AND "+MediaLibrary.ContributorSongColumns.ROLE+"="+role+" LIMIT 1)";
 	}
 
 }
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2017 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.medialibrary;
+
+import android.database.Cursor;
+
+/**
+ * In-memory copy of the mtime, playcount and skipcount of all songs,
+ * and whether their fingerprint is known
+ *
+ * The scanner loads this index once per scan, so that checking a file
+ * for changes does not need a database query. Songs are keyed by their
+ * id, which is the hash63() of their path.
+ * This is an open addressing hash table using linear probing on plain
+ * arrays: a slot is empty if its mtime is 0, which is never the case
+ * for existing songs.
+ *
+ * All methods are synchronized as the index is read by the scan handler
+ * and modified by the writer of the scan pipeline.
+ */
+class MediaSongIndex {
+	/**
+	 * Initial number of slots, must be a power of two
+	 */
+	private static final int MIN_CAPACITY = 1024;
+	/**
+	 * Song ids
+	 */
+	private long[] mIds;
+	/**
+	 * Song mtimes in unixtime, 0 for empty slots
+	 */
+	private long[] mMtimes;
+	/**
+	 * Play counts of the songs
+	 */
+	private long[] mPlayCounts;
+	/**
+	 * Skip counts of the songs
+	 */
+	private long[] mSkipCounts;
+	/**
+	 * True if the fingerprint of the song was computed and stored in the database,
+	 * which is also the case if it is 0 as the file could not be read
+	 */
+	private boolean[] mFingerprinted;
+	/**
+	 * Number of songs in the index
+	 */
+	private int mSize;
+	/**
+	 * Shift to apply to the mixed id to get its home slot
+	 */
+	private int mShift;
+
+	/**
+	 * Creates a new index holding all songs of the library
+	 *
+	 * @param backend the backend to read the songs from
+	 */
+	MediaSongIndex(MediaLibraryBackend backend) {
+		reload(backend);
+	}
+
+	/**
+	 * Creates a new empty index
+	 */
+	MediaSongIndex() {
+		allocate(MIN_CAPACITY);
+	}
+
+	/**
+	 * Drops all entries and reads all songs from the library again
+	 *
+	 * @param backend the backend to read the songs from
+	 */
+	synchronized void reload(MediaLibraryBackend backend) {
+		final String[] projection = { MediaLibrary.SongColumns._ID, MediaLibrary.SongColumns.MTIME,
+		                              MediaLibrary.SongColumns.PLAYCOUNT, MediaLibrary.SongColumns.SKIPCOUNT,
+		                              MediaLibrary.SongColumns.FINGERPRINT+" IS NOT NULL" };
+		Cursor cursor = backend.query(false, MediaLibrary.TABLE_SONGS, projection, null, null, null, null, null, null);
+
+		int capacity = MIN_CAPACITY;
+		while (capacity < cursor.getCount() * 2)
+			capacity *= 2;
+		allocate(capacity);
+
+		while (cursor.moveToNext()) {
+			put(cursor.getLong(0), cursor.getLong(1), cursor.getLong(2), cursor.getLong(3), cursor.getInt(4) != 0);
+		}
+		cursor.close();
+	}
+
+	/**
+	 * Returns the mtime of a song
+	 *
+	 * @param id the song id
+	 * @return the mtime in unixtime, 0 if the song does not exist
+	 */
+	synchronized long getMtime(long id) {
+		int slot = find(id);
+		return (slot < 0 ? 0 : mMtimes[slot]);
+	}
+
+	/**
+	 * Returns the play count of a song
+	 *
+	 * @param id the song id
+	 * @return the play count, 0 if the song does not exist
+	 */
+	synchronized long getPlayCount(long id) {
+		int slot = find(id);
+		return (slot < 0 ? 0 : mPlayCounts[slot]);
+	}
+
+	/**
+	 * Returns the skip count of a song
+	 *
+	 * @param id the song id
+	 * @return the skip count, 0 if the song does not exist
+	 */
+	synchronized long getSkipCount(long id) {
+		int slot = find(id);
+		return (slot < 0 ? 0 : mSkipCounts[slot]);
+	}
+
+	/**
+	 * Returns true if the fingerprint of a song is stored in the database
+	 *
+	 * @param id the song id
+	 * @return false if the song has no fingerprint or does not exist
+	 */
+	synchronized boolean hasFingerprint(long id) {
+		int slot = find(id);
+		return (slot >= 0 && mFingerprinted[slot]);
+	}
+
+	/**
+	 * Records that the fingerprint of a song was stored in the database
+	 *
+	 * @param id the song id
+	 */
+	synchronized void setFingerprinted(long id) {
+		int slot = find(id);
+		if (slot >= 0)
+			mFingerprinted[slot] = true;
+	}
+
+	/**
+	 * Adds a song or replaces its values
+	 *
+	 * @param id the song id
+	 * @param mtime the mtime of the song in unixtime, songs with an mtime of 0 are not stored
+	 * @param playCount the play count of the song
+	 * @param skipCount the skip count of the song
+	 * @param fingerprinted true if the fingerprint of the song is stored in the database
+	 */
+	synchronized void put(long id, long mtime, long playCount, long skipCount, boolean fingerprinted) {
+		if (mtime == 0) {
+			// such rows are treated as non-existing by the scanner
+			remove(id);
+			return;
+		}
+
+		int slot = find(id);
+		if (slot < 0) {
+			if ((mSize + 1) * 2 > mIds.length)
+				grow();
+			slot = home(id);
+			while (mMtimes[slot] != 0)
+				slot = (slot + 1) & (mIds.length - 1);
+			mIds[slot] = id;
+			mSize++;
+		}
+		mMtimes[slot] = mtime;
+		mPlayCounts[slot] = playCount;
+		mSkipCounts[slot] = skipCount;
+		mFingerprinted[slot] = fingerprinted;
+	}
+
+	/**
+	 * Increments the play or skip count of a song, if it is in the index
+	 *
+	 * @param id the song id
+	 * @param played increments the play count if true, the skip count otherwise
+	 */
+	synchronized void incrementCount(long id, boolean played) {
+		int slot = find(id);
+		if (slot < 0)
+			return;
+
+		if (played)
+			mPlayCounts[slot]++;
+		else
+			mSkipCounts[slot]++;
+	}
+
+	/**
+	 * Removes a song from the index
+	 *
+	 * @param id the song id
+	 */
+	synchronized void remove(long id) {
+		int hole = find(id);
+		if (hole < 0)
+			return;
+
+		// Shift back all following entries which would no longer
+		// be reachable from their home slot once we empty `hole'
+		int mask = mIds.length - 1;
+		int slot = hole;
+		for (;;) {
+			slot = (slot + 1) & mask;
+			if (mMtimes[slot] == 0)
+				break;
+
+			int want = home(mIds[slot]);
+			boolean reachable = (hole <= slot ? (hole < want && want <= slot) : (hole < want || want <= slot));
+			if (reachable)
+				continue;
+
+			mIds[hole] = mIds[slot];
+			mMtimes[hole] = mMtimes[slot];
+			mPlayCounts[hole] = mPlayCounts[slot];
+			mSkipCounts[hole] = mSkipCounts[slot];
+			mFingerprinted[hole] = mFingerprinted[slot];
+			hole = slot;
+		}
+		mMtimes[hole] = 0;
+		mSize--;
+	}
+
+	/**
+	 * Returns the number of songs in the index
+	 */
+	synchronized int size() {
+		return mSize;
+	}
+
+	/**
+	 * Returns the slot holding given id, -1 if it is not in the index
+	 */
+	private int find(long id) {
+		int mask = mIds.length - 1;
+		for (int slot = home(id); mMtimes[slot] != 0; slot = (slot + 1) & mask) {
+			if (mIds[slot] == id)
+				return slot;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the first slot to probe for given id
+	 */
+	private int home(long id) {
+		// hash63() is a plain polynomial hash: mix it, so that
+		// similar paths do not end up in neighbouring slots
+		return (int)((id * 0x9E3779B97F4A7C15L) >>> mShift);
+	}
+
+	/**
+	 * Replaces all arrays by empty arrays with given number of slots
+	 */
+	private void allocate(int capacity) {
+		mIds = new long[capacity];
+		mMtimes = new long[capacity];
+		mPlayCounts = new long[capacity];
+		mSkipCounts = new long[capacity];
+		mFingerprinted = new boolean[capacity];
+		mShift = 64 - Integer.numberOfTrailingZeros(capacity);
+		mSize = 0;
+	}
+
+	/**
+	 * Doubles the number of slots, keeping all entries
+	 */
+	private void grow() {
+		long[] ids = mIds;
+		long[] mtimes = mMtimes;
+		long[] playCounts = mPlayCounts;
+		long[] skipCounts = mSkipCounts;
+		boolean[] fingerprinted = mFingerprinted;
+
+		allocate(ids.length * 2);
+		for (int i = 0; i < ids.length; i++) {
+			if (mtimes[i] != 0)
+				put(ids[i], mtimes[i], playCounts[i], skipCounts[i], fingerprinted[i]);
+		}
+	}
+}
@@ -19,8 +19,7 @@ package ch.blinkenlights.android.vanilla;
 
 import android.util.LruCache;
 import ch.blinkenlights.bastp.Bastp;
-import java.util.ArrayList;
-import java.util.HashMap;
+import ch.blinkenlights.bastp.TagSet;
 
 public class BastpUtil {
 	/**
@@ -70,22 +69,22 @@ public class BastpUtil {
 	 *  Parse given file and return track,album replay gain values
 	 */
 	private GainValues getReplayGainValuesFromFile(String path) {
-		HashMap tags  = (new Bastp()).getTags(path);
+		TagSet tags   = (new Bastp()).getTagSet(path);
 		GainValues gv = new GainValues();
 
 		// normal replay gain, add 5dB difference
-		if(tags.containsKey("REPLAYGAIN_TRACK_GAIN"))
-			gv.track = getFloatFromString((String)((ArrayList)tags.get("REPLAYGAIN_TRACK_GAIN")).get(0));
-		if(tags.containsKey("REPLAYGAIN_ALBUM_GAIN"))
-			gv.album = getFloatFromString((String)((ArrayList)tags.get("REPLAYGAIN_ALBUM_GAIN")).get(0));
+		if(tags.has(TagSet.REPLAYGAIN_TRACK_GAIN))
+			gv.track = getFloatFromString(tags.getFirst(TagSet.REPLAYGAIN_TRACK_GAIN));
+		if(tags.has(TagSet.REPLAYGAIN_ALBUM_GAIN))
+			gv.album = getFloatFromString(tags.getFirst(TagSet.REPLAYGAIN_ALBUM_GAIN));
 
 		// likely OPUS
-		if(tags.containsKey("R128_BASTP_BASE_GAIN"))
-			gv.base = 0.0f + getFloatFromString((String)((ArrayList)tags.get("R128_BASTP_BASE_GAIN")).get(0)) / 256.0f;
-		if(tags.containsKey("R128_TRACK_GAIN"))
-			gv.track = 5.0f + getFloatFromString((String)((ArrayList)tags.get("R128_TRACK_GAIN")).get(0)) / 256.0f;
-		if(tags.containsKey("R128_ALBUM_GAIN"))
-			gv.album = 5.0f + getFloatFromString((String)((ArrayList)tags.get("R128_ALBUM_GAIN")).get(0)) / 256.0f;
+		if(tags.has(TagSet.R128_BASTP_BASE_GAIN))
+			gv.base = 0.0f + getFloatFromString(tags.getFirst(TagSet.R128_BASTP_BASE_GAIN)) / 256.0f;
+		if(tags.has(TagSet.R128_TRACK_GAIN))
+			gv.track = 5.0f + getFloatFromString(tags.getFirst(TagSet.R128_TRACK_GAIN)) / 256.0f;
+		if(tags.has(TagSet.R128_ALBUM_GAIN))
+			gv.album = 5.0f + getFloatFromString(tags.getFirst(TagSet.R128_ALBUM_GAIN)) / 256.0f;
 
 		return gv;
 	}
@@ -31,6 +31,10 @@ import android.net.Uri;
 import android.os.Environment;
 import android.util.Log;
 
+import ch.blinkenlights.bastp.Bastp;
+import ch.blinkenlights.bastp.PictureInputStream;
+import ch.blinkenlights.bastp.TagSet;
+
 import java.io.ByteArrayOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
@@ -66,6 +70,10 @@ public class CoverCache {
 	 * Use vanilla musics SHADOW cover load mechanism
 	 */
 	public static final int COVER_MODE_SHADOW = 0x4;
+	/**
+	 * Use artwork embedded into the audio file
+	 */
+	public static final int COVER_MODE_EMBEDDED = 0x8;
 	/**
 	 * Shared on-disk cache class
 	 */
@@ -444,6 +452,16 @@ public class CoverCache {
 					}
 				}
 
+				if (inputStream == null && (CoverCache.mCoverLoadMode & CoverCache.COVER_MODE_EMBEDDED) != 0) {
+					// Bastp only tells us where the picture is: both streams decode
+					// straight from the audio file without buffering the image
+					TagSet tags = (new Bastp()).getTagSet(song.path);
+					if (tags.picture_offset > 0) {
+						sampleInputStream = new PictureInputStream(song.path, tags);
+						inputStream = new PictureInputStream(song.path, tags);
+					}
+				}
+
 				if (inputStream == null && (CoverCache.mCoverLoadMode & CoverCache.COVER_MODE_ANDROID) != 0) {
 					ContentResolver res = mContext.getContentResolver();
 					long[] androidIds = MediaUtils.getAndroidMediaIds(mContext, song);
@@ -47,13 +47,15 @@ public class Decoder {
     private boolean decoding = false;
     private boolean starting = false;
 
-	private AudioTrack mAudioTrack;
+	private volatile AudioTrack mAudioTrack;
 	private BitsPerSample mBitsPerSample;
 
 	private String mSource;
 	private int mSessionId = 0;
 	private long mTotalSamples = 0;
-	private long mBufferedSamples = 0;
+	private volatile long mBufferedSamples = 0;
+	// Published by the decoder thread, read by other threads which must not touch mAudioTrack
+	private volatile int mBufferedAheadMs = -1;
     private int mPlaybackHeadPosition = 0;
 
     private Thread decoderThread = null;
@@ -104,6 +106,7 @@ public class Decoder {
         }
 
         mBufferedSamples = 0;
+        mBufferedAheadMs = -1;
     }
 
 	public boolean isPlaying() {
@@ -175,16 +178,36 @@ public class Decoder {
 	public String getBufferInfo() {
 		String result = "";
 
-		final int sampleRate = getSampleRate();
-		if (mAudioTrack != null && sampleRate > 0) {
-			int bufferedMs = samplesToMs(mBufferedSamples, sampleRate);
-			int position = getCurrentPosition();
-			result = "Buffered ahead: " + (float) (bufferedMs - position) / 1000 + "s";
+		final int bufferedAheadMs = getBufferedAheadMs();
+		if (bufferedAheadMs != -1) {
+			result = "Buffered ahead: " + (float) bufferedAheadMs / 1000 + "s";
 		}
 
 		return result;
 	}
 
+	// Decoded audio ahead of the playback position in ms, -1 if unknown.
+	// Safe to call from any thread, the value is updated by the decoder thread.
+	public int getBufferedAheadMs() {
+		return mBufferedAheadMs;
+	}
+
+	// Called by the decoder thread after each write: setSource() only
+	// replaces the track once this thread was joined
+	private void publishBufferedAhead() {
+		int result = -1;
+		try {
+			final int sampleRate = mAudioTrack.getSampleRate();
+			if (sampleRate > 0) {
+				final int headPosition = mAudioTrack.getPlaybackHeadPosition();
+				result = samplesToMs(mBufferedSamples, sampleRate) - samplesToMs(headPosition, sampleRate);
+			}
+		} catch (IllegalStateException e) {
+			// track is not usable: report an unknown value
+		}
+		mBufferedAheadMs = result;
+	}
+
 	private int samplesToMs(int samples, int sampleRate) {
 		return samplesToMs(Long.valueOf(samples),  sampleRate);
 	}
@@ -297,6 +320,7 @@ public class Decoder {
 
 	private void setupAudioTrack(StreamInfo streamInfo) {
         Log.d(TAG, "setupAudioTrack()");
+		mBufferedAheadMs = -1;
 		if (mAudioTrack != null) {
 			mAudioTrack.stop();
 			mAudioTrack.flush();
@@ -373,6 +397,7 @@ public class Decoder {
 
 			mAudioTrack.write(data, processed, size, AudioTrack.WRITE_BLOCKING);
 			mBufferedSamples += size;
+			publishBufferedAhead();
 			processed += size;
 
 			if (starting) {
@@ -411,6 +436,7 @@ public class Decoder {
 
 			mAudioTrack.write(floats, 0, size, AudioTrack.WRITE_BLOCKING);
 			mBufferedSamples += size;
+			publishBufferedAhead();
 			processed += 3*size;
 
 			if (starting) {
@@ -592,6 +592,10 @@ public class FullPlaybackActivity extends SlidingPlaybackActivity
 			return "Ogg Vorbis";
 		} else if ("audio/flac".equals(mime)) {
 			return "FLAC";
+		} else if ("audio/opus".equals(mime)) {
+			return "Opus";
+		} else if ("audio/x-wav".equals(mime)) {
+			return "WAV";
 		}
 		return mime;
 	}
@@ -104,8 +104,19 @@ public class MediaAdapter
 	 */
 	private String[] mFields;
 	/**
-	 * The collation keys corresponding to each field. If provided, these are
-	 * used to speed up sorting and filtering.
+	 * The columns of MediaLibrary.TABLE_SONGS_SEARCH matched by the search box,
+	 * null to match mFields using LIKE.
+	 */
+	private String[] mSearchColumns;
+	/**
+	 * A select returning the ids of mSource from a select of song ids (%s),
+	 * null if mSource is a song view.
+	 */
+	private String mSearchLink;
+	/**
+	 * The collation keys matched using LIKE instead of the full text index
+	 * when listing mSource, null to use the index. Songs are still found
+	 * through the index.
 	 */
 	private String[] mFieldKeys;
 	/**
@@ -174,28 +185,32 @@ public class MediaAdapter
 		case MediaUtils.TYPE_ARTIST:
 			mSource = MediaLibrary.VIEW_ARTISTS;
 			mFields = new String[] { MediaLibrary.ContributorColumns.ARTIST };
-			mFieldKeys = new String[] { MediaLibrary.ContributorColumns.ARTIST_SORT };
+			mSearchColumns = new String[] { MediaLibrary.SearchColumns.ARTIST };
+			mSearchLink = "SELECT "+MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID+" FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS+" WHERE "+MediaLibrary.ContributorSongColumns.ROLE+"="+MediaLibrary.ROLE_ARTIST+" AND "+MediaLibrary.ContributorSongColumns.SONG_ID+" IN (%s)";
 			mSortEntries = new int[] { R.string.title, R.string.date_added };
 			mAdapterSortValues = new String[] { MediaLibrary.ContributorColumns.ARTIST_SORT+" %1$s", MediaLibrary.ContributorColumns.MTIME+" %1$s" };
 			break;
 		case MediaUtils.TYPE_ALBARTIST:
 			mSource = MediaLibrary.VIEW_ALBUMARTISTS;
 			mFields = new String[] { MediaLibrary.ContributorColumns.ALBUMARTIST };
-			mFieldKeys = new String[] { MediaLibrary.ContributorColumns.ALBUMARTIST_SORT };
+			mSearchColumns = new String[] { MediaLibrary.SearchColumns.ALBUMARTIST };
+			mSearchLink = "SELECT "+MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID+" FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS+" WHERE "+MediaLibrary.ContributorSongColumns.ROLE+"="+MediaLibrary.ROLE_ALBUMARTIST+" AND "+MediaLibrary.ContributorSongColumns.SONG_ID+" IN (%s)";
 			mSortEntries = new int[] { R.string.title, R.string.date_added };
 			mAdapterSortValues = new String[] { MediaLibrary.ContributorColumns.ALBUMARTIST_SORT+" %1$s", MediaLibrary.ContributorColumns.MTIME+" %1$s" };
 			break;
 		case MediaUtils.TYPE_COMPOSER:
 			mSource = MediaLibrary.VIEW_COMPOSERS;
 			mFields = new String[] { MediaLibrary.ContributorColumns.COMPOSER };
-			mFieldKeys = new String[] { MediaLibrary.ContributorColumns.COMPOSER_SORT };
+			mSearchColumns = new String[] { MediaLibrary.SearchColumns.COMPOSER };
+			mSearchLink = "SELECT "+MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID+" FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS+" WHERE "+MediaLibrary.ContributorSongColumns.ROLE+"="+MediaLibrary.ROLE_COMPOSER+" AND "+MediaLibrary.ContributorSongColumns.SONG_ID+" IN (%s)";
 			mSortEntries = new int[] { R.string.title, R.string.date_added };
 			mAdapterSortValues = new String[] { MediaLibrary.ContributorColumns.COMPOSER_SORT+" %1$s", MediaLibrary.ContributorColumns.MTIME+" %1$s" };
 			break;
 		case MediaUtils.TYPE_ALBUM:
 			mSource = MediaLibrary.VIEW_ALBUMS_ARTISTS;
 			mFields = new String[] { MediaLibrary.AlbumColumns.ALBUM, MediaLibrary.ContributorColumns.ARTIST };
-			mFieldKeys = new String[] { MediaLibrary.AlbumColumns.ALBUM_SORT, MediaLibrary.ContributorColumns.ARTIST_SORT };
+			mSearchColumns = new String[] { MediaLibrary.SearchColumns.ALBUM, MediaLibrary.SearchColumns.ARTIST };
+			mSearchLink = "SELECT "+MediaLibrary.SongColumns.ALBUM_ID+" FROM "+MediaLibrary.TABLE_SONGS+" WHERE "+MediaLibrary.SongColumns._ID+" IN (%s)";
 			mSortEntries = new int[] { R.string.title, R.string.artist_album, R.string.year, R.string.date_added };
 			mAdapterSortValues = new String[] { MediaLibrary.AlbumColumns.ALBUM_SORT+" %1$s", MediaLibrary.ContributorColumns.ARTIST_SORT+" %1$s,"+MediaLibrary.AlbumColumns.ALBUM_SORT+" %1$s",
 			                                    MediaLibrary.AlbumColumns.PRIMARY_ALBUM_YEAR+" %1$s", MediaLibrary.AlbumColumns.MTIME+" %1$s" };
@@ -203,7 +218,7 @@ public class MediaAdapter
 		case MediaUtils.TYPE_SONG:
 			mSource = MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS;
 			mFields = new String[] { MediaLibrary.SongColumns.TITLE, MediaLibrary.AlbumColumns.ALBUM, MediaLibrary.ContributorColumns.ARTIST };
-			mFieldKeys = new String[] { MediaLibrary.SongColumns.TITLE_SORT, MediaLibrary.AlbumColumns.ALBUM_SORT, MediaLibrary.ContributorColumns.ARTIST_SORT };
+			mSearchColumns = new String[] { MediaLibrary.SearchColumns.TITLE, MediaLibrary.SearchColumns.ALBUM, MediaLibrary.SearchColumns.ARTIST };
 			mSortEntries = new int[] { R.string.title, R.string.artist_album_track, R.string.artist_album_title, R.string.album_track, R.string.year, R.string.date_added, R.string.song_playcount };
 			mAdapterSortValues = new String[] { MediaLibrary.SongColumns.TITLE_SORT+" %1$s",
 			                                    MediaLibrary.ContributorColumns.ARTIST_SORT+" %1$s,"+MediaLibrary.AlbumColumns.ALBUM_SORT+" %1$s,"+MediaLibrary.SongColumns.DISC_NUMBER+","+MediaLibrary.SongColumns.SONG_NUMBER,
@@ -220,7 +235,6 @@ public class MediaAdapter
 		case MediaUtils.TYPE_PLAYLIST:
 			mSource = MediaLibrary.TABLE_PLAYLISTS;
 			mFields = new String[] { MediaLibrary.PlaylistColumns.NAME };
-			mFieldKeys = null;
 			mSortEntries = new int[] { R.string.title, R.string.date_added };
 			mAdapterSortValues = new String[] { MediaLibrary.PlaylistColumns.NAME+" %1$s", MediaLibrary.PlaylistColumns._ID+" %1$s" };
 			mExpandable = true;
@@ -228,6 +242,8 @@ public class MediaAdapter
 		case MediaUtils.TYPE_GENRE:
 			mSource = MediaLibrary.TABLE_GENRES;
 			mFields = new String[] { MediaLibrary.GenreColumns._GENRE };
+			mSearchColumns = new String[] { MediaLibrary.SearchColumns.GENRE };
+			// the index holds all genres of a song: match the name of each genre instead
 			mFieldKeys = new String[] { MediaLibrary.GenreColumns._GENRE_SORT };
 			mSortEntries = new int[] { R.string.title };
 			mAdapterSortValues = new String[] { MediaLibrary.GenreColumns._GENRE_SORT+" %1$s" };
@@ -315,7 +331,22 @@ public class MediaAdapter
 		String sort = String.format(sortRaw, sortDir);
 
 		// include the constraint (aka: search string) if any
-		if (constraint != null && constraint.length() != 0) {
+		if (constraint != null && constraint.length() != 0 && mSearchColumns != null && (mFieldKeys == null || returnSongs)) {
+			// every word must match: look each of them up in the full text index
+			String[] terms = MediaLibrary.searchTermsFor(constraint);
+			String songSelect = "SELECT "+MediaLibrary.SearchColumns.DOCID+" FROM "+MediaLibrary.TABLE_SONGS_SEARCH
+			                  + " WHERE "+MediaLibrary.TABLE_SONGS_SEARCH+" MATCH ?";
+			// the song views use the id of the song
+			String idSelect = (mSearchLink == null || returnSongs ? songSelect : String.format(mSearchLink, songSelect));
+
+			selectionArgs = new String[terms.length];
+			for (int j = 0; j != terms.length; ++j) {
+				selectionArgs[j] = MediaLibrary.searchMatchFor(mSearchColumns, terms[j]);
+				if (j != 0)
+					selection.append(" AND ");
+				selection.append(BaseColumns._ID+" IN ("+idSelect+")");
+			}
+		} else if (constraint != null && constraint.length() != 0) {
 			String[] needles;
 			String[] keySource;
 
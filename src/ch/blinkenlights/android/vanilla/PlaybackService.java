@@ -77,6 +77,7 @@ public final class PlaybackService extends Service
 			 , MediaPlayer.OnCompletionListener
 			 , MediaPlayer.OnErrorListener
 			 , SharedPreferences.OnSharedPreferenceChangeListener
+			 , MediaLibrary.PlaybackMonitor
 			 , SongTimeline.Callback
 			 , SensorEventListener
 			 , AudioManager.OnAudioFocusChangeListener
@@ -452,6 +453,7 @@ public final class PlaybackService extends Service
 		CoverCache.mCoverLoadMode = settings.getBoolean(PrefKeys.COVERLOADER_ANDROID, PrefDefaults.COVERLOADER_ANDROID) ? CoverCache.mCoverLoadMode | CoverCache.COVER_MODE_ANDROID : CoverCache.mCoverLoadMode & ~(CoverCache.COVER_MODE_ANDROID);
 		CoverCache.mCoverLoadMode = settings.getBoolean(PrefKeys.COVERLOADER_VANILLA, PrefDefaults.COVERLOADER_VANILLA) ? CoverCache.mCoverLoadMode | CoverCache.COVER_MODE_VANILLA : CoverCache.mCoverLoadMode & ~(CoverCache.COVER_MODE_VANILLA);
 		CoverCache.mCoverLoadMode = settings.getBoolean(PrefKeys.COVERLOADER_SHADOW , PrefDefaults.COVERLOADER_SHADOW)  ? CoverCache.mCoverLoadMode | CoverCache.COVER_MODE_SHADOW  : CoverCache.mCoverLoadMode & ~(CoverCache.COVER_MODE_SHADOW);
+		CoverCache.mCoverLoadMode = settings.getBoolean(PrefKeys.COVERLOADER_EMBEDDED, PrefDefaults.COVERLOADER_EMBEDDED) ? CoverCache.mCoverLoadMode | CoverCache.COVER_MODE_EMBEDDED : CoverCache.mCoverLoadMode & ~(CoverCache.COVER_MODE_EMBEDDED);
 
 		mHeadsetOnly = settings.getBoolean(PrefKeys.HEADSET_ONLY, PrefDefaults.HEADSET_ONLY);
 		mStockBroadcast = settings.getBoolean(PrefKeys.STOCK_BROADCAST, PrefDefaults.STOCK_BROADCAST);
@@ -483,6 +485,7 @@ public final class PlaybackService extends Service
 		registerReceiver(mReceiver, filter);
 
 		MediaLibrary.registerContentObserver(mObserver);
+		MediaLibrary.setPlaybackMonitor(this);
 
 		mRemoteControlClient = new RemoteControl().getClient(this);
 		mRemoteControlClient.initializeRemote();
@@ -574,6 +577,7 @@ public final class PlaybackService extends Service
 	public void onDestroy()
 	{
 		sInstance = null;
+		MediaLibrary.setPlaybackMonitor(null);
 
 		mLooper.quit();
 
@@ -859,6 +863,9 @@ public final class PlaybackService extends Service
 		} else if (PrefKeys.COVERLOADER_SHADOW.equals(key)) {
 			CoverCache.mCoverLoadMode = settings.getBoolean(PrefKeys.COVERLOADER_SHADOW, PrefDefaults.COVERLOADER_SHADOW) ? CoverCache.mCoverLoadMode | CoverCache.COVER_MODE_SHADOW : CoverCache.mCoverLoadMode & ~(CoverCache.COVER_MODE_SHADOW);
 			CoverCache.evictAll();
+		} else if (PrefKeys.COVERLOADER_EMBEDDED.equals(key)) {
+			CoverCache.mCoverLoadMode = settings.getBoolean(PrefKeys.COVERLOADER_EMBEDDED, PrefDefaults.COVERLOADER_EMBEDDED) ? CoverCache.mCoverLoadMode | CoverCache.COVER_MODE_EMBEDDED : CoverCache.mCoverLoadMode & ~(CoverCache.COVER_MODE_EMBEDDED);
+			CoverCache.evictAll();
 		} else if (PrefKeys.HEADSET_ONLY.equals(key)) {
 			mHeadsetOnly = settings.getBoolean(key, PrefDefaults.HEADSET_ONLY);
 			if (mHeadsetOnly && isSpeakerOn())
@@ -2305,6 +2312,7 @@ public final class PlaybackService extends Service
 	/**
 	 * Returns the playing status of the current song
 	 */
+	@Override
 	public boolean isPlaying() {
 		return (mState & FLAG_PLAYING) != 0;
 	}
@@ -2361,6 +2369,15 @@ public final class PlaybackService extends Service
 		return mMediaPlayer.getBufferInfo();
 	}
 
+	/**
+	 * Returns the number of milliseconds the decoder is ahead of the playback, -1 if unknown
+	 */
+	@Override
+	public int getBufferedAheadMs() {
+		VanillaMediaPlayer player = mMediaPlayer;
+		return (player == null ? -1 : player.getBufferedAheadMs());
+	}
+
 	/**
 	 * Do a 'hard' jump to given queue position
 	*/
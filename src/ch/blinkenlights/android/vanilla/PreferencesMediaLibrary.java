@@ -74,6 +74,10 @@ public class PreferencesMediaLibrary extends Fragment implements View.OnClickLis
 	 * The total listening time
 	 */
 	private TextView mStatsListenPlaytime;
+	/**
+	 * The performance report of the running or last scan
+	 */
+	private TextView mScanReport;
 	/**
 	 * A list of scanned media directories
 	 */
@@ -94,6 +98,10 @@ public class PreferencesMediaLibrary extends Fragment implements View.OnClickLis
 	 * Checkbox for targreader flavor
 	 */
 	private CheckBox mForceBastpCheck;
+	/**
+	 * Checkbox for the folder watcher
+	 */
+	private CheckBox mWatchFoldersCheck;
 	/**
 	 * Set if we should start a full scan due to option changes
 	 */
@@ -124,11 +132,13 @@ public class PreferencesMediaLibrary extends Fragment implements View.OnClickLis
 		mStatsTracks = (TextView)view.findViewById(R.id.media_stats_tracks);
 		mStatsLibraryPlaytime = (TextView)view.findViewById(R.id.media_stats_library_playtime);
 		mStatsListenPlaytime = (TextView)view.findViewById(R.id.media_stats_listen_playtime);
+		mScanReport = (TextView)view.findViewById(R.id.media_scan_report);
 		mMediaDirectories = (TextView)view.findViewById(R.id.media_directories);
 		mFullScanCheck = (CheckBox)view.findViewById(R.id.media_scan_full);
 		mDropDbCheck = (CheckBox)view.findViewById(R.id.media_scan_drop_db);
 		mGroupAlbumsCheck = (CheckBox)view.findViewById(R.id.media_scan_group_albums);
 		mForceBastpCheck = (CheckBox)view.findViewById(R.id.media_scan_force_bastp);
+		mWatchFoldersCheck = (CheckBox)view.findViewById(R.id.media_scan_watch_folders);
 
 		// Bind onClickListener to some elements
 		mStartButton.setOnClickListener(this);
@@ -136,6 +146,7 @@ public class PreferencesMediaLibrary extends Fragment implements View.OnClickLis
 		mEditButton.setOnClickListener(this);
 		mGroupAlbumsCheck.setOnClickListener(this);
 		mForceBastpCheck.setOnClickListener(this);
+		mWatchFoldersCheck.setOnClickListener(this);
 	}
 
 	@Override
@@ -203,6 +214,10 @@ public class PreferencesMediaLibrary extends Fragment implements View.OnClickLis
 			case R.id.media_scan_force_bastp:
 				confirmUpdatePreferences((CheckBox)view);
 				break;
+			case R.id.media_scan_watch_folders:
+				// does not change the library, so there is no need to warn
+				updatePreferences((CheckBox)view);
+				break;
 		}
 	}
 
@@ -251,11 +266,14 @@ public class PreferencesMediaLibrary extends Fragment implements View.OnClickLis
 			prefs.groupAlbumsByFolder = mGroupAlbumsCheck.isChecked();
 		if (checkbox == mForceBastpCheck)
 			prefs.forceBastp = mForceBastpCheck.isChecked();
+		if (checkbox == mWatchFoldersCheck)
+			prefs.watchFolders = mWatchFoldersCheck.isChecked();
 
 		MediaLibrary.setPreferences(getActivity(), prefs);
 
 		mGroupAlbumsCheck.setChecked(prefs.groupAlbumsByFolder);
 		mForceBastpCheck.setChecked(prefs.forceBastp);
+		mWatchFoldersCheck.setChecked(prefs.watchFolders);
 		mMediaDirectories.setText(getMediaFoldersDescription());
 	}
 
@@ -287,6 +305,7 @@ public class PreferencesMediaLibrary extends Fragment implements View.OnClickLis
 		mProgressText.setText(progress.lastFile);
 		mProgressBar.setMax(progress.total);
 		mProgressBar.setProgress(progress.seen);
+		mScanReport.setText(progress.report != null ? progress.report.toString() : "");
 
 		mStartButton.setEnabled(idle);
 		mEditButton.setEnabled(idle);
@@ -215,6 +215,10 @@ public class VanillaMediaPlayer {
 		return mDecoder.getBufferInfo();
 	}
 
+	public int getBufferedAheadMs() {
+		return mDecoder.getBufferedAheadMs();
+	}
+
 	public String getPlaybackBitsPerSample() {
 		return mDecoder.getPlaybackBitsPerSample();
 	}
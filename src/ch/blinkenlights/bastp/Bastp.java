@@ -28,14 +28,55 @@ import java.util.HashMap;
 
 public class Bastp {
 
+	/**
+	 * Read window shared by all files parsed by this instance, null to
+	 * allocate a new one per file
+	 */
+	private final byte[] window;
+
 	public Bastp() {
+		this.window = null;
+	}
+
+	/**
+	 * Creates an instance which re-uses its read window for every file.
+	 * Such an instance must only be used by one thread at a time.
+	 */
+	public Bastp(int window_size) {
+		this.window = new byte[window_size];
 	}
 
+	/**
+	 * Returns the tags of given file as a hash map
+	 *
+	 * Tags are stored as ArrayList<String> values of uppercase keys,
+	 * stream information uses lowercase keys.
+	 * This is a wrapper around getTagSet(), which should be preferred
+	 * as it does not decode values nobody asks for.
+	 */
 	public HashMap getTags(String fname) {
-		HashMap tags = new HashMap();
+		return getTagSet(fname).toHashMap();
+	}
+
+	/**
+	 * Same as getTags(String) but reads from an already opened file
+	 */
+	public HashMap getTags(RandomAccessFile s) {
+		return getTagSet(s).toHashMap();
+	}
+
+	/**
+	 * Returns the tags and stream information of given file,
+	 * the returned set is empty if the file could not be parsed
+	 */
+	public TagSet getTagSet(String fname) {
+		TagSet tags = new TagSet();
 		try {
-			RandomAccessFile ra = new RandomAccessFile(fname, "r");
-			tags = getTags(ra);
+			// the buffered file answers most seeks and reads from memory
+			BufferedRandomAccessFile ra = (window == null ? new BufferedRandomAccessFile(fname) : new BufferedRandomAccessFile(fname, window));
+			tags = getTagSet(ra);
+			tags.bytes_read = ra.getBytesRead();
+			tags.read_calls = ra.getReadCalls();
 			ra.close();
 		}
 		catch(Exception e) {
@@ -45,8 +86,11 @@ public class Bastp {
 		return tags;
 	}
 	
-	public HashMap getTags(RandomAccessFile s) {
-		HashMap tags = new HashMap();
+	/**
+	 * Same as getTagSet(String) but reads from an already opened file
+	 */
+	public TagSet getTagSet(RandomAccessFile s) {
+		TagSet tags = new TagSet();
 		byte[] file_ff = new byte[12];
 		
 		try {
@@ -54,33 +98,32 @@ public class Bastp {
 			String magic = new String(file_ff);
 			if(magic.substring(0,4).equals("fLaC")) {
 				tags = (new FlacFile()).getTags(s);
-				tags.put("type", "FLAC");
+				tags.type = "FLAC";
 			}
 			else if(magic.substring(0,4).equals("OggS")) {
 				// This may be an Opus OR an Ogg Vorbis file
 				tags = (new OpusFile()).getTags(s);
-				if (tags.size() > 0) {
-					tags.put("type", "OPUS");
+				if (!tags.isEmpty()) {
+					tags.type = "OPUS";
 				} else {
 					tags = (new OggFile()).getTags(s);
-					tags.put("type", "OGG");
+					tags.type = "OGG";
 				}
 			}
 			else if(file_ff[0] == -1 && file_ff[1] == -5) { /* aka 0xfffb in real languages */
 				tags = (new LameHeader()).getTags(s);
-				tags.put("type", "MP3/Lame");
+				tags.type = "MP3/Lame";
 			}
 			else if(magic.substring(0,3).equals("ID3")) {
 				tags = (new ID3v2File()).getTags(s);
-				if(tags.containsKey("_hdrlen")) {
-					Long hlen = Long.parseLong( tags.get("_hdrlen").toString(), 10 );
-					HashMap lameInfo = (new LameHeader()).parseLameHeader(s, hlen);
-					/* add tags from lame header if not already present */
-					inheritTag("REPLAYGAIN_TRACK_GAIN", lameInfo, tags);
-					inheritTag("REPLAYGAIN_ALBUM_GAIN", lameInfo, tags);
-					inheritTag("duration", lameInfo, tags);
+				/* fill in what ID3v2 did not provide from APEv2, Lyrics3 or ID3v1 tags */
+				TailTagFile tail = new TailTagFile();
+				tags.inherit(tail.getTags(s));
+				if(tags.header_len > 0) {
+					/* add replay gain and stream info from lame header if not already present */
+					tags.inherit((new LameHeader()).parseLameHeader(s, tags.header_len, tail.getTailStart()));
 				}
-				tags.put("type", "MP3/ID3v2");
+				tags.type = "MP3/ID3v2";
 			}
 			else if(magic.substring(4,8).equals("ftyp") && (
 				// see http://www.ftyps.com/ for all MP4 subtypes
@@ -91,11 +134,19 @@ public class Bastp {
 				magic.substring(8,12).equals("dash")    // IEC 23009-1 data
 			)) {
 				tags = (new Mp4File()).getTags(s);
-				tags.put("type", "MP4");
+				tags.type = "MP4";
+			}
+			else if(magic.substring(0,4).equals("RIFF") && magic.substring(8,12).equals("WAVE")) {
+				tags = (new RiffFile()).getTags(s);
+				tags.type = "WAV";
+			}
+			else if(magic.substring(0,4).equals("FORM") && (magic.substring(8,12).equals("AIFF") || magic.substring(8,12).equals("AIFC"))) {
+				tags = (new RiffFile()).getTags(s);
+				tags.type = "AIFF";
 			}
 			else if(magic.substring(0,4).equals("MThd")) {
 				tags = (new MidiFile()).getTags(s);
-				tags.put("type", "MIDI");
+				tags.type = "MIDI";
 			}
 
 		}
@@ -104,11 +155,4 @@ public class Bastp {
 		return tags;
 	}
 	
-	private void inheritTag(String key, HashMap from, HashMap to) {
-		if(!to.containsKey(key) && from.containsKey(key)) {
-			to.put(key, from.get(key));
-		}
-	}
-	
 }
-
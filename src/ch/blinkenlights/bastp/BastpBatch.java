@@ -0,0 +1,483 @@
+/*
+ * Copyright (C) 2017 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.bastp;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Parses many files at once on a bounded pool of worker threads
+ *
+ * Paths are queued using submit() and their results are returned by take()
+ * or poll(), either in submission order or in the order in which they
+ * completed. What is done with a file is up to the Parser of the batch,
+ * the TAGS parser simply returns the TagSet of the file.
+ * At most max_pending files may be queued or parsed but not yet taken:
+ * submit() blocks once this limit is reached, so a fast producer cannot
+ * run ahead of a slow consumer.
+ * Each worker thread owns a Bastp instance whose read window is re-used
+ * for every file it parses.
+ *
+ * Files may be submitted and taken on different threads, but there must
+ * be only one thread submitting and one thread taking files.
+ */
+public class BastpBatch<T> {
+	/**
+	 * The work done for each submitted file, called on a worker thread
+	 */
+	public interface Parser<T> {
+		/**
+		 * @param bastp the parser of the calling thread, which must be used to read tags
+		 * @param path the submitted file
+		 * @return the result of this file
+		 */
+		T parse(Bastp bastp, String path);
+	}
+
+	/**
+	 * Parser returning the tags of each file
+	 */
+	public static final Parser<TagSet> TAGS = new Parser<TagSet>() {
+		@Override
+		public TagSet parse(Bastp bastp, String path) {
+			return bastp.getTagSet(path);
+		}
+	};
+
+	/**
+	 * The result of a parsed file
+	 */
+	public static class Result<T> {
+		public final String path;
+		/**
+		 * The value returned by the parser, null if it failed
+		 */
+		public final T value;
+		/**
+		 * True if the file was dropped by cancel() before it was parsed
+		 */
+		public final boolean cancelled;
+
+		Result(String path, T value, boolean cancelled) {
+			this.path = path;
+			this.value = value;
+			this.cancelled = cancelled;
+		}
+	}
+
+	/**
+	 * Receives the results of process()
+	 */
+	public interface Listener<T> {
+		void onResult(String path, T value);
+	}
+
+	/**
+	 * A submitted file
+	 */
+	private class Task extends FutureTask<T> {
+		final String path;
+		/**
+		 * Set by the first of run() and cancelUnstarted()
+		 */
+		private final AtomicBoolean claimed = new AtomicBoolean();
+
+		Task(final String path) {
+			super(new Callable<T>() {
+				@Override
+				public T call() throws InterruptedException {
+					return parse(path);
+				}
+			});
+			this.path = path;
+		}
+
+		@Override
+		public void run() {
+			// a task claimed by cancelUnstarted() completes once it was cancelled
+			if (claimed.compareAndSet(false, true))
+				super.run();
+		}
+
+		/**
+		 * Cancels the task unless a worker thread already started it
+		 */
+		void cancelUnstarted() {
+			if (claimed.compareAndSet(false, true))
+				cancel(false);
+		}
+
+		@Override
+		protected void done() {
+			if (!ordered)
+				completed.add(this);
+		}
+	}
+
+	/**
+	 * The worker threads
+	 */
+	private final ExecutorService executor;
+	/**
+	 * What we do with each file
+	 */
+	private final Parser<T> parser;
+	/**
+	 * Tasks in submission order if results are ordered, guarded by `this'
+	 */
+	private final ArrayDeque<Task> pending = new ArrayDeque<Task>();
+	/**
+	 * Tasks in completion order if results are unordered
+	 */
+	private final LinkedBlockingQueue<Task> completed = new LinkedBlockingQueue<Task>();
+	/**
+	 * Tasks which were submitted but not yet taken, guarded by `this'
+	 */
+	private final HashSet<Task> active = new HashSet<Task>();
+	/**
+	 * True if results are returned in submission order
+	 */
+	private final boolean ordered;
+	/**
+	 * Permits for files which were submitted but not yet taken
+	 */
+	private final Semaphore pending_permits;
+	/**
+	 * Number of files which were submitted but not yet taken
+	 */
+	private final AtomicInteger outstanding = new AtomicInteger();
+	/**
+	 * Concurrency limits of volumes, keyed by path prefix.
+	 * The map is replaced as a whole, so that workers never see it change.
+	 */
+	private volatile Map<String, Semaphore> volume_limits = new LinkedHashMap<String, Semaphore>();
+	/**
+	 * Totals over all parsed files, see getStats()
+	 */
+	private final AtomicLong stat_files = new AtomicLong();
+	private final AtomicLong stat_bytes = new AtomicLong();
+	private final AtomicLong stat_calls = new AtomicLong();
+	private final AtomicLong stat_nanos = new AtomicLong();
+	/**
+	 * Number of parsed files and parse time per file type
+	 */
+	private final TreeMap<String, long[]> type_stats = new TreeMap<String, long[]>();
+	/**
+	 * Per-thread parser instances, each with its own read window.
+	 * They add every file parsed by path to the statistics.
+	 */
+	private final ThreadLocal<Bastp> parsers = new ThreadLocal<Bastp>() {
+		@Override
+		protected Bastp initialValue() {
+			return new Bastp(BufferedRandomAccessFile.DEFAULT_WINDOW_SIZE) {
+				@Override
+				public TagSet getTagSet(String fname) {
+					long start = System.nanoTime();
+					TagSet tags = super.getTagSet(fname);
+					addStats(tags, System.nanoTime() - start);
+					return tags;
+				}
+			};
+		}
+	};
+
+	/**
+	 * Creates a new batch parser
+	 *
+	 * @param threads the number of worker threads
+	 * @param max_pending how many files may be submitted before results must be taken
+	 * @param ordered true to return results in submission order, false to return them as they complete
+	 * @param parser the work to do for each file
+	 */
+	public BastpBatch(int threads, int max_pending, boolean ordered, Parser<T> parser) {
+		this.ordered = ordered;
+		this.parser = parser;
+		this.pending_permits = new Semaphore(Math.max(1, max_pending));
+		this.executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+			private int count = 0;
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "BastpBatch-" + (count++));
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY); // parsing must never starve playback
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Limits the number of files which are parsed concurrently below
+	 * given path. Slow or seek-bound media such as SD cards should get
+	 * a lower limit than fast internal storage. A prefix matches whole
+	 * path components only, if multiple prefixes match a file, the
+	 * longest one wins.
+	 * Files which are already being parsed keep the limit they started with.
+	 *
+	 * @param prefix the mount point of the volume
+	 * @param limit the maximal number of concurrently parsed files
+	 */
+	public synchronized void setVolumeLimit(String prefix, int limit) {
+		LinkedHashMap<String, Semaphore> limits = new LinkedHashMap<String, Semaphore>(volume_limits);
+		// "/sdcard/Music/" and "/sdcard/Music" are the same volume
+		while (prefix.endsWith("/"))
+			prefix = prefix.substring(0, prefix.length() - 1);
+		limits.put(prefix, new Semaphore(Math.max(1, limit)));
+		volume_limits = limits;
+	}
+
+	/**
+	 * Removes all volume limits
+	 */
+	public synchronized void clearVolumeLimits() {
+		volume_limits = new LinkedHashMap<String, Semaphore>();
+	}
+
+	/**
+	 * Queues a file for parsing, blocks while the number of
+	 * outstanding files is at its limit
+	 *
+	 * @param path the file to parse
+	 */
+	public void submit(String path) throws InterruptedException {
+		pending_permits.acquire();
+		outstanding.incrementAndGet();
+
+		Task task = new Task(path);
+		synchronized (this) {
+			active.add(task);
+			if (ordered) {
+				pending.add(task);
+				notifyAll();
+			}
+		}
+		executor.execute(task);
+	}
+
+	/**
+	 * Returns the next result, blocking until a file was submitted
+	 * and parsed
+	 *
+	 * @return the result
+	 */
+	public Result<T> take() throws InterruptedException {
+		Task task;
+		if (ordered) {
+			synchronized (this) {
+				while (pending.isEmpty())
+					wait();
+				task = pending.poll();
+			}
+		} else {
+			task = completed.take();
+		}
+		return finish(task);
+	}
+
+	/**
+	 * Returns the next result if it is available
+	 *
+	 * @return the result, null if the next file was not parsed yet
+	 */
+	public Result<T> poll() throws InterruptedException {
+		Task task;
+		if (ordered) {
+			synchronized (this) {
+				task = pending.peek();
+				if (task == null || !task.isDone())
+					return null;
+				pending.poll();
+			}
+		} else {
+			task = completed.poll();
+			if (task == null)
+				return null;
+		}
+		return finish(task);
+	}
+
+	/**
+	 * Drops all files which did not reach a worker thread yet.
+	 * They are still returned by take(), flagged as cancelled.
+	 * Files which are already being parsed are not interrupted
+	 * and return their result as usual.
+	 */
+	public synchronized void cancel() {
+		for (Task task : active)
+			task.cancelUnstarted();
+	}
+
+	/**
+	 * Returns the number of files which were submitted but not yet taken
+	 */
+	public int getOutstanding() {
+		return outstanding.get();
+	}
+
+	/**
+	 * Parses all given paths and passes their results to listener, which is
+	 * called on the calling thread. Returns once all files were handled.
+	 *
+	 * @param paths the files to parse
+	 * @param listener receives the results
+	 */
+	public void process(Iterator<String> paths, Listener<T> listener) throws InterruptedException {
+		while (paths.hasNext()) {
+			// never block in submit(): hand out a result instead
+			if (pending_permits.availablePermits() == 0)
+				deliver(take(), listener);
+			submit(paths.next());
+		}
+		while (getOutstanding() > 0)
+			deliver(take(), listener);
+	}
+
+	/**
+	 * Returns the I/O and time spent parsing all files so far as a single
+	 * line of space separated key=value pairs, which is easy to diff or to
+	 * parse. Per-type values are prefixed with the file type, e.g. FLAC.files.
+	 * Parse times are summed over all worker threads.
+	 */
+	public String getStats() {
+		long files = stat_files.get();
+		StringBuilder sb = new StringBuilder();
+		sb.append("files=").append(files);
+		sb.append(" bytes_read=").append(stat_bytes.get());
+		sb.append(" read_calls=").append(stat_calls.get());
+		sb.append(" parse_us=").append(stat_nanos.get() / 1000);
+		if (files > 0) {
+			sb.append(" bytes_per_file=").append(stat_bytes.get() / files);
+			sb.append(" calls_per_file=").append(stat_calls.get() / files);
+		}
+		synchronized (type_stats) {
+			for (Map.Entry<String, long[]> entry : type_stats.entrySet()) {
+				long[] v = entry.getValue();
+				sb.append(' ').append(entry.getKey()).append(".files=").append(v[0]);
+				sb.append(' ').append(entry.getKey()).append(".parse_us=").append(v[1] / 1000);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Stops all worker threads, pending results are lost
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Passes a result to the listener
+	 */
+	private void deliver(Result<T> result, Listener<T> listener) {
+		if (!result.cancelled)
+			listener.onResult(result.path, result.value);
+	}
+
+	/**
+	 * Returns the result of a finished task and releases its permit
+	 */
+	private Result<T> finish(Task task) throws InterruptedException {
+		Result<T> result;
+		try {
+			result = new Result<T>(task.path, task.get(), false);
+		} catch (CancellationException e) {
+			result = new Result<T>(task.path, null, true);
+		} catch (ExecutionException e) {
+			// the parser failed or the worker was interrupted
+			result = new Result<T>(task.path, null, false);
+		}
+		synchronized (this) {
+			active.remove(task);
+		}
+		outstanding.decrementAndGet();
+		pending_permits.release();
+		return result;
+	}
+
+	/**
+	 * Runs the parser on a worker thread, honoring the limit of the volume
+	 */
+	private T parse(String path) throws InterruptedException {
+		Semaphore limit = findVolumeLimit(path);
+		if (limit != null)
+			limit.acquire();
+		try {
+			return parser.parse(parsers.get(), path);
+		} finally {
+			if (limit != null)
+				limit.release();
+		}
+	}
+
+	/**
+	 * Adds a parsed file to the statistics
+	 */
+	private void addStats(TagSet tags, long nanos) {
+		stat_files.incrementAndGet();
+		stat_bytes.addAndGet(tags.bytes_read);
+		stat_calls.addAndGet(tags.read_calls);
+		stat_nanos.addAndGet(nanos);
+
+		String type = (tags.type == null ? "UNKNOWN" : tags.type);
+		synchronized (type_stats) {
+			long[] v = type_stats.get(type);
+			if (v == null) {
+				v = new long[2];
+				type_stats.put(type, v);
+			}
+			v[0]++;
+			v[1] += nanos;
+		}
+	}
+
+	/**
+	 * Returns the limit of the volume holding path, null if there is none
+	 */
+	Semaphore findVolumeLimit(String path) {
+		Semaphore best = null;
+		int best_len = -1;
+		Map<String, Semaphore> limits = volume_limits;
+		for (Map.Entry<String, Semaphore> entry : limits.entrySet()) {
+			String prefix = entry.getKey();
+			// "/storage/ABCD" must not match "/storage/ABCD-1234/..."
+			if (prefix.length() > best_len && (path.equals(prefix) || path.startsWith(prefix + "/"))) {
+				best = entry.getValue();
+				best_len = prefix.length();
+			}
+		}
+		return best;
+	}
+
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2017 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.bastp;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+
+/**
+ * A RandomAccessFile which serves reads from an in-memory window
+ *
+ * The tag parsers seek around a lot and usually only read a few bytes
+ * at a time. This class reads a whole region of the file in one go
+ * and answers all seek() and read() calls falling into this region
+ * without touching the filesystem. A read outside of the window
+ * causes the window to be re-filled at the new position while reads
+ * larger than the window bypass it completely.
+ */
+public class BufferedRandomAccessFile extends RandomAccessFile {
+	/**
+	 * The default size of the read window
+	 */
+	public static final int DEFAULT_WINDOW_SIZE = 32 * 1024;
+	/**
+	 * The in-memory copy of the file region at window_start
+	 */
+	private final byte[] window;
+	/**
+	 * File offset of the first byte in window
+	 */
+	private long window_start = 0;
+	/**
+	 * Number of valid bytes in window
+	 */
+	private int window_len = 0;
+	/**
+	 * The virtual file pointer
+	 */
+	private long pos = 0;
+	/**
+	 * Cached length of the file, -1 if unknown
+	 */
+	private long file_len = -1;
+	/**
+	 * Number of bytes read from the filesystem
+	 */
+	private long bytes_read = 0;
+	/**
+	 * Number of read() calls which went to the filesystem
+	 */
+	private int read_calls = 0;
+
+	public BufferedRandomAccessFile(String fname) throws IOException {
+		this(fname, DEFAULT_WINDOW_SIZE);
+	}
+
+	public BufferedRandomAccessFile(String fname, int window_size) throws IOException {
+		this(fname, new byte[window_size]);
+	}
+
+	/**
+	 * Opens a file using an existing window buffer, so that a thread
+	 * parsing many files does not need to allocate a new one each time.
+	 * The buffer must not be used by anyone else until this file is closed.
+	 */
+	public BufferedRandomAccessFile(String fname, byte[] window) throws IOException {
+		super(fname, "r");
+		this.window = window;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!inWindow(pos) && fill(pos) == 0)
+			return -1;
+		return window[(int)(pos++ - window_start)] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b) throws IOException {
+		return read(b, 0, b.length);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int done = 0;
+		while (done < len) {
+			if (inWindow(pos)) {
+				int woff = (int)(pos - window_start);
+				int chunk = Math.min(len - done, window_len - woff);
+				System.arraycopy(window, woff, b, off + done, chunk);
+				pos += chunk;
+				done += chunk;
+			} else if (len - done >= window.length) {
+				// large read: do not bother to copy it through the window
+				super.seek(pos);
+				int bread = super.read(b, off + done, len - done);
+				read_calls++;
+				if (bread <= 0)
+					break;
+				bytes_read += bread;
+				pos += bread;
+				done += bread;
+			} else if (fill(pos) == 0) {
+				break; // EOF
+			}
+		}
+		return (done == 0 && len > 0 ? -1 : done);
+	}
+
+	@Override
+	public void seek(long offset) throws IOException {
+		if (offset < 0)
+			throw new IOException("Negative seek offset");
+		pos = offset;
+	}
+
+	@Override
+	public long getFilePointer() throws IOException {
+		return pos;
+	}
+
+	@Override
+	public int skipBytes(int n) throws IOException {
+		if (n <= 0)
+			return 0;
+		long newpos = Math.min(pos + n, length());
+		int skipped = (int)(newpos - pos);
+		pos = newpos;
+		return skipped;
+	}
+
+	@Override
+	public long length() throws IOException {
+		if (file_len < 0)
+			file_len = super.length();
+		return file_len;
+	}
+
+	/**
+	 * Returns the number of bytes which were read from the filesystem,
+	 * including the parts of the window which were never used
+	 */
+	public long getBytesRead() {
+		return bytes_read;
+	}
+
+	/**
+	 * Returns the number of read calls which hit the filesystem
+	 */
+	public int getReadCalls() {
+		return read_calls;
+	}
+
+	/**
+	 * Returns true if given offset is served by the current window
+	 */
+	private boolean inWindow(long offset) {
+		return offset >= window_start && offset < window_start + window_len;
+	}
+
+	/**
+	 * Re-fills the window, starting at given offset
+	 *
+	 * @param offset the file offset to read from
+	 * @return the number of bytes now in the window
+	 */
+	private int fill(long offset) throws IOException {
+		super.seek(offset);
+		int bread = super.read(window, 0, window.length);
+		window_start = offset;
+		window_len = (bread > 0 ? bread : 0);
+		read_calls++;
+		bytes_read += window_len;
+		return window_len;
+	}
+
+}
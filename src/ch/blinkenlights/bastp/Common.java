@@ -20,11 +20,25 @@ package ch.blinkenlights.bastp;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.HashMap;
-import java.util.ArrayList;
 
 public class Common {
 	private static final int MAX_COMMENT_SIZE = 512;
+	/**
+	 * The picture type of front covers, as used by APIC frames and FLAC PICTURE blocks
+	 */
+	public static final int PICTURE_TYPE_FRONT_COVER = 3;
+	/**
+	 * The vorbis comment holding a base64 encoded FLAC PICTURE block
+	 */
+	private static final String VORBIS_PICTURE_KEY = "METADATA_BLOCK_PICTURE";
+	/**
+	 * Scratch buffer used by raf2le32
+	 */
+	private final byte[] scratch32 = new byte[4];
+	/**
+	 * Buffer holding the vorbis comment being parsed, its contents are copied by TagSet
+	 */
+	private final byte[] comment_buf = new byte[MAX_COMMENT_SIZE];
 
 	/**
 	 * Returns a 32bit int from given byte offset in LE
@@ -41,10 +55,23 @@ public class Common {
 	 * Same as b2le32 but reads from a RandomAccessFile instead of a buffer
 	 */
 	public int raf2le32(RandomAccessFile fh, long off) throws IOException {
-		byte[] scratch = new byte[4];
 		fh.seek(off);
-		fh.read(scratch);
-		return b2le32(scratch, 0);
+		fh.read(scratch32);
+		return b2le32(scratch32, 0);
+	}
+
+	/**
+	 * Returns a 64bit long from given byte offset in LE
+	 */
+	public long b2le64(byte[] b, int off) {
+		return ((long)b2le32(b, off+4) << 32) | (b2le32(b, off) & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Same as b2be32 but reads from a RandomAccessFile instead of a buffer
+	 */
+	public int raf2be32(RandomAccessFile fh, long off) throws IOException {
+		return swap32(raf2le32(fh, off));
 	}
 
 	public int b2be32(byte[] b, int off) {
@@ -83,8 +110,8 @@ public class Common {
 		throw new IOException(reason);
 	}
 
-	public HashMap parse_vorbis_comment(RandomAccessFile fh, PageInfo.PageParser pp, long offset, long payload_len) throws IOException {
-		HashMap tags = new HashMap();
+	public TagSet parse_vorbis_comment(RandomAccessFile fh, PageInfo.PageParser pp, long offset, long payload_len) throws IOException {
+		TagSet tags = new TagSet();
 		long last_byte = offset + payload_len;
 
 		// skip vendor string in format: [LEN][VENDOR_STRING] -> 4 = LEN = 32bit int
@@ -103,13 +130,22 @@ public class Common {
 
 			if (do_read >= 3) {
 				int bsize = (do_read > MAX_COMMENT_SIZE ? MAX_COMMENT_SIZE : do_read);
-				byte[] data = new byte[bsize];
 				fh.seek(offset);
-				fh.read(data);
-				String   tag_raw = new String(data);
-				String[] tag_vec = tag_raw.split("=", 2);
-				String   tag_key = tag_vec[0].toUpperCase();
-				addTagEntry(tags, tag_key, tag_vec[1]);
+				fh.read(comment_buf, 0, bsize);
+				int eq = 0;
+				while (eq < bsize && comment_buf[eq] != '=')
+					eq++;
+				if (eq == VORBIS_PICTURE_KEY.length() && do_read == comment_len && isPictureKey(comment_buf)) {
+					// only record the location: the payload may be huge and
+					// is decoded on demand by PictureInputStream
+					long pic_offset = offset + eq + 1;
+					long pic_length = comment_len - eq - 1;
+					int pic_type = PictureInputStream.peekPictureType(comment_buf, eq + 1, bsize - eq - 1);
+					addPictureInfo(tags, pic_type, pic_offset, pic_length, true);
+				} else if (eq < bsize) {
+					// values are only decoded if someone asks for them
+					tags.addRaw(comment_buf, 0, eq, eq + 1, bsize - eq - 1, TagSet.ENC_UTF8);
+				}
 			}
 
 			// set offset to begin of next tag (OR the end of this page!)
@@ -142,15 +178,60 @@ public class Common {
 		return tags;
 	}
 
-	public void addTagEntry(HashMap tags, String key, String value) {
-		if(tags.containsKey(key)) {
-			((ArrayList)tags.get(key)).add(value); // just add to existing vector
-		}
-		else {
-			ArrayList l = new ArrayList<String>();
-			l.add(value);
-			tags.put(key, l);
+	/**
+	 * Returns true if the comment in 'b' starts with the (case insensitive) picture key
+	 */
+	private boolean isPictureKey(byte[] b) {
+		for (int i = 0; i < VORBIS_PICTURE_KEY.length(); i++) {
+			if (Character.toUpperCase((char)b[i]) != VORBIS_PICTURE_KEY.charAt(i))
+				return false;
 		}
+		return true;
 	}
-	
+
+	/**
+	 * Records the location of an embedded picture in the tag set.
+	 * The first picture is kept unless a front cover shows up later.
+	 *
+	 * @param tags the tag set to populate
+	 * @param picture_type the type of the picture, -1 if unknown
+	 * @param offset the file offset of the picture data
+	 * @param length the length of the picture data in bytes
+	 * @param base64 true if the data is a base64 encoded FLAC PICTURE block
+	 */
+	public void addPictureInfo(TagSet tags, int picture_type, long offset, long length, boolean base64) {
+		if (offset <= 0 || length <= 0)
+			return;
+		if (tags.picture_offset > 0 &&
+		    (picture_type != PICTURE_TYPE_FRONT_COVER || tags.picture_type == PICTURE_TYPE_FRONT_COVER))
+			return;
+
+		tags.picture_type = picture_type;
+		tags.picture_offset = offset;
+		tags.picture_length = length;
+		tags.picture_base64 = base64;
+	}
+
+	/**
+	 * Adds information about the audio stream to the tag set
+	 *
+	 * @param tags the tag set to populate
+	 * @param duration_ms the duration of the stream in milliseconds
+	 * @param sampling_rate the sampling rate in Hz, ignored if <= 0
+	 * @param channels the number of channels, ignored if <= 0
+	 * @param stream_bytes size of the audio payload in bytes, used to calculate the average bitrate
+	 */
+	public void addStreamInfo(TagSet tags, long duration_ms, int sampling_rate, int channels, long stream_bytes) {
+		if (duration_ms <= 0)
+			return;
+
+		tags.duration_ms = duration_ms;
+		if (sampling_rate > 0)
+			tags.sampling_rate = sampling_rate;
+		if (channels > 0)
+			tags.channels = channels;
+		if (stream_bytes * 8 * 1000 >= duration_ms)
+			tags.bitrate = (int)(stream_bytes * 8 * 1000 / duration_ms);
+	}
+
 }
@@ -26,39 +26,62 @@ import java.util.Enumeration;
 public class FlacFile extends Common implements PageInfo.PageParser {
 	private static final int FLAC_TYPE_STREAMINFO = 0; // Basic info about the stream
 	private static final int FLAC_TYPE_COMMENT = 4;   // ID of 'VorbisComment's
+	private static final int FLAC_TYPE_PICTURE = 6;   // Embedded pictures
 	
 	public FlacFile() {
 	}
 	
-	public HashMap getTags(RandomAccessFile s) throws IOException {
+	public TagSet getTags(RandomAccessFile s) throws IOException {
 		int xoff  = 4;  // skip file magic
 		int retry = 64;
 		boolean need_infos = true;
 		boolean need_tags = true;
+		long audio_offset = 0;
 		HashMap infos = new HashMap();
-		HashMap tags = new HashMap();
+		TagSet tags = new TagSet();
+		TagSet pictures = new TagSet();
 
-		for(; retry > 0; retry--) {
-			PageInfo pi = parse_stream_page(s, xoff);
-			if(pi.type == FLAC_TYPE_STREAMINFO) {
-				infos = parse_streaminfo_block(s, xoff+pi.header_len, pi.payload_len);
-				need_infos = false;
-			}
-			if(pi.type == FLAC_TYPE_COMMENT) {
-				tags = parse_vorbis_comment(s, this, xoff+pi.header_len, pi.payload_len);
-				need_tags = false;
-			}
+		// Walk all metadata blocks: the end of the last block is where the audio data begins.
+		// This only reads the block headers and is cheap as the payload of blocks we do not
+		// care about is skipped, PICTURE blocks only have their location recorded.
+		try {
+			for(; retry > 0; retry--) {
+				PageInfo pi = parse_stream_page(s, xoff);
+				if(pi.type == FLAC_TYPE_STREAMINFO) {
+					infos = parse_streaminfo_block(s, xoff+pi.header_len, pi.payload_len);
+					need_infos = false;
+				}
+				if(pi.type == FLAC_TYPE_COMMENT) {
+					tags = parse_vorbis_comment(s, this, xoff+pi.header_len, pi.payload_len);
+					need_tags = false;
+				}
+				if(pi.type == FLAC_TYPE_PICTURE) {
+					parse_picture_block(s, xoff+pi.header_len, pi.payload_len, pictures);
+				}
+
+				// calculate next offset
+				xoff += pi.header_len + pi.payload_len;
 
-			if(pi.last_page == true || (need_tags == false && need_infos == false))
-				break; // eof reached
+				if(pi.last_page == true) {
+					audio_offset = xoff;
+					break; // eof reached
+				}
+			}
+		} catch(IOException e) {
+			// a damaged block after the ones we care about only costs us the audio offset
+			if(need_tags == true || need_infos == true)
+				throw e;
+		}
 
-			// else: calculate next offset
-			xoff += pi.header_len + pi.payload_len;
+		// Native PICTURE blocks win over pictures embedded into the vorbis comment
+		if(pictures.picture_offset > 0) {
+			tags.copyPicture(pictures);
 		}
 
-		// Copy duration to final hashmap if found in infoblock
-		if(infos.containsKey("duration")) {
-			tags.put("duration", infos.get("duration"));
+		// Copy stream information to the tag set if found in infoblock
+		if(infos.containsKey("duration_ms")) {
+			long stream_bytes = (audio_offset > 0 ? s.length() - audio_offset : 0);
+			addStreamInfo(tags, (Long)infos.get("duration_ms"), (Integer)infos.get("sampling_rate"), (Integer)infos.get("channels"), stream_bytes);
 		}
 
 		return tags;
@@ -91,6 +114,23 @@ public class FlacFile extends Common implements PageInfo.PageParser {
 		return pi;
 	}
 
+	/*
+	 ** Records the location of the picture data of a PICTURE block
+	 **/
+	private void parse_picture_block(RandomAccessFile s, long offset, long pl_len, TagSet pictures) throws IOException {
+		long pos = offset;
+		int picture_type = raf2be32(s, pos);
+		pos += 8 + (raf2be32(s, pos+4) & 0xFFFFFFFFL);  // skip type and mime string
+		pos += 4 + (raf2be32(s, pos) & 0xFFFFFFFFL);    // skip description
+		pos += 16;                                      // width, height, depth and colors
+		long data_len = raf2be32(s, pos) & 0xFFFFFFFFL;
+		pos += 4;
+
+		if(pos + data_len <= offset + pl_len) {
+			addPictureInfo(pictures, picture_type, pos, data_len, false);
+		}
+	}
+
 	/*
 	 ** Returns a hashma with parsed vorbis identification header data
 	 **/
@@ -107,10 +147,10 @@ public class FlacFile extends Common implements PageInfo.PageParser {
 			id_hash.put("framesize_maximal", (b2be32(buff, 7)  >> 8));
 			id_hash.put("sampling_rate",     (b2be32(buff, 10) >> 12));
 			id_hash.put("channels",          ((b2be32(buff, 10) >> 9) & 7) + 1); // 3 bits
-			id_hash.put("num_samples",       b2be32(buff, 14)); // fixme: this is actually 36 bit: the 4 hi bits are discarded due to java
+			id_hash.put("num_samples",       ((long)(b2u(buff[13]) & 0x0F) << 32) | (b2be32(buff, 14) & 0xFFFFFFFFL)); // 36 bit
 			if((Integer)id_hash.get("sampling_rate") > 0) {
-				int duration = (Integer)id_hash.get("num_samples") / (Integer)id_hash.get("sampling_rate");
-				id_hash.put("duration", (int)duration);
+				long duration_ms = (Long)id_hash.get("num_samples") * 1000 / (Integer)id_hash.get("sampling_rate");
+				id_hash.put("duration_ms", duration_ms);
 			}
 		}
 		return id_hash;
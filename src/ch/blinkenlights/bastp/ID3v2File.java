@@ -30,23 +30,53 @@ public class ID3v2File extends Common {
 	private static final int ID3_ENC_UTF16   = 0x01;
 	private static final int ID3_ENC_UTF16BE = 0x02;
 	private static final int ID3_ENC_UTF8    = 0x03;
+	private static final int ID3_HDR_FLAG_UNSYNC = 0x80; // the whole tag is unsynchronized
+	private static final int ID3_MAX_APIC_HEADER = 512;  // we give up on pictures with longer descriptions
+	
+	// mapping between text frames and tag slots
+	private static final HashMap<String, Integer> FRAME_SLOTS;
+	static {
+		FRAME_SLOTS = new HashMap<String, Integer>();
+		FRAME_SLOTS.put("TIT2", TagSet.TITLE);
+		FRAME_SLOTS.put("TALB", TagSet.ALBUM);
+		FRAME_SLOTS.put("TPE1", TagSet.ARTIST);
+		FRAME_SLOTS.put("TPE2", TagSet.ALBUMARTIST);
+		FRAME_SLOTS.put("TYER", TagSet.YEAR);
+		FRAME_SLOTS.put("TPOS", TagSet.DISCNUMBER);
+		FRAME_SLOTS.put("TRCK", TagSet.TRACKNUMBER);
+		FRAME_SLOTS.put("TCON", TagSet.GENRE);
+		FRAME_SLOTS.put("TCOM", TagSet.COMPOSER);
+	}
+	
+	// true if the frame payloads may not be used as-is
+	private boolean tag_unsynchronized = false;
+	// payload of the current text frame, grown as needed
+	private byte[] frame_buf = new byte[256];
 	
 	public ID3v2File() {
 	}
 	
-	public HashMap getTags(RandomAccessFile s) throws IOException {
-		HashMap tags = new HashMap();
+	public TagSet getTags(RandomAccessFile s) throws IOException {
+		return getTags(s, 0);
+	}
+	
+	/* Parses the ID3v2 tag starting at 'offset', which is
+	** not 0 if the tag is embedded into a container such as RIFF
+	*/
+	public TagSet getTags(RandomAccessFile s, long offset) throws IOException {
+		TagSet tags;
 		
 		final int v2hdr_len = 10;
 		byte[] v2hdr = new byte[v2hdr_len];
 		
 		// read the whole 10 byte header into memory
-		s.seek(0);
+		s.seek(offset);
 		s.read(v2hdr);
 		
 		int v3minor = ((b2be32(v2hdr,0))) & 0xFF;   // swapped ID3\04 -> ver. ist the first byte
 		int v3len   = ((b2be32(v2hdr,6)));          // total size EXCLUDING the this 10 byte header
 		v3len       = unsyncsafe(v3len);
+		tag_unsynchronized = (v2hdr[5] & ID3_HDR_FLAG_UNSYNC) != 0;
 		
 		// debug(">> tag version ID3v2."+v3minor);
 		// debug(">> LEN= "+v3len+" // "+v3len);
@@ -54,7 +84,7 @@ public class ID3v2File extends Common {
 		// we should already be at the first frame
 		// so we can start the parsing right now
 		tags = parse_v3_frames(s, v3len, v3minor);
-		tags.put("_hdrlen", v3len+v2hdr_len);
+		tags.header_len = v3len+v2hdr_len;
 		return tags;
 	}
 
@@ -72,8 +102,8 @@ public class ID3v2File extends Common {
 	/* Parses all ID3v2 frames at the current position up until payload_len
 	** bytes were read
 	*/
-	public HashMap parse_v3_frames(RandomAccessFile s, long payload_len, int v3minor) throws IOException {
-		HashMap tags = new HashMap();
+	public TagSet parse_v3_frames(RandomAccessFile s, long payload_len, int v3minor) throws IOException {
+		TagSet tags = new TagSet();
 		byte[] frame   = new byte[10]; // a frame header is always 10 bytes
 		long bread     = 0;            // total amount of read bytes
 
@@ -89,94 +119,169 @@ public class ID3v2File extends Common {
 			if(slen < 1 || slen > (bytesRemaining))
 				break;
 			
-			byte[] xpl = new byte[slen];
-			bread += s.read(xpl);
-			
-			if(framename.substring(0,1).equals("T")) {
-				String[] nmzInfo = normalizeTaginfo(framename, xpl);
-				String oggKey = nmzInfo[0];
-				String decPld = nmzInfo[1];
-				
-				if(oggKey.length() > 0 && !tags.containsKey(oggKey)) {
-					addTagEntry(tags, oggKey, decPld);
-				}
+			// Pictures are not copied into memory: we only record their location
+			if(framename.equals("APIC")) {
+				long frame_start = s.getFilePointer();
+				parse_apic_frame(s, tags, frame, slen, v3minor);
+				s.seek(frame_start + slen);
+				bread += slen;
+				continue;
 			}
-			else if(framename.equals("RVA2")) {
-				//
+
+			// Only text frames are of any interest: skip everything else
+			// without copying it into memory
+			if(framename.charAt(0) != 'T') {
+				s.seek(s.getFilePointer() + slen);
+				bread += slen;
+				continue;
 			}
+
+			if(frame_buf.length < slen)
+				frame_buf = new byte[Math.max(slen, frame_buf.length * 2)];
+			bread += s.read(frame_buf, 0, slen);
 			
+			addTextFrame(tags, framename, frame_buf, slen);
 		}
 		return tags;
 	}
 	
-	/* Converts ID3v2 sillyframes to OggNames */
-	private String[] normalizeTaginfo(String k, byte[] v) {
-		String[] rv = new String[] {"",""};
-		HashMap lu = new HashMap<String, String>();
-		lu.put("TIT2", "TITLE");
-		lu.put("TALB", "ALBUM");
-		lu.put("TPE1", "ARTIST");
-		lu.put("TPE2", "ALBUMARTIST");
-		lu.put("TYER", "YEAR");
-		lu.put("TPOS", "DISCNUMBER");
-		lu.put("TRCK", "TRACKNUMBER");
-		lu.put("TCON", "GENRE");
-		lu.put("TCOM", "COMPOSER");
+	/* Records the location of the picture data of the APIC frame
+	** at the current position
+	*/
+	private void parse_apic_frame(RandomAccessFile s, TagSet tags, byte[] frame, int slen, int v3minor) throws IOException {
+		int flags = b2u(frame[9]);
+		long data_start = s.getFilePointer();
+		int hdr_len = 0;
+
+		if(v3minor >= 4) {
+			// data length indicator: 4 bytes to skip, anything else alters the payload
+			if((flags & ~0x01) != 0)
+				return;
+			if((flags & 0x01) != 0)
+				hdr_len += 4;
+		} else if(flags != 0) {
+			return; // compressed, encrypted or grouped
+		}
+		if(tag_unsynchronized)
+			return;
+
+		byte[] hdr = new byte[Math.min(slen, ID3_MAX_APIC_HEADER)];
+		s.seek(data_start);
+		s.read(hdr);
+
+		// [encoding][mime type\0][picture type][description\0][data]
+		int enc = b2u(hdr[hdr_len]);
+		int pos = hdr_len + 1;
+		while(pos < hdr.length && hdr[pos] != 0)
+			pos++;
+		pos++;
+		if(pos >= hdr.length)
+			return;
+		int picture_type = b2u(hdr[pos++]);
+
+		boolean wide = (enc == ID3_ENC_UTF16 || enc == ID3_ENC_UTF16BE);
+		for(;;) {
+			if(pos + (wide ? 1 : 0) >= hdr.length)
+				return; // no terminator in sight
+			if(hdr[pos] == 0 && (!wide || hdr[pos+1] == 0))
+				break;
+			pos += (wide ? 2 : 1);
+		}
+		pos += (wide ? 2 : 1);
+
+		addPictureInfo(tags, picture_type, data_start + pos, slen - pos, false);
+	}
+
+	/* Adds a text frame to the tag set, using the OggName of the
+	** frame. Known frames are stored raw and decoded on demand
+	*/
+	private void addTextFrame(TagSet tags, String k, byte[] v, int len) {
+		Integer slot = FRAME_SLOTS.get(k);
 		
-		if(lu.containsKey(k)) {
-			/* A normal, known key: translate into Ogg-Frame name */
-			rv[0] = (String)lu.get(k);
-			rv[1] = getDecodedString(v);
+		if(slot != null) {
+			/* A normal, known key: only the first frame counts */
+			if(!tags.has(slot))
+				addEncodedValue(tags, slot, v, len);
 		}
 		else if(k.equals("TXXX")) {
 			/* A freestyle field, ieks! */
-			String txData[] = getDecodedString(v).split(Character.toString('\0'), 2);
+			String txData[] = getDecodedString(v, len).split(Character.toString('\0'), 2);
 			/* Check if we got replaygain info in key\0value style */
 			if(txData.length == 2 && txData[0].matches("^(?i)REPLAYGAIN_(ALBUM|TRACK)_GAIN$")) {
-				rv[0] = txData[0].toUpperCase(); /* some tagwriters use lowercase for this */
-				rv[1] = txData[1];
+				int rg_slot = TagSet.slotOf(txData[0]); /* some tagwriters use lowercase for this */
+				if(!tags.has(rg_slot))
+					tags.add(rg_slot, txData[1]);
 			}
 		}
+	}
+	
+	/* Adds the raw text of a frame with the encoding given by
+	** its first byte
+	*/
+	private void addEncodedValue(TagSet tags, int slot, byte[] raw, int len) {
+		int skip = fixupEncoding(raw, len);
+		int enc = TagSet.ENC_LATIN1;
+		switch (raw[0] & 0xFF) {
+			case ID3_ENC_UTF8:    enc = TagSet.ENC_UTF8;    break;
+			case ID3_ENC_UTF16BE: enc = TagSet.ENC_UTF16BE; break;
+			case ID3_ENC_UTF16:   enc = TagSet.ENC_UTF16;   break;
+		}
 		
-		return rv;
+		if(skip > len) {
+			tags.add(slot, "");
+			return;
+		}
+		
+		// SOME tag writers seem to null terminate strings, some don't...
+		int end = len;
+		boolean wide = (enc == TagSet.ENC_UTF16 || enc == TagSet.ENC_UTF16BE);
+		if(wide && end - skip >= 2 && (end - skip) % 2 == 0 && raw[end-1] == 0 && raw[end-2] == 0)
+			end -= 2;
+		else if(!wide && end > skip && raw[end-1] == 0)
+			end--;
+		
+		tags.addRaw(slot, raw, skip, end - skip, enc);
+	}
+	
+	/* Returns the number of bytes to skip before the text of a frame
+	** and repairs broken byte order marks in place
+	*/
+	private int fixupEncoding(byte[] raw, int len) {
+		int skip = 1;
+		switch (raw[0] & 0xFF) {
+			case ID3_ENC_UTF16BE:
+				skip = 3;
+				break;
+			case ID3_ENC_UTF16:
+				if (len > 4) {
+					if ((raw[1]&0xFF) == 0xFE && (raw[2]&0XFF) == 0xFF && (raw[3]&0xFF) == 0x00 && (raw[4]&0xFF) == 0x00) {
+						// buggy tag written by lame?!
+						raw[3] = raw[2];
+						raw[4] = raw[1];
+						skip = 3;
+					} else if((raw[1]&0xFF) == 0xFF && (raw[2]&0XFF) == 0x00 && (raw[3]&0xFF) == 0xFE) {
+						// ?!, but seen in the wild
+						raw[2] = raw[1];
+						skip = 2;
+					}
+				}
+				break;
+		}
+		return skip;
 	}
 	
 	/* Converts a raw byte-stream text into a java String */
-	private String getDecodedString(byte[] raw) {
-		int encid = raw[0] & 0xFF;
-		int skip  = 1;
+	private String getDecodedString(byte[] raw, int len) {
+		int skip = fixupEncoding(raw, len);
 		String cs = "ISO-8859-1";
 		String rv  = "";
+		switch (raw[0] & 0xFF) {
+			case ID3_ENC_UTF8:    cs = "UTF-8";    break;
+			case ID3_ENC_UTF16BE: cs = "UTF-16BE"; break;
+			case ID3_ENC_UTF16:   cs = "UTF-16";   break;
+		}
 		try {
-			switch (encid) {
-				case ID3_ENC_UTF8:
-					cs = "UTF-8";
-					break;
-				case ID3_ENC_UTF16BE:
-					cs = "UTF-16BE";
-					skip = 3;
-					break;
-				case ID3_ENC_UTF16:
-					cs = "UTF-16";
-					if (raw.length > 4) {
-						if ((raw[1]&0xFF) == 0xFE && (raw[2]&0XFF) == 0xFF && (raw[3]&0xFF) == 0x00 && (raw[4]&0xFF) == 0x00) {
-							// buggy tag written by lame?!
-							raw[3] = raw[2];
-							raw[4] = raw[1];
-							skip = 3;
-						} else if((raw[1]&0xFF) == 0xFF && (raw[2]&0XFF) == 0x00 && (raw[3]&0xFF) == 0xFE) {
-							// ?!, but seen in the wild
-							raw[2] = raw[1];
-							skip = 2;
-						}
-					}
-					break;
-				case ID3_ENC_LATIN:
-				default:
-					// uses defaults
-			}
-
-			rv = new String(raw, skip, raw.length-skip, cs);
+			rv = new String(raw, skip, len-skip, cs);
 
 			if (rv.length() > 0 && rv.substring(rv.length()-1).equals("\0")) {
 				// SOME tag writers seem to null terminate strings, some don't...
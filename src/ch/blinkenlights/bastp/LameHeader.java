@@ -20,8 +20,6 @@ package ch.blinkenlights.bastp;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Enumeration;
 
 
@@ -44,100 +42,132 @@ public class LameHeader extends Common {
 		{  0,       1152,   1152,  384 }, // MPEG1
 	};
 
+	// Bitrates in kbit/s, [MPEG1 layer3, layer2, layer1, MPEG2 layer3, layer2, layer1][index]
+	private static int[][] bitRates = {
+		{ 0, 32, 40, 48, 56,  64,  80,  96, 112, 128, 160, 192, 224, 256, 320 },
+		{ 0, 32, 48, 56, 64,  80,  96, 112, 128, 160, 192, 224, 256, 320, 384 },
+		{ 0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448 },
+		{ 0,  8, 16, 24, 32,  40,  48,  56,  64,  80,  96, 112, 128, 144, 160 },
+		{ 0,  8, 16, 24, 32,  40,  48,  56,  64,  80,  96, 112, 128, 144, 160 },
+		{ 0, 32, 48, 56, 64,  80,  96, 112, 128, 144, 160, 176, 192, 224, 256 },
+	};
+
+	// How far we are going to search for the first frame
+	private static final int MAX_SYNC_SEARCH = 256 * 1024;
+	// How much we read at once while searching
+	private static final int SYNC_WINDOW = 4096;
+
 
 	public LameHeader() {
 	}
 	
-	public HashMap getTags(RandomAccessFile s) throws IOException {
-		HashMap rgain = parseLameHeader(s, 0);
-		HashMap tags = parseV1Header(s, s.length()-128);
-
-		// Add replay gain info to returned object if available
-		for (String k : Arrays.asList("REPLAYGAIN_TRACK_GAIN", "REPLAYGAIN_ALBUM_GAIN")) {
-			if (rgain.containsKey(k))
-				tags.put(k, rgain.get(k));
-		}
+	public TagSet getTags(RandomAccessFile s) throws IOException {
+		TailTagFile tail = new TailTagFile();
+		TagSet tags = tail.getTags(s);
+		TagSet rgain = parseLameHeader(s, 0, tail.getTailStart());
+
+		// Add replay gain and stream info to returned object if available,
+		// replay gain values of an APE tag win over the ones of the encoder
+		tags.inherit(rgain);
 
 		return tags;
 	}
 
 	/**
-	 * Attempts to parse ID3v1(.1) information from given RandomAccessFile
+	 * Parses the first MPEG frame found at (or shortly after) offset and
+	 * returns stream information and replay gain values of the Xing/Info/LAME
+	 * header, if any. The duration is estimated from the bitrate of the first
+	 * frame if no frame count is available.
 	 *
 	 * @param s the seekable RandomAccessFile
-	 * @param offset position of the ID3v1 tag
+	 * @param offset the expected position of the first frame
 	 */
-	private HashMap parseV1Header(RandomAccessFile s, long offset) throws IOException {
-		HashMap tags = new HashMap();
-		byte[] tag  = new byte[3];
-		byte[] year = new byte[4];
-		byte[] str  = new byte[30];
+	public TagSet parseLameHeader(RandomAccessFile s, long offset) throws IOException {
+		return parseLameHeader(s, offset, s.length());
+	}
 
-		s.seek(offset);
-		s.read(tag);
-
-		if("TAG".equals(new String(tag))) {
-			for (String name : Arrays.asList("TITLE", "ARTIST", "ALBUM")) {
-				s.read(str);
-				String value = new String(str, "ISO-8859-1").trim();
-				if (value.length() > 0)
-					addTagEntry(tags, name, value);
-			}
+	/**
+	 * Like parseLameHeader(s, offset), but only counts the bytes up to
+	 * stream_end as audio data: this excludes trailing ID3v1, Lyrics3 and
+	 * APE tags from the bitrate based duration estimate.
+	 *
+	 * @param s the seekable RandomAccessFile
+	 * @param offset the expected position of the first frame
+	 * @param stream_end the file offset at which the audio data ends
+	 */
+	public TagSet parseLameHeader(RandomAccessFile s, long offset, long stream_end) throws IOException {
+		TagSet tags = new TagSet();
+		byte[] chunk = new byte[12];
 
-			// year is a string for whatever reason...
-			s.read(year);
-			String y = new String(year).trim();
-			if (y.length() > 0)
-				addTagEntry(tags, "YEAR", y);
+		offset = findFrameSync(s, offset);
+		if (offset < 0)
+			return tags;
 
-			s.skipBytes(28); // skip comment field
-			s.read(tag);
+		s.seek(offset);
+		s.read(chunk, 0, 4);
 
-			if (tag[0] == 0 && tag[1] != 0) // tag[0] == 0 -> is id3v1.1 compatible
-				addTagEntry(tags, "TRACKNUMBER", String.format("%d", tag[1]));
+		int mpeg_hdr  = b2be32(chunk, 0);
+		int chan_mode = (mpeg_hdr >> 6) & 3;  // channel mode at bit 6-7, 3 = mono
+		int srate_idx = (mpeg_hdr >> 10) & 3; // sampling rate index at bit 10-11
+		int brate_idx = (mpeg_hdr >> 12) & 15; // bitrate index at bit 12-15
+		int layer_idx = (mpeg_hdr >> 17) & 3; // layer index value bit 17-18
+		int ver_idx   = (mpeg_hdr >> 19) & 3; // version index value bit 19-20
 
-			if (tag[2] != 0)
-				addTagEntry(tags, "GENRE", String.format("%d", tag[2]));
-		}
+		if (srate_idx >= sampleRates[ver_idx].length || brate_idx == 15)
+			return tags; // invalid header
 
+		int sample_rate = sampleRates[ver_idx][srate_idx];
+		int sample_pfr  = samplesPerFrame[ver_idx][layer_idx];
+		int channels    = (chan_mode == 3 ? 1 : 2);
+		if (sample_rate == 0 || sample_pfr == 0)
+			return tags; // reserved version or layer
 
-		return tags;
-	}
+		// The Xing header is located after the side information, which depends on the version and channel mode
+		int side_info = (ver_idx == 3 ? (channels == 1 ? 17 : 32) : (channels == 1 ? 9 : 17));
+		long xing_offset = offset + 4 + side_info;
 
-	public HashMap parseLameHeader(RandomAccessFile s, long offset) throws IOException {
-		HashMap tags = new HashMap();
-		byte[] chunk = new byte[12];
-		
-		s.seek(offset + 0x24);
+		s.seek(xing_offset);
 		s.read(chunk);
-		
+
 		String lameMark = new String(chunk, 0, 4, "ISO-8859-1");
-		int flags = b2u(chunk[7]);
+		long total_frames = -1;
+		long total_bytes = -1;
 
-		if((flags & 0x01) !=0 ) { // header indicates that totalFrames field is present
-			int total_frames = b2be32(chunk, 8);
-			s.seek(offset);
+		if(lameMark.equals("Info") || lameMark.equals("Xing")) {
+			int flags = b2be32(chunk, 4);
+			int field = 8;
+			if((flags & 0x01) != 0) { // header indicates that totalFrames field is present
+				total_frames = b2be32(chunk, field) & 0xFFFFFFFFL;
+				field += 4;
+			}
+			if((flags & 0x02) != 0) { // ...and the number of bytes
+				total_bytes = raf2be32(s, xing_offset + field) & 0xFFFFFFFFL;
+			}
+		} else {
+			// Fraunhofer encoders use a VBRI header at a fixed offset
+			s.seek(offset + 4 + 32);
 			s.read(chunk);
-
-			int mpeg_hdr = b2be32(chunk, 0);
-			int srate_idx = (mpeg_hdr >> 10) & 3; // sampling rate index at bit 10-11
-			int layer_idx = (mpeg_hdr >> 17) & 3; // layer index value bit 17-18
-			int ver_idx   = (mpeg_hdr >> 19) & 3; // version index value bit 19-20
-
-			// Try to calculate song duration if all indexes are sane
-			if (ver_idx < sampleRates.length && srate_idx < sampleRates[ver_idx].length && layer_idx < samplesPerFrame[ver_idx].length) {
-				int sample_rate = sampleRates[ver_idx][srate_idx];
-				int sample_pfr  = samplesPerFrame[ver_idx][layer_idx];
-				if (sample_rate > 0 && sample_pfr > 0) {
-					double duration = ((double)sample_pfr / (double)sample_rate) * total_frames;
-					tags.put("duration", (int)duration);
-				}
+			if (new String(chunk, 0, 4, "ISO-8859-1").equals("VBRI")) {
+				total_bytes = raf2be32(s, offset + 4 + 32 + 10) & 0xFFFFFFFFL;
+				total_frames = raf2be32(s, offset + 4 + 32 + 14) & 0xFFFFFFFFL;
 			}
+		}
 
+		long stream_bytes = (total_bytes > 0 ? total_bytes : Math.max(0, stream_end - offset));
+		long duration_ms = 0;
+		if (total_frames > 0) {
+			duration_ms = total_frames * sample_pfr * 1000 / sample_rate;
+		} else {
+			// no frame count: assume that this is a CBR file
+			int row = (ver_idx == 3 ? 0 : 3) + layer_idx - 1;
+			int bitrate = bitRates[row][brate_idx] * 1000;
+			if (bitrate > 0)
+				duration_ms = stream_bytes * 8 * 1000 / bitrate;
 		}
+		addStreamInfo(tags, duration_ms, sample_rate, channels, stream_bytes);
 
 		if(lameMark.equals("Info") || lameMark.equals("Xing")) {
-			s.seek(offset+0xAB);
+			s.seek(xing_offset+0x87);
 			s.read(chunk);
 			
 			int raw = b2be32(chunk, 0);
@@ -151,15 +181,41 @@ public class LameHeader extends Common {
 			galb_val = ((galb_raw&0x0200)!=0 ? -1*galb_val : galb_val);
 			
 			if( (gtrk_raw&0xE000) == 0x2000 ) {
-				addTagEntry(tags, "REPLAYGAIN_TRACK_GAIN", gtrk_val+" dB");
+				tags.add(TagSet.REPLAYGAIN_TRACK_GAIN, gtrk_val+" dB");
 			}
 			if( (gtrk_raw&0xE000) == 0x4000 ) {
-				addTagEntry(tags, "REPLAYGAIN_ALBUM_GAIN", galb_val+" dB");
+				tags.add(TagSet.REPLAYGAIN_ALBUM_GAIN, galb_val+" dB");
 			}
 			
 		}
 		
 		return tags;
 	}
-	
+
+	/**
+	 * Returns the offset of the first MPEG frame sync at or after offset
+	 *
+	 * @param s the seekable RandomAccessFile
+	 * @param offset where to start searching
+	 * @return the offset of the frame, -1 if none was found
+	 */
+	private long findFrameSync(RandomAccessFile s, long offset) throws IOException {
+		byte[] buff = new byte[SYNC_WINDOW];
+		long limit = offset + MAX_SYNC_SEARCH;
+
+		while (offset < limit) {
+			s.seek(offset);
+			int bread = s.read(buff);
+			for (int i = 0; i < bread - 1; i++) {
+				if (buff[i] == (byte)0xFF && (buff[i+1] & 0xE0) == 0xE0)
+					return offset + i;
+			}
+			if (bread < buff.length)
+				break; // end of file
+			// the last byte may be the first half of a sync word
+			offset += bread - 1;
+		}
+		return -1;
+	}
+
 }
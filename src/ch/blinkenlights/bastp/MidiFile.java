@@ -19,16 +19,15 @@ package ch.blinkenlights.bastp;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.HashMap;
 
 public class MidiFile extends Common {
 
 	/**
-	 * Returns the tags of a Midi File which is just an empty HashMap
+	 * Returns the tags of a Midi File which is just an empty TagSet
 	 * as there seems to be no midi-tag standard (?)
 	 */
-	public HashMap getTags(RandomAccessFile s) throws IOException {
-		HashMap tags = new HashMap();
+	public TagSet getTags(RandomAccessFile s) throws IOException {
+		TagSet tags = new TagSet();
 		return tags;
 	}
 }
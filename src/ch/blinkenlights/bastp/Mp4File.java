@@ -23,25 +23,16 @@ import java.io.RandomAccessFile;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Stack;
-
-/*
-* Helper class for tracking the traversal of the atom tree
-*/
-class Atom {
-	String name;
-	long start;
-	int length;
-	
-	public Atom(String name, long start, int length) {
-		this.name = name;
-		this.start = start;
-		this.length = length;
-	}
-}
 
 /*
 * MP4 tag parser
+*
+* Only the headers of the top level atoms are read to locate [moov], whose
+* children are then walked atom by atom. Only the headers and the small
+* atoms we parse are read into a buffer of MAX_BUFFER_SIZE bytes: payloads
+* of other atoms, such as the cover art, are skipped by seeking past them.
+* Tags, timing information, the bitrate and the location of the cover art
+* are all parsed this way.
 */
 public class Mp4File extends Common {
 
@@ -73,6 +64,7 @@ public class Mp4File extends Common {
 		ATOM_TAGS.put("�day", "year");
 		ATOM_TAGS.put("trkn", "tracknumber");
 		ATOM_TAGS.put("disk", "discnumber");
+		ATOM_TAGS.put("covr", "cover");
 	}
 
 	// These tags are 32bit integers, not strings.
@@ -81,174 +73,389 @@ public class Mp4File extends Common {
 		"discnumber"
 	);
 
-	// maximum size for tag names or values
+	// maximum size for tag names or values, also the size of the atom buffer
 	final static int MAX_BUFFER_SIZE = 512;
 	// only used when developing
 	final static boolean PRINT_DEBUG = false;
 
-	// When processing atoms, we first read the atom length (4 bytes),
-	// and then the atom name (also 4 bytes). This value should not be changed.
+	// Atom headers consist of the atom length (4 bytes) and the atom name (also 4 bytes).
+	// A length of 1 indicates that a 64 bit length follows the name.
 	final static int ATOM_HEADER_SIZE = 8;
-	
+	final static int ATOM_LARGE_HEADER_SIZE = 16;
+
+	// the buffer holding the atom headers and payloads being parsed
+	private final byte[] buf = new byte[MAX_BUFFER_SIZE];
+	// file offset of buf[0]
+	private long bufStart = 0;
+	// number of valid bytes in buf
+	private int bufLen = 0;
+	// end of the [moov] atom
+	private long moovEnd = 0;
+
+	// duration of the file in ms, as found in [mvhd]
+	private long durationMs = 0;
+	// timescale of the first audio track, which is its sampling rate
+	private int mediaTimescale = 0;
+	// number of channels and average bitrate of the first audio track
+	private int channels = 0;
+	private long avgBitrate = 0;
+	// true if any track is a video track
+	private boolean hasVideo = false;
+	// handler type and timescale of the track currently being parsed
+	private String trackHandler = null;
+	private int trackTimescale = 0;
+	// name of the freeform [----] tag currently being parsed
+	private String tagName = null;
+	// true once the tag atom [ilst] was parsed
+	private boolean ilstParsed = false;
+
 	/*
-	* Traverses the atom structure of an MP4 file and returns as soon as tags
-	* are parsed
+	* Returns the tags and stream information of an MP4 file
 	*/
-	public HashMap getTags(RandomAccessFile s) throws IOException {
-		HashMap tags = new HashMap();
-		if (PRINT_DEBUG) { System.out.println(); }
+	public TagSet getTags(RandomAccessFile s) throws IOException {
+		TagSet tags = new TagSet();
 		try {
+			long moovStart = findMoov(s);
+			if (moovStart >= 0) {
+				parseAtoms(s, moovStart, moovEnd, "", tags);
+			}
+		}
+		// if anything goes wrong, just return whatever we already have
+		catch (Exception e) {
+		}
 
-			// maintain a trail of breadcrumbs to know what part of the file we're in,
-			// so e.g. that we only parse [name] atoms that are part of a tag
-			Stack<Atom> path = new Stack<Atom>();
-
-			s.seek(0);
-			int atomSize;
-			byte[] atomNameRaw = new byte[4];
-			String atomName;
-			String tagName = null;
-
-			// begin traversing the file
-			// file structure info from http://atomicparsley.sourceforge.net/mpeg-4files.html
-			while (s.getFilePointer() < s.length()) {
-
-				// if we've read/skipped past the end of atoms, remove them from the path stack
-				while (!path.empty() && s.getFilePointer() >= (path.peek().start + path.peek().length)) {
-					// if we've finished the tag atom [ilst], we can stop parsing.
-					// when tags are read successfully, this should be the exit point for the parser.
-					if (path.peek().name.equals("ilst")) {
-						if (PRINT_DEBUG) { System.out.println(); }
-						return tags;
-					}
-					path.pop();
-				}
+		if (hasVideo) {
+			tags.has_video = true;
+		}
+		// prefer the encoder supplied bitrate over an estimate based on the file size
+		long streamBytes = (avgBitrate > 0 ? avgBitrate * durationMs / 8000 : s.length());
+		addStreamInfo(tags, durationMs, mediaTimescale, channels, streamBytes);
+		return tags;
+	}
 
-				// read a new atom's details
-				atomSize = s.readInt();
-
-				// return if we're unable to parse an atom size
-				// (e.g. previous atoms were parsed incorrectly and the
-				// file pointer is misaligned)
-				if (atomSize <= 0) { return tags; }
-
-				s.read(atomNameRaw);
-				atomName = new String(atomNameRaw);
-
-				// determine if we're currently decending through the hierarchy
-				// to a tag atom
-				boolean approachingTagAtom = false;
-				boolean onMetaAtom = false;
-				boolean onTagAtom = false;
-				String fourAtom = null;
-				// compare everything in the current path hierarchy and the new atom as well
-				// this is a bit repetitive as-is, but shouldn't be noticeable
-				for (int i = 0; i <= path.size(); i++) {
-					String thisAtomName = (i < path.size()) ? path.get(i).name : atomName;
-					if ((i == 0 && thisAtomName.equals("moov"))         ||
-						(i == 1 && thisAtomName.equals("udta"))         ||
-						(i == 2 && thisAtomName.equals("meta"))         ||
-						(i == 3 && thisAtomName.equals("ilst"))         ||
-						(i == 4 && thisAtomName.equals("----"))         ||
-						(i == 4 && ATOM_TAGS.containsKey(thisAtomName)) ||
-						(i == 5 && (thisAtomName.equals("name")         || thisAtomName.equals("data")))
-					) {
-						approachingTagAtom = true;
-						// if we're at the end of the current hierarchy, mark if it's the [meta] or a tag atom.
-						if (i == path.size()) {
-							onMetaAtom = thisAtomName.equals("meta");
-							onTagAtom = (thisAtomName.equals("name") || thisAtomName.equals("data"));
-						}
-						// depth is 4 and this is a known atom: rembemer this!
-						if (i == 4 && ATOM_TAGS.containsKey(thisAtomName)) {
-							fourAtom = ATOM_TAGS.get(thisAtomName);
-						}
-					}
-					// quit as soon as we know we're not on the road to a tag atom
-					else {
-						approachingTagAtom = false;
-						break;
+	/*
+	* Walks the top level atom headers and returns the offset of the
+	* payload of the [moov] atom, -1 if there is none
+	*/
+	private long findMoov(RandomAccessFile s) throws IOException {
+		byte[] header = new byte[ATOM_LARGE_HEADER_SIZE];
+		long fileLength = s.length();
+		long pos = 0;
+
+		while (pos + ATOM_HEADER_SIZE <= fileLength) {
+			s.seek(pos);
+			s.read(header);
+			long atomSize = b2be32(header, 0) & 0xFFFFFFFFL;
+			String atomName = new String(header, 4, 4);
+			int headerSize = ATOM_HEADER_SIZE;
+
+			if (atomSize == 1) {
+				atomSize = ((long)b2be32(header, 8) << 32) | (b2be32(header, 12) & 0xFFFFFFFFL);
+				headerSize = ATOM_LARGE_HEADER_SIZE;
+			} else if (atomSize == 0) {
+				atomSize = fileLength - pos; // atom extends to the end of the file
+			}
+			if (atomSize < headerSize) {
+				return -1;
+			}
+			if (PRINT_DEBUG) { System.out.println(String.format("[%s] %d to %d", atomName, pos, pos+atomSize)); }
+
+			if (atomName.equals("moov")) {
+				moovEnd = Math.min(pos + atomSize, fileLength);
+				return pos + headerSize;
+			}
+			pos += atomSize;
+		}
+		return -1;
+	}
+
+	/*
+	* Parses all atoms between start and end, 'path' is the dot separated
+	* list of parent atoms, relative to [moov]
+	*/
+	private void parseAtoms(RandomAccessFile s, long start, long end, String path, TagSet tags) throws IOException {
+		long pos = start;
+
+		while (pos + ATOM_HEADER_SIZE <= end) {
+			ensure(s, pos, ATOM_HEADER_SIZE);
+			int off = (int)(pos - bufStart);
+			long atomSize = b2be32(buf, off) & 0xFFFFFFFFL;
+			String atomName = new String(buf, off + 4, 4);
+			int headerSize = ATOM_HEADER_SIZE;
+
+			if (atomSize == 1) {
+				// only large atoms have a 64 bit size: the last atom may be a short one
+				if (pos + ATOM_LARGE_HEADER_SIZE > end)
+					return;
+				ensure(s, pos, ATOM_LARGE_HEADER_SIZE);
+				off = (int)(pos - bufStart);
+				atomSize = ((long)b2be32(buf, off + 8) << 32) | (b2be32(buf, off + 12) & 0xFFFFFFFFL);
+				headerSize = ATOM_LARGE_HEADER_SIZE;
+			} else if (atomSize == 0) {
+				atomSize = end - pos;
+			}
+			// return if the atom does not fit into its parent: the file is damaged
+			if (atomSize < headerSize || pos + atomSize > end) {
+				return;
+			}
+			if (PRINT_DEBUG) { System.out.println(String.format("%-30s %8d to %8d", path + "[" + atomName + "]", pos, pos+atomSize)); }
+
+			parseAtom(s, atomName, pos + headerSize, pos + atomSize, path, tags);
+			pos += atomSize;
+		}
+	}
+
+	/*
+	* Handles a single atom whose payload is located between start and end
+	*/
+	private void parseAtom(RandomAccessFile s, String atomName, long start, long end, String path, TagSet tags) throws IOException {
+		int length = (int)Math.min(end - start, MAX_BUFFER_SIZE);
+
+		switch (path) {
+			case "":
+				if (atomName.equals("mvhd")) {
+					parseTimeAtom(s, atomName, start);
+				} else if (atomName.equals("trak")) {
+					trackHandler = null;
+					trackTimescale = 0;
+					parseAtoms(s, start, end, "trak.", tags);
+					if (isAudioTrack() && mediaTimescale == 0) {
+						mediaTimescale = trackTimescale;
 					}
+				} else if (atomName.equals("udta")) {
+					parseAtoms(s, start, end, "udta.", tags);
+				} else if (atomName.equals("meta")) {
+					// the meta atom has an extra 4 bytes of version and flags
+					parseAtoms(s, start + 4, end, "udta.meta.", tags);
+				}
+				break;
+			case "trak.":
+				if (atomName.equals("mdia")) {
+					parseAtoms(s, start, end, "trak.mdia.", tags);
+				}
+				break;
+			case "trak.mdia.":
+				if (atomName.equals("mdhd")) {
+					parseTimeAtom(s, atomName, start);
+				} else if (atomName.equals("hdlr") && length >= 12) {
+					ensure(s, start, 12);
+					trackHandler = new String(buf, (int)(start - bufStart) + 8, 4, "ISO-8859-1");
+					hasVideo |= trackHandler.equals("vide");
+				} else if (atomName.equals("minf")) {
+					parseAtoms(s, start, end, "trak.mdia.minf.", tags);
+				}
+				break;
+			case "trak.mdia.minf.":
+				if (atomName.equals("stbl")) {
+					parseAtoms(s, start, end, "trak.mdia.minf.stbl.", tags);
+				}
+				break;
+			case "trak.mdia.minf.stbl.":
+				// [stsd] has a version, flags and entry count, followed by the sample entries
+				if (atomName.equals("stsd") && isAudioTrack() && channels == 0) {
+					parseAtoms(s, start + 8, end, "trak.mdia.minf.stbl.stsd.", tags);
+				}
+				break;
+			case "trak.mdia.minf.stbl.stsd.":
+				parseAudioSampleEntry(s, start, end, tags);
+				break;
+			case "udta.":
+				if (atomName.equals("meta")) {
+					parseAtoms(s, start + 4, end, "udta.meta.", tags);
+				}
+				break;
+			case "udta.meta.":
+				// stop after the first tag atom: there is only one in sane files
+				if (atomName.equals("ilst") && !ilstParsed) {
+					ilstParsed = true;
+					parseAtoms(s, start, end, "udta.meta.ilst.", tags);
+				}
+				break;
+			case "udta.meta.ilst.":
+				if (atomName.equals("----") || ATOM_TAGS.containsKey(atomName)) {
+					tagName = null;
+					parseAtoms(s, start, end, "udta.meta.ilst." + atomName + ".", tags);
 				}
+				break;
+			default:
+				if (path.startsWith("udta.meta.ilst.")) {
+					String fourAtom = path.substring(15, 19);
+					parseTagAtom(s, fourAtom, atomName, start, end, tags);
+				}
+		}
+	}
 
-				// add the new atom to the path hierarchy
-				path.push(new Atom(atomName, s.getFilePointer()-ATOM_HEADER_SIZE, atomSize));
-				if (PRINT_DEBUG) { printDebugAtomPath(s, path, atomName, atomSize); }
-
-				// skip all non-pertinent atoms
-				if (!approachingTagAtom) { s.skipBytes(atomSize-ATOM_HEADER_SIZE); }
-				// dive into tag-related ones
-				else {
-					// the meta atom has an extra 4 bytes that need to be skipped
-					if (onMetaAtom) { s.skipBytes(4); }
-
-					// read tag contents when there
-					if (onTagAtom) {
-						// get a tag name
-						if (atomName.equals("name")) {
-							// skip null bytes
-							s.skipBytes(4);
-							tagName = new String(readIntoBuffer(s, atomSize-(ATOM_HEADER_SIZE+4)));
-						}
-
-						// get a tag value
-						else if (atomName.equals("data")) {
-							// skip flags/null bytes
-							s.skipBytes(8);
-
-							// use the 'fourAtom' value if we did not have a tag name
-							tagName = (tagName == null ? fourAtom : tagName);
-							// read the tag
-							byte[] tagBuffer = readIntoBuffer(s, atomSize-(ATOM_HEADER_SIZE+8));
-
-							if (ALLOWED_TAGS.contains(tagName))
-							{
-								String tagValue = (BINARY_TAGS.contains(tagName) ? String.format("%d", b2be32(tagBuffer, 0)) : new String(tagBuffer, "UTF-8"));
-								if (PRINT_DEBUG) {
-									System.out.println(String.format("parsed tag '%s': '%s'\n", tagName, tagValue));
-								}
-								addTagEntry(tags, tagName.toUpperCase(), tagValue);
-							}
-							// This is the end of this tree, make sure that we don't re-use tagName in any other tree
-							tagName = null;
-						}
-					}
+	/*
+	* Returns true if the track being parsed is an audio track, which is
+	* assumed if it has no [hdlr] atom
+	*/
+	private boolean isAudioTrack() {
+		return trackHandler == null || trackHandler.equals("soun");
+	}
+
+	/*
+	* Parses the [name] and [data] children of a tag atom
+	*/
+	private void parseTagAtom(RandomAccessFile s, String fourAtom, String atomName, long start, long end, TagSet tags) throws IOException {
+		if (atomName.equals("name")) {
+			// skip null bytes
+			tagName = new String(readIntoBuffer(s, start + 4, end));
+		}
+		else if (atomName.equals("data")) {
+			// skip flags/null bytes and use the 'fourAtom' value if we did not have a tag name
+			long dataStart = start + 8;
+			String name = (tagName == null ? ATOM_TAGS.get(fourAtom) : tagName);
+
+			if ("cover".equals(name)) {
+				// only remember where the picture is, the caller may decode it from there
+				addPictureInfo(tags, PICTURE_TYPE_FRONT_COVER, dataStart, end - dataStart, false);
+			}
+			else if (ALLOWED_TAGS.contains(name)) {
+				int slot = TagSet.slotOf(name);
+				if (BINARY_TAGS.contains(name)) {
+					byte[] tagBuffer = readIntoBuffer(s, dataStart, end);
+					tags.add(slot, String.format("%d", b2be32(tagBuffer, 0)));
+				} else {
+					// text is copied straight out of the atom buffer and decoded on demand
+					int len = (int)Math.max(0, Math.min(end - dataStart, MAX_BUFFER_SIZE));
+					ensure(s, dataStart, len);
+					tags.addRaw(slot, buf, (int)(dataStart - bufStart), len, TagSet.ENC_UTF8);
+				}
+				if (PRINT_DEBUG) {
+					System.out.println(String.format("parsed tag '%s'\n", name));
 				}
 			}
-			// End of while loop, the file has been completely read through.
-			// The parser should only return here if the tags atom [ilst] was missing.
-			return tags;
 		}
-		// if anything goes wrong, just return whatever we already have
-		catch (Exception e) {
-			return tags;
+	}
+
+	/*
+	* Parses the channel count of an audio sample entry (such as [mp4a])
+	* and the bitrate of its [esds] child atom
+	*/
+	private void parseAudioSampleEntry(RandomAccessFile s, long start, long end, TagSet tags) throws IOException {
+		if (end - start < 28) {
+			return;
+		}
+		ensure(s, start, 28);
+		int off = (int)(start - bufStart);
+		int version = (b2u(buf[off + 8]) << 8) | b2u(buf[off + 9]);
+		channels = (b2u(buf[off + 16]) << 8) | b2u(buf[off + 17]);
+
+		// QuickTime sound sample descriptions v1 and v2 have extra fields
+		long childStart = start + 28 + (version == 1 ? 16 : (version == 2 ? 36 : 0));
+		long pos = childStart;
+		while (pos + ATOM_HEADER_SIZE <= end) {
+			ensure(s, pos, ATOM_HEADER_SIZE);
+			long atomSize = b2be32(buf, (int)(pos - bufStart)) & 0xFFFFFFFFL;
+			String atomName = new String(buf, (int)(pos - bufStart) + 4, 4);
+			if (atomSize < ATOM_HEADER_SIZE || pos + atomSize > end) {
+				return;
+			}
+			if (atomName.equals("esds")) {
+				parseEsds(s, pos + ATOM_HEADER_SIZE, pos + atomSize);
+			}
+			pos += atomSize;
 		}
 	}
 
 	/*
-	* Reads bytes from an atom up to the buffer size limit, currently 512B
+	* Reads the average (or maximum) bitrate from the DecoderConfigDescriptor
+	* of an [esds] atom
 	*/
-	private byte[] readIntoBuffer(RandomAccessFile s, int dataSize) throws IOException {
-		// read tag up to buffer limit
-		int bufferSize = Math.min(dataSize, MAX_BUFFER_SIZE);
-		byte[] buffer = new byte[bufferSize];
-		s.read(buffer, 0, buffer.length);
-		if (dataSize > bufferSize) {
-			s.skipBytes(dataSize - bufferSize);
+	private void parseEsds(RandomAccessFile s, long start, long end) throws IOException {
+		byte[] esds = readIntoBuffer(s, start, end);
+		int pos = 4; // version and flags
+
+		while (pos + 2 <= esds.length) {
+			int tag = b2u(esds[pos++]);
+			// descriptor lengths are encoded in 1-4 bytes, 7 bits each
+			int len = 0;
+			for (int i = 0; i < 4 && pos < esds.length; i++) {
+				int b = b2u(esds[pos++]);
+				len = (len << 7) | (b & 0x7F);
+				if ((b & 0x80) == 0) break;
+			}
+
+			if (tag == 0x03) {
+				// ES_Descriptor: ES_ID and flags, optionally followed by more fields
+				if (pos + 3 > esds.length) return;
+				int flags = b2u(esds[pos + 2]);
+				pos += 3;
+				if ((flags & 0x80) != 0) pos += 2; // dependsOn_ES_ID
+				if ((flags & 0x40) != 0 && pos < esds.length) pos += 1 + b2u(esds[pos]); // URL
+				if ((flags & 0x20) != 0) pos += 2; // OCR_ES_ID
+			} else if (tag == 0x04) {
+				// DecoderConfigDescriptor: object type, stream type, buffer size, max and avg bitrate
+				if (pos + 13 > esds.length) return;
+				long maxBitrate = b2be32(esds, pos + 5) & 0xFFFFFFFFL;
+				long bitrate = b2be32(esds, pos + 9) & 0xFFFFFFFFL;
+				avgBitrate = (bitrate > 0 ? bitrate : maxBitrate);
+				return;
+			} else {
+				pos += len;
+			}
+		}
+	}
+
+	/*
+	* Parses the timescale and duration of a [mvhd] or [mdhd] atom
+	*/
+	private void parseTimeAtom(RandomAccessFile s, String atomName, long start) throws IOException {
+		ensure(s, start, 32);
+		int off = (int)(start - bufStart);
+		int version = b2u(buf[off]);
+		long timescale;
+		long duration;
+
+		if (version == 1) {
+			// 64 bit creation and modification time
+			timescale = b2be32(buf, off + 20) & 0xFFFFFFFFL;
+			duration = ((long)b2be32(buf, off + 24) << 32) | (b2be32(buf, off + 28) & 0xFFFFFFFFL);
+		} else {
+			timescale = b2be32(buf, off + 12) & 0xFFFFFFFFL;
+			duration = b2be32(buf, off + 16) & 0xFFFFFFFFL;
+		}
+
+		if (atomName.equals("mvhd") && timescale > 0) {
+			durationMs = duration * 1000 / timescale;
 		}
+		if (atomName.equals("mdhd")) {
+			trackTimescale = (int)timescale;
+		}
+	}
+
+	/*
+	* Returns the bytes between start and end, up to the buffer size limit, currently 512B
+	*/
+	private byte[] readIntoBuffer(RandomAccessFile s, long start, long end) throws IOException {
+		int bufferSize = (int)Math.max(0, Math.min(end - start, MAX_BUFFER_SIZE));
+		ensure(s, start, bufferSize);
+		byte[] buffer = new byte[bufferSize];
+		System.arraycopy(buf, (int)(start - bufStart), buffer, 0, bufferSize);
 		return buffer;
 	}
 
 	/*
-	* Can be used when traversing the atom hierarchy to print the tree of atoms
+	* Makes sure that 'len' bytes at 'offset' are in the buffer
+	*/
+	private void ensure(RandomAccessFile s, long offset, int len) throws IOException {
+		if (offset < bufStart || offset + len > bufStart + bufLen) {
+			fill(s, offset);
+		}
+		if (offset + len > bufStart + bufLen) {
+			throw new IOException("Unexpected end of file");
+		}
+	}
+
+	/*
+	* Re-fills the buffer with [moov] data starting at 'offset'. Reads are
+	* small, so that the read window of a BufferedRandomAccessFile serves
+	* most of them from memory.
 	*/
-	private void printDebugAtomPath(RandomAccessFile s, Stack<Atom> path,
-		String atomName, int atomSize) throws IOException
-	{
-		String treeLines = "";
-		for (int i = 0; i < path.size(); i++) { treeLines += ". "; }
-		long atomStart = s.getFilePointer()-ATOM_HEADER_SIZE;
-		System.out.println(String.format("%-22s %8d to %8d, length %8d",
-			(treeLines + "[" + atomName + "]"), atomStart, (atomStart+atomSize), atomSize));
+	private void fill(RandomAccessFile s, long offset) throws IOException {
+		s.seek(offset);
+		int bread = s.read(buf, 0, (int)Math.min(buf.length, Math.max(moovEnd - offset, ATOM_LARGE_HEADER_SIZE)));
+		bufStart = offset;
+		bufLen = (bread > 0 ? bread : 0);
 	}
 }
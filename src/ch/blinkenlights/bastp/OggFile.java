@@ -26,19 +26,20 @@ import java.util.HashMap;
 public class OggFile extends Common implements PageInfo.PageParser {
 
 	private static final int OGG_PAGE_SIZE           = 27;  // Static size of an OGG Page
+	private static final int OGG_MAX_PAGE_SIZE       = 65307; // Upper limit of a complete OGG Page
 	private static final int OGG_TYPE_IDENTIFICATION = 1;   // Identification header
 	private static final int OGG_TYPE_COMMENT        = 3;   // ID of 'VorbisComment's
 	
 	public OggFile() {
 	}
 	
-	public HashMap getTags(RandomAccessFile s) throws IOException {
+	public TagSet getTags(RandomAccessFile s) throws IOException {
 		long offset = 0;
 		int  retry  = 64;
 		boolean need_tags = true;
 		boolean need_id = true;
 
-		HashMap tags = new HashMap();
+		TagSet tags = new TagSet();
 		HashMap identification = new HashMap();
 		
 		for( ; retry > 0 ; retry-- ) {
@@ -56,19 +57,60 @@ public class OggFile extends Common implements PageInfo.PageParser {
 			}
 		}
 
-		// Calculate duration in seconds
-		// Note that this calculation is WRONG: We would have to get the last
-		// packet to calculate the real length - but this is goot enough.
-		if (identification.containsKey("bitrate_nominal")) {
-			int br_nom = (Integer)identification.get("bitrate_nominal") / 8;
+		// Calculate the duration using the granule position of the last page,
+		// which is the number of PCM samples in a vorbis stream.
+		// We fall back to a guess based on the nominal bitrate if this fails.
+		if (identification.containsKey("sampling_rate")) {
+			int sampling_rate = (Integer)identification.get("sampling_rate");
+			int channels = (Integer)identification.get("channels");
+			long granule = find_last_granule(s);
 			long file_length = s.length();
-			if (file_length > 0 && br_nom > 0) {
-				tags.put("duration", (int)(file_length/br_nom));
+			long duration_ms = 0;
+
+			if (granule > 0 && sampling_rate > 0) {
+				duration_ms = granule * 1000 / sampling_rate;
+			} else {
+				int br_nom = (Integer)identification.get("bitrate_nominal") / 8;
+				if (br_nom > 0)
+					duration_ms = file_length * 1000 / br_nom;
 			}
+			addStreamInfo(tags, duration_ms, sampling_rate, channels, file_length);
 		}
 
 		return tags;
 	}
+
+	/**
+	 * Returns the granule position of the last page in this file
+	 *
+	 * @param s the file to search
+	 * @return the granule position, -1 if no page was found
+	 */
+	public long find_last_granule(RandomAccessFile s) throws IOException {
+		long file_length = s.length();
+		long serial = raf2le32(s, 14); // serial of the first (and hopefully only) logical stream
+
+		// Most pages are small, so we are first going to search the last few kb
+		// and only read more if we did not find a complete page header
+		for (int chunk = 8192; ; chunk = OGG_MAX_PAGE_SIZE) {
+			int bsize = (int)Math.min(chunk, file_length);
+			byte[] buff = new byte[bsize];
+			s.seek(file_length - bsize);
+			s.readFully(buff);
+
+			for (int i = bsize - OGG_PAGE_SIZE; i >= 0; i--) {
+				if (buff[i] == 'O' && buff[i+1] == 'g' && buff[i+2] == 'g' && buff[i+3] == 'S' && buff[i+4] == 0) {
+					long granule = b2le64(buff, i+6);
+					if (granule != -1 && b2le32(buff, i+14) == serial)
+						return granule;
+				}
+			}
+
+			if (bsize == file_length || chunk == OGG_MAX_PAGE_SIZE)
+				break;
+		}
+		return -1;
+	}
 	
 	
 	/**
@@ -118,7 +160,7 @@ public class OggFile extends Common implements PageInfo.PageParser {
 	/* In 'vorbiscomment' field is prefixed with \3vorbis in OGG files
 	** we check that this marker is present and call the generic comment
 	** parset with the correct offset (+7) */
-	private HashMap parse_ogg_vorbis_comment(RandomAccessFile s, long offset, long pl_len) throws IOException {
+	private TagSet parse_ogg_vorbis_comment(RandomAccessFile s, long offset, long pl_len) throws IOException {
 		final int pfx_len = 7;
 		byte[] pfx        = new byte[pfx_len];
 		
@@ -25,11 +25,13 @@ import java.util.HashMap;
 public class OpusFile extends OggFile {
 	// A list of tags we are going to ignore in the OpusTags section
 	public static final String[] FORBIDDEN_TAGS = {"REPLAYGAIN_TRACK_GAIN", "REPLAYGAIN_TRACK_PEAK", "REPLAYGAIN_ALBUM_GAIN", "REPLAYGAIN_ALBUM_PEAK"};
+	// The sampling rate of all opus streams
+	private static final int OPUS_SAMPLING_RATE = 48000;
 
 	public OpusFile() {
 	}
 
-	public HashMap getTags(RandomAccessFile s) throws IOException {
+	public TagSet getTags(RandomAccessFile s) throws IOException {
 
 		// The opus specification is very strict: The first packet MUST
 		// contain the OpusHeader while the 2nd MUST contain the
@@ -37,7 +39,7 @@ public class OpusFile extends OggFile {
 		long pos = 0;
 		PageInfo pi =  parse_stream_page(s, pos);
 
-		HashMap tags = new HashMap();
+		TagSet tags = new TagSet();
 		HashMap opus_head = parse_opus_head(s, pos+pi.header_len, pi.payload_len);
 		pos += pi.header_len+pi.payload_len;
 
@@ -49,15 +51,22 @@ public class OpusFile extends OggFile {
 			tags = parse_opus_vorbis_comment(s, pos+pi.header_len, pi.payload_len);
 			// ...and merge replay gain intos into the tags map
 			calculate_gain(opus_head, tags);
+
+			// Opus always uses a granule rate of 48kHz, the first pre_skip samples are not played
+			long granule = find_last_granule(s);
+			if (granule > 0) {
+				long duration_ms = (granule - (Integer)opus_head.get("pre_skip")) * 1000 / OPUS_SAMPLING_RATE;
+				addStreamInfo(tags, duration_ms, OPUS_SAMPLING_RATE, (Integer)opus_head.get("channels"), s.length());
+			}
 		}
 
 		return tags;
 	}
 
 	/**
-	 * Adds replay gain information to the tags hash map
+	 * Adds replay gain information to the tag set
 	 */
-	private void calculate_gain(HashMap header, HashMap tags) {
+	private void calculate_gain(HashMap header, TagSet tags) {
 		// Remove any unacceptable tags (Opus files must not have
 		// their own REPLAYGAIN_* fields)
 		for(String k : FORBIDDEN_TAGS) {
@@ -65,7 +74,7 @@ public class OpusFile extends OggFile {
 		}
 		// Include the gain value found in the opus header
 		int header_gain = (Integer)header.get("header_gain");
-		addTagEntry(tags, "R128_BASTP_BASE_GAIN", ""+header_gain);
+		tags.add(TagSet.R128_BASTP_BASE_GAIN, ""+header_gain);
 	}
 
 
@@ -105,9 +114,9 @@ public class OpusFile extends OggFile {
 
 	/**
 	 * Parses an OpusTags section
-	 * Returns a hash map of the found tags
+	 * Returns a tag set of the found tags
 	 */
-	private HashMap parse_opus_vorbis_comment(RandomAccessFile s, long offset, long pl_len) throws IOException {
+	private TagSet parse_opus_vorbis_comment(RandomAccessFile s, long offset, long pl_len) throws IOException {
 		final int magic_len = 8; // OpusTags
 		byte[] magic = new byte[magic_len];
 
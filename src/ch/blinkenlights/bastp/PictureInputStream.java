@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2017 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.bastp;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * An InputStream returning the embedded picture found by Bastp
+ *
+ * The picture is streamed from its location in the audio file, so
+ * it never has to be held in memory as a whole. Base64 encoded
+ * METADATA_BLOCK_PICTURE comments are decoded on the fly and the
+ * FLAC PICTURE header found in them is skipped.
+ */
+public class PictureInputStream extends InputStream {
+	/**
+	 * Number of encoded bytes to decode at once
+	 */
+	private static final int ENCODED_CHUNK_SIZE = 4096;
+	/**
+	 * The file we are reading from
+	 */
+	private final FileInputStream in;
+	/**
+	 * Number of bytes left in the picture region of the file
+	 */
+	private long remaining;
+	/**
+	 * Number of picture bytes which may still be returned to the caller
+	 */
+	private long limit;
+	/**
+	 * True if the region is base64 encoded
+	 */
+	private final boolean base64;
+	/**
+	 * Buffers used to decode base64 data
+	 */
+	private byte[] enc_buf;
+	private byte[] dec_buf;
+	private int dec_pos = 0;
+	private int dec_len = 0;
+	/**
+	 * Bits and number of characters of an incomplete base64 quad
+	 */
+	private int quad_bits = 0;
+	private int quad_chars = 0;
+
+	/**
+	 * Opens the picture described by the tags returned by Bastp
+	 *
+	 * @param fname the file which was parsed by Bastp
+	 * @param tags the tags returned by Bastp
+	 */
+	public PictureInputStream(String fname, TagSet tags) throws IOException {
+		this(fname, tags.picture_offset, tags.picture_length, tags.picture_base64);
+	}
+
+	/**
+	 * Opens a picture at a known location
+	 *
+	 * @param fname the file to read from
+	 * @param offset file offset of the picture
+	 * @param length length of the picture, as stored in the file
+	 * @param base64 true if the region holds a base64 encoded FLAC PICTURE block
+	 */
+	public PictureInputStream(String fname, long offset, long length, boolean base64) throws IOException {
+		if (offset <= 0 || length <= 0)
+			throw new IOException("No embedded picture");
+
+		this.in = new FileInputStream(fname);
+		this.remaining = length;
+		this.limit = length;
+		this.base64 = base64;
+
+		try {
+			if (in.skip(offset) != offset)
+				throw new IOException("Picture offset beyond end of file");
+
+			if (base64) {
+				enc_buf = new byte[ENCODED_CHUNK_SIZE];
+				dec_buf = new byte[ENCODED_CHUNK_SIZE / 4 * 3 + 3];
+				skipPictureHeader();
+			}
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return (read(b, 0, 1) == 1 ? b[0] & 0xFF : -1);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (limit <= 0)
+			return -1;
+
+		int bread = readSource(b, off, (int)Math.min(len, limit));
+		if (bread > 0)
+			limit -= bread;
+		return bread;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if (n <= 0)
+			return 0;
+		byte[] b = new byte[(int)Math.min(n, 4096)];
+		long skipped = 0;
+		while (skipped < n) {
+			int bread = read(b, 0, (int)Math.min(n - skipped, b.length));
+			if (bread <= 0)
+				break;
+			skipped += bread;
+		}
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (int)Math.min(Integer.MAX_VALUE, base64 ? dec_len - dec_pos : limit);
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Returns the picture type of a base64 encoded FLAC PICTURE block
+	 *
+	 * @param b buffer holding the beginning of the encoded block
+	 * @param off offset of the block in b
+	 * @param len number of valid bytes in b
+	 * @return the picture type, -1 if it could not be decoded
+	 */
+	public static int peekPictureType(byte[] b, int off, int len) {
+		int type = 0;
+		int bits = 0;
+		int chars = 0;
+		for (int i = off; i < off + len && chars < 8; i++) {
+			int v = decodeChar(b[i]);
+			if (v < 0)
+				continue;
+			bits = (bits << 6) | v;
+			if (++chars == 4) {
+				type = bits; // the first 3 bytes
+				bits = 0;
+			}
+		}
+		// 8 characters hold 6 bytes: the 32bit type is followed by 2 bytes we do not need
+		return (chars == 8 ? (type << 8) | (bits >> 16) : -1);
+	}
+
+	/**
+	 * Reads up to len bytes of the (decoded) picture region
+	 */
+	private int readSource(byte[] b, int off, int len) throws IOException {
+		if (!base64) {
+			if (remaining <= 0)
+				return -1;
+			int bread = in.read(b, off, (int)Math.min(len, remaining));
+			if (bread > 0)
+				remaining -= bread;
+			return bread;
+		}
+
+		if (dec_pos == dec_len && fill() == 0)
+			return -1;
+		int chunk = Math.min(len, dec_len - dec_pos);
+		System.arraycopy(dec_buf, dec_pos, b, off, chunk);
+		dec_pos += chunk;
+		return chunk;
+	}
+
+	/**
+	 * Decodes the next chunk of base64 data into dec_buf
+	 *
+	 * @return the number of decoded bytes, 0 on EOF
+	 */
+	private int fill() throws IOException {
+		dec_pos = 0;
+		dec_len = 0;
+		while (dec_len == 0 && remaining > 0) {
+			int bread = in.read(enc_buf, 0, (int)Math.min(enc_buf.length, remaining));
+			if (bread <= 0) {
+				remaining = 0;
+				break;
+			}
+			remaining -= bread;
+
+			for (int i = 0; i < bread; i++) {
+				int v = decodeChar(enc_buf[i]);
+				if (v < 0)
+					continue; // padding or whitespace
+				quad_bits = (quad_bits << 6) | v;
+				if (++quad_chars == 4) {
+					dec_buf[dec_len++] = (byte)(quad_bits >> 16);
+					dec_buf[dec_len++] = (byte)(quad_bits >> 8);
+					dec_buf[dec_len++] = (byte)(quad_bits);
+					quad_bits = 0;
+					quad_chars = 0;
+				}
+			}
+		}
+
+		if (remaining == 0 && quad_chars > 1) {
+			// flush the final, padded quad
+			quad_bits <<= 6 * (4 - quad_chars);
+			dec_buf[dec_len++] = (byte)(quad_bits >> 16);
+			if (quad_chars == 3)
+				dec_buf[dec_len++] = (byte)(quad_bits >> 8);
+			quad_chars = 0;
+		}
+		return dec_len;
+	}
+
+	/**
+	 * Skips the header of a decoded FLAC PICTURE block and limits
+	 * the stream to the picture data
+	 */
+	private void skipPictureHeader() throws IOException {
+		readBe32(); // picture type
+		skipSource(readBe32()); // mime type
+		skipSource(readBe32()); // description
+		skipSource(16); // width, height, depth and number of colors
+		limit = readBe32() & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * Reads a big endian 32bit int from the decoded region
+	 */
+	private int readBe32() throws IOException {
+		int r = 0;
+		byte[] b = new byte[1];
+		for (int i = 0; i < 4; i++) {
+			if (readSource(b, 0, 1) != 1)
+				throw new IOException("Truncated picture header");
+			r = (r << 8) | (b[0] & 0xFF);
+		}
+		return r;
+	}
+
+	/**
+	 * Skips n bytes of the decoded region
+	 */
+	private void skipSource(int n) throws IOException {
+		if (n < 0)
+			throw new IOException("Invalid picture header");
+		byte[] b = new byte[256];
+		while (n > 0) {
+			int bread = readSource(b, 0, Math.min(n, b.length));
+			if (bread <= 0)
+				throw new IOException("Truncated picture header");
+			n -= bread;
+		}
+	}
+
+	/**
+	 * Returns the 6 bit value of a base64 character, -1 if c is not part of the alphabet
+	 */
+	private static int decodeChar(int c) {
+		if (c >= 'A' && c <= 'Z')
+			return c - 'A';
+		if (c >= 'a' && c <= 'z')
+			return c - 'a' + 26;
+		if (c >= '0' && c <= '9')
+			return c - '0' + 52;
+		if (c == '+')
+			return 62;
+		if (c == '/')
+			return 63;
+		return -1;
+	}
+
+}
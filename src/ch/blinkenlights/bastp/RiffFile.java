@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2017 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.bastp;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+
+
+/**
+ * Chunk parser for RIFF/WAVE and (big endian) FORM/AIFF files
+ *
+ * Only the chunk headers are read while walking the file, the
+ * payload of the audio chunk is skipped by seeking over it.
+ */
+public class RiffFile extends Common {
+	private static final int CHUNK_HEADER_SIZE = 8;
+	private static final int MAX_INFO_SIZE = 512;
+	// WAVE format tags with a fixed block size, so that the duration can be calculated exactly
+	private static final int WAVE_FORMAT_PCM = 0x0001;
+	private static final int WAVE_FORMAT_IEEE_FLOAT = 0x0003;
+	private static final int WAVE_FORMAT_ALAW = 0x0006;
+	private static final int WAVE_FORMAT_MULAW = 0x0007;
+	private static final int WAVE_FORMAT_EXTENSIBLE = 0xFFFE;
+
+	// mapping between LIST INFO (WAVE) or text chunks (AIFF) and vorbis names
+	private static final HashMap<String, String> INFO_TAGS;
+	static {
+		INFO_TAGS = new HashMap<String, String>();
+		INFO_TAGS.put("INAM", "TITLE");
+		INFO_TAGS.put("IART", "ARTIST");
+		INFO_TAGS.put("IPRD", "ALBUM");
+		INFO_TAGS.put("ICRD", "YEAR");
+		INFO_TAGS.put("IGNR", "GENRE");
+		INFO_TAGS.put("ITRK", "TRACKNUMBER");
+		INFO_TAGS.put("IPRT", "TRACKNUMBER");
+		INFO_TAGS.put("NAME", "TITLE");
+		INFO_TAGS.put("AUTH", "ARTIST");
+	}
+
+	private boolean big_endian = false;
+	private int format_tag = 0;
+	private int channels = 0;
+	private int sampling_rate = 0;
+	private int block_align = 0;
+	private long aiff_frames = 0;
+	private long data_bytes = -1;
+
+	public RiffFile() {
+	}
+
+	public TagSet getTags(RandomAccessFile s) throws IOException {
+		TagSet tags = new TagSet();
+		TagSet info = new TagSet();
+		byte[] chunk = new byte[CHUNK_HEADER_SIZE];
+
+		s.seek(0);
+		s.read(chunk);
+		big_endian = new String(chunk, 0, 4, "ISO-8859-1").equals("FORM");
+		long file_end = Math.min(s.length(), CHUNK_HEADER_SIZE + chunkSize(chunk));
+		long pos = CHUNK_HEADER_SIZE + 4; // skip WAVE or AIFF form type
+
+		while (pos + CHUNK_HEADER_SIZE <= file_end) {
+			s.seek(pos);
+			if (s.read(chunk) != CHUNK_HEADER_SIZE)
+				break;
+
+			String id = new String(chunk, 0, 4, "ISO-8859-1");
+			long size = chunkSize(chunk);
+			long payload = pos + CHUNK_HEADER_SIZE;
+
+			if (id.equals("data") || id.equals("SSND")) {
+				// streaming writers may not know the size of the audio data
+				if (size == 0 || size == 0xFFFFFFFFL || payload + size > file_end)
+					size = file_end - payload;
+				data_bytes = size;
+			}
+			else if (id.equals("fmt ") && size >= 16) {
+				parse_fmt_chunk(s, payload);
+			}
+			else if (id.equals("COMM") && size >= 18) {
+				parse_comm_chunk(s, payload);
+			}
+			else if (id.equals("LIST") && size >= 4) {
+				byte[] type = new byte[4];
+				s.read(type);
+				if (new String(type, "ISO-8859-1").equals("INFO"))
+					parse_info_list(s, payload + 4, payload + size, info);
+			}
+			else if (id.equalsIgnoreCase("id3 ") && size > 10) {
+				byte[] magic = new byte[3];
+				s.read(magic);
+				if (new String(magic, "ISO-8859-1").equals("ID3")) {
+					tags = (new ID3v2File()).getTags(s, payload);
+					tags.header_len = 0;
+				}
+			}
+			else if (big_endian && INFO_TAGS.containsKey(id)) {
+				addInfoEntry(s, id, payload, size, info);
+			}
+
+			// chunks are padded to an even size
+			pos = payload + size + (size & 1);
+		}
+
+		// The embedded ID3 tag is more expressive: INFO fields only fill in the gaps
+		tags.inherit(info);
+
+		if (data_bytes > 0 && sampling_rate > 0) {
+			long duration_ms = 0;
+			if (big_endian)
+				duration_ms = aiff_frames * 1000 / sampling_rate;
+			else if (block_align > 0 && hasFixedBlockSize(format_tag))
+				duration_ms = (data_bytes / block_align) * 1000 / sampling_rate;
+			addStreamInfo(tags, duration_ms, sampling_rate, channels, data_bytes);
+		}
+
+		return tags;
+	}
+
+	/**
+	 * Parses the WAVE format chunk
+	 */
+	private void parse_fmt_chunk(RandomAccessFile s, long offset) throws IOException {
+		byte[] fmt = new byte[16];
+		s.seek(offset);
+		s.read(fmt);
+		format_tag    = b2le16(fmt, 0);
+		channels      = b2le16(fmt, 2);
+		sampling_rate = b2le32(fmt, 4);
+		block_align   = b2le16(fmt, 12);
+	}
+
+	/**
+	 * Parses the AIFF common chunk
+	 */
+	private void parse_comm_chunk(RandomAccessFile s, long offset) throws IOException {
+		byte[] comm = new byte[18];
+		s.seek(offset);
+		s.read(comm);
+		channels    = ((b2u(comm[0]) << 8) | b2u(comm[1]));
+		aiff_frames = b2be32(comm, 2) & 0xFFFFFFFFL;
+
+		// the sampling rate is an 80 bit IEEE 754 extended precision float:
+		// 15 bit exponent followed by a 64 bit mantissa with explicit integer bit
+		int exponent = ((b2u(comm[8]) & 0x7F) << 8) | b2u(comm[9]);
+		long mantissa = b2be32(comm, 10) & 0xFFFFFFFFL; // the upper 32 bits are precise enough
+		int shift = exponent - 16383 - 31;
+		if (shift <= 0 && shift > -32)
+			sampling_rate = (int)(mantissa >> -shift);
+	}
+
+	/**
+	 * Parses all sub-chunks of a LIST INFO chunk
+	 */
+	private void parse_info_list(RandomAccessFile s, long pos, long end, TagSet info) throws IOException {
+		byte[] chunk = new byte[CHUNK_HEADER_SIZE];
+		while (pos + CHUNK_HEADER_SIZE <= end) {
+			s.seek(pos);
+			s.read(chunk);
+			String id = new String(chunk, 0, 4, "ISO-8859-1");
+			long size = chunkSize(chunk);
+			if (INFO_TAGS.containsKey(id))
+				addInfoEntry(s, id, pos + CHUNK_HEADER_SIZE, size, info);
+			pos += CHUNK_HEADER_SIZE + size + (size & 1);
+		}
+	}
+
+	/**
+	 * Adds the (null terminated) text of an info chunk
+	 */
+	private void addInfoEntry(RandomAccessFile s, String id, long offset, long size, TagSet info) throws IOException {
+		byte[] text = new byte[(int)Math.min(size, MAX_INFO_SIZE)];
+		s.seek(offset);
+		s.read(text);
+
+		int len = 0;
+		while (len < text.length && text[len] != 0)
+			len++;
+
+		String key = INFO_TAGS.get(id);
+		String value = new String(text, 0, len, "UTF-8").trim();
+		if (value.length() > 0 && !info.has(key))
+			info.add(key, value);
+	}
+
+	/**
+	 * Returns the size of the chunk whose header is in 'chunk'
+	 */
+	private long chunkSize(byte[] chunk) {
+		return (big_endian ? b2be32(chunk, 4) : b2le32(chunk, 4)) & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * Returns true if all blocks of this format have the same size
+	 */
+	private boolean hasFixedBlockSize(int format) {
+		return format == WAVE_FORMAT_PCM || format == WAVE_FORMAT_IEEE_FLOAT || format == WAVE_FORMAT_ALAW ||
+		       format == WAVE_FORMAT_MULAW || format == WAVE_FORMAT_EXTENSIBLE;
+	}
+
+}
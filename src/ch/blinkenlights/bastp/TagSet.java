@@ -0,0 +1,512 @@
+/*
+ * Copyright (C) 2017 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.bastp;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+
+/**
+ * The tags and stream information found by Bastp
+ *
+ * Well known keys are stored in integer slots, everything else is kept
+ * by name. Values are kept as raw bytes in a single shared pool and are
+ * only decoded into Strings once they are requested, so that parsing a
+ * file with thousands of comments does not create thousands of objects.
+ * A key may have multiple values, which are returned in file order.
+ */
+public class TagSet {
+	/**
+	 * Well known keys, named after their vorbis comment
+	 */
+	public static final int TITLE                 = 0;
+	public static final int ARTIST                = 1;
+	public static final int ALBUM                 = 2;
+	public static final int ALBUMARTIST           = 3;
+	public static final int COMPOSER              = 4;
+	public static final int GENRE                 = 5;
+	public static final int YEAR                  = 6;
+	public static final int DATE                  = 7;
+	public static final int TRACKNUMBER           = 8;
+	public static final int TRACKTOTAL            = 9;
+	public static final int DISCNUMBER            = 10;
+	public static final int DISCTOTAL             = 11;
+	public static final int REPLAYGAIN_TRACK_GAIN = 12;
+	public static final int REPLAYGAIN_ALBUM_GAIN = 13;
+	public static final int R128_TRACK_GAIN       = 14;
+	public static final int R128_ALBUM_GAIN       = 15;
+	public static final int R128_BASTP_BASE_GAIN  = 16;
+	public static final int LYRICS                = 17;
+	/**
+	 * Slot of entries whose key is not well known
+	 */
+	public static final int UNKNOWN = -1;
+	/**
+	 * Slot of entries which were removed
+	 */
+	private static final int REMOVED = -2;
+	/**
+	 * Names of the well known keys, indexed by slot
+	 */
+	private static final String[] KEYS = {
+		"TITLE", "ARTIST", "ALBUM", "ALBUMARTIST", "COMPOSER", "GENRE", "YEAR", "DATE",
+		"TRACKNUMBER", "TRACKTOTAL", "DISCNUMBER", "DISCTOTAL", "REPLAYGAIN_TRACK_GAIN",
+		"REPLAYGAIN_ALBUM_GAIN", "R128_TRACK_GAIN", "R128_ALBUM_GAIN", "R128_BASTP_BASE_GAIN", "LYRICS",
+	};
+	/**
+	 * Encodings of raw values
+	 */
+	public static final int ENC_LATIN1  = 0;
+	public static final int ENC_UTF8    = 1;
+	public static final int ENC_UTF16   = 2; // byte order given by a BOM
+	public static final int ENC_UTF16BE = 3;
+	private static final String[] CHARSETS = { "ISO-8859-1", "UTF-8", "UTF-16", "UTF-16BE" };
+
+	/**
+	 * The format of the file, such as FLAC or MP3/ID3v2
+	 */
+	public String type = null;
+	/**
+	 * Size of the ID3v2 header, 0 if there is none
+	 */
+	public int header_len = 0;
+	/**
+	 * Stream information, 0 if unknown
+	 */
+	public long duration_ms = 0;
+	public int sampling_rate = 0;
+	public int channels = 0;
+	public int bitrate = 0;
+	/**
+	 * True if the file contains a video stream
+	 */
+	public boolean has_video = false;
+	/**
+	 * Location of the embedded picture, picture_offset is 0 if there is none
+	 */
+	public int picture_type = -1;
+	public long picture_offset = 0;
+	public long picture_length = 0;
+	public boolean picture_base64 = false;
+	/**
+	 * I/O needed to parse the file, only known if it was parsed by path
+	 */
+	public long bytes_read = 0;
+	public int read_calls = 0;
+
+	/**
+	 * Number of entries
+	 */
+	private int count = 0;
+	/**
+	 * Slot of each entry
+	 */
+	private int[] slots = new int[16];
+	/**
+	 * Index of the next entry with the same slot, -1 if this is the last one
+	 */
+	private int[] next = new int[16];
+	/**
+	 * Location of the raw value and key of each entry in the pool
+	 */
+	private int[] value_off = new int[16];
+	private int[] value_len = new int[16];
+	private int[] key_off = new int[16];
+	private int[] key_len = new int[16];
+	private byte[] encodings = new byte[16];
+	/**
+	 * Decoded values and keys, created on demand
+	 */
+	private String[] values = new String[16];
+	private String[] keys = new String[16];
+	/**
+	 * First and last entry of each slot, -1 if the slot is empty
+	 */
+	private final int[] first = new int[KEYS.length];
+	private final int[] last = new int[KEYS.length];
+	/**
+	 * Storage for all raw keys and values
+	 */
+	private byte[] pool = new byte[1024];
+	private int pool_len = 0;
+
+	public TagSet() {
+		for (int i = 0; i < KEYS.length; i++) {
+			first[i] = -1;
+			last[i] = -1;
+		}
+	}
+
+	/**
+	 * Returns the slot of a key, UNKNOWN if it is not well known
+	 *
+	 * @param key the key, case does not matter
+	 */
+	public static int slotOf(String key) {
+		for (int i = 0; i < KEYS.length; i++) {
+			if (KEYS[i].equalsIgnoreCase(key))
+				return i;
+		}
+		return UNKNOWN;
+	}
+
+	/**
+	 * Same as slotOf(String) but reads an ASCII key from a buffer
+	 * without creating a String
+	 */
+	public static int slotOf(byte[] b, int off, int len) {
+		for (int i = 0; i < KEYS.length; i++) {
+			String k = KEYS[i];
+			if (k.length() != len)
+				continue;
+			int j = 0;
+			while (j < len && k.charAt(j) == Character.toUpperCase((char)(b[off+j] & 0xFF)))
+				j++;
+			if (j == len)
+				return i;
+		}
+		return UNKNOWN;
+	}
+
+	/**
+	 * Adds a decoded value
+	 *
+	 * @param key the key to add the value to
+	 * @param value the value to add
+	 */
+	public void add(String key, String value) {
+		int slot = slotOf(key);
+		int i = newEntry(slot);
+		values[i] = value;
+		if (slot == UNKNOWN)
+			keys[i] = key;
+	}
+
+	/**
+	 * Adds a decoded value to a well known key
+	 */
+	public void add(int slot, String value) {
+		values[newEntry(slot)] = value;
+	}
+
+	/**
+	 * Adds a raw value to a well known key, it will be decoded on demand
+	 *
+	 * @param slot the slot of the key
+	 * @param b buffer holding the value, which is copied
+	 * @param off offset of the value in b
+	 * @param len length of the value in bytes
+	 * @param encoding one of the ENC_* constants
+	 */
+	public void addRaw(int slot, byte[] b, int off, int len, int encoding) {
+		int i = newEntry(slot);
+		value_off[i] = store(b, off, len);
+		value_len[i] = len;
+		encodings[i] = (byte)encoding;
+	}
+
+	/**
+	 * Adds a raw value of a (possibly unknown) ASCII key
+	 *
+	 * @param b buffer holding the key and value, which are copied
+	 * @param k_off offset of the key in b
+	 * @param k_len length of the key
+	 * @param v_off offset of the value in b
+	 * @param v_len length of the value in bytes
+	 * @param encoding one of the ENC_* constants
+	 */
+	public void addRaw(byte[] b, int k_off, int k_len, int v_off, int v_len, int encoding) {
+		int slot = slotOf(b, k_off, k_len);
+		addRaw(slot, b, v_off, v_len, encoding);
+		if (slot == UNKNOWN) {
+			key_off[count-1] = store(b, k_off, k_len);
+			key_len[count-1] = k_len;
+		}
+	}
+
+	/**
+	 * Returns true if neither tags nor stream information were found
+	 */
+	public boolean isEmpty() {
+		for (int i = 0; i < count; i++) {
+			if (slots[i] != REMOVED)
+				return false;
+		}
+		return duration_ms == 0 && picture_offset == 0;
+	}
+
+	/**
+	 * Returns true if the well known key has at least one value
+	 */
+	public boolean has(int slot) {
+		return first[slot] != -1;
+	}
+
+	/**
+	 * Returns true if the key has at least one value
+	 */
+	public boolean has(String key) {
+		int slot = slotOf(key);
+		return (slot == UNKNOWN ? findUnknown(key) != -1 : has(slot));
+	}
+
+	/**
+	 * Returns the number of values of a well known key
+	 */
+	public int count(int slot) {
+		int n = 0;
+		for (int i = first[slot]; i != -1; i = next[i])
+			n++;
+		return n;
+	}
+
+	/**
+	 * Returns the first value of a well known key, null if it has none
+	 */
+	public String getFirst(int slot) {
+		return (first[slot] == -1 ? null : decode(first[slot]));
+	}
+
+	/**
+	 * Returns all values of a well known key
+	 *
+	 * @return a new list, which is empty if the key has no values
+	 */
+	public ArrayList<String> getAll(int slot) {
+		ArrayList<String> list = new ArrayList<String>(1);
+		for (int i = first[slot]; i != -1; i = next[i])
+			list.add(decode(i));
+		return list;
+	}
+
+	/**
+	 * Removes all values of a key
+	 */
+	public void remove(String key) {
+		int slot = slotOf(key);
+		if (slot == UNKNOWN) {
+			for (int i = findUnknown(key); i != -1; i = findUnknown(key))
+				slots[i] = REMOVED;
+			return;
+		}
+		for (int i = first[slot]; i != -1; i = next[i])
+			slots[i] = REMOVED;
+		first[slot] = -1;
+		last[slot] = -1;
+	}
+
+	/**
+	 * Copies all keys and stream information which are missing in this set
+	 *
+	 * @param from the set to copy from
+	 */
+	public void inherit(TagSet from) {
+		for (int slot = 0; slot < KEYS.length; slot++) {
+			if (has(slot))
+				continue;
+			for (int i = from.first[slot]; i != -1; i = from.next[i])
+				copyEntry(from, i);
+		}
+
+		int known = count; // unknown keys which are already present
+		for (int i = 0; i < from.count; i++) {
+			if (from.slots[i] == UNKNOWN && findUnknown(from.key(i), known) == -1)
+				copyEntry(from, i);
+		}
+
+		if (type == null)
+			type = from.type;
+		if (header_len == 0)
+			header_len = from.header_len;
+		if (duration_ms == 0) {
+			duration_ms = from.duration_ms;
+			sampling_rate = from.sampling_rate;
+			channels = from.channels;
+			bitrate = from.bitrate;
+		}
+		has_video |= from.has_video;
+		if (picture_offset == 0)
+			copyPicture(from);
+	}
+
+	/**
+	 * Replaces the picture location with the one of another set
+	 */
+	public void copyPicture(TagSet from) {
+		picture_type = from.picture_type;
+		picture_offset = from.picture_offset;
+		picture_length = from.picture_length;
+		picture_base64 = from.picture_base64;
+	}
+
+	/**
+	 * Returns the contents of this set in the format of the old HashMap
+	 * interface: Tags are uppercase keys of ArrayList<String> values, while
+	 * stream information is stored under lowercase keys.
+	 */
+	public HashMap toHashMap() {
+		HashMap map = new HashMap();
+		for (int i = 0; i < count; i++) {
+			if (slots[i] == REMOVED)
+				continue;
+			String key = (slots[i] == UNKNOWN ? key(i).toUpperCase() : KEYS[slots[i]]);
+			ArrayList<String> list = (ArrayList<String>)map.get(key);
+			if (list == null) {
+				list = new ArrayList<String>(1);
+				map.put(key, list);
+			}
+			list.add(decode(i));
+		}
+
+		if (type != null)
+			map.put("type", type);
+		if (header_len > 0)
+			map.put("_hdrlen", header_len);
+		if (duration_ms > 0) {
+			map.put("duration", (int)(duration_ms / 1000));
+			map.put("duration_ms", duration_ms);
+		}
+		if (sampling_rate > 0)
+			map.put("sampling_rate", sampling_rate);
+		if (channels > 0)
+			map.put("channels", channels);
+		if (bitrate > 0)
+			map.put("bitrate", bitrate);
+		if (has_video)
+			map.put("has_video", true);
+		if (picture_offset > 0) {
+			map.put("picture_type", picture_type);
+			map.put("picture_offset", picture_offset);
+			map.put("picture_length", picture_length);
+			map.put("picture_base64", picture_base64);
+		}
+		return map;
+	}
+
+	/**
+	 * Returns the (decoded) value of entry i
+	 */
+	private String decode(int i) {
+		if (values[i] == null) {
+			try {
+				values[i] = new String(pool, value_off[i], value_len[i], CHARSETS[encodings[i]]);
+			} catch (UnsupportedEncodingException e) {
+				values[i] = "";
+			}
+		}
+		return values[i];
+	}
+
+	/**
+	 * Returns the key of an unknown entry
+	 */
+	private String key(int i) {
+		if (keys[i] == null)
+			keys[i] = new String(pool, key_off[i], key_len[i], Charset.forName("ISO-8859-1"));
+		return keys[i];
+	}
+
+	/**
+	 * Returns the index of the first unknown entry with given key, -1 if there is none
+	 */
+	private int findUnknown(String key) {
+		return findUnknown(key, count);
+	}
+
+	/**
+	 * Same as findUnknown(String) but only searches the first 'limit' entries
+	 */
+	private int findUnknown(String key, int limit) {
+		for (int i = 0; i < limit; i++) {
+			if (slots[i] == UNKNOWN && key(i).equalsIgnoreCase(key))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Appends entry i of another set
+	 */
+	private void copyEntry(TagSet from, int i) {
+		int j = newEntry(from.slots[i]);
+		if (from.values[i] != null) {
+			values[j] = from.values[i];
+		} else {
+			value_off[j] = store(from.pool, from.value_off[i], from.value_len[i]);
+			value_len[j] = from.value_len[i];
+			encodings[j] = from.encodings[i];
+		}
+		if (from.slots[i] == UNKNOWN)
+			keys[j] = from.key(i);
+	}
+
+	/**
+	 * Allocates a new entry and links it to its slot
+	 *
+	 * @return the index of the new entry
+	 */
+	private int newEntry(int slot) {
+		if (count == slots.length)
+			grow();
+
+		int i = count++;
+		slots[i] = slot;
+		next[i] = -1;
+		values[i] = null;
+		keys[i] = null;
+		if (slot >= 0) {
+			if (last[slot] == -1)
+				first[slot] = i;
+			else
+				next[last[slot]] = i;
+			last[slot] = i;
+		}
+		return i;
+	}
+
+	/**
+	 * Copies len bytes into the pool and returns their offset
+	 */
+	private int store(byte[] b, int off, int len) {
+		if (pool_len + len > pool.length)
+			pool = Arrays.copyOf(pool, Math.max(pool.length * 2, pool_len + len));
+		System.arraycopy(b, off, pool, pool_len, len);
+		pool_len += len;
+		return pool_len - len;
+	}
+
+	/**
+	 * Doubles the capacity of all entry arrays
+	 */
+	private void grow() {
+		int size = slots.length * 2;
+		slots = Arrays.copyOf(slots, size);
+		next = Arrays.copyOf(next, size);
+		value_off = Arrays.copyOf(value_off, size);
+		value_len = Arrays.copyOf(value_len, size);
+		key_off = Arrays.copyOf(key_off, size);
+		key_len = Arrays.copyOf(key_len, size);
+		encodings = Arrays.copyOf(encodings, size);
+		values = Arrays.copyOf(values, size);
+		keys = Arrays.copyOf(keys, size);
+	}
+
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2017 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.bastp;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+
+
+/**
+ * Parses tags stored at the end of a file: APEv2, Lyrics3 (v1 and v2) and ID3v1(.1)
+ *
+ * The last TAIL_SIZE bytes of the file are read in one go and all tags are
+ * parsed from this buffer. Only APEv2 tags larger than the buffer (which
+ * usually carry cover art) cause additional reads.
+ * If a field is present in multiple tags, APEv2 wins over Lyrics3v2, which
+ * wins over the truncated ID3v1 fields.
+ */
+public class TailTagFile extends Common {
+	private static final int TAIL_SIZE = 32 * 1024;
+	private static final int ID3V1_SIZE = 128;
+	private static final int APE_FOOTER_SIZE = 32;
+	private static final int APE_MAX_KEY_SIZE = 255;
+	private static final int APE_ITEM_TEXT = 0;
+	private static final int APE_ITEM_BINARY = 1;
+	private static final int LYRICS3_V1_MAX_SIZE = 5100 + 11 + 9; // lyrics + LYRICSBEGIN + LYRICSEND
+	private static final int LYRICS3_V2_FOOTER_SIZE = 6 + 9;      // size + LYRICS200
+
+	// mapping between APE item keys and vorbis names, other keys are only uppercased
+	private static final HashMap<String, String> APE_TAGS;
+	static {
+		APE_TAGS = new HashMap<String, String>();
+		APE_TAGS.put("TRACK", "TRACKNUMBER");
+		APE_TAGS.put("DISC", "DISCNUMBER");
+		APE_TAGS.put("ALBUM ARTIST", "ALBUMARTIST");
+	}
+
+	// mapping between Lyrics3v2 fields and tag slots
+	private static final HashMap<String, Integer> LYRICS3_TAGS;
+	static {
+		LYRICS3_TAGS = new HashMap<String, Integer>();
+		LYRICS3_TAGS.put("ETT", TagSet.TITLE);
+		LYRICS3_TAGS.put("EAR", TagSet.ARTIST);
+		LYRICS3_TAGS.put("EAL", TagSet.ALBUM);
+		LYRICS3_TAGS.put("LYR", TagSet.LYRICS);
+	}
+
+	// the text fields of an ID3v1 tag, in file order
+	private static final int[] V1_SLOTS = { TagSet.TITLE, TagSet.ARTIST, TagSet.ALBUM };
+
+	/**
+	 * The buffer holding the tail of the file
+	 */
+	private byte[] buf;
+	/**
+	 * File offset of buf[0]
+	 */
+	private long buf_start;
+	/**
+	 * Number of valid bytes in buf
+	 */
+	private int buf_len;
+	/**
+	 * File offset of the first byte claimed by a tail tag
+	 */
+	private long tail_start = -1;
+
+	public TailTagFile() {
+	}
+
+	public TagSet getTags(RandomAccessFile s) throws IOException {
+		TagSet tags = new TagSet();
+		long file_len = s.length();
+
+		buf = new byte[(int)Math.min(TAIL_SIZE, file_len)];
+		fill(s, file_len - buf.length);
+
+		// end of the part of the file which was not yet claimed by a tag
+		long end = file_len;
+
+		TagSet v1tags = new TagSet();
+		if (end >= ID3V1_SIZE && matches(end - ID3V1_SIZE, "TAG")) {
+			v1tags = parseV1Tag(end - ID3V1_SIZE);
+			end -= ID3V1_SIZE;
+		}
+
+		TagSet lyrics = new TagSet();
+		long lyrics_start = findLyrics3(end);
+		if (lyrics_start >= 0) {
+			lyrics = parseLyrics3(lyrics_start, end);
+			end = lyrics_start;
+		}
+
+		TagSet ape = new TagSet();
+		if (end - APE_FOOTER_SIZE >= buf_start && matches(end - APE_FOOTER_SIZE, "APETAGEX")) {
+			long ape_start = findApeStart(end - APE_FOOTER_SIZE);
+			ape = parseApeTag(s, end - APE_FOOTER_SIZE);
+			if (ape_start >= 0)
+				end = ape_start;
+		}
+		tail_start = end;
+
+		tags.inherit(ape);
+		tags.inherit(lyrics);
+		tags.inherit(v1tags);
+		return tags;
+	}
+
+	/**
+	 * Returns the file offset at which the tail tags found by the last call
+	 * to getTags() start, which is the length of the file if there were none.
+	 */
+	public long getTailStart() {
+		return tail_start;
+	}
+
+	/**
+	 * Parses an ID3v1(.1) tag
+	 *
+	 * @param offset file offset of the 'TAG' magic
+	 */
+	private TagSet parseV1Tag(long offset) throws IOException {
+		TagSet tags = new TagSet();
+		int pos = (int)(offset - buf_start) + 3;
+
+		for (int slot : V1_SLOTS) {
+			String value = new String(buf, pos, 30, "ISO-8859-1").trim();
+			if (value.length() > 0)
+				tags.add(slot, value);
+			pos += 30;
+		}
+
+		// year is a string for whatever reason...
+		String y = new String(buf, pos, 4, "ISO-8859-1").trim();
+		if (y.length() > 0)
+			tags.add(TagSet.YEAR, y);
+		pos += 4 + 28; // skip comment field
+
+		if (buf[pos] == 0 && buf[pos+1] != 0) // buf[pos] == 0 -> is id3v1.1 compatible
+			tags.add(TagSet.TRACKNUMBER, String.format("%d", buf[pos+1]));
+
+		if (buf[pos+2] != 0)
+			tags.add(TagSet.GENRE, String.format("%d", buf[pos+2]));
+
+		return tags;
+	}
+
+	/**
+	 * Returns the file offset of a Lyrics3 tag ending at 'end', -1 if there is none
+	 */
+	private long findLyrics3(long end) throws IOException {
+		if (end - LYRICS3_V2_FOOTER_SIZE >= buf_start && matches(end - 9, "LYRICS200")) {
+			long size = parseDigits(end - LYRICS3_V2_FOOTER_SIZE, 6);
+			long start = end - LYRICS3_V2_FOOTER_SIZE - size;
+			if (size > 0 && start >= buf_start && matches(start, "LYRICSBEGIN"))
+				return start;
+		}
+		else if (end - 9 >= buf_start && matches(end - 9, "LYRICSEND")) {
+			// v1 has no size field: search backwards for the start of the tag
+			long first = Math.max(buf_start, end - LYRICS3_V1_MAX_SIZE);
+			for (long start = end - 9 - 11; start >= first; start--) {
+				if (matches(start, "LYRICSBEGIN"))
+					return start;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Parses the Lyrics3 tag located between start and end
+	 */
+	private TagSet parseLyrics3(long start, long end) throws IOException {
+		TagSet tags = new TagSet();
+		int pos = (int)(start - buf_start) + 11; // skip LYRICSBEGIN
+
+		if (matches(end - 9, "LYRICSEND")) {
+			// Lyrics3v1: the whole tag is the lyrics text
+			int len = (int)(end - 9 - buf_start) - pos;
+			if (len > 0)
+				tags.addRaw(TagSet.LYRICS, buf, pos, len, TagSet.ENC_LATIN1);
+			return tags;
+		}
+
+		// Lyrics3v2: a list of [ID (3 bytes)][SIZE (5 digits)][DATA] fields
+		int last = (int)(end - LYRICS3_V2_FOOTER_SIZE - buf_start);
+		while (pos + 8 <= last) {
+			String field = new String(buf, pos, 3, "ISO-8859-1");
+			long size = parseDigits(buf_start + pos + 3, 5);
+			pos += 8;
+			if (size < 0 || pos + size > last)
+				break;
+
+			if (LYRICS3_TAGS.containsKey(field) && size > 0)
+				tags.addRaw(LYRICS3_TAGS.get(field), buf, pos, (int)size, TagSet.ENC_LATIN1);
+			pos += size;
+		}
+		return tags;
+	}
+
+	/**
+	 * Returns the file offset of the APE tag (including its optional header)
+	 * whose footer is at 'footer', -1 if the footer is damaged
+	 */
+	private long findApeStart(long footer) {
+		int fpos = (int)(footer - buf_start);
+		long tag_size = b2le32(buf, fpos + 12) & 0xFFFFFFFFL; // items + footer
+		int tag_flags = b2le32(buf, fpos + 20);
+		long start = footer + APE_FOOTER_SIZE - tag_size;
+		if ((tag_flags & 0x80000000) != 0)
+			start -= APE_FOOTER_SIZE; // the header has the same size as the footer
+		return (tag_size < APE_FOOTER_SIZE || start < 0 ? -1 : start);
+	}
+
+	/**
+	 * Parses an APEv2 tag
+	 *
+	 * @param s the file to read from if the tag does not fit the tail buffer
+	 * @param footer file offset of the APE footer
+	 */
+	private TagSet parseApeTag(RandomAccessFile s, long footer) throws IOException {
+		TagSet tags = new TagSet();
+		int fpos = (int)(footer - buf_start);
+		long tag_size = b2le32(buf, fpos + 12) & 0xFFFFFFFFL; // items + footer
+		int items = b2le32(buf, fpos + 16);
+		long tag_end = footer;
+		long pos = footer + APE_FOOTER_SIZE - tag_size;
+
+		if (tag_size < APE_FOOTER_SIZE || pos < 0)
+			return tags;
+
+		for (; items > 0 && pos + 8 < tag_end; items--) {
+			// make sure that the item header including its key is buffered
+			if (pos < buf_start || pos + 8 + APE_MAX_KEY_SIZE + 1 > buf_start + buf_len)
+				fill(s, pos);
+
+			int ipos = (int)(pos - buf_start);
+			long value_len = b2le32(buf, ipos) & 0xFFFFFFFFL;
+			int item_flags = b2le32(buf, ipos + 4);
+			int key_end = ipos + 8;
+			while (key_end < buf_len && buf[key_end] != 0)
+				key_end++;
+			if (key_end >= buf_len)
+				break; // unterminated key
+
+			String key = new String(buf, ipos + 8, key_end - ipos - 8, "ISO-8859-1").toUpperCase();
+			long value_start = buf_start + key_end + 1;
+			if (value_start + value_len > tag_end)
+				break; // damaged item
+
+			int item_type = (item_flags >> 1) & 3;
+			if (item_type == APE_ITEM_TEXT) {
+				if (value_start + value_len > buf_start + buf_len)
+					fill(s, value_start);
+				String value = new String(buf, (int)(value_start - buf_start), (int)Math.min(value_len, buf_len), "UTF-8");
+				String vorbis_key = (APE_TAGS.containsKey(key) ? APE_TAGS.get(key) : key);
+				// multiple values are separated by null bytes
+				for (String v : value.split("\0")) {
+					if (v.length() > 0)
+						tags.add(vorbis_key, v);
+				}
+			}
+			else if (item_type == APE_ITEM_BINARY && key.startsWith("COVER ART")) {
+				// [file name\0][image data]: skip the file name, which must be buffered, if present
+				int vpos = (int)(value_start - buf_start);
+				int name_len = 0;
+				while (vpos + name_len < buf_len && name_len < value_len && buf[vpos + name_len] != 0)
+					name_len++;
+				if (vpos + name_len < buf_len && name_len < value_len) {
+					int picture_type = (key.equals("COVER ART (FRONT)") ? PICTURE_TYPE_FRONT_COVER : 0);
+					addPictureInfo(tags, picture_type, value_start + name_len + 1, value_len - name_len - 1, false);
+				}
+			}
+			pos = value_start + value_len;
+		}
+		return tags;
+	}
+
+	/**
+	 * Re-fills the buffer with data starting at offset
+	 */
+	private void fill(RandomAccessFile s, long offset) throws IOException {
+		s.seek(offset);
+		int bread = s.read(buf);
+		buf_start = offset;
+		buf_len = (bread > 0 ? bread : 0);
+	}
+
+	/**
+	 * Returns true if the buffer contains 'magic' at the given file offset
+	 */
+	private boolean matches(long offset, String magic) throws IOException {
+		int pos = (int)(offset - buf_start);
+		if (offset < buf_start || pos + magic.length() > buf_len)
+			return false;
+		return magic.equals(new String(buf, pos, magic.length(), "ISO-8859-1"));
+	}
+
+	/**
+	 * Parses 'len' ASCII digits at the given file offset, returns -1 on error
+	 */
+	private long parseDigits(long offset, int len) {
+		int pos = (int)(offset - buf_start);
+		long r = 0;
+		for (int i = 0; i < len; i++) {
+			int c = buf[pos+i];
+			if (c < '0' || c > '9')
+				return -1;
+			r = r * 10 + (c - '0');
+		}
+		return r;
+	}
+
+}
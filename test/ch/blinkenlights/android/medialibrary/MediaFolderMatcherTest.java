@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2017 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.medialibrary;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+
+public class MediaFolderMatcherTest extends TestCase {
+
+	public void testPathOutsideMediaFoldersIsExcluded() {
+		MediaFolderMatcher matcher = matcher(Arrays.asList("/a/b"), Collections.<String>emptyList());
+		assertFalse(matcher.isExcluded("/a/b/song.mp3"));
+		assertTrue(matcher.isExcluded("/a/song.mp3"));
+		assertTrue(matcher.isExcluded("/c/song.mp3"));
+	}
+
+	public void testFolderWithCommonPrefixIsNotMatched() {
+		MediaFolderMatcher matcher = matcher(Arrays.asList("/a/b"), Arrays.asList("/x/y"));
+		assertFalse(matcher.isExcluded("/a/b/song.mp3"));
+		assertTrue(matcher.isExcluded("/a/bc/song.mp3"));
+		assertTrue(matcher.isPrunable("/a/bc"));
+
+		matcher = matcher(Arrays.asList("/"), Arrays.asList("/a/b"));
+		assertTrue(matcher.isExcluded("/a/b/song.mp3"));
+		assertFalse(matcher.isExcluded("/a/bc/song.mp3"));
+		assertFalse(matcher.isPrunable("/a/bc"));
+	}
+
+	public void testTrailingSlashes() {
+		MediaFolderMatcher matcher = matcher(Arrays.asList("/a/b/"), Arrays.asList("/a/b/c/"));
+		assertFalse(matcher.isExcluded("/a/b/song.mp3"));
+		assertFalse(matcher.isExcluded("/a/b//song.mp3"));
+		assertFalse(matcher.isPrunable("/a/b/"));
+		assertTrue(matcher.isExcluded("/a/b/c/song.mp3"));
+		assertTrue(matcher.isPrunable("/a/b/c/"));
+		assertTrue(matcher.isPrunable("/a/b/c"));
+	}
+
+	public void testNestedMediaFolders() {
+		MediaFolderMatcher matcher = matcher(Arrays.asList("/a", "/a/b/c"), Arrays.asList("/a/b"));
+		assertFalse(matcher.isExcluded("/a/song.mp3"));
+		assertTrue(matcher.isExcluded("/a/b/song.mp3"));
+		assertFalse(matcher.isExcluded("/a/b/c/song.mp3"));
+		assertFalse(matcher.isExcluded("/a/b/c/d/song.mp3"));
+		// the media folder below the blacklisted one must still be read
+		assertFalse(matcher.isPrunable("/a/b"));
+		assertTrue(matcher.isPrunable("/a/b/x"));
+	}
+
+	public void testMostSpecificFolderWins() {
+		MediaFolderMatcher matcher = matcher(Arrays.asList("/a"), Arrays.asList("/a/b"));
+		assertFalse(matcher.isExcluded("/a/song.mp3"));
+		assertTrue(matcher.isExcluded("/a/b/song.mp3"));
+		assertTrue(matcher.isExcluded("/a/b/c/song.mp3"));
+		assertTrue(matcher.isPrunable("/a/b"));
+		assertFalse(matcher.isPrunable("/a"));
+
+		matcher = matcher(Arrays.asList("/a/b"), Arrays.asList("/a"));
+		assertTrue(matcher.isExcluded("/a/song.mp3"));
+		assertFalse(matcher.isExcluded("/a/b/song.mp3"));
+		assertFalse(matcher.isPrunable("/a"));
+		assertTrue(matcher.isPrunable("/a/c"));
+	}
+
+	public void testIncludedAndBlacklistedFolderIsIncluded() {
+		MediaFolderMatcher matcher = matcher(Arrays.asList("/a"), Arrays.asList("/a"));
+		assertFalse(matcher.isExcluded("/a/song.mp3"));
+		assertFalse(matcher.isPrunable("/a"));
+	}
+
+	public void testParentOfMediaFolderIsNotPrunable() {
+		MediaFolderMatcher matcher = matcher(Arrays.asList("/a/b/c"), Collections.<String>emptyList());
+		assertFalse(matcher.isPrunable("/"));
+		assertFalse(matcher.isPrunable("/a"));
+		assertFalse(matcher.isPrunable("/a/b"));
+		assertFalse(matcher.isPrunable("/a/b/c/d"));
+		assertTrue(matcher.isPrunable("/a/x"));
+		assertTrue(matcher.isExcluded("/a/b/song.mp3"));
+	}
+
+	private static MediaFolderMatcher matcher(List<String> mediaFolders, List<String> blacklistedFolders) {
+		return new MediaFolderMatcher(mediaFolders, blacklistedFolders);
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2017 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.medialibrary;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+
+public class MediaLibraryTest extends TestCase {
+	// strings which would be fts query syntax if they reached the MATCH expression unchanged
+	private static final String[] QUERIES = {
+		"foo OR bar", "foo AND bar", "foo NOT bar", "foo NEAR bar", "foo NEAR/3 bar",
+		"-foo", "foo -bar", "\"foo bar\"", "foo*", "^foo", "title:foo", "(foo OR bar)",
+		"\"", "'", "*", "OR", "NEAR", "Guns N' Roses", "AC/DC", "Beyoncé ÉTÉ",
+	};
+	// a word of the 'simple' fts tokenizer
+	private static final Pattern WORD = Pattern.compile("[^\\x00-\\x2f\\x3a-\\x40\\x5b-\\x60\\x7b-\\x7f]+");
+
+	public void testSearchTextDropsAccentsAndCase() {
+		assertEquals("beyonce", MediaLibrary.searchTextFor("Beyoncé"));
+		assertEquals("ete", MediaLibrary.searchTextFor("ÉTÉ"));
+		assertNull(MediaLibrary.searchTextFor(null));
+	}
+
+	public void testPunctuationSplitsTerms() {
+		assertTerms("AC/DC", "ac", "dc");
+		assertTerms("  Foo,  bar. (Live!) ", "foo", "bar", "live");
+		assertTerms("Guns N' Roses", "guns", "n", "roses");
+		// the simple tokenizer also splits the stored text at apostrophes
+		assertTerms("Don't Stop", "don", "t", "stop");
+	}
+
+	public void testSeparatorOnlyInputHasNoTerms() {
+		assertTerms("");
+		assertTerms("   ");
+		assertTerms("'-\"*:()/^");
+	}
+
+	public void testFtsOperatorsBecomeWords() {
+		assertTerms("foo OR bar", "foo", "or", "bar");
+		assertTerms("foo NEAR bar", "foo", "near", "bar");
+		assertTerms("foo NEAR/3 bar", "foo", "near", "3", "bar");
+		assertTerms("NOT AND", "not", "and");
+		assertTerms("-foo", "foo");
+		assertTerms("\"foo bar\"", "foo", "bar");
+		assertTerms("title:foo*", "title", "foo");
+	}
+
+	public void testTermsCannotChangeTheQuery() {
+		String[] columns = { MediaLibrary.SearchColumns.TITLE, MediaLibrary.SearchColumns.ALBUM };
+		for (String query : QUERIES) {
+			for (String term : MediaLibrary.searchTermsFor(query)) {
+				// operators are only keywords in upper case
+				assertTrue(term, WORD.matcher(term).matches());
+				assertEquals(term, term.toLowerCase(Locale.ROOT));
+				assertEquals("title:" + term + "* OR album:" + term + "*", MediaLibrary.searchMatchFor(columns, term));
+			}
+		}
+	}
+
+	private static void assertTerms(String constraint, String... expected) {
+		assertEquals(Arrays.asList(expected), Arrays.asList(MediaLibrary.searchTermsFor(constraint)));
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2017 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.medialibrary;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+
+public class MediaScannerTest extends TestCase {
+	private static final long NOW = 1500000000;
+	private static final long MTIME = 1490000000;
+
+	private File root;
+
+	@Override
+	protected void setUp() throws IOException {
+		root = Files.createTempDirectory("scanner").toFile();
+	}
+
+	@Override
+	protected void tearDown() {
+		delete(root);
+	}
+
+	public void testUnchangedDirectoryIsSkipped() {
+		long[] known = { MTIME, 12, NOW - 3600 };
+		assertTrue(MediaScanner.canSkipFiles(known, MTIME, 12, NOW, false));
+	}
+
+	public void testFullScanInspectsUnchangedDirectory() {
+		long[] known = { MTIME, 12, NOW - 3600 };
+		assertFalse(MediaScanner.canSkipFiles(known, MTIME, 12, NOW, true));
+	}
+
+	public void testChangedDirectoryIsInspected() {
+		long[] known = { MTIME, 12, NOW - 3600 };
+		assertFalse(MediaScanner.canSkipFiles(known, MTIME + 1, 12, NOW, false));
+		assertFalse(MediaScanner.canSkipFiles(known, MTIME, 13, NOW, false));
+		assertFalse(MediaScanner.canSkipFiles(null, MTIME, 12, NOW, false));
+		assertFalse(MediaScanner.canSkipFiles(known, 0, 12, NOW, false));
+	}
+
+	public void testStaleDirectoryIsInspected() {
+		long[] known = { MTIME, 12, NOW - 8 * 24 * 3600 };
+		assertFalse(MediaScanner.canSkipFiles(known, MTIME, 12, NOW, false));
+	}
+
+	public void testWalkSkipsUnchangedDirectory() throws IOException {
+		File sub = new File(root, "sub");
+		assertTrue(sub.mkdir());
+		assertTrue(new File(root, "a.mp3").createNewFile());
+		assertTrue(new File(sub, "b.mp3").createNewFile());
+
+		HashMap<String, long[]> state = new HashMap<>();
+		assertEquals(2, walk(state, false).size());
+		// nothing changed: both directories are read, but none of their files are returned
+		assertEquals(0, walk(state, false).size());
+		assertEquals(2, state.size());
+
+		assertTrue(new File(sub, "c.mp3").createNewFile());
+		ArrayList<File> files = walk(state, false);
+		assertEquals(2, files.size());
+		for (File file : files)
+			assertEquals(sub, file.getParentFile());
+	}
+
+	public void testVerifyingWalkReturnsAllFiles() throws IOException {
+		assertTrue(new File(root, "a.mp3").createNewFile());
+
+		HashMap<String, long[]> state = new HashMap<>();
+		assertEquals(1, walk(state, false).size());
+		assertEquals(1, walk(state, true).size());
+	}
+
+	public void testWalkIgnoresNomediaDirectory() throws IOException {
+		File sub = new File(root, "sub");
+		assertTrue(sub.mkdir());
+		assertTrue(new File(sub, "b.mp3").createNewFile());
+		assertTrue(new File(sub, ".nomedia").createNewFile());
+
+		HashMap<String, long[]> state = new HashMap<>();
+		assertEquals(0, walk(state, true).size());
+		assertEquals(1, state.size());
+	}
+
+	/**
+	 * Walks root like a directory scan does
+	 *
+	 * @param state the state of all directories, updated by the walk
+	 * @param verify passed to listDirectory()
+	 * @return the files to inspect
+	 */
+	private ArrayList<File> walk(HashMap<String, long[]> state, boolean verify) {
+		ArrayDeque<File> directories = new ArrayDeque<>();
+		ArrayDeque<File> files = new ArrayDeque<>();
+		directories.push(root);
+		while (!directories.isEmpty()) {
+			File dir = directories.pop();
+			long[] seen = MediaScanner.listDirectory(dir, state.get(dir.getPath()), NOW, verify, directories, files);
+			if (seen != null)
+				state.put(dir.getPath(), seen);
+		}
+		return new ArrayList<>(files);
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children)
+				delete(child);
+		}
+		file.delete();
+	}
+}
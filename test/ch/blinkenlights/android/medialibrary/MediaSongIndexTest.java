@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2017 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.medialibrary;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+
+public class MediaSongIndexTest extends TestCase {
+	// the initial number of slots of an empty index
+	private static final int CAPACITY = 1024;
+
+	public void testPutAndGet() {
+		MediaSongIndex index = new MediaSongIndex();
+		index.put(42, 1000, 3, 4, true);
+		assertEquals(1000, index.getMtime(42));
+		assertEquals(3, index.getPlayCount(42));
+		assertEquals(4, index.getSkipCount(42));
+		assertTrue(index.hasFingerprint(42));
+		assertEquals(0, index.getMtime(43));
+		assertEquals(1, index.size());
+	}
+
+	public void testZeroMtimeRemovesSong() {
+		MediaSongIndex index = new MediaSongIndex();
+		index.put(42, 1000, 0, 0, false);
+		index.put(42, 0, 0, 0, false);
+		assertEquals(0, index.getMtime(42));
+		assertEquals(0, index.size());
+	}
+
+	public void testRemoveFromCollisionChain() {
+		ArrayList<Long> ids = collidingIds(17, 8);
+		for (int i = 0; i < ids.size(); i++) {
+			MediaSongIndex index = new MediaSongIndex();
+			for (long id : ids)
+				index.put(id, id, 0, 0, false);
+
+			// every entry after the removed one must still be reachable
+			index.remove(ids.get(i));
+			for (int j = 0; j < ids.size(); j++) {
+				long expected = (i == j ? 0 : ids.get(j));
+				assertEquals(expected, index.getMtime(ids.get(j)));
+			}
+			assertEquals(ids.size() - 1, index.size());
+		}
+	}
+
+	public void testRemoveAcrossWrapAround() {
+		// the chain of the last slot continues at the first slots
+		ArrayList<Long> ids = collidingIds(CAPACITY - 1, 4);
+		ArrayList<Long> first = collidingIds(0, 2);
+		ArrayList<Long> all = new ArrayList<>(ids);
+		all.addAll(first);
+
+		for (int i = 0; i < all.size(); i++) {
+			MediaSongIndex index = new MediaSongIndex();
+			for (long id : all)
+				index.put(id, id, 0, 0, false);
+
+			index.remove(all.get(i));
+			for (int j = 0; j < all.size(); j++) {
+				long expected = (i == j ? 0 : all.get(j));
+				assertEquals(expected, index.getMtime(all.get(j)));
+			}
+
+			// removing everything must leave an empty, working index
+			for (long id : all)
+				index.remove(id);
+			assertEquals(0, index.size());
+			for (long id : all)
+				assertEquals(0, index.getMtime(id));
+		}
+	}
+
+	public void testGrowKeepsAllSongs() {
+		MediaSongIndex index = new MediaSongIndex();
+		int count = CAPACITY * 4;
+		for (long id = 1; id <= count; id++)
+			index.put(id, id + 1, id, id * 2, id % 3 == 0);
+
+		assertEquals(count, index.size());
+		for (long id = 1; id <= count; id++) {
+			assertEquals(id + 1, index.getMtime(id));
+			assertEquals(id, index.getPlayCount(id));
+			assertEquals(id * 2, index.getSkipCount(id));
+			assertEquals(id % 3 == 0, index.hasFingerprint(id));
+		}
+	}
+
+	public void testRandomOperationsMatchHashMap() {
+		Random random = new Random(1234);
+		// a mix of random ids and long collision chains, some of them wrapping around
+		ArrayList<Long> keys = new ArrayList<>();
+		keys.addAll(collidingIds(CAPACITY - 2, 12));
+		keys.addAll(collidingIds(0, 12));
+		keys.addAll(collidingIds(511, 12));
+		for (int i = 0; i < 1500; i++)
+			keys.add(random.nextLong() & Long.MAX_VALUE);
+
+		MediaSongIndex index = new MediaSongIndex();
+		HashMap<Long, long[]> expected = new HashMap<>();
+		for (int round = 0; round < 60000; round++) {
+			long id = keys.get(random.nextInt(keys.size()));
+			int op = random.nextInt(10);
+			if (op < 5) {
+				long[] values = { 1 + random.nextInt(1000000), random.nextInt(100), random.nextInt(100), random.nextInt(2) };
+				index.put(id, values[0], values[1], values[2], values[3] != 0);
+				expected.put(id, values);
+			} else if (op < 8) {
+				index.remove(id);
+				expected.remove(id);
+			} else {
+				assertSong(expected.get(id), index, id);
+			}
+
+			assertEquals(expected.size(), index.size());
+			if (round % 5000 == 0) {
+				for (long key : keys)
+					assertSong(expected.get(key), index, key);
+			}
+		}
+
+		for (long key : keys)
+			assertSong(expected.get(key), index, key);
+	}
+
+	private static void assertSong(long[] values, MediaSongIndex index, long id) {
+		if (values == null) {
+			assertEquals(0, index.getMtime(id));
+			assertFalse(index.hasFingerprint(id));
+		} else {
+			assertEquals(values[0], index.getMtime(id));
+			assertEquals(values[1], index.getPlayCount(id));
+			assertEquals(values[2], index.getSkipCount(id));
+			assertEquals(values[3] != 0, index.hasFingerprint(id));
+		}
+	}
+
+	/**
+	 * Returns ids whose first slot in an empty index is the given slot,
+	 * using the same mixing as MediaSongIndex.home()
+	 */
+	private static ArrayList<Long> collidingIds(int slot, int count) {
+		int shift = 64 - Integer.numberOfTrailingZeros(CAPACITY);
+		ArrayList<Long> ids = new ArrayList<>();
+		for (long id = 1; ids.size() < count; id++) {
+			if ((int)((id * 0x9E3779B97F4A7C15L) >>> shift) == slot)
+				ids.add(id);
+		}
+		return ids;
+	}
+}
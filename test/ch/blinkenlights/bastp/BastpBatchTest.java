@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2017 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.bastp;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+
+
+public class BastpBatchTest extends TestCase {
+	private BastpBatch<TagSet> batch;
+
+	@Override
+	protected void setUp() {
+		batch = new BastpBatch<TagSet>(1, 1, false, BastpBatch.TAGS);
+	}
+
+	@Override
+	protected void tearDown() {
+		batch.shutdown();
+	}
+
+	public void testSiblingVolumesDoNotMatch() {
+		batch.setVolumeLimit("/storage/ABCD", 1);
+		batch.setVolumeLimit("/sdcard/Music", 2);
+
+		assertNull(batch.findVolumeLimit("/storage/ABCD-1234/Music/a.mp3"));
+		assertNull(batch.findVolumeLimit("/sdcard/Music2/a.mp3"));
+		assertEquals(1, batch.findVolumeLimit("/storage/ABCD/Music/a.mp3").availablePermits());
+		assertEquals(2, batch.findVolumeLimit("/sdcard/Music/a.mp3").availablePermits());
+		assertEquals(2, batch.findVolumeLimit("/sdcard/Music").availablePermits());
+	}
+
+	public void testLongestVolumeWins() {
+		batch.setVolumeLimit("/storage", 4);
+		batch.setVolumeLimit("/storage/ABCD-1234", 2);
+
+		assertEquals(2, batch.findVolumeLimit("/storage/ABCD-1234/a.mp3").availablePermits());
+		assertEquals(4, batch.findVolumeLimit("/storage/ABCD-12345/a.mp3").availablePermits());
+		assertEquals(4, batch.findVolumeLimit("/storage/emulated/0/a.mp3").availablePermits());
+	}
+
+	public void testTrailingSlashIsIgnored() {
+		batch.setVolumeLimit("/storage/ABCD/", 1);
+		batch.setVolumeLimit("/", 3);
+
+		assertEquals(1, batch.findVolumeLimit("/storage/ABCD/a.mp3").availablePermits());
+		assertEquals(3, batch.findVolumeLimit("/storage/ABCDE/a.mp3").availablePermits());
+		assertEquals(3, batch.findVolumeLimit("/data/a.mp3").availablePermits());
+	}
+
+	public void testCancelKeepsStartedFiles() throws InterruptedException {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		BastpBatch<String> blocking = new BastpBatch<String>(1, 3, false, new BastpBatch.Parser<String>() {
+			@Override
+			public String parse(Bastp bastp, String path) {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					return null;
+				}
+				return path;
+			}
+		});
+		try {
+			blocking.submit("a");
+			started.await();
+			blocking.submit("b");
+			blocking.submit("c");
+			blocking.cancel();
+			release.countDown();
+
+			HashMap<String, BastpBatch.Result<String>> results = new HashMap<String, BastpBatch.Result<String>>();
+			for (int i = 0; i < 3; i++) {
+				BastpBatch.Result<String> result = blocking.take();
+				results.put(result.path, result);
+			}
+			assertFalse(results.get("a").cancelled);
+			assertEquals("a", results.get("a").value);
+			assertTrue(results.get("b").cancelled);
+			assertTrue(results.get("c").cancelled);
+		} finally {
+			blocking.shutdown();
+		}
+	}
+}